@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of address parsing: full parser (previous {@linkplain MessageBuilder}
+ * path), plain address fast path and {@linkplain AddressCache} lookups.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AddressBenchmark {
+    // INSTANCE SCOPE ==========================================================
+    /** Number of distinct addresses being parsed. */
+    @Param({"1000", "100000"})
+    public int addressCount;
+
+    /** Address style: "plain" (user@host) or "named" (Name &lt;user@host&gt;). */
+    @Param({"plain", "named"})
+    public String style;
+
+    private String[]     addresses;
+    private AddressCache cache;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index = 0;
+    }
+
+    @Setup
+    public void setup() throws AddressException {
+        addresses = new String[addressCount];
+
+        for (int i = 0; i < addressCount; i++) {
+            String address = String.format("recipient.%d@host%d.example.com", i, i % 97);
+            addresses[i] = style.equals("named") ? String.format("Recipient %d <%s>", i, address) : address;
+        }
+
+        cache = new AddressCache(AddressCache.DEFAULT_MAX_SIZE);
+
+        for (String address : addresses)
+            cache.getAddress(address);
+    }
+
+    private String next(Cursor cursor) {
+        String address = addresses[cursor.index];
+        cursor.index = (cursor.index + 1) % addresses.length;
+        return address;
+    }
+
+    @Benchmark
+    public InternetAddress fullParser(Cursor cursor) throws AddressException {
+        return new ReadOnlyInternetAddress(new InternetAddress(next(cursor).trim()));
+    }
+
+    @Benchmark
+    public InternetAddress fastPath(Cursor cursor) throws AddressException {
+        return AddressCache.parseAddress(next(cursor).trim());
+    }
+
+    @Benchmark
+    public InternetAddress cache(Cursor cursor) throws AddressException {
+        return cache.getAddress(next(cursor));
+    }
+    // =========================================================================
+}
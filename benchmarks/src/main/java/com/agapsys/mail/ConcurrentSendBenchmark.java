@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delivers a burst of concurrent messages through an
+ * {@linkplain AsyncSmtpSender} backed by a pooled sender, comparing a
+ * fixed platform thread pool with a per-message sender (virtual threads when
+ * the benchmark runs on Java 21+) and with a {@linkplain NioSmtpSender}.
+ *
+ * Each invocation sends "sends" messages and waits for all of them. Server
+ * latency makes each delivery block, which is where thread-per-message
+ * execution pays off.
+ *
+ * Blocking modes can never run more than "connections" SMTP conversations at
+ * once (the remaining sends wait for a pooled connection), and on Java 21 to
+ * 23 virtual threads are pinned while inside JavaMail's synchronized
+ * SMTPTransport. Raise "connections" to measure thread scheduling rather than
+ * pool contention.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentSendBenchmark {
+    /** "platform" (fixed thread pool), "perMessage" (see {@linkplain AsyncSmtpSender#newPerMessageSender(SmtpSender)}) or "nio" (see {@linkplain NioSmtpSender}). */
+    @Param({"platform", "perMessage", "nio"})
+    public String mode;
+
+    /** Number of messages sent concurrently on each invocation. */
+    @Param({"10000"})
+    public int sends;
+
+    /** Number of threads used by the platform thread pool. */
+    @Param({"200"})
+    public int platformThreads;
+
+    /** Number of pooled connections (caps concurrent SMTP conversations in every mode). */
+    @Param({"64", "1000"})
+    public int connections;
+
+    /** Delay (in milliseconds) applied by the server before each reply. */
+    @Param({"5"})
+    public long latency;
+
+    private SmtpSinkServer  sink;
+    private SmtpSender      sender;
+    private AsyncSmtpSender asyncSender; // <-- null in "nio" mode
+    private Message         message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, MessagingException {
+        sink = new SmtpSinkServer(4);
+        sink.setLatency(latency);
+
+        PoolSettings poolSettings = new PoolSettings();
+        poolSettings.setMaxConnections(connections);
+        poolSettings.setMaxMessagesPerConnection(Integer.MAX_VALUE);
+        poolSettings.setMaxWait(TimeUnit.MINUTES.toMillis(10));
+
+        if (mode.equals("platform")) {
+            sender = new SmtpSender(sink.getSmtpSettings(), poolSettings);
+            asyncSender = new AsyncSmtpSender(sender, platformThreads, sends, RejectionPolicy.BLOCK);
+        } else if (mode.equals("perMessage")) {
+            sender = new SmtpSender(sink.getSmtpSettings(), poolSettings);
+            asyncSender = AsyncSmtpSender.newPerMessageSender(sender);
+        } else if (mode.equals("nio")) {
+            sender = new NioSmtpSender(sink.getSmtpSettings(), poolSettings);
+        } else {
+            throw new IllegalArgumentException("Invalid mode: " + mode);
+        }
+
+        message = new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Subject").setText("Benchmark message").build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (asyncSender != null)
+            asyncSender.close();
+
+        sender.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public int sendBurst() throws InterruptedException, ExecutionException {
+        List<Future<SendResult>> futures = new ArrayList<>(sends);
+
+        for (int i = 0; i < sends; i++)
+            futures.add(asyncSender != null ? asyncSender.sendMessage(message) : ((NioSmtpSender) sender).sendAsync(message));
+
+        int failures = 0;
+        for (Future<SendResult> future : futures) {
+            if (!future.get().isSuccess())
+                failures++;
+        }
+
+        return failures;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of message creation and MIME serialization.
+ *
+ * Serialization is measured for a new message, for another send of the same
+ * message and for a retry of the same delivery, whose wire form is cached
+ * (see {@linkplain Message#forDelivery()}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+    // CLASS SCOPE =============================================================
+    /** Output stream which discards everything written to it. */
+    private static class NullOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    /** Number of recipients. */
+    @Param({"1", "50"})
+    public int recipientCount;
+
+    /** Body size in characters. */
+    @Param({"1024", "65536"})
+    public int textSize;
+
+    private String[] recipients;
+    private String   text;
+    private Message  message;
+    private Message  delivery;
+    private Session  session;
+
+    @Setup
+    public void setup() throws AddressException {
+        recipients = new String[recipientCount];
+        for (int i = 0; i < recipientCount; i++)
+            recipients[i] = String.format("recipient%d@host.com", i);
+
+        StringBuilder sb = new StringBuilder(textSize);
+        for (int i = 0; i < textSize; i++)
+            sb.append(i % 80 == 79 ? '\n' : (char) ('a' + i % 26));
+
+        text = sb.toString();
+        message = build();
+        delivery = message.forDelivery();
+        session = Session.getInstance(new Properties());
+    }
+
+    private Message build() throws AddressException {
+        return new MessageBuilder("sender@host.com", recipients).setSubject("Benchmark subject").setText(text).build();
+    }
+
+    @Benchmark
+    public Message messageBuilder() throws AddressException {
+        return build();
+    }
+
+    /** Returns the number of bytes written by given message. */
+    private static long writeTo(MimeMessage mimeMessage) throws MessagingException, IOException {
+        NullOutputStream out = new NullOutputStream();
+        mimeMessage.writeTo(out);
+        return out.count;
+    }
+
+    /**
+     * First send of a new message: body is encoded and headers are written.
+     * Includes message creation (see {@linkplain #messageBuilder()}).
+     */
+    @Benchmark
+    public MimeMessage newMessageMimeMessage() throws MessagingException {
+        MimeMessage mimeMessage = build().getMimeMessage(session);
+        mimeMessage.saveChanges();
+        return mimeMessage;
+    }
+
+    /** Same as {@linkplain #newMessageMimeMessage()}, including serialization. */
+    @Benchmark
+    public long newMessageWriteTo() throws MessagingException, IOException {
+        MimeMessage mimeMessage = build().getMimeMessage(session);
+        mimeMessage.saveChanges();
+        return writeTo(mimeMessage);
+    }
+
+    /** New send of the same message: encoded body is reused, headers (Message-ID, Date) are written again. */
+    @Benchmark
+    public long resendWriteTo() throws MessagingException, IOException {
+        MimeMessage mimeMessage = message.getMimeMessage(session);
+        mimeMessage.saveChanges();
+        return writeTo(mimeMessage);
+    }
+
+    /** Retry of the same delivery (or send through another relay): the whole wire form is reused. */
+    @Benchmark
+    public long cachedDeliveryWriteTo() throws MessagingException, IOException {
+        MimeMessage mimeMessage = delivery.getMimeMessage(session);
+        mimeMessage.saveChanges();
+        return writeTo(mimeMessage);
+    }
+
+    @Benchmark
+    public void settingsParsing(Blackhole blackhole) {
+        Properties props = new Properties();
+        props.setProperty(SmtpSettings.KEY_SERVER, "mail.host.com");
+        props.setProperty(SmtpSettings.KEY_PORT, "587");
+        props.setProperty(SmtpSettings.KEY_AUTH, "true");
+        props.setProperty(SmtpSettings.KEY_USERNAME, "username");
+        props.setProperty(SmtpSettings.KEY_PASSWORD, "password");
+        props.setProperty(SmtpSettings.KEY_SECURITY, "TLS");
+
+        blackhole.consume(new SmtpSettings(props));
+    }
+    // =========================================================================
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmark of {@linkplain SmtpSender#sendMessage(Message)}
+ * against an in-process {@linkplain SmtpSinkServer}.
+ *
+ * Reports throughput and latency percentiles (sample mode). Run with
+ * "-prof gc" to get allocation rates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SendBenchmark {
+    /** Defines if the sender reuses pooled connections. */
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    /** Delay (in milliseconds) applied by the server before each reply. */
+    @Param({"0"})
+    public long latency;
+
+    private SmtpSinkServer sink;
+    private SmtpSender sender;
+    private Message    message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, MessagingException {
+        sink = new SmtpSinkServer();
+        sink.setLatency(latency);
+
+        sender = new SmtpSender(sink.getSmtpSettings(), pooled ? new PoolSettings() : null);
+        message = new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Subject").setText("Benchmark message").build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public void sendMessage() throws MessagingException {
+        sender.sendMessage(message);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Bounded cache of parsed addresses.
+ *
+ * Parsed addresses are read-only instances shared by every message using
+ * them. The cache is split into independently locked segments, each one
+ * evicting its least recently used address when full, so concurrent lookups
+ * of different addresses rarely contend.
+ *
+ * Plain ASCII addresses (e.g. "user@host.com") are validated by a simple
+ * scan; other addresses (with personal names, quoting, comments, etc.) are
+ * handled by the full RFC 822 parser.
+ */
+public class AddressCache {
+    // CLASS SCOPE =============================================================
+    public static final int DEFAULT_MAX_SIZE = 65536;
+
+    private static final int SEGMENTS = 16; // <-- must be a power of two
+
+    private static final AddressCache DEFAULT_INSTANCE = new AddressCache(DEFAULT_MAX_SIZE);
+
+    /**
+     * Returns the cache used by {@linkplain MessageBuilder} when no cache is given.
+     *
+     * @return default cache.
+     */
+    public static AddressCache getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    private static boolean isAtext(char c) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))
+            return true;
+
+        switch (c) {
+            case '!': case '#': case '$': case '%': case '&': case '\'': case '*': case '+':
+            case '-': case '/': case '=': case '?': case '^': case '_': case '`': case '{':
+            case '|': case '}': case '~':
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks if given string is a plain "local@domain" address made of
+     * dot-separated ASCII atoms (local part) and host name labels (domain).
+     *
+     * Such addresses are parsed by {@linkplain InternetAddress} into an
+     * address without personal name, whose address is the string itself.
+     *
+     * @param address string to be checked.
+     * @return true if given string is a plain address.
+     */
+    static boolean isPlainAddress(String address) {
+        int at = address.indexOf('@');
+        int length = address.length();
+
+        if (at < 1 || at == length - 1)
+            return false;
+
+        // Local part: dot-atom...
+        boolean previousDot = true;
+        for (int i = 0; i < at; i++) {
+            char c = address.charAt(i);
+
+            if (c == '.') {
+                if (previousDot)
+                    return false;
+
+                previousDot = true;
+            } else if (isAtext(c)) {
+                previousDot = false;
+            } else {
+                return false;
+            }
+        }
+
+        if (previousDot)
+            return false;
+
+        // Domain: dot-separated labels (letters, digits and inner hyphens)...
+        int labelLength = 0;
+        for (int i = at + 1; i < length; i++) {
+            char c = address.charAt(i);
+
+            if (c == '.') {
+                if (labelLength == 0 || address.charAt(i - 1) == '-')
+                    return false;
+
+                labelLength = 0;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                labelLength++;
+            } else if (c == '-' && labelLength > 0) {
+                labelLength++;
+            } else {
+                return false;
+            }
+        }
+
+        return labelLength > 0 && address.charAt(length - 1) != '-';
+    }
+
+    /**
+     * Parses an address without using any cache.
+     *
+     * @param address address to be parsed.
+     * @return read-only address.
+     * @throws AddressException if given address is invalid.
+     */
+    static InternetAddress parseAddress(String address) throws AddressException {
+        if (isPlainAddress(address))
+            return new ReadOnlyInternetAddress(address);
+
+        return new ReadOnlyInternetAddress(new InternetAddress(address));
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private static class Segment extends LinkedHashMap<String, InternetAddress> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, InternetAddress> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int       maxSize;
+
+    public AddressCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize maximum number of cached addresses.
+     */
+    public AddressCache(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Invalid max size: " + maxSize);
+
+        int segmentCount = Math.min(SEGMENTS, Integer.highestOneBit(maxSize));
+        int segmentSize = (maxSize + segmentCount - 1) / segmentCount;
+
+        this.maxSize = maxSize;
+        this.segments = new Segment[segmentCount];
+
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    private Segment getSegment(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Returns the parsed form of an address.
+     *
+     * @param address address to be parsed (leading and trailing whitespace are ignored).
+     * @return shared read-only address.
+     * @throws AddressException if given address is null, empty or invalid.
+     */
+    public InternetAddress getAddress(String address) throws AddressException {
+        if (address == null || address.trim().isEmpty())
+            throw new AddressException("Null/Empty address");
+
+        address = address.trim();
+        Segment segment = getSegment(address);
+
+        synchronized (segment) {
+            InternetAddress cached = segment.get(address);
+            if (cached != null)
+                return cached;
+        }
+
+        InternetAddress parsed = parseAddress(address); // <-- invalid addresses are not cached
+
+        synchronized (segment) {
+            InternetAddress cached = segment.get(address);
+            if (cached != null)
+                return cached;
+
+            segment.put(address, parsed);
+            return parsed;
+        }
+    }
+
+    public int getSize() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+    // =========================================================================
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Compact immutable set of addresses, preserving insertion order.
+ *
+ * Addresses are stored in an array indexed by an open-addressing hash table
+ * of array positions, which takes a small fraction of the memory used by a
+ * {@linkplain java.util.LinkedHashSet} (no entry object per address). This
+ * matters for messages with very large recipient lists.
+ */
+final class AddressSet extends AbstractSet<InternetAddress> {
+    // CLASS SCOPE =============================================================
+    static final AddressSet EMPTY = new AddressSet(new InternetAddress[0]);
+
+    /**
+     * Returns an address set holding given addresses.
+     *
+     * @param addresses addresses (duplicates are ignored).
+     * @return address set (given collection itself if it is an address set).
+     */
+    static AddressSet of(Collection<InternetAddress> addresses) {
+        if (addresses instanceof AddressSet)
+            return (AddressSet) addresses;
+
+        if (addresses.isEmpty())
+            return EMPTY;
+
+        return new AddressSet(addresses.toArray(new InternetAddress[addresses.size()]));
+    }
+
+    /**
+     * Returns the union of two address sets.
+     *
+     * @param first first set (its addresses come first).
+     * @param second second set.
+     * @return union of given sets.
+     */
+    static AddressSet union(AddressSet first, AddressSet second) {
+        if (second.isEmpty())
+            return first;
+
+        if (first.isEmpty())
+            return second;
+
+        InternetAddress[] array = Arrays.copyOf(first.addresses, first.addresses.length + second.addresses.length);
+        System.arraycopy(second.addresses, 0, array, first.addresses.length, second.addresses.length);
+        return new AddressSet(array);
+    }
+
+    private static int hash(Object obj) {
+        int h = obj.hashCode();
+        return h ^ (h >>> 16);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final InternetAddress[] addresses;
+    private final int[]             table; // <-- array positions + 1 (0: empty slot)
+
+    private AddressSet(InternetAddress[] candidates) {
+        int capacity = Integer.highestOneBit(Math.max(candidates.length, 1) * 2 - 1) << 1;
+        int[] tmpTable = new int[capacity];
+        int mask = capacity - 1;
+        int count = 0;
+
+        for (InternetAddress candidate : candidates) {
+            if (candidate == null)
+                throw new IllegalArgumentException("Null address");
+
+            int slot = hash(candidate) & mask;
+            boolean duplicate = false;
+
+            while (tmpTable[slot] != 0) {
+                if (candidates[tmpTable[slot] - 1].equals(candidate)) {
+                    duplicate = true;
+                    break;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            if (!duplicate) {
+                candidates[count] = candidate;
+                tmpTable[slot] = count + 1;
+                count++;
+            }
+        }
+
+        this.addresses = count == candidates.length ? candidates : Arrays.copyOf(candidates, count);
+        this.table = tmpTable;
+    }
+
+    @Override
+    public boolean contains(Object obj) {
+        if (!(obj instanceof InternetAddress))
+            return false;
+
+        int mask = table.length - 1;
+        int slot = hash(obj) & mask;
+
+        while (table[slot] != 0) {
+            if (addresses[table[slot] - 1].equals(obj))
+                return true;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return false;
+    }
+
+    @Override
+    public Iterator<InternetAddress> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(addresses)).iterator();
+    }
+
+    @Override
+    public int size() {
+        return addresses.length;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return addresses.clone();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] array) {
+        if (array.length < addresses.length)
+            array = (T[]) Arrays.copyOf(addresses, addresses.length, array.getClass());
+        else
+            System.arraycopy(addresses, 0, array, 0, addresses.length);
+
+        if (array.length > addresses.length)
+            array[addresses.length] = null;
+
+        return array;
+    }
+    // =========================================================================
+}
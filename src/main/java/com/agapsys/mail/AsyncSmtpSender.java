@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.io.Closeable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.MessagingException;
+
+/**
+ * Asynchronous mail sender.
+ *
+ * Messages are queued into a bounded queue and delivered by a fixed number of
+ * threads through a wrapped {@linkplain SmtpSender}. When the wrapped sender
+ * is pooled, parallelism should not exceed the pool size.
+ *
+ * Alternatively, a sender created through
+ * {@linkplain #newPerMessageSender(SmtpSender)} delivers each message on its
+ * own thread (a virtual thread when running on Java 21+).
+ */
+public class AsyncSmtpSender implements Closeable {
+    // CLASS SCOPE =============================================================
+    public static final int             DEFAULT_PARALLELISM      = 4;
+    public static final int             DEFAULT_QUEUE_CAPACITY   = 1000;
+    public static final RejectionPolicy DEFAULT_REJECTION_POLICY = RejectionPolicy.BLOCK;
+
+    private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger(0);
+
+    private static class SendTask extends FutureTask<SendResult> {
+        private final Message message;
+
+        public SendTask(final SmtpSender sender, final Message message, final SendCallback callback) {
+            super(new Callable<SendResult>() {
+                @Override
+                public SendResult call() throws Exception {
+                    SendResult result;
+
+                    try {
+                        sender.sendMessage(message);
+                        result = new SendResult(message, null);
+                    } catch (MessagingException ex) {
+                        result = new SendResult(message, ex);
+                    } catch (RuntimeException ex) {
+                        result = new SendResult(message, new MessagingException("Unexpected error", ex)); // <-- e.g. wrapped sender was closed
+                    }
+
+                    if (callback != null)
+                        callback.onComplete(result);
+
+                    return result;
+                }
+            });
+
+            this.message = message;
+        }
+    }
+
+    private static class BlockingPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Sender is shut down");
+
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for queue space", ex);
+            }
+
+            // Sender may have been shut down while waiting for queue space
+            // (queued task would never run)...
+            if (executor.isShutdown() && executor.remove(r))
+                throw new RejectedExecutionException("Sender is shut down");
+        }
+    }
+
+    private static class CallerRunsPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Sender is shut down"); // <-- ThreadPoolExecutor.CallerRunsPolicy would silently discard the task
+
+            r.run();
+        }
+    }
+
+    private static RejectedExecutionHandler getHandler(RejectionPolicy rejectionPolicy) {
+        switch (rejectionPolicy) {
+            case REJECT:
+                return new ThreadPoolExecutor.AbortPolicy();
+
+            case BLOCK:
+                return new BlockingPolicy();
+
+            case CALLER_RUNS:
+                return new CallerRunsPolicy();
+
+            default:
+                throw new UnsupportedOperationException("Unsupported value: " + rejectionPolicy.name());
+        }
+    }
+
+    /**
+     * Returns a boolean indicating if senders created through
+     * {@linkplain #newPerMessageSender(SmtpSender)} use virtual threads.
+     *
+     * @return true when running on Java 21+.
+     */
+    public static boolean isVirtualThreadAvailable() {
+        return SendThreads.isVirtual();
+    }
+
+    /**
+     * Creates an asynchronous sender which delivers each message on its own
+     * thread, without queueing.
+     *
+     * On Java 21+ messages are delivered by virtual threads, so messages
+     * waiting for a pooled connection (see {@linkplain PoolSettings#getMaxWait()})
+     * do not hold platform threads. Actual socket I/O, however, runs inside
+     * JavaMail's SMTPTransport, whose connect/sendMessage methods are
+     * synchronized: on Java 21 to 23 a virtual thread is pinned to its carrier
+     * while talking to the server, so the number of concurrent SMTP
+     * conversations is bounded by the carrier pool (usually one per CPU core)
+     * rather than by the pool size. For high concurrency against slow servers
+     * prefer {@linkplain NioSmtpSender}. On older runtimes a platform thread is
+     * started (or reused) for each message.
+     *
+     * @param sender wrapped sender used to deliver messages.
+     * @return asynchronous sender.
+     */
+    public static AsyncSmtpSender newPerMessageSender(SmtpSender sender) {
+        if (sender == null)
+            throw new IllegalArgumentException("Null sender");
+
+        return new AsyncSmtpSender(sender, SendThreads.newPerTaskExecutor(String.format("smtp-sender-%d-", INSTANCE_COUNTER.incrementAndGet())));
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final SmtpSender      sender;
+    private final ExecutorService executor;
+
+    public AsyncSmtpSender(SmtpSender sender) {
+        this(sender, DEFAULT_PARALLELISM, DEFAULT_QUEUE_CAPACITY, DEFAULT_REJECTION_POLICY);
+    }
+
+    /**
+     * Creates an asynchronous sender.
+     *
+     * @param sender wrapped sender used to deliver messages.
+     * @param parallelism number of delivery threads.
+     * @param queueCapacity maximum number of messages waiting for delivery.
+     * @param rejectionPolicy defines what happens when the queue is full.
+     */
+    public AsyncSmtpSender(SmtpSender sender, int parallelism, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        if (sender == null)
+            throw new IllegalArgumentException("Null sender");
+
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+
+        if (rejectionPolicy == null)
+            throw new IllegalArgumentException("Null rejection policy");
+
+        this.sender = sender;
+
+        final String threadPrefix = String.format("smtp-sender-%d-", INSTANCE_COUNTER.incrementAndGet());
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCounter = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadPrefix + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        this.executor = new ThreadPoolExecutor(
+            parallelism,
+            parallelism,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueCapacity),
+            threadFactory,
+            getHandler(rejectionPolicy)
+        );
+    }
+
+    private AsyncSmtpSender(SmtpSender sender, ExecutorService executor) {
+        this.sender = sender;
+        this.executor = executor;
+    }
+
+    public SmtpSender getSender() {
+        return sender;
+    }
+
+    public Future<SendResult> sendMessage(Message message) {
+        return sendMessage(message, null);
+    }
+
+    /**
+     * Queues a message for delivery.
+     *
+     * Delivery failures do not complete the returned future exceptionally:
+     * they are reported through {@linkplain SendResult#getError()}.
+     *
+     * @param message message to be sent.
+     * @param callback optional callback notified when delivery completes.
+     * @return a future holding the delivery result.
+     * @throws RejectedExecutionException if sender is shut down or if the queue is full and rejection policy is {@linkplain RejectionPolicy#REJECT}.
+     */
+    public Future<SendResult> sendMessage(Message message, SendCallback callback) throws RejectedExecutionException {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        SendTask task = new SendTask(sender, message, callback);
+        executor.execute(task);
+
+        MetricsRecorder metrics = sender.getMetricsRecorder();
+        if (metrics != MetricsRecorder.NOOP)
+            metrics.recordGauge(MetricsRecorder.Gauge.ASYNC_QUEUE, getQueueSize());
+
+        return task;
+    }
+
+    /**
+     * Returns the number of messages waiting for delivery.
+     *
+     * @return the number of messages waiting for delivery.
+     */
+    public int getQueueSize() {
+        if (!(executor instanceof ThreadPoolExecutor))
+            return 0; // <-- per-message sender: nothing is queued
+
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+
+    /**
+     * Stops accepting new messages. Already queued messages are still delivered.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stops accepting new messages and interrupts pending deliveries.
+     *
+     * @return messages that were queued but never delivered.
+     */
+    public List<Message> shutdownNow() {
+        List<Message> pending = new LinkedList<>();
+
+        for (Runnable runnable : executor.shutdownNow()) {
+            pending.add(((SendTask) runnable).message);
+        }
+
+        return pending;
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    /**
+     * Blocks until all queued messages were delivered after a shutdown request,
+     * or the timeout occurs.
+     *
+     * @param timeout maximum time to wait.
+     * @param unit timeout unit.
+     * @return true if all messages were delivered and false if timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Shuts down this sender, waiting for queued messages to be delivered.
+     *
+     * The wrapped sender is not closed.
+     */
+    @Override
+    public void close() {
+        shutdown();
+
+        try {
+            while (!awaitTermination(1, TimeUnit.MINUTES)) {}
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    // =========================================================================
+}
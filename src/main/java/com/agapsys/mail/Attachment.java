@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * Message attachment.
+ *
+ * Attachment data is never held by the message: it is read from its source
+ * (a file or a {@linkplain DataSource}) each time the message is written,
+ * streaming through the transfer encoder directly to the connection.
+ */
+public final class Attachment {
+    // CLASS SCOPE =============================================================
+    public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    /** Data source reading a file on each request. */
+    private static class PathDataSource implements DataSource {
+        private final Path   path;
+        private final String contentType;
+
+        private PathDataSource(Path path, String contentType) {
+            this.path = path;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Files.newInputStream(path);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Read-only data source");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return path.getFileName().toString();
+        }
+    }
+
+    private static String getContentType(String fileName) {
+        String contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(fileName);
+        return contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+    }
+
+    static Attachment of(Path path, String contentType, String contentId) {
+        if (path == null)
+            throw new IllegalArgumentException("Null path");
+
+        String name = path.getFileName().toString();
+
+        if (contentType == null)
+            contentType = getContentType(name);
+
+        return new Attachment(name, contentType, contentId, new PathDataSource(path, contentType), path.toAbsolutePath());
+    }
+
+    static Attachment of(DataSource source, String contentId) {
+        if (source == null)
+            throw new IllegalArgumentException("Null source");
+
+        String name = source.getName();
+        if (name == null || name.trim().isEmpty())
+            throw new IllegalArgumentException("Null/Empty source name");
+
+        String contentType = source.getContentType();
+        if (contentType == null || contentType.trim().isEmpty())
+            contentType = getContentType(name);
+
+        return new Attachment(name, contentType, contentId, source, null);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final String     name;
+    private final String     contentType;
+    private final String     contentId;
+    private final DataSource source;
+    private final Path       path;
+
+    private Attachment(String name, String contentType, String contentId, DataSource source, Path path) {
+        if (contentId != null && contentId.trim().isEmpty())
+            throw new IllegalArgumentException("Empty content ID");
+
+        this.name = name;
+        this.contentType = contentType;
+        this.contentId = contentId == null ? null : contentId.trim();
+        this.source = source;
+        this.path = path;
+    }
+
+    /**
+     * Returns the file name of this attachment.
+     *
+     * @return file name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the content ID used to reference an inline attachment from an
+     * HTML body (through "cid:" URLs).
+     *
+     * @return content ID or null if this is not an inline attachment.
+     */
+    public String getContentId() {
+        return contentId;
+    }
+
+    public boolean isInline() {
+        return contentId != null;
+    }
+
+    public DataSource getDataSource() {
+        return source;
+    }
+
+    /**
+     * Returns the file backing this attachment.
+     *
+     * @return absolute file path or null if attachment is backed by an arbitrary data source.
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Creates a body part for this attachment.
+     *
+     * Transfer encoding is always base64, so data is not scanned to choose an
+     * encoding before being written.
+     */
+    MimeBodyPart getBodyPart() throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(source));
+        part.setHeader("Content-Type", contentType);
+        part.setFileName(name);
+        part.setHeader("Content-Transfer-Encoding", "base64");
+
+        if (contentId != null) {
+            part.setDisposition(Part.INLINE);
+            part.setContentID("<" + contentId + ">");
+        } else {
+            part.setDisposition(Part.ATTACHMENT);
+        }
+
+        return part;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s)", name, contentType);
+    }
+    // =========================================================================
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.ParseException;
+
+/**
+ * Classification of delivery failures.
+ *
+ * Failures are either transient (a later attempt may succeed) or permanent.
+ * SMTP 4xx replies (e.g. 421, 450, 451 and 452) are transient and 5xx replies
+ * are permanent, except 552 in reply to RCPT, which is handled as 452 (RFC
+ * 5321, section 4.5.3.1.10). Connection failures (refused connections, resets and
+ * timeouts) are transient. Authentication and configuration errors are
+ * permanent.
+ */
+class DeliveryFailures {
+    // CLASS SCOPE =============================================================
+    /** Returns a boolean indicating if given SMTP reply code denotes a transient failure. */
+    static boolean isTransient(int replyCode) {
+        return replyCode >= 400 && replyCode < 500;
+    }
+
+    /** Returns a boolean indicating if given reply to RCPT denotes a transient failure. */
+    private static boolean isTransientRecipient(int replyCode) {
+        // 552 on RCPT is handled as 452 (RFC 5321, section 4.5.3.1.10)
+        return isTransient(replyCode) || replyCode == 552;
+    }
+
+    /**
+     * Returns the SMTP reply code associated with given error.
+     *
+     * @return SMTP reply code or -1 if error is not associated with a reply.
+     */
+    static int getReplyCode(MessagingException error) {
+        if (error instanceof SMTPSendFailedException)
+            return ((SMTPSendFailedException) error).getReturnCode();
+
+        if (error instanceof SMTPAddressFailedException)
+            return ((SMTPAddressFailedException) error).getReturnCode();
+
+        return -1;
+    }
+
+    /**
+     * Returns the SMTP reply code associated with given error or, if there is
+     * none, with the first chained error associated with a reply (e.g. the
+     * rejection of a recipient).
+     *
+     * @return SMTP reply code or -1 if no error in the chain is associated with a reply.
+     */
+    static int getFirstReplyCode(MessagingException error) {
+        Exception next = error;
+
+        while (next instanceof MessagingException) {
+            int replyCode = getReplyCode((MessagingException) next);
+
+            if (replyCode > 0)
+                return replyCode;
+
+            next = ((MessagingException) next).getNextException();
+        }
+
+        return -1;
+    }
+
+    /** Returns a boolean indicating if given error is transient. */
+    static boolean isTransient(MessagingException error) {
+        if (error instanceof SMTPAddressFailedException)
+            return isTransientRecipient(((SMTPAddressFailedException) error).getReturnCode());
+
+        int replyCode = getReplyCode(error);
+
+        if (replyCode > 0)
+            return isTransient(replyCode);
+
+        if (error instanceof AuthenticationFailedException || error instanceof NoSuchProviderException || error instanceof ParseException)
+            return false;
+
+        // Connection failures and SendFailedException without a reply code
+        // (valid recipients were not tried because of invalid ones)...
+        return true;
+    }
+
+    private static String getKey(Address address) {
+        String value = address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+
+        if (value == null)
+            return ""; // <-- placeholder address (e.g. an unknown recipient of a failed NIO transaction)
+
+        return value.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static Set<String> getKeys(Address[] addresses) {
+        Set<String> keys = new HashSet<>();
+
+        if (addresses != null) {
+            for (Address address : addresses)
+                keys.add(getKey(address));
+        }
+
+        return keys;
+    }
+
+    /** Returns the reply codes given for each failed recipient (keyed by lower-case address). */
+    private static Map<String, Integer> getReplyCodes(MessagingException error) {
+        Map<String, Integer> replyCodes = new HashMap<>();
+        Exception next = error;
+
+        while (next instanceof MessagingException) {
+            if (next instanceof SMTPAddressFailedException) {
+                SMTPAddressFailedException addressError = (SMTPAddressFailedException) next;
+                replyCodes.put(getKey(addressError.getAddress()), addressError.getReturnCode());
+            }
+
+            next = ((MessagingException) next).getNextException();
+        }
+
+        return replyCodes;
+    }
+
+    /**
+     * Classifies recipients of a delivery attempt.
+     *
+     * @param recipients recipients of the attempt.
+     * @param error error raised by the attempt (or null if it succeeded).
+     * @param delivered recipients the message was delivered to.
+     * @param deferred recipients which may succeed in a later attempt.
+     * @param failed recipients which failed permanently.
+     */
+    static void classify(Collection<InternetAddress> recipients, MessagingException error, Set<InternetAddress> delivered, Set<InternetAddress> deferred, Set<InternetAddress> failed) {
+        if (error == null) {
+            delivered.addAll(recipients);
+            return;
+        }
+
+        boolean transientError = isTransient(error);
+
+        if (!(error instanceof SendFailedException)) {
+            (transientError ? deferred : failed).addAll(recipients);
+            return;
+        }
+
+        SendFailedException sendError = (SendFailedException) error;
+        Set<String> validSent = getKeys(sendError.getValidSentAddresses());
+        Set<String> invalid = getKeys(sendError.getInvalidAddresses());
+        Map<String, Integer> replyCodes = getReplyCodes(sendError);
+
+        for (InternetAddress recipient : recipients) {
+            String key = getKey(recipient);
+            Integer replyCode = replyCodes.get(key);
+
+            if (validSent.contains(key)) {
+                delivered.add(recipient);
+            } else if (replyCode != null) {
+                (isTransientRecipient(replyCode) ? deferred : failed).add(recipient);
+            } else if (invalid.contains(key)) {
+                failed.add(recipient);
+            } else {
+                (transientError ? deferred : failed).add(recipient);
+            }
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private DeliveryFailures() {}
+    // =========================================================================
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Settings used by a {@linkplain DirectSmtpSender} (direct-to-MX delivery).
+ */
+public class DirectDeliverySettings {
+    //  CLASS SCOPE ============================================================
+    public static final String KEY_PARALLEL_DOMAINS = "agapsys.mail.direct.parallelDomains";
+    public static final String KEY_DNS_SERVERS      = "agapsys.mail.direct.dnsServers";
+    public static final String KEY_DNS_TIMEOUT      = "agapsys.mail.direct.dnsTimeout";
+    public static final String KEY_DEFAULT_TTL      = "agapsys.mail.direct.defaultTtl";
+    public static final String KEY_NEGATIVE_TTL     = "agapsys.mail.direct.negativeTtl";
+    public static final String KEY_MAX_EXCHANGERS   = "agapsys.mail.direct.maxExchangers";
+
+    public static final int  DEFAULT_PARALLEL_DOMAINS = 8;
+    public static final long DEFAULT_DNS_TIMEOUT      = 5000;
+    public static final long DEFAULT_DEFAULT_TTL      = 300000;
+    public static final long DEFAULT_NEGATIVE_TTL     = 60000;
+    public static final int  DEFAULT_MAX_EXCHANGERS   = 100;
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private int          parallelDomains = DEFAULT_PARALLEL_DOMAINS;
+    private List<String> dnsServers      = Collections.emptyList();
+    private long         dnsTimeout      = DEFAULT_DNS_TIMEOUT;
+    private long         defaultTtl      = DEFAULT_DEFAULT_TTL;
+    private long         negativeTtl     = DEFAULT_NEGATIVE_TTL;
+    private int          maxExchangers   = DEFAULT_MAX_EXCHANGERS;
+
+    public DirectDeliverySettings() {}
+
+    public DirectDeliverySettings(Properties properties) {
+        if (properties == null)
+            throw new IllegalArgumentException("Null properties");
+
+        parallelDomains = PropertyParser.getInt(properties, KEY_PARALLEL_DOMAINS, DEFAULT_PARALLEL_DOMAINS, 1);
+        dnsTimeout      = PropertyParser.getLong(properties, KEY_DNS_TIMEOUT, DEFAULT_DNS_TIMEOUT, 1);
+        defaultTtl      = PropertyParser.getLong(properties, KEY_DEFAULT_TTL, DEFAULT_DEFAULT_TTL, 0);
+        negativeTtl     = PropertyParser.getLong(properties, KEY_NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL, 0);
+        maxExchangers   = PropertyParser.getInt(properties, KEY_MAX_EXCHANGERS, DEFAULT_MAX_EXCHANGERS, 1);
+
+        String propVal = PropertyParser.getString(properties, KEY_DNS_SERVERS);
+        if (propVal != null) {
+            List<String> servers = new ArrayList<>();
+
+            for (String server : propVal.split(",")) {
+                server = server.trim();
+
+                if (server.isEmpty())
+                    throw new IllegalArgumentException(String.format("Invalid value for %s: %s", KEY_DNS_SERVERS, propVal));
+
+                servers.add(server);
+            }
+
+            dnsServers = Collections.unmodifiableList(servers);
+        }
+    }
+
+    /**
+     * Returns the maximum number of recipient domains a message is delivered
+     * to at the same time.
+     *
+     * @return maximum number of parallel domains per message.
+     */
+    public synchronized int getParallelDomains() {
+        return parallelDomains;
+    }
+    public synchronized void setParallelDomains(int parallelDomains) {
+        if (parallelDomains < 1)
+            throw new IllegalArgumentException("Invalid parallel domains: " + parallelDomains);
+
+        this.parallelDomains = parallelDomains;
+    }
+
+    /**
+     * Returns the DNS servers used to resolve MX records.
+     *
+     * @return DNS servers ("host" or "host:port"). An empty list means system DNS configuration is used.
+     */
+    public synchronized List<String> getDnsServers() {
+        return dnsServers;
+    }
+    public synchronized void setDnsServers(List<String> dnsServers) {
+        if (dnsServers == null)
+            throw new IllegalArgumentException("Null DNS servers");
+
+        this.dnsServers = Collections.unmodifiableList(new ArrayList<>(dnsServers));
+    }
+
+    /**
+     * Returns the timeout (in milliseconds) of a DNS query.
+     *
+     * @return DNS timeout in milliseconds.
+     */
+    public synchronized long getDnsTimeout() {
+        return dnsTimeout;
+    }
+    public synchronized void setDnsTimeout(long dnsTimeout) {
+        if (dnsTimeout < 1)
+            throw new IllegalArgumentException("Invalid DNS timeout: " + dnsTimeout);
+
+        this.dnsTimeout = dnsTimeout;
+    }
+
+    /**
+     * Returns the time (in milliseconds) MX records are cached when the
+     * resolver does not report their TTL.
+     *
+     * @return default TTL in milliseconds.
+     */
+    public synchronized long getDefaultTtl() {
+        return defaultTtl;
+    }
+    public synchronized void setDefaultTtl(long defaultTtl) {
+        if (defaultTtl < 0)
+            throw new IllegalArgumentException("Invalid default TTL: " + defaultTtl);
+
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * Returns the time (in milliseconds) a domain which does not accept mail
+     * (non-existent domain or "null MX") is cached.
+     *
+     * @return negative TTL in milliseconds.
+     */
+    public synchronized long getNegativeTtl() {
+        return negativeTtl;
+    }
+    public synchronized void setNegativeTtl(long negativeTtl) {
+        if (negativeTtl < 0)
+            throw new IllegalArgumentException("Invalid negative TTL: " + negativeTtl);
+
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Returns the maximum number of mail exchangers whose senders (and
+     * connection pools) are kept. When exceeded, the least recently used
+     * sender is closed.
+     *
+     * @return maximum number of kept mail exchanger senders.
+     */
+    public synchronized int getMaxExchangers() {
+        return maxExchangers;
+    }
+    public synchronized void setMaxExchangers(int maxExchangers) {
+        if (maxExchangers < 1)
+            throw new IllegalArgumentException("Invalid max exchangers: " + maxExchangers);
+
+        this.maxExchangers = maxExchangers;
+    }
+    // =========================================================================
+}
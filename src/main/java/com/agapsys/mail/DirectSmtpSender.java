@@ -0,0 +1,567 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.net.IDN;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Sender which delivers messages directly to the mail exchangers (MX) of
+ * recipient domains, instead of a single relay.
+ *
+ * Recipients are grouped by domain and each domain is delivered through its
+ * own SMTP transaction; distinct domains are delivered in parallel (see
+ * {@linkplain DirectDeliverySettings#getParallelDomains()}). Mail exchangers
+ * are tried in preference order (exchangers with the same preference are
+ * rotated): a connection failure or a 421 reply fails over to the next one.
+ *
+ * MX lookups are cached according to record TTLs. Each mail exchanger has its
+ * own sender, created from given SMTP settings (with the exchanger as
+ * server) and, when pool settings are given, its own connection pool. Only
+ * the most recently used exchangers keep their senders (see
+ * {@linkplain DirectDeliverySettings#getMaxExchangers()}).
+ */
+public class DirectSmtpSender extends SmtpSender {
+    // CLASS SCOPE =============================================================
+    /**
+     * Returns the (lower-case, ASCII) domain of given address.
+     *
+     * @return domain or null if address has no valid domain.
+     */
+    static String getDomain(InternetAddress address) {
+        String value = address.getAddress();
+        int index = value == null ? -1 : value.lastIndexOf('@');
+
+        if (index < 0 || index == value.length() - 1)
+            return null;
+
+        try {
+            return IDN.toASCII(value.substring(index + 1)).toLowerCase(Locale.ENGLISH);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static MessagingException chain(MessagingException first, MessagingException next) {
+        if (first == null)
+            return next;
+
+        first.setNextException(next);
+        return first;
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    /**
+     * Sender of a mail exchanger. An evicted exchanger is closed once the
+     * last delivery using it completes. Fields are guarded by the exchanger
+     * map.
+     */
+    private static class Exchanger {
+        private final SmtpSender sender;
+        private int     users   = 0;
+        private boolean evicted = false;
+
+        private Exchanger(SmtpSender sender) {
+            this.sender = sender;
+        }
+    }
+
+    /** Delivery of a message to several domains, shared by the threads delivering them. */
+    private class DomainSend implements Runnable {
+        private final Message                             message;
+        private final List<String>                        domains;
+        private final Map<String, List<InternetAddress>> recipients;
+        private final AtomicInteger                       nextDomain = new AtomicInteger();
+
+        private final List<Address> validSent   = new ArrayList<>();
+        private final List<Address> validUnsent = new ArrayList<>();
+        private final List<Address> invalid     = new ArrayList<>();
+        private MessagingException  error       = null;
+        private int                 running     = 0;
+
+        // Explicit lock (instead of a monitor) so that waiting does not pin a virtual thread's carrier...
+        private final ReentrantLock lock      = new ReentrantLock();
+        private final Condition     completed = lock.newCondition();
+
+        private DomainSend(Message message, Map<String, List<InternetAddress>> recipients) {
+            this.message = message;
+            this.domains = new ArrayList<>(recipients.keySet());
+            this.recipients = recipients;
+        }
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                running++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                int index;
+
+                while ((index = nextDomain.getAndIncrement()) < domains.size()) {
+                    List<InternetAddress> domainRecipients = recipients.get(domains.get(index));
+                    MessagingException domainError = null;
+
+                    try {
+                        sendToDomain(message, domains.get(index), domainRecipients);
+                    } catch (MessagingException ex) {
+                        domainError = ex;
+                    } catch (RuntimeException ex) {
+                        domainError = new MessagingException("Error sending message", ex);
+                    }
+
+                    // Every recipient of the domain is reported (e.g. a rejected DATA reports no addresses)...
+                    Set<InternetAddress> delivered = new LinkedHashSet<>();
+                    Set<InternetAddress> deferred = new LinkedHashSet<>();
+                    Set<InternetAddress> failed = new LinkedHashSet<>();
+                    DeliveryFailures.classify(domainRecipients, domainError, delivered, deferred, failed);
+
+                    lock.lock();
+                    try {
+                        validSent.addAll(delivered);
+                        validUnsent.addAll(deferred);
+                        invalid.addAll(failed);
+
+                        if (domainError != null)
+                            error = chain(error, domainError);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                lock.lock();
+                try {
+                    running--;
+                    completed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /** Waits for helper threads still delivering their domains. */
+        private void awaitCompletion() {
+            boolean interrupted = false;
+
+            lock.lock();
+            try {
+                while (running > 0) {
+                    try {
+                        completed.await();
+                    } catch (InterruptedException ex) {
+                        interrupted = true; // <-- helpers finish their current domain anyway
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /** Must be called after {@linkplain #awaitCompletion()}, once results no longer change. */
+        private void throwError() throws MessagingException {
+            if (error != null) {
+                throw new SendFailedException(
+                    "Message was not delivered to all recipients",
+                    error,
+                    validSent.toArray(new Address[validSent.size()]),
+                    validUnsent.toArray(new Address[validUnsent.size()]),
+                    invalid.toArray(new Address[invalid.size()])
+                );
+            }
+        }
+    }
+
+    private final SmtpSettingsSnapshot smtpSettings;
+    private final PoolSettings         poolSettings;
+    private final MxCache              mxCache;
+    private final int                  parallelDomains;
+    private final int                  maxExchangers;
+    private final ExecutorService      executor;
+
+    private final LinkedHashMap<String, Exchanger> exchangers = new LinkedHashMap<>(16, 0.75f, true); // <-- access order (LRU first)
+    private final AtomicLong                       counter    = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a pooled sender with default settings, resolving MX records
+     * through system DNS configuration.
+     *
+     * @param smtpSettings settings used to connect to mail exchangers (server setting is ignored).
+     */
+    public DirectSmtpSender(SmtpSettings smtpSettings) {
+        this(smtpSettings, new PoolSettings(), new DirectDeliverySettings());
+    }
+
+    /**
+     * Creates a sender resolving MX records through JNDI (see {@linkplain JndiMxResolver}).
+     *
+     * @param smtpSettings settings used to connect to mail exchangers (server setting is ignored).
+     * @param poolSettings connection pool settings used for each mail exchanger. Passing null disables pooling.
+     * @param settings direct delivery settings.
+     */
+    public DirectSmtpSender(SmtpSettings smtpSettings, PoolSettings poolSettings, DirectDeliverySettings settings) {
+        this(smtpSettings, poolSettings, settings, settings == null ? null : new JndiMxResolver(settings.getDnsServers(), settings.getDnsTimeout()));
+    }
+
+    /**
+     * Creates a sender.
+     *
+     * @param smtpSettings settings used to connect to mail exchangers (server setting is ignored).
+     * @param poolSettings connection pool settings used for each mail exchanger. Passing null disables pooling.
+     * @param settings direct delivery settings.
+     * @param resolver MX resolver.
+     */
+    public DirectSmtpSender(SmtpSettings smtpSettings, PoolSettings poolSettings, DirectDeliverySettings settings, MxResolver resolver) {
+        super(poolSettings);
+
+        if (smtpSettings == null)
+            throw new IllegalArgumentException("Null smtpSettings");
+
+        if (settings == null)
+            throw new IllegalArgumentException("Null settings");
+
+        if (resolver == null)
+            throw new IllegalArgumentException("Null resolver");
+
+        this.smtpSettings = new SmtpSettingsSnapshot(smtpSettings);
+        this.poolSettings = poolSettings;
+        this.mxCache = new MxCache(resolver, settings.getDefaultTtl(), settings.getNegativeTtl());
+        this.parallelDomains = settings.getParallelDomains();
+        this.maxExchangers = settings.getMaxExchangers();
+        this.executor = parallelDomains > 1 ? SendThreads.newPerTaskExecutor("smtp-mx-") : null;
+    }
+
+    /** Creates the sender used to deliver messages through given mail exchanger. */
+    SmtpSender newSender(SmtpSettings smtpSettings, PoolSettings poolSettings) {
+        return new SmtpSender(smtpSettings, poolSettings);
+    }
+
+    /**
+     * Returns the sender associated with given mail exchanger, which must be
+     * handed back through {@linkplain #release(Exchanger)}. When there are
+     * too many exchangers, the least recently used ones are evicted.
+     */
+    private Exchanger acquire(String host) {
+        List<Exchanger> evicted = null;
+        Exchanger exchanger;
+
+        synchronized (exchangers) {
+            if (closed)
+                throw new IllegalStateException("Sender is closed");
+
+            exchanger = exchangers.get(host);
+
+            if (exchanger == null) {
+                SmtpSettings mxSettings = smtpSettings.toSettings();
+                mxSettings.setServer(host);
+
+                exchanger = new Exchanger(newSender(mxSettings, poolSettings));
+                exchanger.sender.setMetricsRecorder(getMetricsRecorder());
+                exchangers.put(host, exchanger);
+
+                Iterator<Exchanger> iterator = exchangers.values().iterator();
+
+                while (exchangers.size() > maxExchangers) {
+                    Exchanger eldest = iterator.next();
+                    iterator.remove();
+                    eldest.evicted = true;
+
+                    if (eldest.users == 0) {
+                        if (evicted == null)
+                            evicted = new ArrayList<>();
+
+                        evicted.add(eldest); // <-- otherwise closed when released
+                    }
+                }
+            }
+
+            exchanger.users++;
+        }
+
+        if (evicted != null) {
+            for (Exchanger eldest : evicted)
+                eldest.sender.close(); // <-- outside the lock: closing sends QUIT
+        }
+
+        return exchanger;
+    }
+
+    private void release(Exchanger exchanger) {
+        boolean close;
+
+        synchronized (exchangers) {
+            exchanger.users--;
+            close = exchanger.evicted && exchanger.users == 0;
+        }
+
+        if (close)
+            exchanger.sender.close();
+    }
+
+    /** Returns given records in the order they are tried (exchangers with the same preference are rotated). */
+    private List<MxRecord> getAttemptOrder(List<MxRecord> records) {
+        if (records.size() < 2)
+            return records;
+
+        List<MxRecord> ordered = new ArrayList<>(records);
+        long rotation = counter.getAndIncrement();
+        int start = 0;
+
+        while (start < ordered.size()) {
+            int end = start + 1;
+
+            while (end < ordered.size() && ordered.get(end).getPreference() == ordered.get(start).getPreference())
+                end++;
+
+            if (end - start > 1)
+                Collections.rotate(ordered.subList(start, end), (int) (rotation % (end - start)));
+
+            start = end;
+        }
+
+        return ordered;
+    }
+
+    /** Delivers a message to the recipients of a single domain, failing over through its mail exchangers. */
+    private void sendToDomain(Message message, String domain, List<InternetAddress> recipients) throws MessagingException {
+        List<MxRecord> records = mxCache.getRecords(domain);
+
+        if (records.isEmpty()) {
+            throw new SendFailedException(
+                "Domain does not accept mail: " + domain,
+                null,
+                new Address[0],
+                new Address[0],
+                recipients.toArray(new Address[recipients.size()])
+            );
+        }
+
+        MessagingException lastError = null;
+
+        for (MxRecord record : getAttemptOrder(records)) {
+            Exchanger exchanger = acquire(record.getHost());
+
+            try {
+                exchanger.sender.sendMessage(message, recipients);
+                return;
+            } catch (MessagingException ex) {
+                if (!RelayGroup.isRelayFailure(ex))
+                    throw ex;
+
+                lastError = ex;
+            } finally {
+                release(exchanger);
+            }
+        }
+
+        throw lastError;
+    }
+
+    /**
+     * Defines the recorder which receives metrics about deliveries made
+     * through all mail exchangers.
+     */
+    @Override
+    public void setMetricsRecorder(MetricsRecorder metrics) {
+        super.setMetricsRecorder(metrics);
+
+        synchronized (exchangers) {
+            for (Exchanger exchanger : exchangers.values())
+                exchanger.sender.setMetricsRecorder(metrics);
+        }
+    }
+
+    /**
+     * Direct senders have no settings of their own: each mail exchanger has
+     * its own settings.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    @Override
+    public SmtpSettingsSnapshot getSettings() {
+        throw new UnsupportedOperationException("Direct sender has no settings of its own");
+    }
+
+    /**
+     * Returns the number of mail exchangers whose senders are kept (see
+     * {@linkplain DirectDeliverySettings#getMaxExchangers()}).
+     *
+     * @return number of known mail exchangers.
+     */
+    public int getExchangerCount() {
+        synchronized (exchangers) {
+            return exchangers.size();
+        }
+    }
+
+    /**
+     * Sends a message to the mail exchangers of its recipient domains.
+     *
+     * @throws MessagingException if the message could not be delivered to all recipients. When several domains are involved, a {@linkplain SendFailedException} reports the recipients of each domain.
+     */
+    @Override
+    public void sendMessage(Message message, Collection<InternetAddress> recipients) throws MessagingException {
+        if (recipients == null || recipients.isEmpty())
+            throw new IllegalArgumentException("Null/Empty recipients");
+
+        if (closed)
+            throw new IllegalStateException("Sender is closed");
+
+        message = message.forDelivery(); // <-- every domain and exchanger gets the same Message-ID
+        Map<String, List<InternetAddress>> byDomain = new LinkedHashMap<>();
+        List<InternetAddress> invalid = null;
+
+        for (InternetAddress recipient : recipients) {
+            String domain = getDomain(recipient);
+
+            if (domain == null) {
+                if (invalid == null)
+                    invalid = new ArrayList<>();
+
+                invalid.add(recipient);
+                continue;
+            }
+
+            List<InternetAddress> domainRecipients = byDomain.get(domain);
+
+            if (domainRecipients == null) {
+                domainRecipients = new ArrayList<>();
+                byDomain.put(domain, domainRecipients);
+            }
+
+            domainRecipients.add(recipient);
+        }
+
+        if (invalid == null && byDomain.size() == 1) {
+            // Single domain: failure is reported as is...
+            Map.Entry<String, List<InternetAddress>> entry = byDomain.entrySet().iterator().next();
+            sendToDomain(message, entry.getKey(), entry.getValue());
+            return;
+        }
+
+        DomainSend domainSend = new DomainSend(message, byDomain);
+
+        if (invalid != null) {
+            domainSend.invalid.addAll(invalid);
+            domainSend.error = new SendFailedException("Invalid recipient address: " + invalid.get(0));
+        }
+
+        int helpers = Math.min(parallelDomains, byDomain.size()) - 1;
+
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(domainSend);
+            } catch (RejectedExecutionException ex) {
+                break; // <-- sender is closing: remaining domains are delivered by current thread
+            }
+        }
+
+        domainSend.run();
+        domainSend.awaitCompletion();
+        domainSend.throwError();
+    }
+
+    /**
+     * Sends several messages. Each message is delivered (and failed over)
+     * individually.
+     *
+     * @param messages messages to be sent.
+     * @return delivery results (in the same order as given messages).
+     */
+    @Override
+    public List<SendResult> sendMessages(Collection<Message> messages) {
+        if (messages == null)
+            throw new IllegalArgumentException("Null messages");
+
+        List<SendResult> results = new ArrayList<>(messages.size());
+
+        for (Message message : messages) {
+            if (message == null)
+                throw new IllegalArgumentException("Null message");
+
+            MessagingException error = null;
+
+            try {
+                sendMessage(message);
+            } catch (MessagingException ex) {
+                error = ex;
+            }
+
+            results.add(new SendResult(message, error));
+        }
+
+        return results;
+    }
+
+    /**
+     * Closes the senders of all mail exchangers. Senders in use are closed
+     * when their deliveries complete.
+     */
+    @Override
+    public void close() {
+        List<Exchanger> idle = new ArrayList<>();
+
+        synchronized (exchangers) {
+            closed = true;
+
+            for (Exchanger exchanger : exchangers.values()) {
+                exchanger.evicted = true;
+
+                if (exchanger.users == 0)
+                    idle.add(exchanger);
+            }
+
+            exchangers.clear();
+        }
+
+        super.close();
+
+        if (executor != null)
+            executor.shutdown();
+
+        for (Exchanger exchanger : idle)
+            exchanger.sender.close();
+    }
+    // =========================================================================
+}
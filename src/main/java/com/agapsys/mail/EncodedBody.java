@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Enumeration;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Text body of a {@linkplain Message} (a single text or a plain text/HTML
+ * alternative), already charset- and transfer-encoded.
+ *
+ * A body is encoded once and shared by every MIME message built from it:
+ * those messages only format their own headers and write the encoded bytes
+ * as they are.
+ */
+final class EncodedBody {
+    // CLASS SCOPE =============================================================
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * MIME message whose content is an already encoded body.
+     *
+     * Header updates do not touch the content, so it is written without being
+     * encoded again. A message created from a header block has frozen headers:
+     * it is written as the header block followed by the encoded body.
+     */
+    private static class EncodedMimeMessage extends MimeMessage {
+        private final byte[] headerBlock;
+
+        private EncodedMimeMessage(Session session, EncodedBody body) throws MessagingException {
+            super(session);
+            this.content = body.content;
+            this.headerBlock = null;
+            setHeader("Content-Type", body.contentType);
+            setHeader("Content-Transfer-Encoding", body.transferEncoding);
+        }
+
+        private EncodedMimeMessage(Session session, EncodedBody body, byte[] headerBlock) throws MessagingException {
+            super(session);
+            this.content = body.content;
+            this.headerBlock = headerBlock;
+            this.headers = new InternetHeaders(new ByteArrayInputStream(headerBlock));
+            this.saved = true;
+            this.modified = false;
+        }
+
+        @Override
+        protected synchronized void updateHeaders() throws MessagingException {
+            if (headerBlock == null) {
+                setHeader("MIME-Version", "1.0");
+                updateMessageID();
+
+                if (getHeader("Date") == null)
+                    setSentDate(new Date());
+            }
+
+            // Content is already encoded: writeTo() must write it as it is.
+            modified = false;
+        }
+
+        private long getEncodedSize() {
+            return headerBlock == null ? -1 : headerBlock.length + content.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            if (headerBlock == null) {
+                super.writeTo(os, ignoreList);
+                return;
+            }
+
+            // Header block never contains ignorable headers (Bcc, Content-Length)...
+            os.write(headerBlock);
+            os.write(content);
+            os.flush();
+        }
+    }
+
+    /**
+     * Returns the header block (header lines followed by an empty line) of a
+     * MIME message, as written by {@linkplain MimeMessage#writeTo(OutputStream)}.
+     *
+     * @param mimeMessage MIME message (with updated headers).
+     * @return header block.
+     * @throws MessagingException if there is an error reading the headers.
+     */
+    static byte[] getHeaderBlock(MimeMessage mimeMessage) throws MessagingException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        Enumeration<?> lines = mimeMessage.getAllHeaderLines();
+
+        while (lines.hasMoreElements()) {
+            byte[] line = ((String) lines.nextElement()).getBytes(ISO_8859_1);
+            bos.write(line, 0, line.length);
+            bos.write('\r');
+            bos.write('\n');
+        }
+
+        bos.write('\r');
+        bos.write('\n');
+        return bos.toByteArray();
+    }
+
+    static EncodedBody encode(String text, String charset, String mimeSubtype) throws MessagingException {
+        MimeMessage mimeMessage = new MimeMessage((Session) null);
+        mimeMessage.setText(text, charset, mimeSubtype);
+        mimeMessage.saveChanges();
+
+        String contentType = mimeMessage.getHeader("Content-Type", null);
+        String transferEncoding = mimeMessage.getEncoding();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(text.length() + 64);
+
+        try {
+            OutputStream os = MimeUtility.encode(bos, transferEncoding);
+            mimeMessage.getDataHandler().writeTo(os);
+            os.flush();
+        } catch (IOException ex) {
+            throw new MessagingException("Error encoding message body", ex);
+        }
+
+        return new EncodedBody(contentType, transferEncoding, bos.toByteArray());
+    }
+
+    /**
+     * Encodes a "multipart/alternative" body holding a plain text and an HTML
+     * version of the same text.
+     */
+    static EncodedBody encodeAlternative(String text, String html, String charset) throws MessagingException {
+        MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(text, charset, "plain");
+
+        MimeBodyPart htmlPart = new MimeBodyPart();
+        htmlPart.setText(html, charset, "html");
+
+        MimeMultipart multipart = new MimeMultipart("alternative");
+        multipart.addBodyPart(textPart); // <-- least preferred version comes first
+        multipart.addBodyPart(htmlPart);
+
+        MimeMessage mimeMessage = new MimeMessage((Session) null);
+        mimeMessage.setContent(multipart);
+        mimeMessage.saveChanges();
+
+        String contentType = mimeMessage.getHeader("Content-Type", null);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(text.length() + html.length() + 512);
+
+        try {
+            multipart.writeTo(bos);
+        } catch (IOException ex) {
+            throw new MessagingException("Error encoding message body", ex);
+        }
+
+        // Parts are already 7-bit encoded...
+        return new EncodedBody(contentType, "7bit", bos.toByteArray());
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final String contentType;
+    private final String transferEncoding;
+    private final byte[] content;
+
+    private volatile String bodyHash = null;
+
+    private EncodedBody(String contentType, String transferEncoding, byte[] content) {
+        this.contentType = contentType;
+        this.transferEncoding = transferEncoding;
+        this.content = content;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getTransferEncoding() {
+        return transferEncoding;
+    }
+
+    int getSize() {
+        return content.length;
+    }
+
+    /**
+     * Returns the size of given MIME message as written by
+     * {@linkplain MimeMessage#writeTo(OutputStream)}, when it is known
+     * without writing it.
+     *
+     * @param mimeMessage MIME message.
+     * @return the size of a message created with a header block (see
+     * {@linkplain #newMimeMessage(Session, byte[])}) or -1 for any other message.
+     */
+    static long getSize(MimeMessage mimeMessage) {
+        if (!(mimeMessage instanceof EncodedMimeMessage))
+            return -1;
+
+        return ((EncodedMimeMessage) mimeMessage).getEncodedSize();
+    }
+
+    /**
+     * Returns the DKIM body hash of this body (see {@linkplain DkimSigner}).
+     * The hash is computed on first use and shared by every message built
+     * from this body.
+     *
+     * @return base64-encoded body hash.
+     */
+    String getBodyHash() {
+        String hash = bodyHash;
+
+        if (hash == null) {
+            hash = DkimSigner.getBodyHash(content); // <-- racing threads compute the same value
+            bodyHash = hash;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Creates a body part with this body, to be used in a multipart message.
+     *
+     * @return body part with this body.
+     * @throws MessagingException if there is an error creating the body part.
+     */
+    MimeBodyPart newBodyPart() throws MessagingException {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", contentType);
+        headers.setHeader("Content-Transfer-Encoding", transferEncoding);
+        return new MimeBodyPart(headers, content);
+    }
+
+    /**
+     * Creates a MIME message with this body. Callers set the remaining headers.
+     *
+     * @param session session associated with the message.
+     * @return MIME message with this body.
+     * @throws MessagingException if there is an error creating the message.
+     */
+    MimeMessage newMimeMessage(Session session) throws MessagingException {
+        return new EncodedMimeMessage(session, this);
+    }
+
+    /**
+     * Creates a MIME message with this body and a fixed header block (see
+     * {@linkplain EncodedBody#getHeaderBlock(MimeMessage)}).
+     *
+     * Message headers cannot be changed: the message is written as the header
+     * block followed by this body, without any formatting or encoding.
+     *
+     * @param session session associated with the message.
+     * @param headerBlock message header block.
+     * @return MIME message with this body.
+     * @throws MessagingException if there is an error creating the message.
+     */
+    MimeMessage newMimeMessage(Session session, byte[] headerBlock) throws MessagingException {
+        return new EncodedMimeMessage(session, this, headerBlock);
+    }
+    // =========================================================================
+}
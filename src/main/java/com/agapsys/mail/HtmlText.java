@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Locale;
+
+/**
+ * Converts HTML into plain text, used as the plain text version of messages
+ * having only an HTML body.
+ *
+ * This is not an HTML parser: tags are dropped (block-level tags become line
+ * breaks), scripts, styles and comments are removed, entities are decoded and
+ * whitespace is collapsed as a browser would do.
+ */
+final class HtmlText {
+    // CLASS SCOPE =============================================================
+    private static int indexOfIgnoreCase(String str, String target, int fromIndex) {
+        for (int i = fromIndex; i <= str.length() - target.length(); i++) {
+            if (str.regionMatches(true, i, target, 0, target.length()))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /** Ends current line, ensuring given number of line breaks at the end of the text. */
+    private static void breakLine(StringBuilder sb, int breaks) {
+        int length = sb.length();
+        while (length > 0 && sb.charAt(length - 1) == ' ')
+            length--;
+
+        sb.setLength(length);
+
+        if (length == 0)
+            return;
+
+        int existing = 0;
+        while (existing < length && sb.charAt(length - 1 - existing) == '\n')
+            existing++;
+
+        for (int i = existing; i < breaks; i++)
+            sb.append('\n');
+    }
+
+    private static String decodeEntity(String entity) {
+        switch (entity) {
+            case "amp":
+                return "&";
+
+            case "lt":
+                return "<";
+
+            case "gt":
+                return ">";
+
+            case "quot":
+                return "\"";
+
+            case "apos":
+                return "'";
+
+            case "nbsp":
+                return " ";
+        }
+
+        if (entity.length() > 1 && entity.charAt(0) == '#') {
+            try {
+                int codePoint;
+
+                if (entity.charAt(1) == 'x' || entity.charAt(1) == 'X') {
+                    codePoint = Integer.parseInt(entity.substring(2), 16);
+                } else {
+                    codePoint = Integer.parseInt(entity.substring(1));
+                }
+
+                if (Character.isValidCodePoint(codePoint))
+                    return new String(Character.toChars(codePoint));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    private static String getTagName(String html, int start, int end) {
+        int i = start;
+        while (i < end && Character.isLetterOrDigit(html.charAt(i)))
+            i++;
+
+        return html.substring(start, i).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Converts HTML into plain text.
+     *
+     * @param html HTML to be converted.
+     * @return plain text.
+     */
+    static String toPlainText(String html) {
+        StringBuilder sb = new StringBuilder(html.length());
+        boolean pendingSpace = false;
+        int i = 0;
+
+        while (i < html.length()) {
+            char c = html.charAt(i);
+
+            if (c == '<') {
+                if (html.startsWith("<!--", i)) {
+                    int end = html.indexOf("-->", i + 4);
+                    i = end < 0 ? html.length() : end + 3;
+                    continue;
+                }
+
+                int end = html.indexOf('>', i + 1);
+
+                if (end > 0) {
+                    boolean closing = html.charAt(i + 1) == '/';
+                    String tag = getTagName(html, closing ? i + 2 : i + 1, end);
+
+                    if (!tag.isEmpty() || html.charAt(i + 1) == '!') {
+                        i = end + 1;
+
+                        switch (tag) {
+                            case "script":
+                            case "style":
+                                if (!closing) {
+                                    int close = indexOfIgnoreCase(html, "</" + tag, i);
+                                    int closeEnd = close < 0 ? -1 : html.indexOf('>', close);
+                                    i = closeEnd < 0 ? html.length() : closeEnd + 1;
+                                }
+                                break;
+
+                            case "br":
+                            case "tr":
+                                breakLine(sb, 1);
+                                break;
+
+                            case "li":
+                                breakLine(sb, 1);
+                                if (!closing)
+                                    sb.append("- ");
+                                break;
+
+                            case "td":
+                            case "th":
+                                pendingSpace = true;
+                                break;
+
+                            case "p":
+                            case "div":
+                            case "h1":
+                            case "h2":
+                            case "h3":
+                            case "h4":
+                            case "h5":
+                            case "h6":
+                            case "ul":
+                            case "ol":
+                            case "table":
+                            case "blockquote":
+                            case "pre":
+                            case "hr":
+                                breakLine(sb, 2);
+                                break;
+                        }
+
+                        continue;
+                    }
+                }
+            }
+
+            String str = null;
+
+            if (c == '&') {
+                int semicolon = html.indexOf(';', i + 1);
+
+                if (semicolon > 0 && semicolon - i <= 10)
+                    str = decodeEntity(html.substring(i + 1, semicolon));
+
+                if (str != null)
+                    i = semicolon + 1;
+            }
+
+            if (str == null) {
+                if (Character.isWhitespace(c)) {
+                    pendingSpace = true;
+                    i++;
+                    continue;
+                }
+
+                str = String.valueOf(c);
+                i++;
+            }
+
+            if (pendingSpace && sb.length() > 0 && sb.charAt(sb.length() - 1) != '\n')
+                sb.append(' ');
+
+            pendingSpace = false;
+            sb.append(str);
+        }
+
+        return sb.toString().trim();
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private HtmlText() {}
+    // =========================================================================
+}
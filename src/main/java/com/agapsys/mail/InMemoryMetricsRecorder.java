@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics recorder which keeps latency histograms and counters in memory.
+ *
+ * Recording is lock-free. Values can be read at any time (e.g. by a
+ * monitoring endpoint) while senders keep recording.
+ */
+public class InMemoryMetricsRecorder implements MetricsRecorder {
+    // INSTANCE SCOPE ==========================================================
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final Map<Gauge, AtomicLong>       gauges    = new EnumMap<>(Gauge.class);
+
+    private final ConcurrentMap<Integer, AtomicLong> results = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    public InMemoryMetricsRecorder() {
+        // Maps are fully populated here and never modified afterwards...
+        for (Stage stage : Stage.values())
+            latencies.put(stage, new LatencyHistogram());
+
+        for (Gauge gauge : Gauge.values())
+            gauges.put(gauge, new AtomicLong(0));
+    }
+
+    @Override
+    public void recordLatency(Stage stage, long nanos) {
+        latencies.get(stage).record(nanos);
+    }
+
+    @Override
+    public void recordResult(int replyCode) {
+        AtomicLong counter = results.get(replyCode);
+
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong(0);
+            counter = results.putIfAbsent(replyCode, newCounter);
+
+            if (counter == null)
+                counter = newCounter;
+        }
+
+        counter.incrementAndGet();
+    }
+
+    @Override
+    public void recordBytes(long bytes) {
+        this.bytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void recordGauge(Gauge gauge, long value) {
+        gauges.get(gauge).set(value);
+    }
+
+    /**
+     * Returns the latency histogram (in nanoseconds) of given stage.
+     *
+     * @param stage delivery stage.
+     * @return latency histogram.
+     */
+    public LatencyHistogram getLatency(Stage stage) {
+        if (stage == null)
+            throw new IllegalArgumentException("Null stage");
+
+        return latencies.get(stage);
+    }
+
+    /**
+     * Returns the last recorded value of given gauge.
+     *
+     * @param gauge gauge.
+     * @return last recorded value (zero if no value was recorded).
+     */
+    public long getGauge(Gauge gauge) {
+        if (gauge == null)
+            throw new IllegalArgumentException("Null gauge");
+
+        return gauges.get(gauge).get();
+    }
+
+    /**
+     * Returns the total size of messages written to servers.
+     *
+     * @return number of bytes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the number of transactions which ended with given reply code.
+     *
+     * @param replyCode SMTP reply code (-1 for failures without a reply).
+     * @return number of transactions.
+     */
+    public long getResultCount(int replyCode) {
+        AtomicLong counter = results.get(replyCode);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Returns the number of transactions grouped by reply code.
+     *
+     * @return snapshot of transaction counts, sorted by reply code.
+     */
+    public Map<Integer, Long> getResultCounts() {
+        Map<Integer, Long> snapshot = new TreeMap<>();
+
+        for (Map.Entry<Integer, AtomicLong> entry : results.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().get());
+
+        return snapshot;
+    }
+
+    /**
+     * Returns the number of successful transactions.
+     *
+     * @return number of successful transactions.
+     */
+    public long getSuccessCount() {
+        long total = 0;
+
+        for (Map.Entry<Integer, AtomicLong> entry : results.entrySet()) {
+            if (entry.getKey() >= 200 && entry.getKey() < 300)
+                total += entry.getValue().get();
+        }
+
+        return total;
+    }
+
+    /**
+     * Returns the number of failed transactions.
+     *
+     * @return number of failed transactions.
+     */
+    public long getFailureCount() {
+        long total = 0;
+
+        for (Map.Entry<Integer, AtomicLong> entry : results.entrySet()) {
+            if (entry.getKey() < 200 || entry.getKey() >= 300)
+                total += entry.getValue().get();
+        }
+
+        return total;
+    }
+    // =========================================================================
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import javax.mail.MessagingException;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * MX resolver using the JNDI DNS provider.
+ *
+ * The JNDI DNS provider does not expose record TTLs: returned records have
+ * {@linkplain MxRecord#UNKNOWN_TTL unknown TTL}, so they are cached for
+ * {@linkplain DirectDeliverySettings#getDefaultTtl()}.
+ */
+public class JndiMxResolver implements MxResolver {
+    // CLASS SCOPE =============================================================
+    /**
+     * Parses the value of a MX record ("preference host").
+     *
+     * @return parsed record or null if value denotes a "null MX" (RFC 7505) or is invalid.
+     */
+    static MxRecord parse(String value) {
+        String[] tokens = value.trim().split("\\s+");
+
+        if (tokens.length != 2)
+            return null;
+
+        String host = tokens[1];
+
+        if (host.endsWith("."))
+            host = host.substring(0, host.length() - 1);
+
+        if (host.isEmpty())
+            return null;
+
+        try {
+            return new MxRecord(host.toLowerCase(Locale.ENGLISH), Integer.parseInt(tokens[0]));
+        } catch (IllegalArgumentException ex) { // <-- includes NumberFormatException
+            return null;
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final String providerUrl;
+    private final long   timeout;
+
+    /** Creates a resolver using system DNS configuration. */
+    public JndiMxResolver() {
+        this(Collections.<String>emptyList(), DirectDeliverySettings.DEFAULT_DNS_TIMEOUT);
+    }
+
+    /**
+     * Creates a resolver.
+     *
+     * @param dnsServers DNS servers ("host" or "host:port"). Passing an empty list uses system DNS configuration.
+     * @param timeout query timeout in milliseconds.
+     */
+    public JndiMxResolver(List<String> dnsServers, long timeout) {
+        if (dnsServers == null)
+            throw new IllegalArgumentException("Null DNS servers");
+
+        if (timeout < 1)
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+
+        StringBuilder sb = new StringBuilder();
+
+        for (String server : dnsServers) {
+            if (server == null || server.trim().isEmpty())
+                throw new IllegalArgumentException("Null/Empty DNS server");
+
+            if (sb.length() > 0)
+                sb.append(' ');
+
+            sb.append("dns://").append(server.trim());
+        }
+
+        this.providerUrl = sb.length() > 0 ? sb.toString() : "dns:";
+        this.timeout = timeout;
+    }
+
+    @Override
+    public List<MxRecord> resolve(String domain) throws MessagingException {
+        Hashtable<String, String> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        env.put(Context.PROVIDER_URL, providerUrl);
+        env.put("com.sun.jndi.dns.timeout.initial", Long.toString(timeout));
+        env.put("com.sun.jndi.dns.timeout.retries", "1");
+
+        DirContext context = null;
+
+        try {
+            context = new InitialDirContext(env); // <-- DNS contexts are not thread-safe
+            Attribute mx = context.getAttributes(domain, new String[] {"MX"}).get("MX");
+
+            if (mx == null || mx.size() == 0) {
+                // Implicit MX...
+                Attributes addresses = context.getAttributes(domain, new String[] {"A", "AAAA"});
+
+                if (addresses.size() == 0)
+                    return Collections.emptyList();
+
+                return Collections.singletonList(new MxRecord(domain, 0));
+            }
+
+            List<MxRecord> records = new ArrayList<>(mx.size());
+
+            for (int i = 0; i < mx.size(); i++) {
+                MxRecord record = parse(String.valueOf(mx.get(i)));
+
+                if (record != null)
+                    records.add(record);
+            }
+
+            return records;
+        } catch (NameNotFoundException ex) {
+            return Collections.emptyList();
+        } catch (NamingException ex) {
+            throw new MessagingException("Error resolving MX records for domain: " + domain, ex);
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (NamingException ex) {}
+            }
+        }
+    }
+    // =========================================================================
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. latencies in nanoseconds).
+ *
+ * Values are counted in log-linear buckets: each power of two is split in
+ * 32 linear sub-buckets, so any value is reported with a relative error
+ * below 3.2% while the whole range of long values fits in less than 2000
+ * counters. Recording a value is a few arithmetic operations and one atomic
+ * increment.
+ */
+public class LatencyHistogram {
+    // CLASS SCOPE =============================================================
+    private static final int SUB_BUCKET_BITS  = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT     = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift); // <-- [SUB_BUCKET_COUNT, 2 * SUB_BUCKET_COUNT)
+
+        return (shift + 1) * SUB_BUCKET_COUNT + (subBucket - SUB_BUCKET_COUNT);
+    }
+
+    /** Returns the lowest value counted in given bucket. */
+    static long getLowestValue(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+        return subBucket << shift;
+    }
+
+    /** Returns the highest value counted in given bucket. */
+    static long getHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        return getLowestValue(index) + (1L << shift) - 1;
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      count  = new AtomicLong(0);
+    private final AtomicLong      sum    = new AtomicLong(0);
+    private final AtomicLong      max    = new AtomicLong(0);
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value recorded value.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {}
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return number of recorded values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the (exact) maximum recorded value.
+     *
+     * @return maximum value or zero if no value was recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the (exact) mean of recorded values.
+     *
+     * @return mean or zero if no value was recorded.
+     */
+    public double getMean() {
+        long currentCount = count.get();
+        return currentCount == 0 ? 0 : (double) sum.get() / currentCount;
+    }
+
+    /**
+     * Returns the value below which given percentage of recorded values fall.
+     *
+     * @param percentile percentile (between 0 and 100).
+     * @return value at given percentile (upper bound of its bucket) or zero if no value was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (Double.isNaN(percentile) || percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long accumulated = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            accumulated += snapshot[i];
+
+            if (accumulated >= target)
+                return Math.min(getHighestValue(i), max.get());
+        }
+
+        return max.get();
+    }
+    // =========================================================================
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+/**
+ * Defines how a {@linkplain RelayGroup} distributes messages among its relays.
+ */
+public enum LoadBalancingStrategy {
+    /** Relays are used in turns, proportionally to their weights. */
+    WEIGHTED_ROUND_ROBIN,
+
+    /** Each message is sent through the relay with fewer sends in progress (relative to its weight). */
+    LEAST_OUTSTANDING;
+}
@@ -16,42 +16,217 @@
 
 package com.agapsys.mail;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 
 /**
  * Represents an e-mail message.
+ *
+ * A message can be sent many times (e.g. a periodic report): each send gets
+ * a new Message-ID and Date. Senders which make several attempts for a single
+ * delivery ({@linkplain RetryingSmtpSender}, {@linkplain RelayGroup},
+ * {@linkplain DirectSmtpSender} and {@linkplain SpoolDispatcher}) write the
+ * same Message-ID on all of its attempts.
  */
 public class Message {
+    // CLASS SCOPE =============================================================
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** Header block prefixed by the DKIM signature of a given signer. */
+    private static class SignedBlock {
+        private final DkimSigner signer;
+        private final byte[]     block;
+
+        private SignedBlock(DkimSigner signer, byte[] block) {
+            this.signer = signer;
+            this.block = block;
+        }
+    }
+
+    /**
+     * MIME message with attachments, which can be DKIM-signed: its Message-ID
+     * is kept when headers are updated again, and the signature header is
+     * written before the other headers.
+     *
+     * The number of bytes written by the last call to writeTo() is kept, as
+     * the message is too large to be written again just to get its size.
+     */
+    private static class AttachmentMimeMessage extends MimeMessage {
+        private byte[] signatureHeader = null;
+        private volatile long writtenSize = -1;
+
+        private AttachmentMimeMessage(Session session) {
+            super(session);
+        }
+
+        @Override
+        protected void updateMessageID() throws MessagingException {
+            if (getHeader("Message-ID") == null)
+                super.updateMessageID();
+        }
+
+        @Override
+        public void writeTo(final OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            final long[] size = new long[1];
+
+            OutputStream counter = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    os.write(b);
+                    size[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    os.write(b, off, len);
+                    size[0] += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    os.flush();
+                }
+            };
+
+            if (signatureHeader != null)
+                counter.write(signatureHeader);
+
+            super.writeTo(counter, ignoreList);
+            writtenSize = size[0];
+        }
+    }
+
+    /**
+     * Returns the size of a MIME message created by this class (see
+     * {@linkplain #getMimeMessage(Session)}), as written to the server.
+     *
+     * @param mimeMessage MIME message.
+     * @return message size, or -1 if unknown (e.g. a message with attachments
+     * which was not written yet).
+     */
+    static long getWrittenSize(MimeMessage mimeMessage) {
+        if (mimeMessage instanceof AttachmentMimeMessage)
+            return ((AttachmentMimeMessage) mimeMessage).writtenSize;
+
+        return EncodedBody.getSize(mimeMessage);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
     private final InternetAddress senderAddress;
-    private final Set<InternetAddress> recipients;
+    private final AddressSet      recipients;
+    private final AddressSet      bccRecipients;
 
     private final String subject;
     private final String text;
     private final String charset;
     private final String mimeSubtype;
+    private final String html;
+    private final List<Attachment> attachments;
+
+    private final Message bodySource; // <-- message whose encoded body is shared by this one (null: this one)
+    private final boolean delivery;   // <-- copy whose wire form is kept (see forDelivery())
+    private volatile EncodedBody encodedBody = null;
+    private volatile byte[]      headerBlock = null;
+    private volatile SignedBlock signedBlock = null;
+    private volatile AddressSet  allRecipients = null;
 
     Message(InternetAddress senderAddress, Set<InternetAddress> recipients, String subject, String text, String charset, String mimeSubtype) {
+        this(senderAddress, recipients, AddressSet.EMPTY, subject, text, charset, mimeSubtype, null, Collections.<Attachment>emptyList());
+    }
+
+    Message(InternetAddress senderAddress, Set<InternetAddress> recipients, Set<InternetAddress> bccRecipients, String subject, String text, String charset, String mimeSubtype, String html, List<Attachment> attachments) {
         this.senderAddress = senderAddress;
-        this.recipients = Collections.unmodifiableSet(recipients);
+        this.recipients = AddressSet.of(recipients);
+        this.bccRecipients = AddressSet.of(bccRecipients);
         this.subject = subject;
         this.text = text;
         this.charset = charset;
         this.mimeSubtype = mimeSubtype;
+        this.html = html;
+        this.attachments = attachments.isEmpty() ? Collections.<Attachment>emptyList() : Collections.unmodifiableList(attachments);
+        this.bodySource = null;
+        this.delivery = false;
+    }
+
+    private Message(Message message, Set<InternetAddress> recipients) {
+        this.senderAddress = message.senderAddress;
+        this.recipients = AddressSet.of(recipients);
+        this.bccRecipients = AddressSet.EMPTY;
+        this.subject = message.subject;
+        this.text = message.text;
+        this.charset = message.charset;
+        this.mimeSubtype = message.mimeSubtype;
+        this.html = message.html;
+        this.attachments = message.attachments;
+        this.bodySource = message.bodySource != null ? message.bodySource : message;
+        this.delivery = false;
+    }
+
+    private Message(Message message) {
+        this.senderAddress = message.senderAddress;
+        this.recipients = message.recipients;
+        this.bccRecipients = message.bccRecipients;
+        this.subject = message.subject;
+        this.text = message.text;
+        this.charset = message.charset;
+        this.mimeSubtype = message.mimeSubtype;
+        this.html = message.html;
+        this.attachments = message.attachments;
+        this.bodySource = message.bodySource != null ? message.bodySource : message;
+        this.delivery = true;
     }
 
     public InternetAddress getSenderAddress() {
         return senderAddress;
     }
 
+    /**
+     * Returns the recipients listed in message headers.
+     *
+     * @return header recipients.
+     */
     public Set<InternetAddress> getRecipients() {
         return recipients;
     }
 
+    /**
+     * Returns the blind carbon copy recipients: they receive the message but
+     * are not listed in its headers.
+     *
+     * @return BCC recipients.
+     */
+    public Set<InternetAddress> getBccRecipients() {
+        return bccRecipients;
+    }
+
+    /**
+     * Returns all the recipients of the message (header and BCC recipients),
+     * which are the recipients of the SMTP envelope.
+     *
+     * @return all recipients.
+     */
+    public Set<InternetAddress> getAllRecipients() {
+        AddressSet all = allRecipients;
+
+        if (all == null) {
+            all = AddressSet.union(recipients, bccRecipients);
+            allRecipients = all;
+        }
+
+        return all;
+    }
+
     public String getSubject() {
         return subject;
     }
@@ -72,15 +247,226 @@ public class Message {
         return "text/" + mimeSubtype;
     }
 
-    MimeMessage getMimeMessage(Session session) throws MessagingException {
-        MimeMessage mimeMessage = new MimeMessage(session);
+    /**
+     * Returns the HTML version of message text.
+     *
+     * When present, message is sent as "multipart/alternative" and
+     * {@linkplain Message#getText()} is the plain text version.
+     *
+     * @return HTML version of message text or null if there is no HTML version.
+     */
+    public String getHtml() {
+        return html;
+    }
+
+    /**
+     * Returns message attachments (including inline ones).
+     *
+     * @return message attachments.
+     */
+    public List<Attachment> getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * Returns the encoded body of this message.
+     *
+     * The body (including the "multipart/alternative" structure of messages
+     * with an HTML version) is encoded on first use and shared by every MIME
+     * message built from this message (and from its copies).
+     */
+    EncodedBody getEncodedBody() throws MessagingException {
+        if (bodySource != null)
+            return bodySource.getEncodedBody();
 
+        EncodedBody body = encodedBody;
+
+        if (body == null) {
+            // Racing threads encode the same bytes: any of them may be kept.
+            if (html != null) {
+                body = EncodedBody.encodeAlternative(text, html, charset);
+            } else {
+                body = EncodedBody.encode(text, charset, mimeSubtype);
+            }
+
+            encodedBody = body;
+        }
+
+        return body;
+    }
+
+    /**
+     * Returns a copy of this message addressed to given recipients (with no
+     * BCC recipients), sharing the encoded body of this message.
+     *
+     * @param recipients recipients of the copy.
+     * @return message copy.
+     */
+    Message withRecipients(Set<InternetAddress> recipients) {
+        return new Message(this, recipients);
+    }
+
+    /**
+     * Returns the copy of this message used through the attempts of a single
+     * delivery (retries and failovers), sharing the encoded body of this
+     * message.
+     *
+     * Each send of a message gets a new Message-ID and Date. A delivery copy
+     * instead keeps its wire form (see {@linkplain #getMimeMessage(Session)}),
+     * so every attempt writes the same bytes with the same Message-ID.
+     *
+     * @return delivery copy (this message if it is already one).
+     */
+    Message forDelivery() {
+        return delivery ? this : new Message(this);
+    }
+
+    /**
+     * Builds the multipart content of a message with attachments.
+     *
+     * Inline attachments are grouped with the text in a "multipart/related"
+     * part; the others follow it in a "multipart/mixed" one.
+     */
+    private MimeMultipart getMultipart() throws MessagingException {
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        MimeMultipart related = null;
+
+        for (Attachment attachment : attachments) {
+            if (attachment.isInline()) {
+                if (related == null) {
+                    related = new MimeMultipart("related");
+                    related.addBodyPart(getEncodedBody().newBodyPart());
+                }
+
+                related.addBodyPart(attachment.getBodyPart());
+            }
+        }
+
+        if (related != null) {
+            MimeBodyPart relatedPart = new MimeBodyPart();
+            relatedPart.setContent(related);
+            mixed.addBodyPart(relatedPart);
+        } else {
+            mixed.addBodyPart(getEncodedBody().newBodyPart());
+        }
+
+        for (Attachment attachment : attachments) {
+            if (!attachment.isInline())
+                mixed.addBodyPart(attachment.getBodyPart());
+        }
+
+        if (mixed.getCount() == 1)
+            return related; // <-- only inline attachments
+
+        return mixed;
+    }
+
+    private void setHeaders(MimeMessage mimeMessage) throws MessagingException {
         mimeMessage.setFrom(senderAddress);
-        mimeMessage.setRecipients(javax.mail.Message.RecipientType.TO, recipients.toArray(new InternetAddress[recipients.size()]));
+
+        if (recipients.isEmpty()) {
+            mimeMessage.setHeader("To", "undisclosed-recipients:;");
+        } else {
+            mimeMessage.setRecipients(javax.mail.Message.RecipientType.TO, recipients.toArray(new InternetAddress[recipients.size()]));
+        }
+
         mimeMessage.setSubject(subject);
-        mimeMessage.setText(text, charset, mimeSubtype);
+    }
+
+    /**
+     * Returns the MIME message to be sent.
+     *
+     * Headers (including Message-ID and Date) are built on each call. The
+     * wire form of a delivery copy without attachments (see
+     * {@linkplain #forDelivery()}) is built on first use and reused by later
+     * calls, so retries and sends through other relays write the same bytes
+     * (with the same Message-ID). Messages with attachments are built on each
+     * call, so attachment data is never held in memory.
+     *
+     * @param session session associated with the message.
+     * @return MIME message.
+     * @throws MessagingException if there is an error building the message.
+     */
+    MimeMessage getMimeMessage(Session session) throws MessagingException {
+        if (!attachments.isEmpty()) {
+            MimeMessage mimeMessage = new AttachmentMimeMessage(session);
+            mimeMessage.setContent(getMultipart());
+            setHeaders(mimeMessage);
+            return mimeMessage;
+        }
+
+        EncodedBody body = getEncodedBody();
+        return body.newMimeMessage(session, getHeaderBlock(session, body));
+    }
+
+    private byte[] getHeaderBlock(Session session, EncodedBody body) throws MessagingException {
+        byte[] block = headerBlock;
+
+        if (block == null) {
+            MimeMessage mimeMessage = body.newMimeMessage(session);
+            setHeaders(mimeMessage);
+            mimeMessage.saveChanges();
+            block = EncodedBody.getHeaderBlock(mimeMessage);
+
+            if (!delivery)
+                return block; // <-- each send gets a new Message-ID and Date
+
+            synchronized (this) {
+                // Every sender must write the same Message-ID...
+                if (headerBlock == null) {
+                    headerBlock = block;
+                } else {
+                    block = headerBlock;
+                }
+            }
+        }
+
+        return block;
+    }
+
+    /**
+     * Returns the MIME message to be sent, with updated headers and signed by
+     * given DKIM signer.
+     *
+     * The body hash of a message without attachments is computed once and
+     * shared by all copies made through {@linkplain #withRecipients(Set)}:
+     * only the header signature is computed for each copy. A delivery copy
+     * (see {@linkplain #forDelivery()}) keeps it for later attempts through
+     * the same signer. Messages with attachments are
+     * written once more to compute their body hash.
+     *
+     * @param session session associated with the message.
+     * @param signer DKIM signer.
+     * @return signed MIME message (headers are already updated).
+     * @throws MessagingException if there is an error building or signing the message.
+     */
+    MimeMessage getMimeMessage(Session session, DkimSigner signer) throws MessagingException {
+        if (!attachments.isEmpty()) {
+            AttachmentMimeMessage mimeMessage = new AttachmentMimeMessage(session);
+            mimeMessage.setContent(getMultipart());
+            setHeaders(mimeMessage);
+            mimeMessage.saveChanges();
+            mimeMessage.signatureHeader = signer.sign(mimeMessage, DkimSigner.getBodyHash(mimeMessage)).getBytes(ISO_8859_1);
+            return mimeMessage;
+        }
+
+        EncodedBody body = getEncodedBody();
+        SignedBlock signed = signedBlock;
+
+        if (signed == null || !signed.signer.equals(signer)) {
+            byte[] block = getHeaderBlock(session, body);
+            byte[] signature = signer.sign(body.newMimeMessage(session, block), body.getBodyHash()).getBytes(ISO_8859_1);
+            byte[] signedHeaders = new byte[signature.length + block.length];
+            System.arraycopy(signature, 0, signedHeaders, 0, signature.length);
+            System.arraycopy(block, 0, signedHeaders, signature.length, block.length);
+
+            signed = new SignedBlock(signer, signedHeaders); // <-- signatures are deterministic: racing threads build the same block
+
+            if (delivery)
+                signedBlock = signed;
+        }
 
-        return mimeMessage;
+        return body.newMimeMessage(session, signed.block);
     }
 
     @Override
@@ -95,4 +481,5 @@ public class Message {
             getText()
         );
     }
+    // =========================================================================
 }
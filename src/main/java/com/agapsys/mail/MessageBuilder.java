@@ -17,8 +17,13 @@
 package com.agapsys.mail;
 
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import javax.activation.DataSource;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
@@ -27,7 +32,7 @@ import javax.mail.internet.InternetAddress;
  */
 public class MessageBuilder {
     // CLASS SCOPE =============================================================
-    private static InternetAddress[] getRecipients(String...recipients) throws AddressException {
+    private static InternetAddress[] getRecipients(AddressCache addressCache, String...recipients) throws AddressException {
         InternetAddress[] array = new InternetAddress[recipients.length];
 
         int i = 0;
@@ -35,49 +40,130 @@ public class MessageBuilder {
             if (recipient == null || recipient.trim().isEmpty())
                 throw new AddressException("Null/Empty address at index " + i);
 
-            InternetAddress tmpRecipient = new InternetAddress(recipient.trim());
-            array[i] = tmpRecipient;
+            array[i] = addressCache.getAddress(recipient);
             i++;
         }
 
         return array;
     }
 
-    private static InternetAddress getAddress(String address) throws AddressException {
+    private static Path checkFile(Path file) {
+        if (file == null)
+            throw new IllegalArgumentException("Null file");
+
+        if (!Files.isRegularFile(file) || !Files.isReadable(file))
+            throw new IllegalArgumentException("Not a readable file: " + file);
+
+        return file;
+    }
+
+    private static AddressCache checkCache(AddressCache addressCache) {
+        if (addressCache == null)
+            throw new IllegalArgumentException("Null address cache");
+
+        return addressCache;
+    }
+
+    private static InternetAddress getAddress(AddressCache addressCache, String address) throws AddressException {
         if (address == null || address.trim().isEmpty())
                 throw new AddressException("Null/Empty address");
 
-        return new InternetAddress(address.trim());
+        return addressCache.getAddress(address);
     }
     //==========================================================================
 
     // INSTANCE SCOPE ==========================================================
+    private final AddressCache addressCache;
     private final InternetAddress senderAddress;
     private final Set<InternetAddress> recipients = new LinkedHashSet<>();
+    private final Set<InternetAddress> bccRecipients = new LinkedHashSet<>();
 
     private String subject  = null;
     private String text     = null;
     private String charset = null;
     private String mimeSubtype = null;
-
+    private String html = null;
+
+    private final List<Attachment> attachments = new ArrayList<>();
+    private final Set<String> contentIds = new LinkedHashSet<>();
+
+    /**
+     * Creates a builder.
+     *
+     * A message may have no header recipients if it has BCC recipients (see
+     * {@linkplain MessageBuilder#addBcc(InternetAddress...)}).
+     *
+     * @param senderAddress sender address.
+     * @param recipients recipient addresses (listed in message headers).
+     */
     public MessageBuilder(InternetAddress senderAddress, InternetAddress...recipients) {
-        this.senderAddress = new ReadOnlyInternetAddress(senderAddress);
+        this(AddressCache.getDefault(), senderAddress, recipients);
+    }
 
-        if (recipients.length == 0)
-            throw new IllegalArgumentException("Empty recipients");
+    private MessageBuilder(AddressCache addressCache, InternetAddress senderAddress, InternetAddress[] recipients) {
+        this.addressCache = addressCache;
+        this.senderAddress = ReadOnlyInternetAddress.getInstance(senderAddress);
 
-        for (InternetAddress recipient : recipients) {
-            InternetAddress tmpRecipient = new ReadOnlyInternetAddress(recipient);
+        for (InternetAddress recipient : recipients)
+            addRecipient(this.recipients, recipient);
+    }
 
-            if (this.recipients.contains(tmpRecipient))
-                throw new IllegalArgumentException("Dupplicate recipient: " + recipient.toString());
+    private void addRecipient(Set<InternetAddress> target, InternetAddress recipient) {
+        InternetAddress tmpRecipient = ReadOnlyInternetAddress.getInstance(recipient);
 
-            this.recipients.add(tmpRecipient);
-        }
+        if (recipients.contains(tmpRecipient) || bccRecipients.contains(tmpRecipient))
+            throw new IllegalArgumentException("Dupplicate recipient: " + recipient.toString());
+
+        target.add(tmpRecipient);
     }
 
+    /**
+     * Creates a builder parsing addresses through the default address cache.
+     *
+     * @param senderAddress sender address.
+     * @param recipients recipient addresses.
+     * @throws AddressException if an address is invalid.
+     */
     public MessageBuilder(String senderAddress, String...recipients) throws AddressException {
-        this(getAddress(senderAddress), getRecipients(recipients));
+        this(AddressCache.getDefault(), senderAddress, recipients);
+    }
+
+    /**
+     * Creates a builder parsing addresses through given address cache.
+     *
+     * @param addressCache address cache.
+     * @param senderAddress sender address.
+     * @param recipients recipient addresses.
+     * @throws AddressException if an address is invalid.
+     */
+    public MessageBuilder(AddressCache addressCache, String senderAddress, String...recipients) throws AddressException {
+        this(checkCache(addressCache), getAddress(addressCache, senderAddress), getRecipients(addressCache, recipients));
+    }
+
+    /**
+     * Adds blind carbon copy recipients: they are included in the SMTP
+     * envelope but not in message headers, so headers stay small regardless
+     * of the number of recipients.
+     *
+     * @param recipients BCC recipients.
+     * @return this builder.
+     */
+    public MessageBuilder addBcc(InternetAddress...recipients) {
+        for (InternetAddress recipient : recipients)
+            addRecipient(bccRecipients, recipient);
+
+        return this;
+    }
+
+    /**
+     * Adds blind carbon copy recipients (see {@linkplain MessageBuilder#addBcc(InternetAddress...)}).
+     *
+     * @param recipients BCC recipients.
+     * @return this builder.
+     * @throws AddressException if an address is invalid.
+     */
+    public MessageBuilder addBcc(String...recipients) throws AddressException {
+        return addBcc(getRecipients(addressCache, recipients));
     }
 
     public MessageBuilder setSubject(String subject) {
@@ -102,6 +188,41 @@ public class MessageBuilder {
         return this;
     }
 
+    /**
+     * Sets the plain text version of message text.
+     *
+     * @param text plain text.
+     * @return this builder.
+     */
+    public MessageBuilder setPlainText(String text) {
+        if (mimeSubtype != null && !mimeSubtype.equalsIgnoreCase("plain"))
+            throw new IllegalStateException("MIME type is already set");
+
+        setText(text);
+        mimeSubtype = "plain";
+        return this;
+    }
+
+    /**
+     * Sets the HTML version of message text.
+     *
+     * Message is sent as "multipart/alternative". If no plain text is given,
+     * plain text version is generated from the HTML.
+     *
+     * @param html HTML text.
+     * @return this builder.
+     */
+    public MessageBuilder setHtml(String html) {
+        if (this.html != null)
+            throw new IllegalStateException("HTML is already set");
+
+        if (html == null)
+            html = "";
+
+        this.html = html;
+        return this;
+    }
+
     public MessageBuilder setCharset(String charset) {
         if (this.charset != null)
             throw new IllegalStateException("Charset is already set");
@@ -124,10 +245,98 @@ public class MessageBuilder {
         return this;
     }
 
+    private MessageBuilder addAttachment(Attachment attachment) {
+        if (attachment.isInline() && !contentIds.add(attachment.getContentId()))
+            throw new IllegalArgumentException("Dupplicate content ID: " + attachment.getContentId());
+
+        attachments.add(attachment);
+        return this;
+    }
+
+    /**
+     * Attaches a file.
+     *
+     * File contents are read only while the message is being sent. Content
+     * type is guessed from the file name.
+     *
+     * @param file file to be attached.
+     * @return this builder.
+     */
+    public MessageBuilder addAttachment(Path file) {
+        return addAttachment(Attachment.of(checkFile(file), null, null));
+    }
+
+    /**
+     * Attaches a file.
+     *
+     * @param file file to be attached.
+     * @param contentType attachment content type.
+     * @return this builder.
+     */
+    public MessageBuilder addAttachment(Path file, String contentType) {
+        if (contentType == null || contentType.trim().isEmpty())
+            throw new IllegalArgumentException("Null/Empty content type");
+
+        return addAttachment(Attachment.of(checkFile(file), contentType, null));
+    }
+
+    /**
+     * Attaches data provided by a data source.
+     *
+     * Data source stream is requested every time the message is written, so
+     * the source must be able to provide its data more than once. Source name
+     * is used as attachment file name.
+     *
+     * @param source attachment data source.
+     * @return this builder.
+     */
+    public MessageBuilder addAttachment(DataSource source) {
+        return addAttachment(Attachment.of(source, null));
+    }
+
+    /**
+     * Adds a file referenced from the (HTML) message text through a "cid:" URL.
+     *
+     * @param file file to be attached.
+     * @param contentId content ID (without angle brackets).
+     * @return this builder.
+     */
+    public MessageBuilder addInlineAttachment(Path file, String contentId) {
+        if (contentId == null)
+            throw new IllegalArgumentException("Null content ID");
+
+        return addAttachment(Attachment.of(checkFile(file), null, contentId));
+    }
+
+    /**
+     * Adds data referenced from the (HTML) message text through a "cid:" URL.
+     *
+     * @param source attachment data source.
+     * @param contentId content ID (without angle brackets).
+     * @return this builder.
+     */
+    public MessageBuilder addInlineAttachment(DataSource source, String contentId) {
+        if (contentId == null)
+            throw new IllegalArgumentException("Null content ID");
+
+        return addAttachment(Attachment.of(source, contentId));
+    }
+
     public Message build() {
+        if (recipients.isEmpty() && bccRecipients.isEmpty())
+            throw new IllegalStateException("Empty recipients");
+
         if (subject == null)
             subject = "";
 
+        if (html != null) {
+            if (mimeSubtype != null && !mimeSubtype.equalsIgnoreCase("plain"))
+                throw new IllegalStateException("Text of a message with HTML version must be plain text");
+
+            if (text == null)
+                text = HtmlText.toPlainText(html);
+        }
+
         if (text == null)
             text = "";
 
@@ -137,7 +346,7 @@ public class MessageBuilder {
         if (mimeSubtype == null)
             mimeSubtype = "plain";
 
-        return new Message(senderAddress, recipients, subject, text, charset, mimeSubtype);
+        return new Message(senderAddress, recipients, bccRecipients, subject, text, charset, mimeSubtype, html, new ArrayList<>(attachments));
     }
     // =========================================================================
 }
\ No newline at end of file
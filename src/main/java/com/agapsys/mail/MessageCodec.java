@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Binary (de)serialization of messages.
+ */
+class MessageCodec {
+    // CLASS SCOPE =============================================================
+    private static final byte    VERSION_1 = 1;
+    private static final byte    VERSION_2 = 2; // <-- adds attachments
+    private static final byte    VERSION_3 = 3; // <-- adds HTML version
+    private static final byte    VERSION   = 4; // <-- adds BCC recipients
+    private static final Charset UTF_8   = Charset.forName("UTF-8");
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0)
+            throw new IOException("Invalid string length: " + length);
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static InternetAddress readAddress(DataInputStream in) throws IOException {
+        String address = readString(in);
+
+        try {
+            return AddressCache.parseAddress(address);
+        } catch (AddressException ex) {
+            throw new IOException("Invalid address: " + address, ex);
+        }
+    }
+
+    static byte[] encodeAddresses(Collection<InternetAddress> addresses) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(32 * addresses.size());
+            DataOutputStream out = new DataOutputStream(baos);
+
+            out.writeInt(addresses.size());
+            for (InternetAddress address : addresses)
+                writeString(out, address.toString());
+
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex); // <-- ByteArrayOutputStream never throws IOException
+        }
+    }
+
+    static Set<InternetAddress> decodeAddresses(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Invalid address count: " + count);
+
+        Set<InternetAddress> addresses = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++)
+            addresses.add(readAddress(in));
+
+        return addresses;
+    }
+
+    static byte[] encode(Message message) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(256 + message.getText().length());
+            DataOutputStream out = new DataOutputStream(baos);
+
+            out.writeByte(VERSION);
+            writeString(out, message.getSenderAddress().toString());
+
+            out.writeInt(message.getRecipients().size());
+            for (InternetAddress recipient : message.getRecipients())
+                writeString(out, recipient.toString());
+
+            writeString(out, message.getSubject());
+            writeString(out, message.getText());
+            writeString(out, message.getCharset());
+            writeString(out, message.getMimeSubtype());
+
+            out.writeInt(message.getAttachments().size());
+            for (Attachment attachment : message.getAttachments()) {
+                if (attachment.getPath() == null)
+                    throw new IllegalArgumentException("Only file attachments can be encoded: " + attachment.getName());
+
+                writeString(out, attachment.getPath().toString());
+                writeString(out, attachment.getContentType());
+                writeString(out, attachment.isInline() ? attachment.getContentId() : "");
+            }
+
+            out.writeBoolean(message.getHtml() != null);
+            if (message.getHtml() != null)
+                writeString(out, message.getHtml());
+
+            out.writeInt(message.getBccRecipients().size());
+            for (InternetAddress recipient : message.getBccRecipients())
+                writeString(out, recipient.toString());
+
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex); // <-- ByteArrayOutputStream never throws IOException
+        }
+    }
+
+    static Message decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        byte version = in.readByte();
+        if (version < VERSION_1 || version > VERSION)
+            throw new IOException("Unsupported message version: " + version);
+
+        InternetAddress senderAddress = readAddress(in);
+
+        int recipientCount = in.readInt();
+        if (recipientCount < 0)
+            throw new IOException("Invalid recipient count: " + recipientCount);
+
+        Set<InternetAddress> recipients = new LinkedHashSet<>();
+        for (int i = 0; i < recipientCount; i++)
+            recipients.add(readAddress(in));
+
+        String subject = readString(in);
+        String text = readString(in);
+        String charset = readString(in);
+        String mimeSubtype = readString(in);
+
+        List<Attachment> attachments = new ArrayList<>();
+
+        if (version >= VERSION_2) {
+            int attachmentCount = in.readInt();
+            if (attachmentCount < 0)
+                throw new IOException("Invalid attachment count: " + attachmentCount);
+
+            for (int i = 0; i < attachmentCount; i++) {
+                String path = readString(in);
+                String contentType = readString(in);
+                String contentId = readString(in);
+
+                try {
+                    attachments.add(Attachment.of(Paths.get(path), contentType, contentId.isEmpty() ? null : contentId));
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Invalid attachment: " + path, ex);
+                }
+            }
+        }
+
+        String html = null;
+
+        if (version >= VERSION_3 && in.readBoolean())
+            html = readString(in);
+
+        Set<InternetAddress> bccRecipients = new LinkedHashSet<>();
+
+        if (version >= VERSION) {
+            int bccCount = in.readInt();
+            if (bccCount < 0)
+                throw new IOException("Invalid BCC recipient count: " + bccCount);
+
+            for (int i = 0; i < bccCount; i++)
+                bccRecipients.add(readAddress(in));
+        }
+
+        return new Message(senderAddress, recipients, bccRecipients, subject, text, charset, mimeSubtype, html, attachments);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private MessageCodec() {}
+    // =========================================================================
+}
@@ -0,0 +1,604 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Durable outbound message queue.
+ *
+ * Messages are appended to a journal made of segment files before being made
+ * available for delivery. A single writer thread appends records and calls
+ * fsync once per group of concurrent enqueues (group commit), so the cost of
+ * a sync is shared by every producer waiting on it.
+ *
+ * Recipients still pending after a partial delivery are recorded with a
+ * PROGRESS record, so a recovered message is not sent again to recipients
+ * which already received it.
+ *
+ * Delivered messages are acknowledged by appending an ACK record. Segments
+ * whose messages (and all the messages in older segments) were acknowledged
+ * are deleted. On restart, messages which were never acknowledged are
+ * recovered and delivered again (at-least-once delivery).
+ */
+public class MessageSpool implements Closeable {
+    // CLASS SCOPE =============================================================
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final byte TYPE_ENQUEUE     = 1;
+    private static final byte TYPE_ACKNOWLEDGE = 2;
+    private static final byte TYPE_PROGRESS    = 3;
+
+    private static final int HEADER_SIZE = 4 + 4;     // length + crc
+    private static final int BODY_PREFIX = 1 + 8;     // type + id
+    private static final int MAX_BATCH   = 4096;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** A message stored in the spool. */
+    static class SpooledMessage {
+        private final long    id;
+        private final Message message;
+        private int attempts = 0;
+
+        private Set<InternetAddress> remainingRecipients;
+        private final Set<InternetAddress> deliveredRecipients = new LinkedHashSet<>();
+        private final Set<InternetAddress> failedRecipients    = new LinkedHashSet<>();
+        private MessagingException lastError = null;
+
+        private SpooledMessage(long id, Message message, Set<InternetAddress> remainingRecipients) {
+            this.id = id;
+            this.message = message.forDelivery(); // <-- attempts write the same Message-ID (until the spool is recovered)
+            this.remainingRecipients = remainingRecipients != null ? remainingRecipients : new LinkedHashSet<>(message.getAllRecipients());
+        }
+
+        long getId() {
+            return id;
+        }
+
+        Message getMessage() {
+            return message;
+        }
+
+        int incrementAttempts() {
+            return ++attempts;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        /** Returns the recipients the message was not delivered to yet. */
+        Set<InternetAddress> getRemainingRecipients() {
+            return remainingRecipients;
+        }
+
+        /**
+         * Registers the result of a delivery attempt.
+         *
+         * @return a boolean indicating if the set of remaining recipients changed.
+         */
+        boolean update(MessagingException error, Set<InternetAddress> delivered, Set<InternetAddress> deferred, Set<InternetAddress> failed) {
+            if (error != null)
+                lastError = error;
+
+            deliveredRecipients.addAll(delivered);
+            failedRecipients.addAll(failed);
+
+            boolean changed = deferred.size() != remainingRecipients.size();
+            remainingRecipients = deferred;
+            return changed;
+        }
+
+        SendResult getResult() {
+            MessagingException error = (remainingRecipients.isEmpty() && failedRecipients.isEmpty()) ? null : lastError;
+            return new SendResult(message, error, deliveredRecipients, remainingRecipients, failedRecipients, attempts);
+        }
+    }
+
+    private static class Segment {
+        private final long sequence;
+        private final File file;
+        private int live = 0;
+
+        private Segment(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+    }
+
+    private static class Record {
+        private final byte           type;
+        private final long           id;
+        private final byte[]         payload;
+        private final SpooledMessage spooledMessage;
+        private final CountDownLatch latch;
+        private IOException error = null;
+
+        private Record(byte type, long id, byte[] payload, SpooledMessage spooledMessage) {
+            this.type = type;
+            this.id = id;
+            this.payload = payload;
+            this.spooledMessage = spooledMessage;
+            this.latch = type == TYPE_ENQUEUE ? new CountDownLatch(1) : null;
+        }
+
+        private ByteBuffer[] toBuffers() {
+            ByteBuffer prefix = ByteBuffer.allocate(BODY_PREFIX);
+            prefix.put(type).putLong(id).flip();
+
+            CRC32 crc = new CRC32();
+            crc.update(prefix.array());
+            crc.update(payload);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(BODY_PREFIX + payload.length).putInt((int) crc.getValue()).flip();
+
+            return new ByteBuffer[] {header, prefix, ByteBuffer.wrap(payload)};
+        }
+
+        private int size() {
+            return HEADER_SIZE + BODY_PREFIX + payload.length;
+        }
+    }
+
+    private static final Record SHUTDOWN = new Record(TYPE_ACKNOWLEDGE, -1, new byte[0], null);
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private static File getSegmentFile(File directory, long sequence) {
+        return new File(directory, String.format("%s%016x%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final File directory;
+    private final long maxSegmentSize;
+
+    private final BlockingQueue<Record>         writeQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<SpooledMessage> readyQueue = new LinkedBlockingQueue<>();
+
+    // Owned by writer thread (after construction)...
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<Long, Segment>     entries  = new HashMap<>();
+    private Segment     activeSegment;
+    private FileChannel activeChannel;
+    private long        activeSize;
+
+    private final Thread writerThread;
+
+    private long nextId;
+    private volatile IOException failure = null;
+    private volatile boolean     closed  = false;
+
+    public MessageSpool(File directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens (or creates) a spool, recovering messages which were not acknowledged.
+     *
+     * @param directory spool directory.
+     * @param maxSegmentSize size (in bytes) after which a new segment file is started.
+     * @throws IOException if there is an error reading the journal.
+     */
+    public MessageSpool(File directory, long maxSegmentSize) throws IOException {
+        if (directory == null)
+            throw new IllegalArgumentException("Null directory");
+
+        if (maxSegmentSize < 1)
+            throw new IllegalArgumentException("Invalid max segment size: " + maxSegmentSize);
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory: " + directory);
+
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+
+        recover();
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "smtp-spool-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        Arrays.sort(files);
+
+        Map<Long, byte[]> pending = new TreeMap<>();
+        Map<Long, byte[]> progress = new HashMap<>();
+        long maxId = 0;
+        long maxSequence = 0;
+
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            String hex = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length());
+            long sequence = Long.parseLong(hex, 16);
+            maxSequence = Math.max(maxSequence, sequence);
+
+            Segment segment = new Segment(sequence, file);
+            segments.put(sequence, segment);
+
+            long validLength = 0;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    int length;
+                    int crcValue;
+                    byte type;
+                    long id;
+                    byte[] payload;
+
+                    try {
+                        length = in.readInt();
+                        crcValue = in.readInt();
+
+                        if (length < BODY_PREFIX || length > file.length())
+                            break;
+
+                        type = in.readByte();
+                        id = in.readLong();
+                        payload = new byte[length - BODY_PREFIX];
+                        in.readFully(payload);
+                    } catch (EOFException ex) {
+                        break;
+                    }
+
+                    CRC32 crc = new CRC32();
+                    crc.update(ByteBuffer.allocate(BODY_PREFIX).put(type).putLong(id).array());
+                    crc.update(payload);
+
+                    if ((int) crc.getValue() != crcValue)
+                        break;
+
+                    validLength += HEADER_SIZE + length;
+
+                    if (type == TYPE_ENQUEUE) {
+                        pending.put(id, payload);
+                        entries.put(id, segment);
+                        segment.live++;
+                        maxId = Math.max(maxId, id);
+                    } else if (type == TYPE_PROGRESS) {
+                        progress.put(id, payload);
+                    } else if (type == TYPE_ACKNOWLEDGE) {
+                        maxId = Math.max(maxId, id);
+                        pending.remove(id);
+                        progress.remove(id);
+                        Segment owner = entries.remove(id);
+                        if (owner != null)
+                            owner.live--;
+                    }
+                }
+            }
+
+            // Torn write (crash during append): discard the incomplete tail...
+            if (validLength < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+
+        for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+            byte[] remaining = progress.get(entry.getKey());
+            readyQueue.add(new SpooledMessage(entry.getKey(), MessageCodec.decode(entry.getValue()), remaining != null ? MessageCodec.decodeAddresses(remaining) : null));
+        }
+
+        nextId = maxId + 1;
+        openSegment(maxSequence + 1);
+        deleteAcknowledgedSegments();
+    }
+
+    private void openSegment(long sequence) throws IOException {
+        File file = getSegmentFile(directory, sequence);
+        activeSegment = new Segment(sequence, file);
+        activeChannel = new RandomAccessFile(file, "rw").getChannel();
+        activeSize = 0;
+        segments.put(sequence, activeSegment);
+    }
+
+    private void rollSegment() throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+        openSegment(activeSegment.sequence + 1);
+    }
+
+    private void deleteAcknowledgedSegments() {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.firstEntry().getValue();
+
+            if (oldest == activeSegment || oldest.live > 0)
+                break;
+
+            segments.pollFirstEntry();
+            oldest.file.delete();
+        }
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        boolean running = true;
+
+        while (running) {
+            try {
+                batch.add(writeQueue.take());
+            } catch (InterruptedException ex) {
+                continue;
+            }
+
+            writeQueue.drainTo(batch, MAX_BATCH);
+
+            // Nothing is queued after shutdown record (see close())...
+            if (batch.get(batch.size() - 1) == SHUTDOWN) {
+                batch.remove(batch.size() - 1);
+                running = false;
+            }
+
+            writeBatch(batch);
+            batch.clear();
+        }
+
+        try {
+            activeChannel.force(false);
+            activeChannel.close();
+        } catch (IOException ex) {
+            if (failure == null)
+                failure = ex;
+        }
+    }
+
+    private void writeBatch(List<Record> batch) {
+        boolean sync = false;
+        IOException error = failure;
+
+        if (error == null) {
+            try {
+                for (Record record : batch) {
+                    if (record.type == TYPE_ENQUEUE) {
+                        if (activeSize >= maxSegmentSize)
+                            rollSegment();
+
+                        entries.put(record.id, activeSegment);
+                        activeSegment.live++;
+                        sync = true;
+                    } else if (record.type == TYPE_ACKNOWLEDGE) {
+                        Segment owner = entries.remove(record.id);
+                        if (owner != null)
+                            owner.live--;
+                    }
+
+                    ByteBuffer[] buffers = record.toBuffers();
+                    long size = record.size();
+                    long written = 0;
+
+                    while (written < size)
+                        written += activeChannel.write(buffers);
+
+                    activeSize += size;
+                }
+
+                if (sync)
+                    activeChannel.force(false);
+
+                deleteAcknowledgedSegments();
+            } catch (IOException ex) {
+                failure = ex;
+                error = ex;
+            }
+        }
+
+        for (Record record : batch) {
+            if (record.latch != null) {
+                if (error == null) {
+                    readyQueue.add(record.spooledMessage);
+                } else {
+                    record.error = error;
+                }
+
+                record.latch.countDown();
+            }
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (closed)
+            throw new IllegalStateException("Spool is closed");
+
+        if (failure != null)
+            throw new IOException("Spool failure", failure);
+    }
+
+    /**
+     * Stores a message in the spool.
+     *
+     * This method returns after the message was synced to disk.
+     *
+     * @param message message to be stored.
+     * @return spool id assigned to the message.
+     * @throws IllegalArgumentException if message has attachments which are not files.
+     * @throws IOException if message could not be stored.
+     */
+    public long enqueue(Message message) throws IOException {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        byte[] payload = MessageCodec.encode(message);
+        Record record;
+        long id;
+
+        synchronized (this) {
+            checkState();
+
+            id = nextId++;
+            record = new Record(TYPE_ENQUEUE, id, payload, new SpooledMessage(id, message, null));
+            writeQueue.add(record);
+        }
+
+        try {
+            record.latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for spool", ex);
+        }
+
+        if (record.error != null)
+            throw record.error;
+
+        return id;
+    }
+
+    /**
+     * Returns the next message ready for delivery, waiting up to given time.
+     */
+    SpooledMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return readyQueue.poll(timeout, unit);
+    }
+
+    /**
+     * Makes a message (which was polled but not acknowledged) available for delivery again.
+     */
+    void requeue(SpooledMessage spooledMessage) {
+        readyQueue.add(spooledMessage);
+    }
+
+    /**
+     * Records the recipients a message was not delivered to yet.
+     *
+     * Like acknowledgements, progress records are synced along with subsequent
+     * enqueues.
+     */
+    synchronized void updateRecipients(long id, Collection<InternetAddress> remainingRecipients) throws IOException {
+        checkState();
+        writeQueue.add(new Record(TYPE_PROGRESS, id, MessageCodec.encodeAddresses(remainingRecipients), null));
+    }
+
+    /**
+     * Removes a delivered message from the spool.
+     *
+     * Acknowledgements are not synced individually: they are synced along with
+     * subsequent enqueues. A lost acknowledgement causes a duplicate delivery
+     * after a crash.
+     */
+    synchronized void acknowledge(long id) throws IOException {
+        checkState();
+        writeQueue.add(new Record(TYPE_ACKNOWLEDGE, id, EMPTY_PAYLOAD, null));
+    }
+
+    /**
+     * Returns the number of messages waiting for delivery (excluding the ones being delivered).
+     *
+     * @return the number of messages waiting for delivery.
+     */
+    public int getReadyCount() {
+        return readyQueue.size();
+    }
+
+    /**
+     * Returns the number of segment files held by the spool.
+     *
+     * @return the number of segment files held by the spool.
+     */
+    int getSegmentCount() {
+        File[] files = directory.listFiles();
+        int count = 0;
+
+        for (File file : files) {
+            if (file.getName().startsWith(SEGMENT_PREFIX))
+                count++;
+        }
+
+        return count;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the spool. Messages which were not acknowledged are kept on disk
+     * and recovered when the spool is opened again.
+     *
+     * @throws IOException if there is an error closing the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            closed = true;
+            writeQueue.add(SHUTDOWN);
+        }
+
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (failure != null)
+            throw failure;
+    }
+    // =========================================================================
+}
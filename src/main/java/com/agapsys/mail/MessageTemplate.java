@@ -0,0 +1,372 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Compiled message template.
+ *
+ * Subject, text and HTML may contain variables in the form "${name}" (a
+ * literal "${" is written as "$${"). Variable values are HTML-escaped in HTML
+ * templates. A template with an HTML version renders messages sent as
+ * "multipart/alternative" (see {@linkplain MessageBuilder#setHtml(String)}).
+ * Templates are parsed once into a sequence of
+ * literal segments and variables; rendering only appends segments and
+ * variable values to a per-thread buffer, which is reused across renders.
+ *
+ * Instances are immutable and can be shared by any number of threads.
+ */
+public final class MessageTemplate {
+    // CLASS SCOPE =============================================================
+    /** Rendering buffers larger than this are not kept for reuse. */
+    private static final int MAX_REUSED_BUFFER = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+
+    /** Compiled form of a template string: literals interleaved with variables. */
+    private static class Part {
+        private final String[] literals;  // <-- literals.length == variables.length + 1
+        private final String[] variables;
+        private final int      literalLength;
+
+        private Part(String[] literals, String[] variables) {
+            this.literals = literals;
+            this.variables = variables;
+
+            int length = 0;
+            for (String literal : literals)
+                length += literal.length();
+
+            this.literalLength = length;
+        }
+
+        private String render(Map<String, ?> values, boolean escapeHtml) {
+            if (variables.length == 0)
+                return literals[0];
+
+            StringBuilder sb = BUFFER.get();
+            sb.setLength(0);
+            sb.ensureCapacity(literalLength + 16 * variables.length);
+
+            for (int i = 0; i < variables.length; i++) {
+                sb.append(literals[i]);
+
+                Object value = values.get(variables[i]);
+                if (value == null)
+                    throw new IllegalArgumentException("Missing variable: " + variables[i]);
+
+                if (escapeHtml) {
+                    appendEscaped(sb, value.toString());
+                } else {
+                    sb.append(value);
+                }
+            }
+
+            sb.append(literals[variables.length]);
+            String result = sb.toString();
+
+            if (sb.capacity() > MAX_REUSED_BUFFER)
+                BUFFER.remove();
+
+            return result;
+        }
+    }
+
+    private static void appendEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+
+                case '>':
+                    sb.append("&gt;");
+                    break;
+
+                case '&':
+                    sb.append("&amp;");
+                    break;
+
+                case '"':
+                    sb.append("&quot;");
+                    break;
+
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static Part parse(String template) throws IllegalArgumentException {
+        List<String> literals = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+
+            if (c == '$' && template.startsWith("$${", i)) {
+                literal.append("${");
+                i += 3;
+            } else if (c == '$' && template.startsWith("${", i)) {
+                int end = template.indexOf('}', i + 2);
+                if (end < 0)
+                    throw new IllegalArgumentException("Unclosed variable at index " + i);
+
+                String name = template.substring(i + 2, end).trim();
+                if (name.isEmpty())
+                    throw new IllegalArgumentException("Empty variable name at index " + i);
+
+                literals.add(literal.toString());
+                variables.add(name);
+                literal.setLength(0);
+                i = end + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+
+        literals.add(literal.toString());
+        return new Part(literals.toArray(new String[literals.size()]), variables.toArray(new String[variables.size()]));
+    }
+
+    /**
+     * Compiles a plain text template using the default charset.
+     *
+     * @param subject subject template.
+     * @param text text template.
+     * @return compiled template.
+     * @throws IllegalArgumentException if a template is invalid.
+     */
+    public static MessageTemplate compile(String subject, String text) throws IllegalArgumentException {
+        return compile(subject, text, null, null);
+    }
+
+    /**
+     * Compiles a template.
+     *
+     * Variable values are HTML-escaped in the text of "html" templates.
+     *
+     * @param subject subject template.
+     * @param text text template.
+     * @param charset message charset. Passing null uses the default charset.
+     * @param mimeSubtype text MIME subtype (e.g. "plain" or "html"). Passing null uses "plain".
+     * @return compiled template.
+     * @throws IllegalArgumentException if a template is invalid.
+     */
+    public static MessageTemplate compile(String subject, String text, String charset, String mimeSubtype) throws IllegalArgumentException {
+        if (charset != null && charset.trim().isEmpty())
+            throw new IllegalArgumentException("Empty charset");
+
+        if (mimeSubtype != null && mimeSubtype.trim().isEmpty())
+            throw new IllegalArgumentException("Empty subtype");
+
+        return new MessageTemplate(
+            parse(subject == null ? "" : subject.trim()),
+            parse(text == null ? "" : text),
+            null,
+            charset == null ? Charset.defaultCharset().name() : charset,
+            mimeSubtype == null ? "plain" : mimeSubtype
+        );
+    }
+
+    /**
+     * Compiles a template with plain text and HTML versions (rendered
+     * messages are sent as "multipart/alternative").
+     *
+     * Variable values are HTML-escaped in the HTML version.
+     *
+     * @param subject subject template.
+     * @param text plain text template. Passing null generates plain text from rendered HTML.
+     * @param html HTML template.
+     * @param charset message charset. Passing null uses the default charset.
+     * @return compiled template.
+     * @throws IllegalArgumentException if a template is invalid.
+     */
+    public static MessageTemplate compileAlternative(String subject, String text, String html, String charset) throws IllegalArgumentException {
+        if (html == null)
+            throw new IllegalArgumentException("Null html");
+
+        if (charset != null && charset.trim().isEmpty())
+            throw new IllegalArgumentException("Empty charset");
+
+        return new MessageTemplate(
+            parse(subject == null ? "" : subject.trim()),
+            text == null ? null : parse(text),
+            parse(html),
+            charset == null ? Charset.defaultCharset().name() : charset,
+            "plain"
+        );
+    }
+
+    private static InternetAddress getReadOnly(InternetAddress address) {
+        if (address == null)
+            throw new IllegalArgumentException("Null address");
+
+        return ReadOnlyInternetAddress.getInstance(address);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final Part    subject;
+    private final Part    text;         // <-- null when plain text is generated from HTML version
+    private final Part    htmlVersion;  // <-- null when there is no HTML version
+    private final String  charset;
+    private final String  mimeSubtype;
+    private final boolean html;
+
+    private MessageTemplate(Part subject, Part text, Part htmlVersion, String charset, String mimeSubtype) {
+        this.subject = subject;
+        this.text = text;
+        this.htmlVersion = htmlVersion;
+        this.charset = charset;
+        this.mimeSubtype = mimeSubtype;
+        this.html = mimeSubtype.equalsIgnoreCase("html");
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    public String getMimeSubtype() {
+        return mimeSubtype;
+    }
+
+    /**
+     * Returns a boolean indicating if this template has an HTML version (see
+     * {@linkplain #compileAlternative(String, String, String, String)}).
+     *
+     * @return a boolean indicating if this template has an HTML version.
+     */
+    public boolean hasHtml() {
+        return htmlVersion != null;
+    }
+
+    /**
+     * Returns the names of the variables used by this template.
+     *
+     * @return variable names (in order of first use).
+     */
+    public Set<String> getVariables() {
+        Set<String> names = new LinkedHashSet<>();
+        Collections.addAll(names, subject.variables);
+
+        if (text != null)
+            Collections.addAll(names, text.variables);
+
+        if (htmlVersion != null)
+            Collections.addAll(names, htmlVersion.variables);
+
+        return names;
+    }
+
+    public String renderSubject(Map<String, ?> variables) throws IllegalArgumentException {
+        if (variables == null)
+            throw new IllegalArgumentException("Null variables");
+
+        return subject.render(variables, false);
+    }
+
+    public String renderText(Map<String, ?> variables) throws IllegalArgumentException {
+        if (variables == null)
+            throw new IllegalArgumentException("Null variables");
+
+        if (text == null)
+            return HtmlText.toPlainText(htmlVersion.render(variables, true));
+
+        return text.render(variables, html);
+    }
+
+    /**
+     * Renders the HTML version of message text.
+     *
+     * @param variables variable values (HTML-escaped).
+     * @return rendered HTML or null if this template has no HTML version.
+     * @throws IllegalArgumentException if a variable used by the template has no value.
+     */
+    public String renderHtml(Map<String, ?> variables) throws IllegalArgumentException {
+        if (variables == null)
+            throw new IllegalArgumentException("Null variables");
+
+        if (htmlVersion == null)
+            return null;
+
+        return htmlVersion.render(variables, true);
+    }
+
+    /**
+     * Renders a message for a single recipient.
+     *
+     * @param sender sender address.
+     * @param recipient recipient address.
+     * @param variables variable values (rendered through {@linkplain Object#toString()}).
+     * @return rendered message.
+     * @throws IllegalArgumentException if a variable used by the template has no value.
+     */
+    public Message render(InternetAddress sender, InternetAddress recipient, Map<String, ?> variables) throws IllegalArgumentException {
+        return render(sender, Collections.singleton(recipient), variables);
+    }
+
+    /**
+     * Renders a message.
+     *
+     * @param sender sender address.
+     * @param recipients recipient addresses.
+     * @param variables variable values (rendered through {@linkplain Object#toString()}).
+     * @return rendered message.
+     * @throws IllegalArgumentException if a variable used by the template has no value.
+     */
+    public Message render(InternetAddress sender, Collection<InternetAddress> recipients, Map<String, ?> variables) throws IllegalArgumentException {
+        if (recipients == null || recipients.isEmpty())
+            throw new IllegalArgumentException("Null/Empty recipients");
+
+        Set<InternetAddress> recipientSet = new LinkedHashSet<>(recipients.size() * 2);
+
+        for (InternetAddress recipient : recipients) {
+            if (!recipientSet.add(getReadOnly(recipient)))
+                throw new IllegalArgumentException("Dupplicate recipient: " + recipient.toString());
+        }
+
+        String renderedHtml = renderHtml(variables);
+        String renderedText = text == null ? HtmlText.toPlainText(renderedHtml) : renderText(variables); // <-- HTML is rendered once
+
+        return new Message(getReadOnly(sender), recipientSet, AddressSet.EMPTY, renderSubject(variables), renderedText, charset, mimeSubtype, renderedHtml, Collections.<Attachment>emptyList());
+    }
+    // =========================================================================
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+/**
+ * Receives metrics about message delivery.
+ *
+ * Recorders are called synchronously by sending threads (possibly by many
+ * threads at the same time), so implementations must be thread-safe and
+ * cheap. When a sender uses {@linkplain #NOOP} (the default), no time is
+ * measured at all.
+ *
+ * @see SmtpSender#setMetricsRecorder(MetricsRecorder)
+ * @see InMemoryMetricsRecorder
+ */
+public interface MetricsRecorder {
+    /** Stages of a delivery. */
+    public static enum Stage {
+        /** Creation of the mail session (when the sender is created or its settings change). */
+        SESSION,
+
+        /** Creation of the MIME message (headers and body). */
+        BUILD,
+
+        /** Time waiting for rate and session limits. */
+        THROTTLE,
+
+        /** Time waiting for an available pooled connection. */
+        POOL_WAIT,
+
+        /**
+         * Connection, including TLS negotiation and authentication (also
+         * recorded separately as {@linkplain #TLS} and {@linkplain #AUTH} by
+         * senders which can time them).
+         */
+        CONNECT,
+
+        /**
+         * TLS negotiation of a connection: STARTTLS command (when used) and
+         * TLS handshake. Part of {@linkplain #CONNECT}. Recorded only by
+         * {@linkplain NioSmtpSender} (JavaMail transports negotiate TLS within
+         * connection).
+         */
+        TLS,
+
+        /**
+         * Authentication of a connection (AUTH exchange). Part of
+         * {@linkplain #CONNECT}. Recorded only by {@linkplain NioSmtpSender}
+         * (JavaMail transports authenticate within connection).
+         */
+        AUTH,
+
+        /** SMTP transaction (MAIL, RCPT and DATA commands). */
+        TRANSACTION,
+
+        /** Whole send, from the call to the sender until it returns. */
+        TOTAL;
+    }
+
+    /** Sampled values. */
+    public static enum Gauge {
+        /** Idle connections held by a pool. */
+        POOL_IDLE,
+
+        /** Connections in use. */
+        POOL_ACTIVE,
+
+        /** Messages waiting in the queue of an {@linkplain AsyncSmtpSender}. */
+        ASYNC_QUEUE,
+
+        /** Messages being delivered (or waiting for a retry) by a {@linkplain RetryingSmtpSender}. */
+        RETRY_PENDING;
+    }
+
+    /** Recorder which ignores all metrics. */
+    public static final MetricsRecorder NOOP = new MetricsRecorder() {
+        @Override
+        public void recordLatency(Stage stage, long nanos) {}
+
+        @Override
+        public void recordResult(int replyCode) {}
+
+        @Override
+        public void recordBytes(long bytes) {}
+
+        @Override
+        public void recordGauge(Gauge gauge, long value) {}
+    };
+
+    /**
+     * Records the duration of a delivery stage.
+     *
+     * @param stage delivery stage.
+     * @param nanos duration in nanoseconds.
+     */
+    public void recordLatency(Stage stage, long nanos);
+
+    /**
+     * Records the result of an SMTP transaction.
+     *
+     * @param replyCode SMTP reply code (250 for successful transactions, -1 for failures without a reply, such as connection errors).
+     */
+    public void recordResult(int replyCode);
+
+    /**
+     * Records the size of a message written to the server.
+     *
+     * @param bytes message size in bytes.
+     */
+    public void recordBytes(long bytes);
+
+    /**
+     * Records the current value of a gauge.
+     *
+     * @param gauge sampled gauge.
+     * @param value current value.
+     */
+    public void recordGauge(Gauge gauge, long value);
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.mail.MessagingException;
+
+/**
+ * Cache of resolved mail exchangers.
+ *
+ * Entries expire according to the smallest TTL among returned records (or a
+ * default TTL when the resolver does not report TTLs). Domains which do not
+ * accept mail are cached for a "negative" TTL, while resolution errors are
+ * not cached. Concurrent lookups of the same domain share a single query.
+ */
+class MxCache {
+    // CLASS SCOPE =============================================================
+    private static final int SWEEP_THRESHOLD = 1024; // <-- number of entries above which expired entries are purged on insert
+
+    private static final Comparator<MxRecord> PREFERENCE_ORDER = new Comparator<MxRecord>() {
+        @Override
+        public int compare(MxRecord o1, MxRecord o2) {
+            return Integer.compare(o1.getPreference(), o2.getPreference());
+        }
+    };
+
+    /** Cached (or pending) lookup. */
+    private static class Entry {
+        private final ReentrantLock lock     = new ReentrantLock();
+        private final Condition     resolved = lock.newCondition();
+
+        private boolean            done      = false;
+        private List<MxRecord>     records   = null;
+        private MessagingException error     = null;
+        private volatile long      expiresAt = Long.MAX_VALUE; // <-- pending lookups do not expire
+
+        private void complete(List<MxRecord> records, MessagingException error, long expiresAt) {
+            lock.lock();
+            try {
+                this.records = records;
+                this.error = error;
+                this.expiresAt = expiresAt;
+                this.done = true;
+                resolved.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private List<MxRecord> get() throws MessagingException {
+            boolean interrupted = false;
+
+            lock.lock();
+            try {
+                while (!done) {
+                    try {
+                        resolved.await();
+                    } catch (InterruptedException ex) {
+                        interrupted = true; // <-- lookup completes anyway (resolvers have their own timeouts)
+                    }
+                }
+
+                if (error != null)
+                    throw error;
+
+                return records;
+            } finally {
+                lock.unlock();
+
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final MxResolver resolver;
+    private final long       defaultTtl;
+    private final long       negativeTtl;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache.
+     *
+     * @param resolver resolver used on cache misses.
+     * @param defaultTtl time (in milliseconds) records with unknown TTL are cached.
+     * @param negativeTtl time (in milliseconds) domains which do not accept mail are cached.
+     */
+    MxCache(MxResolver resolver, long defaultTtl, long negativeTtl) {
+        if (resolver == null)
+            throw new IllegalArgumentException("Null resolver");
+
+        if (defaultTtl < 0)
+            throw new IllegalArgumentException("Invalid default TTL: " + defaultTtl);
+
+        if (negativeTtl < 0)
+            throw new IllegalArgumentException("Invalid negative TTL: " + negativeTtl);
+
+        this.resolver = resolver;
+        this.defaultTtl = defaultTtl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /** Returns current time in milliseconds. */
+    long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /** Returns the time (in milliseconds) given records are cached. */
+    private long getTtl(List<MxRecord> records) {
+        if (records.isEmpty())
+            return negativeTtl;
+
+        long ttl = Long.MAX_VALUE;
+
+        for (MxRecord record : records)
+            ttl = Math.min(ttl, record.getTtl() == MxRecord.UNKNOWN_TTL ? defaultTtl : TimeUnit.SECONDS.toMillis(record.getTtl()));
+
+        return ttl;
+    }
+
+    /**
+     * Returns the mail exchangers of given domain.
+     *
+     * @param domain domain name (lower-case, ASCII).
+     * @return mail exchangers sorted by preference (empty if the domain does not accept mail).
+     * @throws MessagingException if the domain could not be resolved.
+     */
+    List<MxRecord> getRecords(String domain) throws MessagingException {
+        while (true) {
+            Entry entry = entries.get(domain);
+
+            if (entry != null) {
+                if (entry.expiresAt > currentTime())
+                    return entry.get();
+
+                entries.remove(domain, entry); // <-- expired: next iteration starts a new lookup
+                continue;
+            }
+
+            entry = new Entry();
+
+            if (entries.putIfAbsent(domain, entry) != null)
+                continue; // <-- another thread started a lookup
+
+            if (entries.size() > SWEEP_THRESHOLD)
+                sweep();
+
+            List<MxRecord> records;
+
+            try {
+                records = new ArrayList<>(resolver.resolve(domain));
+            } catch (MessagingException ex) {
+                entries.remove(domain, entry);
+                entry.complete(null, ex, 0);
+                throw ex;
+            } catch (RuntimeException ex) {
+                entries.remove(domain, entry);
+                entry.complete(null, new MessagingException("Error resolving MX records for domain: " + domain, ex), 0);
+                throw ex;
+            }
+
+            Collections.sort(records, PREFERENCE_ORDER);
+            records = Collections.unmodifiableList(records);
+            entry.complete(records, null, currentTime() + getTtl(records));
+            return records;
+        }
+    }
+
+    /** Removes expired entries. */
+    private void sweep() {
+        long now = currentTime();
+
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().expiresAt <= now)
+                it.remove();
+        }
+    }
+
+    /**
+     * Returns the number of cached domains (including pending lookups).
+     *
+     * @return number of cached domains.
+     */
+    int size() {
+        return entries.size();
+    }
+    // =========================================================================
+}
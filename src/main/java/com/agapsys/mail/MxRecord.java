@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+/**
+ * Mail exchanger (MX) record of a domain.
+ */
+public final class MxRecord {
+    // CLASS SCOPE =============================================================
+    /** TTL value used when the resolver does not report record TTLs. */
+    public static final long UNKNOWN_TTL = -1;
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final String host;
+    private final int    preference;
+    private final long   ttl;
+
+    /**
+     * Creates a record with unknown TTL.
+     *
+     * @param host mail exchanger host.
+     * @param preference preference (lower values are tried first).
+     */
+    public MxRecord(String host, int preference) {
+        this(host, preference, UNKNOWN_TTL);
+    }
+
+    /**
+     * Creates a record.
+     *
+     * @param host mail exchanger host.
+     * @param preference preference (lower values are tried first).
+     * @param ttl record time-to-live in seconds ({@linkplain #UNKNOWN_TTL} if unknown).
+     */
+    public MxRecord(String host, int preference, long ttl) {
+        if (host == null || host.trim().isEmpty())
+            throw new IllegalArgumentException("Null/Empty host");
+
+        if (preference < 0 || preference > 65535)
+            throw new IllegalArgumentException("Invalid preference: " + preference);
+
+        if (ttl < 0 && ttl != UNKNOWN_TTL)
+            throw new IllegalArgumentException("Invalid TTL: " + ttl);
+
+        this.host = host.trim();
+        this.preference = preference;
+        this.ttl = ttl;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPreference() {
+        return preference;
+    }
+
+    /**
+     * Returns record time-to-live.
+     *
+     * @return TTL in seconds or {@linkplain #UNKNOWN_TTL} if unknown.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %s", preference, host);
+    }
+    // =========================================================================
+}
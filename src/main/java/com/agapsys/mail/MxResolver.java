@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.List;
+import javax.mail.MessagingException;
+
+/**
+ * Resolves the mail exchangers of a domain (used by {@linkplain DirectSmtpSender}).
+ *
+ * Resolvers are called from several threads at the same time. Results are
+ * cached by the sender according to record TTLs.
+ */
+public interface MxResolver {
+    /**
+     * Returns the mail exchangers of given domain.
+     *
+     * A domain without MX records but with an address record has an implicit
+     * MX pointing to the domain itself (RFC 5321, section 5.1): resolvers
+     * must return it as a single record.
+     *
+     * @param domain domain name (lower-case, ASCII).
+     * @return mail exchangers (in any order). An empty list means the domain does not accept mail (non-existent domain or "null MX").
+     * @throws MessagingException if the domain could not be resolved (e.g. DNS timeout).
+     */
+    List<MxRecord> resolve(String domain) throws MessagingException;
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-threaded event loop driving non-blocking channels through a
+ * {@linkplain Selector}.
+ *
+ * Registered channels (and tasks submitted through
+ * {@linkplain #execute(Runnable)}) are handled by the loop thread only, so
+ * handlers need no synchronization for their own state.
+ */
+final class NioEventLoop implements Runnable, Closeable {
+    // CLASS SCOPE =============================================================
+    /** Interval (in nanoseconds) between calls to {@linkplain Handler#onTimer(long)}. */
+    private static final long TIMER_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /** Handler of a registered channel (attached to its selection key). */
+    interface Handler {
+        /** Called when the channel is ready for the operations of interest. */
+        void onSelected(SelectionKey key);
+
+        /** Called periodically (used to check timeouts). */
+        void onTimer(long now);
+
+        /** Called when the loop is closed with the channel still registered. */
+        void onLoopClosed();
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        private final long     deadline;
+        private final long     sequence = SEQUENCE.incrementAndGet();
+        private final Runnable task;
+
+        private ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            long diff = deadline - other.deadline;
+
+            if (diff == 0)
+                return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+
+            return diff < 0 ? -1 : 1;
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final Selector selector;
+    private final Thread   thread;
+
+    private final Queue<Runnable>              tasks     = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>(); // <-- loop thread only
+
+    private volatile boolean closed = false;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** Returns a boolean indicating if current thread is the loop thread. */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs given task in the loop thread.
+     *
+     * @return false if the loop is closed (task will not run).
+     */
+    boolean execute(Runnable task) {
+        if (closed)
+            return false;
+
+        tasks.add(task);
+
+        // Loop closed meanwhile: task may have missed the final drain...
+        if (closed && tasks.remove(task))
+            return false;
+
+        if (!inLoop())
+            selector.wakeup();
+
+        return true;
+    }
+
+    /** Runs given task in the loop thread after given delay. Must be called by the loop thread. */
+    void schedule(Runnable task, long delayNanos) {
+        scheduled.add(new ScheduledTask(System.nanoTime() + delayNanos, task));
+    }
+
+    /** Registers a channel. Must be called by the loop thread. */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null)
+            runSafely(task);
+    }
+
+    private void runScheduled(long now) {
+        ScheduledTask next;
+
+        while ((next = scheduled.peek()) != null && next.deadline - now <= 0) {
+            scheduled.poll();
+            runSafely(next.task);
+        }
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException ex) {
+            // Handlers report their own failures: an escaping error must not stop the loop
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextTimer = System.nanoTime() + TIMER_INTERVAL;
+
+        try {
+            while (!closed) {
+                runTasks();
+
+                long now = System.nanoTime();
+                long timeout = nextTimer - now;
+                ScheduledTask next = scheduled.peek();
+
+                if (next != null)
+                    timeout = Math.min(timeout, next.deadline - now);
+
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (timeout > 0) {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (key.isValid())
+                        ((Handler) key.attachment()).onSelected(key);
+                }
+
+                now = System.nanoTime();
+                runScheduled(now);
+
+                if (now - nextTimer >= 0) {
+                    nextTimer = now + TIMER_INTERVAL;
+
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid())
+                            ((Handler) key.attachment()).onTimer(now);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            closed = true; // <-- selector failure: registered handlers are notified below
+        } finally {
+            runTasks(); // <-- tasks submitted before closing
+
+            for (SelectionKey key : selector.keys())
+                ((Handler) key.attachment()).onLoopClosed();
+
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Loop is finished anyway
+            }
+        }
+    }
+
+    /** Stops the loop. Handlers still registered are notified through {@linkplain Handler#onLoopClosed()}. */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+
+        if (!inLoop()) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    // =========================================================================
+}
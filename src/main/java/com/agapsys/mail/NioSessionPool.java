@@ -0,0 +1,429 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Pool of non-blocking SMTP sessions spread over a set of event loops.
+ *
+ * Transactions are handed over to idle sessions (reused in LIFO order). When
+ * there is no idle session a new one is opened, up to the connection limit;
+ * beyond that, transactions wait in a queue (for at most
+ * {@linkplain PoolSettings#getMaxWait()}) instead of blocking threads.
+ */
+final class NioSessionPool implements Closeable {
+    // CLASS SCOPE =============================================================
+    /** Time (in nanoseconds) allowed for the end of DATA to be acknowledged (RFC 5321, section 4.5.3.2.6). */
+    private static final long DATA_TIMEOUT = TimeUnit.MINUTES.toNanos(10);
+
+    /** Interval (in nanoseconds) between checks for queued transactions waiting for too long. */
+    private static final long EXPIRATION_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final NioEventLoop[] loops;
+
+    private final String       host;
+    private final int          port;
+    private final SecurityType securityType;
+    private final boolean      authenticate;
+    private final String       username;
+    private final String       password;
+    private final boolean      sendPartial;
+    private final SSLContext   sslContext;
+    private final String       localHost;
+    private final SendThrottle throttle;
+
+    private final int  maxConnections;
+    private final int  maxMessagesPerConnection;
+    private final long idleTimeout;
+    private final long maxWait;
+    private final long replyTimeout;
+
+    private final ReentrantLock               lock     = new ReentrantLock();
+    private final Deque<NioSmtpSession>       idle     = new ArrayDeque<>();
+    private final Set<NioSmtpSession>         sessions = new HashSet<>();
+    private final Deque<NioTransaction>       pending  = new ArrayDeque<>();
+    private int                               nextLoop = 0;
+    private volatile boolean                  closed   = false;
+
+    private volatile MetricsRecorder metrics = MetricsRecorder.NOOP;
+
+    /**
+     * Creates a pool.
+     *
+     * @param smtpSettings SMTP settings (read once).
+     * @param poolSettings pool settings (read once).
+     * @param eventLoops number of event loop threads.
+     * @param sslContext context used by SSL/TLS connections.
+     * @param localHost name sent in EHLO/HELO commands.
+     * @param replyTimeout time (in milliseconds) to wait for each reply.
+     */
+    NioSessionPool(SmtpSettingsSnapshot smtpSettings, PoolSettings poolSettings, int eventLoops, SSLContext sslContext, String localHost, long replyTimeout) throws IOException {
+        this.host = smtpSettings.getServer();
+        this.port = smtpSettings.getPort();
+        this.securityType = smtpSettings.getSecurityType();
+        this.authenticate = smtpSettings.isAuthenticationEnabled();
+        this.username = smtpSettings.getUsername();
+        this.password = new String(smtpSettings.getPassword());
+        this.sendPartial = smtpSettings.isSendPartialEnabled();
+        this.throttle = SendThrottle.getInstance(smtpSettings);
+
+        this.sslContext = sslContext;
+        this.localHost = localHost;
+        this.replyTimeout = TimeUnit.MILLISECONDS.toNanos(replyTimeout);
+
+        int connections = poolSettings.getMaxConnections();
+        if (throttle.getMaxSessions() > 0)
+            connections = Math.min(connections, throttle.getMaxSessions());
+
+        this.maxConnections = connections;
+        this.maxMessagesPerConnection = poolSettings.getMaxMessagesPerConnection();
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(poolSettings.getIdleTimeout());
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(poolSettings.getMaxWait());
+
+        this.loops = new NioEventLoop[eventLoops];
+
+        try {
+            for (int i = 0; i < eventLoops; i++)
+                loops[i] = new NioEventLoop(String.format("smtp-nio-%s-%d", host, i + 1));
+        } catch (IOException ex) {
+            closeLoops();
+            throw ex;
+        }
+
+        loops[0].execute(new Runnable() {
+            @Override
+            public void run() {
+                expirePending();
+
+                if (!closed)
+                    loops[0].schedule(this, EXPIRATION_INTERVAL);
+            }
+        });
+    }
+
+    // Settings used by sessions -----------------------------------------------
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    SecurityType getSecurityType() {
+        return securityType;
+    }
+
+    boolean isAuthenticationEnabled() {
+        return authenticate;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    boolean isSendPartialEnabled() {
+        return sendPartial;
+    }
+
+    SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    String getLocalHost() {
+        return localHost;
+    }
+
+    /** Returns reply timeout in nanoseconds. */
+    long getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    /** Returns the timeout (in nanoseconds) for the reply to the end of message data. */
+    long getDataTimeout() {
+        return Math.max(replyTimeout, DATA_TIMEOUT);
+    }
+
+    /** Returns the maximum number of recipients per transaction (0 means no limit). */
+    int getMaxRecipients() {
+        return throttle.getMaxRecipients();
+    }
+
+    /** Returns idle timeout in nanoseconds. */
+    long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    MetricsRecorder getMetricsRecorder() {
+        return metrics;
+    }
+    void setMetricsRecorder(MetricsRecorder metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("Null metrics recorder");
+
+        this.metrics = metrics;
+    }
+
+    // Dispatching -------------------------------------------------------------
+    /**
+     * Submits a transaction. Its listener is always notified, even if the
+     * transaction cannot be started.
+     */
+    void submit(NioTransaction transaction) {
+        NioSmtpSession session = null;
+        boolean open = false;
+
+        lock.lock();
+        try {
+            if (closed) {
+                // Fails below (outside the lock)...
+            } else if ((session = idle.pollFirst()) != null) {
+                // Reuses idle session
+            } else if (sessions.size() < maxConnections) {
+                session = newSession();
+                open = true;
+            } else {
+                transaction.setQueuedAt(System.nanoTime());
+                pending.addLast(transaction);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (session == null) {
+            transaction.complete(new MessagingException("Sender is closed"));
+        } else {
+            start(session, transaction, open);
+        }
+    }
+
+    /** Creates a session bound to the next loop (round-robin). Must be called with the lock held. */
+    private NioSmtpSession newSession() {
+        NioSmtpSession session = new NioSmtpSession(this, loops[nextLoop]);
+        nextLoop = (nextLoop + 1) % loops.length;
+        sessions.add(session);
+        return session;
+    }
+
+    /** Starts a transaction on given session (opening it if needed), honoring the rate limit. */
+    private void start(final NioSmtpSession session, final NioTransaction transaction, final boolean open) {
+        final long delay = throttle.reserve();
+
+        boolean accepted = session.getLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (open) {
+                            session.open(transaction);
+                        } else {
+                            session.begin(transaction);
+                        }
+                    }
+                };
+
+                if (delay > 0) {
+                    session.getLoop().schedule(task, delay);
+                } else {
+                    task.run();
+                }
+            }
+        });
+
+        if (!accepted) {
+            if (open)
+                onClosed(session);
+
+            transaction.complete(new MessagingException("Sender is closed"));
+        }
+    }
+
+    /**
+     * Hands a session back after a transaction. The session either starts a
+     * queued transaction, becomes idle or, when exhausted, is closed (queued
+     * transactions then wait for its replacement, see
+     * {@linkplain #onClosed(NioSmtpSession)}). Called by the session's loop
+     * thread.
+     */
+    void release(NioSmtpSession session) {
+        NioTransaction next = null;
+        boolean reuse = session.getMessageCount() < maxMessagesPerConnection;
+
+        lock.lock();
+        try {
+            if (closed) {
+                reuse = false;
+            } else if (reuse && (next = pending.pollFirst()) == null) {
+                idle.addFirst(session);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (!reuse) {
+            session.quit(); // <-- session still counts (and queued transactions wait) until closed
+        } else if (next != null) {
+            start(session, next, false);
+        }
+    }
+
+    /**
+     * Removes an idle session which expired.
+     *
+     * @return false if session is no longer idle (it was handed a transaction).
+     */
+    boolean removeIdle(NioSmtpSession session) {
+        lock.lock();
+        try {
+            return idle.remove(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when a session is closed. A queued transaction may then open a new session. */
+    void onClosed(NioSmtpSession session) {
+        NioTransaction next = null;
+        NioSmtpSession replacement = null;
+        boolean terminate = false;
+
+        lock.lock();
+        try {
+            idle.remove(session);
+
+            if (!sessions.remove(session))
+                return;
+
+            if (closed) {
+                terminate = sessions.isEmpty();
+            } else if ((next = pending.pollFirst()) != null) {
+                replacement = newSession();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (terminate)
+            closeLoops();
+
+        if (next != null)
+            start(replacement, next, true);
+    }
+
+    /** Fails queued transactions waiting for longer than max wait. */
+    private void expirePending() {
+        List<NioTransaction> expired = null;
+        long now = System.nanoTime();
+
+        lock.lock();
+        try {
+            Iterator<NioTransaction> iterator = pending.iterator();
+
+            while (iterator.hasNext()) {
+                NioTransaction transaction = iterator.next();
+
+                if (now - transaction.getQueuedAt() <= maxWait)
+                    break; // <-- queue is ordered by arrival
+
+                iterator.remove();
+
+                if (expired == null)
+                    expired = new ArrayList<>();
+
+                expired.add(transaction);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (expired != null) {
+            for (NioTransaction transaction : expired)
+                transaction.complete(new MessagingException("Timeout waiting for an available connection"));
+        }
+    }
+
+    /**
+     * Closes the pool. Queued transactions fail and idle sessions are closed.
+     * Transactions in progress are completed and event loops stop once their
+     * sessions are closed.
+     */
+    @Override
+    public void close() {
+        List<NioTransaction> queued;
+        List<NioSmtpSession> idleSessions;
+        boolean terminate;
+
+        lock.lock();
+        try {
+            if (closed)
+                return;
+
+            closed = true;
+            queued = new ArrayList<>(pending);
+            pending.clear();
+            idleSessions = new ArrayList<>(idle);
+            idle.clear();
+            terminate = sessions.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+
+        for (NioTransaction transaction : queued)
+            transaction.complete(new MessagingException("Sender is closed"));
+
+        for (final NioSmtpSession session : idleSessions) {
+            session.getLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    session.quit();
+                }
+            });
+        }
+
+        if (terminate)
+            closeLoops();
+    }
+
+    private void closeLoops() {
+        for (NioEventLoop loop : loops) {
+            if (loop != null)
+                loop.close();
+        }
+    }
+    // =========================================================================
+}
@@ -0,0 +1,604 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import com.sun.mail.smtp.SMTPOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Mail sender driving SMTP connections through non-blocking sockets.
+ *
+ * Instead of JavaMail's blocking transport, which holds a thread for each
+ * connection in use, this sender runs the SMTP client protocol (EHLO,
+ * STARTTLS, AUTH, PIPELINING and DATA) on a few event loop threads, so
+ * thousands of concurrent deliveries (see
+ * {@linkplain #sendAsync(Message, SendCallback)}) need no more threads than
+ * that.
+ *
+ * Connections are always pooled, according to given {@linkplain PoolSettings}:
+ * {@linkplain PoolSettings#getMaxConnections()} is the number of concurrent
+ * SMTP sessions and messages beyond that wait in a queue for at most
+ * {@linkplain PoolSettings#getMaxWait()}. Settings are read when the sender
+ * is created (settings tracking is not supported). Rate and recipient limits
+ * defined in {@linkplain SmtpSettings} are honored.
+ *
+ * Blocking methods inherited from {@linkplain SmtpSender} wait for the
+ * corresponding asynchronous delivery, so this sender can be used wherever a
+ * {@linkplain SmtpSender} is expected.
+ *
+ * Message content (attachments included) is encoded in memory when the
+ * message is submitted, since it is written to the connection only when the
+ * SMTP session gets to DATA. Encoded content held by messages not delivered
+ * yet is limited (see {@linkplain #getMaxQueuedBytes()}): when the limit is
+ * reached, asynchronous sends fail (with a transient error) and blocking sends
+ * wait. Messages larger than the limit cannot be sent through this sender:
+ * messages with large attachments should be sent through a
+ * {@linkplain SmtpSender}, which streams content to the connection.
+ */
+public class NioSmtpSender extends SmtpSender {
+    // CLASS SCOPE =============================================================
+    public static final int  DEFAULT_EVENT_LOOPS   = 2;
+    public static final long DEFAULT_REPLY_TIMEOUT = 300000;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+    private static final byte[] DATA_END = ".\r\n".getBytes();
+
+    /** Headers which are never sent (same as JavaMail's SMTP transport). */
+    private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+
+    private static String getLocalHostName() {
+        try {
+            String name = InetAddress.getLocalHost().getCanonicalHostName();
+
+            if (name != null && !name.isEmpty())
+                return name;
+        } catch (UnknownHostException ex) {
+            // Falls back to "localhost"
+        }
+
+        return "localhost";
+    }
+
+    /** In-memory buffer which fails once given size is exceeded, so that an oversized message is not fully encoded. */
+    private static class BoundedBuffer extends OutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        private final long maxSize;
+
+        private boolean exceeded = false;
+
+        private BoundedBuffer(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private void ensureCapacity(int length) throws IOException {
+            if (buffer.size() + (long) length > maxSize) {
+                exceeded = true;
+                throw new IOException("Buffer size exceeded");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity(1);
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureCapacity(len);
+            buffer.write(b, off, len);
+        }
+    }
+
+    /**
+     * Encodes message content as sent after DATA command (CRLF line endings,
+     * dot-stuffing and terminating line).
+     *
+     * @param maxSize maximum size of encoded content.
+     */
+    private static ByteBuffer encode(MimeMessage mimeMessage, long maxSize) throws MessagingException {
+        BoundedBuffer buffer = new BoundedBuffer(maxSize);
+
+        try {
+            SMTPOutputStream out = new SMTPOutputStream(buffer);
+            mimeMessage.writeTo(out, IGNORED_HEADERS);
+            out.ensureAtBOL();
+            buffer.write(DATA_END);
+        } catch (IOException ex) {
+            if (buffer.exceeded)
+                throw new MessagingException(String.format("Message exceeds queued data limit (%d bytes)", maxSize));
+
+            throw new MessagingException("Error encoding message", ex);
+        }
+
+        return ByteBuffer.wrap(buffer.buffer.toByteArray());
+    }
+
+    private static MessagingException chain(MessagingException first, MessagingException next) {
+        if (first == null)
+            return next;
+
+        first.setNextException(next);
+        return first;
+    }
+
+    private static void addAll(List<Address> list, Address[] addresses) {
+        if (addresses != null)
+            Collections.addAll(list, addresses);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    /**
+     * Delivery of a message, possibly split into several transactions (see
+     * {@linkplain SmtpSettings#getMaxRecipients()}).
+     */
+    private class PendingSend implements Future<SendResult>, NioTransaction.Listener {
+        private final Message        message;
+        private final SendCallback   callback;
+        private final long           start;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private int remaining;
+
+        private final List<Address> validSent   = new ArrayList<>();
+        private final List<Address> validUnsent = new ArrayList<>();
+        private final List<Address> invalid     = new ArrayList<>();
+        private MessagingException  error       = null;
+        private MessagingException  fatalError  = null;
+        private boolean             split;
+        private long                queuedBytes = 0; // <-- released on completion
+
+        private volatile SendResult result;
+
+        private PendingSend(Message message, SendCallback callback) {
+            this.message = message;
+            this.callback = callback;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void onComplete(NioTransaction transaction, MessagingException transactionError) {
+            MessagingException sendError;
+
+            synchronized (this) {
+                if (transactionError == null) {
+                    Collections.addAll(validSent, transaction.getRecipients());
+                } else if (transactionError instanceof SendFailedException) {
+                    SendFailedException ex = (SendFailedException) transactionError;
+                    addAll(validSent, ex.getValidSentAddresses());
+                    addAll(validUnsent, ex.getValidUnsentAddresses());
+                    addAll(invalid, ex.getInvalidAddresses());
+                    error = chain(error, transactionError);
+                } else {
+                    Collections.addAll(validUnsent, transaction.getRecipients());
+
+                    if (fatalError == null) {
+                        fatalError = transactionError;
+                    } else {
+                        error = chain(error, transactionError);
+                    }
+                }
+
+                if (--remaining > 0)
+                    return;
+
+                sendError = getError();
+            }
+
+            complete(sendError);
+        }
+
+        private MessagingException getError() {
+            if (!split)
+                return fatalError != null ? fatalError : error; // <-- single transaction: error is reported as is
+
+            // Nothing was sent: failure is reported as is (e.g. connection failure)...
+            if (fatalError != null && validSent.isEmpty() && invalid.isEmpty() && error == null)
+                return fatalError;
+
+            MessagingException chained = fatalError != null ? chain(fatalError, error) : error;
+
+            if (chained == null)
+                return null;
+
+            return new SendFailedException(
+                "Message was not delivered to all recipients",
+                chained,
+                validSent.toArray(new Address[validSent.size()]),
+                validUnsent.toArray(new Address[validUnsent.size()]),
+                invalid.toArray(new Address[invalid.size()])
+            );
+        }
+
+        private void complete(MessagingException sendError) {
+            if (queuedBytes > 0)
+                release(queuedBytes);
+
+            MetricsRecorder metrics = getMetricsRecorder();
+            if (metrics != MetricsRecorder.NOOP)
+                metrics.recordLatency(MetricsRecorder.Stage.TOTAL, System.nanoTime() - start);
+
+            result = new SendResult(message, sendError);
+            done.countDown();
+
+            if (callback != null)
+                callback.onComplete(result);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false; // <-- transactions cannot be cancelled
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public SendResult get() throws InterruptedException {
+            done.await();
+            return result;
+        }
+
+        @Override
+        public SendResult get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+
+            return result;
+        }
+    }
+
+    private final NioSessionPool pool;
+    private final long           maxQueuedBytes;
+
+    // Explicit lock (instead of a monitor) so that waiting does not pin a virtual thread's carrier...
+    private final ReentrantLock queueLock   = new ReentrantLock();
+    private final Condition     dequeued    = queueLock.newCondition();
+    private long                queuedBytes = 0; // <-- guarded by queueLock
+
+    public NioSmtpSender(SmtpSettings smtpSettings) throws IOException {
+        this(smtpSettings, new PoolSettings());
+    }
+
+    public NioSmtpSender(SmtpSettings smtpSettings, PoolSettings poolSettings) throws IOException {
+        this(smtpSettings, poolSettings, DEFAULT_EVENT_LOOPS, DEFAULT_REPLY_TIMEOUT);
+    }
+
+    public NioSmtpSender(SmtpSettings smtpSettings, PoolSettings poolSettings, int eventLoops, long replyTimeout) throws IOException {
+        this(smtpSettings, poolSettings, eventLoops, replyTimeout, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Creates a sender.
+     *
+     * @param smtpSettings SMTP settings.
+     * @param poolSettings connection pool settings.
+     * @param eventLoops number of event loop threads.
+     * @param replyTimeout time (in milliseconds) to wait for each server reply (including connection).
+     * @param maxQueuedBytes maximum size (in bytes) of encoded content held by messages not delivered yet.
+     * @throws IOException if event loops cannot be created or TLS is enabled and cannot be initialized.
+     */
+    public NioSmtpSender(SmtpSettings smtpSettings, PoolSettings poolSettings, int eventLoops, long replyTimeout, long maxQueuedBytes) throws IOException {
+        super(smtpSettings, null, false);
+
+        if (poolSettings == null)
+            throw new IllegalArgumentException("Null poolSettings");
+
+        if (eventLoops < 1)
+            throw new IllegalArgumentException("Invalid event loops: " + eventLoops);
+
+        if (replyTimeout < 1)
+            throw new IllegalArgumentException("Invalid reply timeout: " + replyTimeout);
+
+        if (maxQueuedBytes < 1)
+            throw new IllegalArgumentException("Invalid max queued bytes: " + maxQueuedBytes);
+
+        SmtpSettingsSnapshot snapshot = new SmtpSettingsSnapshot(smtpSettings);
+        SSLContext sslContext = null;
+
+        if (snapshot.getSecurityType() != SecurityType.NONE) {
+            try {
+                sslContext = newSslContext();
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("Error initializing TLS", ex);
+            }
+        }
+
+        this.pool = new NioSessionPool(snapshot, poolSettings, eventLoops, sslContext, getLocalHostName(), replyTimeout);
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /** Returns the context used by SSL/TLS connections. */
+    SSLContext newSslContext() throws GeneralSecurityException {
+        return SSLContext.getDefault();
+    }
+
+    /**
+     * Returns true: connections are always pooled.
+     *
+     * @return true.
+     */
+    @Override
+    public boolean isPooled() {
+        return true;
+    }
+
+    @Override
+    public void setMetricsRecorder(MetricsRecorder metrics) {
+        super.setMetricsRecorder(metrics);
+        pool.setMetricsRecorder(metrics);
+    }
+
+    /**
+     * Returns the maximum size of encoded content held by messages not
+     * delivered yet.
+     *
+     * @return maximum size (in bytes).
+     */
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Returns the size of encoded content held by messages not delivered yet.
+     *
+     * @return size (in bytes).
+     */
+    public long getQueuedBytes() {
+        queueLock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Accounts given size of encoded content as queued.
+     *
+     * @param wait defines if the caller waits for queued content to be delivered when the limit is reached (instead of failing).
+     */
+    private void reserve(long bytes, boolean wait) throws MessagingException {
+        queueLock.lock();
+        try {
+            while (queuedBytes + bytes > maxQueuedBytes) {
+                if (!wait)
+                    throw new MessagingException(String.format("Queued data limit reached (%d bytes)", maxQueuedBytes));
+
+                try {
+                    dequeued.await(); // <-- queued content is released as deliveries complete (or fail)
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("Interrupted while waiting for queued data", ex);
+                }
+            }
+
+            queuedBytes += bytes;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void release(long bytes) {
+        queueLock.lock();
+        try {
+            queuedBytes -= bytes;
+            dequeued.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Submits the transactions delivering a message.
+     *
+     * @param wait defines if the caller waits when the queued data limit is reached (see {@linkplain #reserve(long, boolean)}).
+     */
+    private PendingSend submit(Message message, Collection<InternetAddress> recipients, SendCallback callback, boolean wait) {
+        PendingSend pendingSend = new PendingSend(message, callback);
+        ByteBuffer data;
+
+        try {
+            MetricsRecorder metrics = getMetricsRecorder();
+            long start = metrics != MetricsRecorder.NOOP ? System.nanoTime() : 0;
+
+            MimeMessage mimeMessage = getMimeMessage(message);
+            data = encode(mimeMessage, maxQueuedBytes);
+
+            if (metrics != MetricsRecorder.NOOP)
+                metrics.recordLatency(MetricsRecorder.Stage.BUILD, System.nanoTime() - start);
+
+            reserve(data.remaining(), wait);
+            pendingSend.queuedBytes = data.remaining();
+        } catch (MessagingException ex) {
+            pendingSend.complete(ex);
+            return pendingSend;
+        }
+
+        String envelopeSender = message.getSenderAddress().getAddress();
+        Address[] addresses = recipients.toArray(new Address[recipients.size()]);
+        int maxRecipients = pool.getMaxRecipients();
+        List<NioTransaction> transactions = new ArrayList<>();
+
+        if (maxRecipients == 0 || addresses.length <= maxRecipients) {
+            transactions.add(new NioTransaction(envelopeSender, addresses, data, pendingSend));
+        } else {
+            for (int offset = 0; offset < addresses.length; offset += maxRecipients) {
+                Address[] chunk = Arrays.copyOfRange(addresses, offset, Math.min(offset + maxRecipients, addresses.length));
+                transactions.add(new NioTransaction(envelopeSender, chunk, data, pendingSend));
+            }
+        }
+
+        synchronized (pendingSend) {
+            pendingSend.remaining = transactions.size();
+            pendingSend.split = transactions.size() > 1;
+        }
+
+        for (NioTransaction transaction : transactions)
+            pool.submit(transaction);
+
+        return pendingSend;
+    }
+
+    public Future<SendResult> sendAsync(Message message) {
+        return sendAsync(message, null);
+    }
+
+    /**
+     * Starts the delivery of a message without blocking.
+     *
+     * Delivery failures do not complete the returned future exceptionally:
+     * they are reported through {@linkplain SendResult#getError()}.
+     *
+     * @param message message to be sent.
+     * @param callback optional callback notified when delivery completes. It is called by an event loop thread, so it must not block.
+     * @return a future holding the delivery result.
+     */
+    public Future<SendResult> sendAsync(Message message, SendCallback callback) {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        return submit(message, message.getAllRecipients(), callback, false);
+    }
+
+    /**
+     * Starts the delivery of a message to a subset of its recipients without
+     * blocking (see {@linkplain SmtpSender#sendMessage(Message, Collection)}).
+     *
+     * @param message message to be sent.
+     * @param recipients envelope recipients.
+     * @param callback optional callback notified when delivery completes. It is called by an event loop thread, so it must not block.
+     * @return a future holding the delivery result.
+     */
+    public Future<SendResult> sendAsync(Message message, Collection<InternetAddress> recipients, SendCallback callback) {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        if (recipients == null || recipients.isEmpty())
+            throw new IllegalArgumentException("Null/Empty recipients");
+
+        return submit(message, recipients, callback, false);
+    }
+
+    private static SendResult await(Future<SendResult> future) throws MessagingException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for delivery", ex);
+        } catch (ExecutionException ex) {
+            throw new MessagingException("Error sending message", ex);
+        }
+    }
+
+    /**
+     * Sends a message to a subset of its recipients, waiting for queued
+     * content to be delivered when the queued data limit is reached.
+     */
+    @Override
+    public void sendMessage(Message message, Collection<InternetAddress> recipients) throws MessagingException {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        if (recipients == null || recipients.isEmpty())
+            throw new IllegalArgumentException("Null/Empty recipients");
+
+        SendResult result = await(submit(message, recipients, null, true));
+
+        if (result.getError() != null)
+            throw result.getError();
+    }
+
+    /**
+     * Sends several messages concurrently (through as many connections as the
+     * pool allows) and waits for all of them. When the queued data limit is
+     * reached, remaining messages are submitted as previous ones are delivered.
+     *
+     * @param messages messages to be sent.
+     * @return delivery results (in the same order as given messages).
+     */
+    @Override
+    public List<SendResult> sendMessages(Collection<Message> messages) {
+        if (messages == null)
+            throw new IllegalArgumentException("Null messages");
+
+        List<Future<SendResult>> futures = new ArrayList<>(messages.size());
+
+        for (Message message : messages) {
+            if (message == null)
+                throw new IllegalArgumentException("Null message");
+
+            futures.add(submit(message, message.getAllRecipients(), null, true));
+        }
+
+        List<SendResult> results = new ArrayList<>(futures.size());
+        int i = 0;
+
+        for (Message message : messages) {
+            try {
+                results.add(await(futures.get(i++)));
+            } catch (MessagingException ex) {
+                results.add(new SendResult(message, ex));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Closes the sender. Queued messages fail and deliveries in progress are
+     * completed before connections are closed.
+     */
+    @Override
+    public void close() {
+        super.close();
+        pool.close();
+    }
+    // =========================================================================
+}
@@ -0,0 +1,850 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.util.BASE64EncoderStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Non-blocking SMTP client connection.
+ *
+ * A session is a state machine driven by its {@linkplain NioEventLoop}: it
+ * connects (optionally through SSL), greets the server (EHLO, falling back
+ * to HELO), upgrades the connection through STARTTLS, authenticates (AUTH
+ * PLAIN or LOGIN) and then runs transactions handed over by its
+ * {@linkplain NioSessionPool}. When the server supports PIPELINING, MAIL and
+ * RCPT commands of a transaction are sent at once.
+ *
+ * Failures are reported with the same exceptions raised by JavaMail's SMTP
+ * transport, so they can be classified by {@linkplain DeliveryFailures}.
+ */
+final class NioSmtpSession implements NioEventLoop.Handler {
+    // CLASS SCOPE =============================================================
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8  = Charset.forName("UTF-8");
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /** Size of the message slices wrapped at once by the TLS layer. */
+    private static final int TLS_SLICE_SIZE = 16 * 1024;
+
+    private static final int STATE_CONNECTING    = 0;
+    private static final int STATE_SSL_HANDSHAKE = 1;
+    private static final int STATE_GREETING      = 2;
+    private static final int STATE_EHLO          = 3;
+    private static final int STATE_HELO          = 4;
+    private static final int STATE_STARTTLS      = 5;
+    private static final int STATE_TLS_HANDSHAKE = 6;
+    private static final int STATE_AUTH_USER     = 7;
+    private static final int STATE_AUTH_PASS     = 8;
+    private static final int STATE_AUTH_DONE     = 9;
+    private static final int STATE_IDLE          = 10;
+    private static final int STATE_ENVELOPE      = 11;
+    private static final int STATE_DATA          = 12;
+    private static final int STATE_DATA_END      = 13;
+    private static final int STATE_RSET          = 14;
+    private static final int STATE_QUIT          = 15;
+    private static final int STATE_CLOSED        = 16;
+
+    private static String base64(String value) {
+        return new String(BASE64EncoderStream.encode(value.getBytes(UTF8)), ASCII);
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int remaining) {
+        if (buffer.remaining() >= remaining)
+            return buffer;
+
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + remaining));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    private static String getAddress(Address address) {
+        return address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+    }
+
+    private static Address[] toArray(List<Address> addresses) {
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+
+    private static Address[] concat(List<Address> first, List<Address> second) {
+        List<Address> all = new ArrayList<>(first.size() + second.size());
+        all.addAll(first);
+        all.addAll(second);
+        return toArray(all);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final NioSessionPool pool;
+    private final NioEventLoop   loop;
+
+    private SocketChannel channel;
+    private SelectionKey  key;
+    private TlsLayer      tls;
+
+    private ByteBuffer in  = ByteBuffer.allocate(4096); // <-- write mode
+    private ByteBuffer out = ByteBuffer.allocate(4096); // <-- write mode
+    private ByteBuffer data = null;                     // <-- message content being sent (read mode)
+
+    private int  state = STATE_CONNECTING;
+    private long deadline = 0;
+    private long idleSince;
+    private long stageStart;
+    private long tlsStart;   // <-- TLS and AUTH are also timed within CONNECT
+    private long authStart;
+    private int  messageCount = 0;
+
+    private final List<String> replyLines = new ArrayList<>();
+
+    // Server extensions...
+    private boolean pipelining;
+    private boolean startTls;
+    private boolean authPlain;
+    private boolean authLogin;
+
+    // Current transaction...
+    private NioTransaction     transaction;
+    private Address[]          recipients;
+    private int                replyIndex;
+    private List<Address>      accepted;
+    private List<Address>      validUnsent;
+    private List<Address>      invalid;
+    private MessagingException mailError;
+    private MessagingException recipientErrors;
+    private MessagingException transactionError; // <-- error reported once RSET completes
+
+    NioSmtpSession(NioSessionPool pool, NioEventLoop loop) {
+        this.pool = pool;
+        this.loop = loop;
+    }
+
+    NioEventLoop getLoop() {
+        return loop;
+    }
+
+    int getMessageCount() {
+        return messageCount;
+    }
+
+    boolean isClosed() {
+        return state == STATE_CLOSED;
+    }
+
+    // Connection --------------------------------------------------------------
+    /**
+     * Opens the connection. Given transaction (if any) is started as soon as
+     * the session is ready. Must be called by the loop thread.
+     */
+    void open(NioTransaction firstTransaction) {
+        transaction = firstTransaction;
+        stageStart = System.nanoTime();
+        deadline = stageStart + pool.getReplyTimeout();
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = loop.register(channel, 0, this);
+
+            if (channel.connect(new InetSocketAddress(pool.getHost(), pool.getPort()))) {
+                onConnected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | MessagingException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    private void onConnected() throws IOException, MessagingException {
+        if (pool.getSecurityType() == SecurityType.SSL) {
+            tlsStart = System.nanoTime();
+            tls = newTlsLayer();
+            state = STATE_SSL_HANDSHAKE;
+            handshake();
+        } else {
+            state = STATE_GREETING;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private TlsLayer newTlsLayer() throws IOException {
+        SSLEngine engine = pool.getSslContext().createSSLEngine(pool.getHost(), pool.getPort());
+        return new TlsLayer(engine);
+    }
+
+    private void handshake() throws IOException, MessagingException {
+        if (!tls.handshake(channel, in)) {
+            key.interestOps(tls.hasPendingOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            return;
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+
+        MetricsRecorder metrics = pool.getMetricsRecorder();
+        if (metrics != MetricsRecorder.NOOP)
+            metrics.recordLatency(MetricsRecorder.Stage.TLS, System.nanoTime() - tlsStart);
+
+        if (state == STATE_SSL_HANDSHAKE) {
+            state = STATE_GREETING;
+            readTls(); // <-- greeting may have arrived along with the handshake
+        } else {
+            sendEhlo(); // <-- EHLO must be sent again after STARTTLS
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect())
+                    return;
+
+                onConnected();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                if (tls != null && tls.isHandshaking()) {
+                    handshake();
+                } else {
+                    flush();
+                }
+            }
+
+            if (key.isValid() && key.isReadable())
+                read();
+        } catch (IOException | MessagingException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    @Override
+    public void onTimer(long now) {
+        if (state == STATE_CLOSED)
+            return;
+
+        if (deadline != 0 && now - deadline > 0) {
+            fail(new SocketTimeoutException("Timeout waiting for SMTP reply"));
+        } else if (state == STATE_IDLE && transaction == null && now - idleSince > pool.getIdleTimeout()) {
+            if (pool.removeIdle(this))
+                quit();
+        }
+    }
+
+    @Override
+    public void onLoopClosed() {
+        fail(new IOException("Sender is closed"));
+    }
+
+    // Input -------------------------------------------------------------------
+    private void read() throws IOException, MessagingException {
+        if (tls != null) {
+            if (tls.isHandshaking()) {
+                handshake();
+                return;
+            }
+
+            if (tls.read(channel) < 0)
+                throw new EOFException("Connection closed by server");
+
+            readTls();
+        } else {
+            if (!in.hasRemaining())
+                in = ensureRemaining(in, in.capacity());
+
+            if (channel.read(in) < 0)
+                throw new EOFException("Connection closed by server");
+
+            processInput();
+        }
+    }
+
+    /** Processes data buffered by the TLS layer. */
+    private void readTls() throws IOException, MessagingException {
+        boolean drained;
+
+        do {
+            if (!in.hasRemaining())
+                in = ensureRemaining(in, in.capacity());
+
+            drained = tls.unwrap(in);
+            processInput();
+        } while (!drained && state != STATE_CLOSED);
+    }
+
+    private void processInput() throws IOException, MessagingException {
+        in.flip();
+
+        try {
+            int lineStart = in.position();
+
+            for (int i = in.position(); i < in.limit() && state != STATE_CLOSED; i++) {
+                if (in.get(i) == '\n') {
+                    int lineEnd = i > lineStart && in.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] line = new byte[lineEnd - lineStart];
+                    in.position(lineStart);
+                    in.get(line);
+                    in.position(i + 1);
+                    lineStart = i + 1;
+
+                    onLine(new String(line, ASCII));
+                }
+            }
+
+            if (in.limit() - lineStart > MAX_LINE_LENGTH)
+                throw new IOException("SMTP reply line too long");
+
+            in.position(lineStart);
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void onLine(String line) throws IOException, MessagingException {
+        if (line.length() < 3)
+            throw new IOException("Invalid SMTP reply: " + line);
+
+        int code;
+
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid SMTP reply: " + line);
+        }
+
+        replyLines.add(line.length() > 4 ? line.substring(4) : "");
+
+        if (line.length() > 3 && line.charAt(3) == '-')
+            return; // <-- multi-line reply continues
+
+        String text = line;
+        List<String> lines = new ArrayList<>(replyLines);
+        replyLines.clear();
+        deadline = 0;
+
+        onReply(code, text, lines);
+    }
+
+    // Output ------------------------------------------------------------------
+    private void send(String command) {
+        byte[] bytes = (command + "\r\n").getBytes(ASCII);
+        out = ensureRemaining(out, bytes.length);
+        out.put(bytes);
+    }
+
+    /** Writes pending output and expects a reply. */
+    private void sendAndAwait(long timeout) throws IOException {
+        deadline = System.nanoTime() + timeout;
+        flush();
+    }
+
+    private void flush() throws IOException {
+        boolean flushed = tls == null ? flushPlain() : flushTls();
+        key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private boolean flushPlain() throws IOException {
+        out.flip();
+
+        try {
+            channel.write(out);
+
+            if (out.hasRemaining())
+                return false;
+        } finally {
+            out.compact();
+        }
+
+        if (data != null) {
+            channel.write(data);
+
+            if (data.hasRemaining())
+                return false;
+
+            data = null;
+        }
+
+        return true;
+    }
+
+    private boolean flushTls() throws IOException {
+        out.flip();
+
+        try {
+            if (out.hasRemaining())
+                tls.wrap(out);
+        } finally {
+            out.compact();
+        }
+
+        while (true) {
+            if (!tls.flush(channel))
+                return false;
+
+            if (data == null)
+                return true;
+
+            // Message content is wrapped in slices, as the channel accepts them...
+            ByteBuffer slice = data.duplicate();
+            int length = Math.min(slice.remaining(), TLS_SLICE_SIZE);
+            slice.limit(slice.position() + length);
+            tls.wrap(slice);
+            data.position(data.position() + length);
+
+            if (!data.hasRemaining())
+                data = null;
+        }
+    }
+
+    // Protocol ----------------------------------------------------------------
+    private void sendEhlo() throws IOException {
+        pipelining = false;
+        startTls = false;
+        authPlain = false;
+        authLogin = false;
+
+        state = STATE_EHLO;
+        send("EHLO " + pool.getLocalHost());
+        sendAndAwait(pool.getReplyTimeout());
+    }
+
+    private void parseExtensions(List<String> lines) {
+        for (int i = 1; i < lines.size(); i++) {
+            String[] tokens = lines.get(i).trim().toUpperCase(Locale.ENGLISH).split("[ =]+");
+
+            switch (tokens[0]) {
+                case "PIPELINING":
+                    pipelining = true;
+                    break;
+
+                case "STARTTLS":
+                    startTls = true;
+                    break;
+
+                case "AUTH":
+                    for (int j = 1; j < tokens.length; j++) {
+                        if (tokens[j].equals("PLAIN"))
+                            authPlain = true;
+                        else if (tokens[j].equals("LOGIN"))
+                            authLogin = true;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void onGreeted() throws IOException, MessagingException {
+        if (pool.getSecurityType() == SecurityType.TLS && tls == null && startTls) {
+            tlsStart = System.nanoTime();
+            state = STATE_STARTTLS;
+            send("STARTTLS");
+            sendAndAwait(pool.getReplyTimeout());
+        } else if (pool.isAuthenticationEnabled()) {
+            authStart = System.nanoTime();
+
+            if (authPlain) {
+                state = STATE_AUTH_DONE;
+                send("AUTH PLAIN " + base64("\0" + pool.getUsername() + "\0" + pool.getPassword()));
+            } else if (authLogin) {
+                state = STATE_AUTH_USER;
+                send("AUTH LOGIN");
+            } else {
+                throw new AuthenticationFailedException("No authentication mechanism supported by both server and client");
+            }
+
+            sendAndAwait(pool.getReplyTimeout());
+        } else {
+            onReady();
+        }
+    }
+
+    private void onReady() throws IOException {
+        MetricsRecorder metrics = pool.getMetricsRecorder();
+        if (metrics != MetricsRecorder.NOOP)
+            metrics.recordLatency(MetricsRecorder.Stage.CONNECT, System.nanoTime() - stageStart);
+
+        state = STATE_IDLE;
+        idleSince = System.nanoTime();
+
+        if (transaction != null)
+            startTransaction();
+    }
+
+    private void onReply(int code, String text, List<String> lines) throws IOException, MessagingException {
+        if (code == 421 && state != STATE_QUIT)
+            throw new MessagingException("Connection closed by server: " + text);
+
+        switch (state) {
+            case STATE_GREETING:
+                if (code != 220)
+                    throw new MessagingException("Could not connect to SMTP host: " + pool.getHost() + ", port: " + pool.getPort() + ", response: " + text);
+
+                sendEhlo();
+                break;
+
+            case STATE_EHLO:
+                if (code == 250) {
+                    parseExtensions(lines);
+                    onGreeted();
+                } else if (code >= 500) {
+                    state = STATE_HELO;
+                    send("HELO " + pool.getLocalHost());
+                    sendAndAwait(pool.getReplyTimeout());
+                } else {
+                    throw new MessagingException("EHLO failed: " + text);
+                }
+                break;
+
+            case STATE_HELO:
+                if (code != 250)
+                    throw new MessagingException("HELO failed: " + text);
+
+                onGreeted();
+                break;
+
+            case STATE_STARTTLS:
+                if (code != 220)
+                    throw new MessagingException("STARTTLS failed: " + text);
+
+                tls = newTlsLayer();
+                state = STATE_TLS_HANDSHAKE;
+
+                // Handshake starts once the reply buffer is no longer being processed...
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handshake();
+                        } catch (IOException | MessagingException | RuntimeException ex) {
+                            fail(ex);
+                        }
+                    }
+                });
+                break;
+
+            case STATE_AUTH_USER:
+                if (code != 334)
+                    throw new AuthenticationFailedException(text);
+
+                state = STATE_AUTH_PASS;
+                send(base64(pool.getUsername()));
+                sendAndAwait(pool.getReplyTimeout());
+                break;
+
+            case STATE_AUTH_PASS:
+                if (code != 334)
+                    throw new AuthenticationFailedException(text);
+
+                state = STATE_AUTH_DONE;
+                send(base64(pool.getPassword()));
+                sendAndAwait(pool.getReplyTimeout());
+                break;
+
+            case STATE_AUTH_DONE:
+                if (code != 235)
+                    throw new AuthenticationFailedException(text);
+
+                MetricsRecorder metrics = pool.getMetricsRecorder();
+                if (metrics != MetricsRecorder.NOOP)
+                    metrics.recordLatency(MetricsRecorder.Stage.AUTH, System.nanoTime() - authStart);
+
+                onReady();
+                break;
+
+            case STATE_ENVELOPE:
+                onEnvelopeReply(code, text);
+                break;
+
+            case STATE_DATA:
+                if (code != 354) {
+                    reset(new SMTPSendFailedException("DATA", code, text, recipientErrors, null, concat(accepted, validUnsent), toArray(invalid)));
+                    break;
+                }
+
+                state = STATE_DATA_END;
+                data = transaction.getData();
+                sendAndAwait(pool.getDataTimeout());
+                break;
+
+            case STATE_DATA_END:
+                if (code != 250) {
+                    finish(new SMTPSendFailedException(".", code, text, recipientErrors, null, concat(accepted, validUnsent), toArray(invalid)), code);
+                } else if (recipientErrors != null) {
+                    finish(new SMTPSendFailedException(".", code, text, recipientErrors, toArray(accepted), toArray(validUnsent), toArray(invalid)), code);
+                } else {
+                    finish(null, code);
+                }
+                break;
+
+            case STATE_RSET:
+                if (code != 250)
+                    throw new MessagingException("RSET failed: " + text);
+
+                finish(transactionError, DeliveryFailures.getFirstReplyCode(transactionError));
+                break;
+
+            case STATE_QUIT:
+                close();
+                break;
+
+            default:
+                throw new IOException("Unexpected SMTP reply: " + text);
+        }
+    }
+
+    // Transactions ------------------------------------------------------------
+    /**
+     * Starts a transaction on this (idle) session. Must be called by the
+     * loop thread.
+     */
+    void begin(NioTransaction transaction) {
+        if (state == STATE_CLOSED) {
+            // Connection was lost while transaction was being handed over...
+            transaction.complete(new MessagingException("Connection closed"));
+            return;
+        }
+
+        this.transaction = transaction;
+
+        try {
+            startTransaction();
+        } catch (IOException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    private void startTransaction() throws IOException {
+        stageStart = System.nanoTime();
+        recipients = transaction.getRecipients();
+        replyIndex = 0;
+        accepted = new ArrayList<>(recipients.length);
+        validUnsent = new ArrayList<>();
+        invalid = new ArrayList<>();
+        mailError = null;
+        recipientErrors = null;
+
+        state = STATE_ENVELOPE;
+        send("MAIL FROM:<" + transaction.getEnvelopeSender() + ">");
+
+        if (pipelining) {
+            for (Address recipient : recipients)
+                send("RCPT TO:<" + getAddress(recipient) + ">");
+        }
+
+        sendAndAwait(pool.getReplyTimeout());
+    }
+
+    private void onEnvelopeReply(int code, String text) throws IOException {
+        int index = replyIndex++;
+
+        if (index == 0) {
+            if (code != 250)
+                mailError = new SMTPSendFailedException("MAIL FROM:<" + transaction.getEnvelopeSender() + ">", code, text, null, null, recipients, null);
+        } else {
+            Address recipient = recipients[index - 1];
+
+            if (code == 250 || code == 251) {
+                accepted.add(recipient);
+            } else {
+                if (code >= 400 && code < 500) {
+                    validUnsent.add(recipient);
+                } else {
+                    invalid.add(recipient);
+                }
+
+                InternetAddress address = recipient instanceof InternetAddress ? (InternetAddress) recipient : new InternetAddress();
+                SMTPAddressFailedException error = new SMTPAddressFailedException(address, "RCPT TO:<" + getAddress(recipient) + ">", code, text);
+
+                if (recipientErrors == null) {
+                    recipientErrors = error;
+                } else {
+                    recipientErrors.setNextException(error);
+                }
+            }
+        }
+
+        boolean complete = replyIndex == recipients.length + 1;
+
+        if (!pipelining && !complete) {
+            if (mailError != null) {
+                complete = true; // <-- recipients are not tried
+            } else {
+                send("RCPT TO:<" + getAddress(recipients[replyIndex - 1]) + ">");
+                sendAndAwait(pool.getReplyTimeout());
+                return;
+            }
+        }
+
+        if (!complete) {
+            deadline = System.nanoTime() + pool.getReplyTimeout(); // <-- pipelined replies still pending
+            return;
+        }
+
+        if (mailError != null) {
+            reset(mailError);
+        } else if (accepted.isEmpty()) {
+            reset(new SendFailedException("Invalid Addresses", recipientErrors, null, toArray(validUnsent), toArray(invalid)));
+        } else if (recipientErrors != null && !pool.isSendPartialEnabled()) {
+            reset(new SendFailedException("Invalid Addresses", recipientErrors, null, concat(accepted, validUnsent), toArray(invalid)));
+        } else {
+            state = STATE_DATA;
+            send("DATA");
+            sendAndAwait(pool.getReplyTimeout());
+        }
+    }
+
+    /**
+     * Resets the session (RSET) after a failed transaction. The transaction
+     * completes once the session is reusable.
+     */
+    private void reset(MessagingException error) throws IOException {
+        transactionError = error;
+
+        state = STATE_RSET;
+        send("RSET");
+        sendAndAwait(pool.getReplyTimeout());
+    }
+
+    /**
+     * Hands the session back to the pool and completes current transaction
+     * (in this order, so that a message sent by the listener may reuse the
+     * session).
+     */
+    private void finish(MessagingException error, int replyCode) {
+        NioTransaction completed = transaction;
+        transaction = null;
+        transactionError = null;
+        messageCount++;
+
+        MetricsRecorder metrics = pool.getMetricsRecorder();
+        if (metrics != MetricsRecorder.NOOP) {
+            metrics.recordLatency(MetricsRecorder.Stage.TRANSACTION, System.nanoTime() - stageStart);
+            metrics.recordResult(replyCode);
+
+            if (error == null)
+                metrics.recordBytes(completed.getSize());
+        }
+
+        release();
+        completed.complete(error);
+    }
+
+    private void release() {
+        state = STATE_IDLE;
+        idleSince = System.nanoTime();
+        pool.release(this);
+    }
+
+    // Shutdown ----------------------------------------------------------------
+    /** Closes the session gracefully (QUIT). Must be called by the loop thread. */
+    void quit() {
+        if (state == STATE_CLOSED)
+            return;
+
+        try {
+            state = STATE_QUIT;
+            send("QUIT");
+            sendAndAwait(pool.getReplyTimeout()); // <-- TLS session is closed only after QUIT (see close())
+        } catch (IOException | RuntimeException ex) {
+            close();
+        }
+    }
+
+    private void close() {
+        state = STATE_CLOSED;
+        deadline = 0;
+
+        if (key != null)
+            key.cancel();
+
+        if (tls != null && channel.isOpen()) {
+            tls.close();
+
+            try {
+                tls.flush(channel); // <-- best effort: close_notify
+            } catch (IOException ex) {
+                // Connection is discarded anyway
+            }
+        }
+
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException ex) {
+            // Connection is discarded anyway
+        }
+
+        pool.onClosed(this);
+    }
+
+    /** Closes the connection because of given error, failing current transaction (if any). */
+    private void fail(Exception cause) {
+        if (state == STATE_CLOSED)
+            return;
+
+        boolean connecting = state < STATE_IDLE;
+        boolean quitting = state == STATE_QUIT;
+        close();
+
+        NioTransaction failed = transaction;
+        transaction = null;
+
+        if (failed == null || quitting)
+            return;
+
+        MessagingException error;
+
+        if (transactionError != null) {
+            error = transactionError; // <-- transaction had already failed (connection was lost on RSET)
+        } else if (cause instanceof MessagingException) {
+            error = (MessagingException) cause;
+        } else if (connecting) {
+            error = new MessagingException("Could not connect to SMTP host: " + pool.getHost() + ", port: " + pool.getPort(), cause);
+        } else {
+            error = new MessagingException("Error communicating with SMTP host: " + pool.getHost(), cause);
+        }
+
+        MetricsRecorder metrics = pool.getMetricsRecorder();
+        if (metrics != MetricsRecorder.NOOP)
+            metrics.recordResult(DeliveryFailures.getFirstReplyCode(error));
+
+        failed.complete(error);
+    }
+    // =========================================================================
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.nio.ByteBuffer;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+
+/**
+ * SMTP transaction (envelope and encoded content) handled by a
+ * {@linkplain NioSmtpSession}.
+ */
+final class NioTransaction {
+    // CLASS SCOPE =============================================================
+    /** Receives the outcome of a transaction. Called by an event loop thread. */
+    interface Listener {
+        /**
+         * Called once, when the transaction is complete.
+         *
+         * @param transaction completed transaction.
+         * @param error delivery error (null if message was delivered to all recipients).
+         */
+        void onComplete(NioTransaction transaction, MessagingException error);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final String     envelopeSender;
+    private final Address[]  recipients;
+    private final ByteBuffer data;
+    private final Listener   listener;
+
+    private long    queuedAt;
+    private boolean completed = false;
+
+    /**
+     * Creates a transaction.
+     *
+     * @param envelopeSender address used in MAIL command.
+     * @param recipients envelope recipients.
+     * @param data message content, CRLF-normalized and dot-stuffed, including the terminating "." line.
+     * @param listener listener notified about the outcome.
+     */
+    NioTransaction(String envelopeSender, Address[] recipients, ByteBuffer data, Listener listener) {
+        this.envelopeSender = envelopeSender;
+        this.recipients = recipients;
+        this.data = data.asReadOnlyBuffer();
+        this.listener = listener;
+    }
+
+    String getEnvelopeSender() {
+        return envelopeSender;
+    }
+
+    Address[] getRecipients() {
+        return recipients;
+    }
+
+    /** Returns a new view of message data (positioned at its start). */
+    ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    int getSize() {
+        return data.remaining();
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    /**
+     * Completes this transaction. Subsequent calls are ignored.
+     *
+     * @param error delivery error (null on success).
+     */
+    void complete(MessagingException error) {
+        synchronized (this) {
+            if (completed)
+                return;
+
+            completed = true;
+        }
+
+        listener.onComplete(this, error);
+    }
+    // =========================================================================
+}
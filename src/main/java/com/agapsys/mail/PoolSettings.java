@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Properties;
+
+/**
+ * Connection pool settings used by a pooled {@linkplain SmtpSender}.
+ */
+public class PoolSettings {
+    //  CLASS SCOPE ============================================================
+    public static final String KEY_MAX_CONNECTIONS              = "agapsys.mail.pool.maxConnections";
+    public static final String KEY_MAX_MESSAGES_PER_CONNECTION  = "agapsys.mail.pool.maxMessagesPerConnection";
+    public static final String KEY_IDLE_TIMEOUT                 = "agapsys.mail.pool.idleTimeout";
+    public static final String KEY_VALIDATION_INTERVAL          = "agapsys.mail.pool.validationInterval";
+    public static final String KEY_MAX_WAIT                     = "agapsys.mail.pool.maxWait";
+    public static final String KEY_PARALLEL_TRANSACTIONS        = "agapsys.mail.pool.parallelTransactions";
+
+    public static final int  DEFAULT_MAX_CONNECTIONS             = 4;
+    public static final int  DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+    public static final long DEFAULT_IDLE_TIMEOUT                = 60000;
+    public static final long DEFAULT_VALIDATION_INTERVAL         = 5000;
+    public static final long DEFAULT_MAX_WAIT                    = 30000;
+    public static final int  DEFAULT_PARALLEL_TRANSACTIONS       = 1;
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private int  maxConnections            = DEFAULT_MAX_CONNECTIONS;
+    private int  maxMessagesPerConnection  = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+    private long idleTimeout               = DEFAULT_IDLE_TIMEOUT;
+    private long validationInterval        = DEFAULT_VALIDATION_INTERVAL;
+    private long maxWait                   = DEFAULT_MAX_WAIT;
+    private int  parallelTransactions      = DEFAULT_PARALLEL_TRANSACTIONS;
+
+    public PoolSettings() {}
+
+    public PoolSettings(Properties properties) {
+        if (properties == null)
+            throw new IllegalArgumentException("Null properties");
+
+        maxConnections           = PropertyParser.getInt(properties, KEY_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, 1);
+        maxMessagesPerConnection = PropertyParser.getInt(properties, KEY_MAX_MESSAGES_PER_CONNECTION, DEFAULT_MAX_MESSAGES_PER_CONNECTION, 1);
+        idleTimeout              = PropertyParser.getLong(properties, KEY_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT, 0);
+        validationInterval       = PropertyParser.getLong(properties, KEY_VALIDATION_INTERVAL, DEFAULT_VALIDATION_INTERVAL, 0);
+        maxWait                  = PropertyParser.getLong(properties, KEY_MAX_WAIT, DEFAULT_MAX_WAIT, 0);
+        parallelTransactions     = PropertyParser.getInt(properties, KEY_PARALLEL_TRANSACTIONS, DEFAULT_PARALLEL_TRANSACTIONS, 1);
+    }
+
+    /**
+     * Returns the maximum number of simultaneous connections held by the pool.
+     *
+     * @return maximum number of connections.
+     */
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("Invalid max connections: " + maxConnections);
+
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Returns the number of messages sent through a connection before it is
+     * closed and replaced by a new one.
+     *
+     * @return maximum number of messages per connection.
+     */
+    public synchronized int getMaxMessagesPerConnection() {
+        return maxMessagesPerConnection;
+    }
+    public synchronized void setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+        if (maxMessagesPerConnection < 1)
+            throw new IllegalArgumentException("Invalid max messages per connection: " + maxMessagesPerConnection);
+
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+    }
+
+    /**
+     * Returns the time (in milliseconds) an idle connection is kept open.
+     *
+     * @return idle timeout in milliseconds.
+     */
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0)
+            throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeout);
+
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns the idle time (in milliseconds) after which a connection is
+     * checked (through a NOOP command) before being reused.
+     *
+     * @return validation interval in milliseconds.
+     */
+    public synchronized long getValidationInterval() {
+        return validationInterval;
+    }
+    public synchronized void setValidationInterval(long validationInterval) {
+        if (validationInterval < 0)
+            throw new IllegalArgumentException("Invalid validation interval: " + validationInterval);
+
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * Returns the time (in milliseconds) a sender waits for an available
+     * connection when the pool is exhausted.
+     *
+     * @return maximum wait time in milliseconds.
+     */
+    public synchronized long getMaxWait() {
+        return maxWait;
+    }
+    public synchronized void setMaxWait(long maxWait) {
+        if (maxWait < 0)
+            throw new IllegalArgumentException("Invalid max wait: " + maxWait);
+
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Returns the maximum number of connections used at the same time to send
+     * a message whose recipients are split into several transactions (see
+     * {@linkplain SmtpSettings#getMaxRecipients()}).
+     *
+     * @return maximum number of parallel transactions per message.
+     */
+    public synchronized int getParallelTransactions() {
+        return parallelTransactions;
+    }
+    public synchronized void setParallelTransactions(int parallelTransactions) {
+        if (parallelTransactions < 1)
+            throw new IllegalArgumentException("Invalid parallel transactions: " + parallelTransactions);
+
+        this.parallelTransactions = parallelTransactions;
+    }
+    // =========================================================================
+}
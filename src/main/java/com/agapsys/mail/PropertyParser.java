@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.util.Properties;
+
+/**
+ * Helper methods used by settings classes to read values from properties.
+ */
+class PropertyParser {
+    // CLASS SCOPE =============================================================
+    /**
+     * Returns a trimmed property value.
+     *
+     * @return trimmed value or null if property is not defined.
+     * @throws IllegalArgumentException if property value is empty.
+     */
+    static String getString(Properties properties, String key) throws IllegalArgumentException {
+        String propVal = properties.getProperty(key);
+
+        if (propVal == null)
+            return null;
+
+        propVal = propVal.trim();
+
+        if (propVal.isEmpty())
+            throw new IllegalArgumentException("Empty value for " + key);
+
+        return propVal;
+    }
+
+    static long getLong(Properties properties, String key, long defaultValue, long minValue) throws IllegalArgumentException {
+        String propVal = getString(properties, key);
+
+        if (propVal == null)
+            return defaultValue;
+
+        long value;
+        try {
+            value = Long.parseLong(propVal);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid value for %s: %s", key, propVal));
+        }
+
+        if (value < minValue)
+            throw new IllegalArgumentException(String.format("Invalid value for %s: %d", key, value));
+
+        return value;
+    }
+
+    static int getInt(Properties properties, String key, int defaultValue, int minValue) throws IllegalArgumentException {
+        long value = getLong(properties, key, defaultValue, minValue);
+
+        if (value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format("Invalid value for %s: %d", key, value));
+
+        return (int) value;
+    }
+
+    static double getDouble(Properties properties, String key, double defaultValue, double minValue, double maxValue) throws IllegalArgumentException {
+        String propVal = getString(properties, key);
+
+        if (propVal == null)
+            return defaultValue;
+
+        double value;
+        try {
+            value = Double.parseDouble(propVal);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid value for %s: %s", key, propVal));
+        }
+
+        if (Double.isNaN(value) || value < minValue || value > maxValue)
+            throw new IllegalArgumentException(String.format("Invalid value for %s: %s", key, propVal));
+
+        return value;
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private PropertyParser() {}
+    // =========================================================================
+}
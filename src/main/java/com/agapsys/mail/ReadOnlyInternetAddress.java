@@ -17,17 +17,58 @@
 package com.agapsys.mail;
 
 import java.io.UnsupportedEncodingException;
-import javax.mail.internet.AddressException;
+import java.util.Locale;
 import javax.mail.internet.InternetAddress;
 
-class ReadOnlyInternetAddress extends InternetAddress {
-    private final InternetAddress wrappedInstance;
+/**
+ * Immutable address.
+ *
+ * Address fields are copied into this instance (nothing is wrapped), and the
+ * hash code and header form (the RFC 2047 encoded string used in message
+ * headers) are computed once, on creation. Since instances cannot change,
+ * {@linkplain ReadOnlyInternetAddress#clone()} returns the instance itself.
+ */
+final class ReadOnlyInternetAddress extends InternetAddress {
+    private final String headerForm;
+    private final int    hash;
+    
+    /**
+     * Creates an address without personal name.
+     * 
+     * @param address address (e.g. "user@host.com"), which must be valid.
+     */
+    ReadOnlyInternetAddress(String address) {
+        if (address == null)
+            throw new IllegalArgumentException("Null address");
+        
+        this.address = address;
+        this.headerForm = address;
+        this.hash = address.toLowerCase(Locale.ENGLISH).hashCode();
+    }
+    
+    public ReadOnlyInternetAddress(InternetAddress source) {
+        if (source == null)
+            throw new IllegalArgumentException("Source instance cannot be null");
+        
+        String sourceAddress = source.getAddress();
+        
+        this.address = sourceAddress;
+        this.personal = source.getPersonal();
+        this.headerForm = source.toString();
+        this.hash = sourceAddress == null ? 0 : sourceAddress.toLowerCase(Locale.ENGLISH).hashCode();
+    }
     
-    public ReadOnlyInternetAddress(InternetAddress wrappedInstance) {
-        if (wrappedInstance == null)
-            throw new IllegalArgumentException("Wrapped instance cannot be null");
+    /**
+     * Returns given address if it is already read-only or a read-only copy of it.
+     * 
+     * @param address address.
+     * @return read-only address.
+     */
+    static InternetAddress getInstance(InternetAddress address) {
+        if (address instanceof ReadOnlyInternetAddress)
+            return address;
         
-        this.wrappedInstance = wrappedInstance;
+        return new ReadOnlyInternetAddress(address);
     }
     
     // Blocked methods ---------------------------------------------------------
@@ -51,58 +92,18 @@ class ReadOnlyInternetAddress extends InternetAddress {
     }
      // ------------------------------------------------------------------------
     
-    @Override
-    public InternetAddress[] getGroup(boolean strict) throws AddressException {
-        return wrappedInstance.getGroup(strict);
-    }
-
-    @Override
-    public boolean isGroup() {
-        return wrappedInstance.isGroup();
-    }
-
-    @Override
-    public void validate() throws AddressException {
-        wrappedInstance.validate();
-    }
-
     @Override
     public int hashCode() {
-        return wrappedInstance.hashCode();
-    }
-
-    @Override
-    public boolean equals(Object a) {
-        return wrappedInstance.equals(a);
-    }
-
-    @Override
-    public String toUnicodeString() {
-        return wrappedInstance.toUnicodeString();
+        return hash;
     }
 
     @Override
     public String toString() {
-        return wrappedInstance.toString();
-    }
-
-    @Override
-    public String getPersonal() {
-        return wrappedInstance.getPersonal();
-    }
-
-    @Override
-    public String getAddress() {
-        return wrappedInstance.getAddress();
-    }
-
-    @Override
-    public String getType() {
-        return wrappedInstance.getType();
+        return headerForm;
     }
 
     @Override
     public Object clone() {
-        return wrappedInstance.clone();
+        return this;
     }
 }
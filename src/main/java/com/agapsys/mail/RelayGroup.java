@@ -0,0 +1,432 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Sender which distributes messages among several SMTP relays.
+ *
+ * Messages are distributed according to a {@linkplain LoadBalancingStrategy}.
+ * When a relay fails (see {@linkplain RelayGroupSettings}), the message is
+ * sent through the next available relay. Relays which fail repeatedly are
+ * ejected from the group and re-admitted after a successful health check.
+ *
+ * Relay selection is lock-free: a relay group can be shared by any number of
+ * threads.
+ */
+public class RelayGroup extends SmtpSender {
+    // CLASS SCOPE =============================================================
+    private static final int STATE_CLOSED    = 0; // <-- Relay is in use
+    private static final int STATE_OPEN      = 1; // <-- Relay is ejected
+    private static final int STATE_HALF_OPEN = 2; // <-- Relay is being checked
+
+    private static final int MAX_WEIGHT = 1000;
+
+    private static class Relay {
+        private final SmtpSender sender;
+        private final int        weight;
+
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private final AtomicInteger failures    = new AtomicInteger(0);
+        private final AtomicInteger state       = new AtomicInteger(STATE_CLOSED);
+        private volatile long       ejectedUntil = 0;
+
+        private Relay(SmtpSender sender, int weight) {
+            this.sender = sender;
+            this.weight = weight;
+        }
+
+        /**
+         * Returns a boolean indicating if a message can be sent through this
+         * relay. An ejected relay whose probation time expired accepts a
+         * single message (health check).
+         */
+        private boolean tryAcquire(long now) {
+            switch (state.get()) {
+                case STATE_CLOSED:
+                    return true;
+
+                case STATE_OPEN:
+                    return now >= ejectedUntil && state.compareAndSet(STATE_OPEN, STATE_HALF_OPEN);
+
+                default:
+                    return false;
+            }
+        }
+
+        private boolean isAvailable(long now) {
+            int current = state.get();
+            return current == STATE_CLOSED || (current == STATE_OPEN && now >= ejectedUntil);
+        }
+
+        private void onSuccess() {
+            failures.set(0);
+            state.set(STATE_CLOSED);
+        }
+
+        private void onFailure(int failureThreshold, long probationTime) {
+            int count = failures.incrementAndGet();
+
+            if (state.get() == STATE_HALF_OPEN || count >= failureThreshold) {
+                ejectedUntil = System.currentTimeMillis() + probationTime;
+                state.set(STATE_OPEN);
+            }
+        }
+    }
+
+    /**
+     * Returns a boolean indicating if given error denotes a relay failure
+     * (instead of a failure related to the message or its recipients).
+     */
+    static boolean isRelayFailure(MessagingException error) {
+        if (error instanceof AuthenticationFailedException)
+            return true;
+
+        if (error instanceof SendFailedException) {
+            // 421: service not available (e.g. relay shutting down or throttling)...
+            Object[] validSent = ((SendFailedException) error).getValidSentAddresses();
+            return DeliveryFailures.getReplyCode(error) == 421 && (validSent == null || validSent.length == 0);
+        }
+
+        return DeliveryFailures.getReplyCode(error) == 421 || DeliveryFailures.isTransient(error);
+    }
+
+    /**
+     * Builds a smooth weighted round-robin schedule: relays appear
+     * proportionally to their weights, interleaved instead of in runs.
+     */
+    private static int[] getSchedule(int[] weights) {
+        int total = 0;
+        for (int weight : weights)
+            total += weight;
+
+        int[] schedule = new int[total];
+        int[] current = new int[weights.length];
+
+        for (int i = 0; i < total; i++) {
+            int selected = 0;
+
+            for (int j = 0; j < weights.length; j++) {
+                current[j] += weights[j];
+
+                if (current[j] > current[selected])
+                    selected = j;
+            }
+
+            current[selected] -= total;
+            schedule[i] = selected;
+        }
+
+        return schedule;
+    }
+
+    private static int[] getEqualWeights(int count) {
+        int[] weights = new int[count];
+        Arrays.fill(weights, 1);
+        return weights;
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final List<Relay>           relays;
+    private final int[]                 schedule;
+    private final LoadBalancingStrategy strategy;
+    private final int                   failureThreshold;
+    private final long                  probationTime;
+
+    private final AtomicLong counter = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a relay group with equal weights and default settings.
+     *
+     * @param relays relay settings.
+     */
+    public RelayGroup(List<SmtpSettings> relays) {
+        this(relays, null, null, new RelayGroupSettings());
+    }
+
+    /**
+     * Creates a relay group.
+     *
+     * @param relays relay settings.
+     * @param weights relay weights (in the same order as relays). Passing null gives the same weight to all relays.
+     * @param poolSettings connection pool settings used by each relay. Passing null disables pooling.
+     * @param settings load balancing and failover settings.
+     */
+    public RelayGroup(List<SmtpSettings> relays, int[] weights, PoolSettings poolSettings, RelayGroupSettings settings) {
+        super(poolSettings);
+
+        if (relays == null || relays.isEmpty())
+            throw new IllegalArgumentException("Null/Empty relays");
+
+        if (settings == null)
+            throw new IllegalArgumentException("Null settings");
+
+        if (weights == null)
+            weights = getEqualWeights(relays.size());
+
+        if (weights.length != relays.size())
+            throw new IllegalArgumentException(String.format("Invalid number of weights: %d (expected: %d)", weights.length, relays.size()));
+
+        for (int weight : weights) {
+            if (weight < 1 || weight > MAX_WEIGHT)
+                throw new IllegalArgumentException("Invalid weight: " + weight);
+        }
+
+        List<Relay> relayList = new ArrayList<>(relays.size());
+
+        try {
+            for (int i = 0; i < relays.size(); i++) {
+                if (relays.get(i) == null)
+                    throw new IllegalArgumentException("Null relay");
+
+                relayList.add(new Relay(newSender(relays.get(i), poolSettings), weights[i]));
+            }
+        } catch (RuntimeException ex) {
+            for (Relay relay : relayList)
+                relay.sender.close();
+
+            throw ex;
+        }
+
+        this.relays = Collections.unmodifiableList(relayList);
+        this.schedule = getSchedule(weights);
+        this.strategy = settings.getStrategy();
+        this.failureThreshold = settings.getFailureThreshold();
+        this.probationTime = settings.getProbationTime();
+    }
+
+    /** Creates the sender used to deliver messages through given relay. */
+    SmtpSender newSender(SmtpSettings smtpSettings, PoolSettings poolSettings) {
+        return new SmtpSender(smtpSettings, poolSettings);
+    }
+
+    /**
+     * Selects a relay which was not tried yet.
+     *
+     * @return selected relay or null if there is no available relay.
+     */
+    private Relay select(boolean[] tried) {
+        long now = System.currentTimeMillis();
+        long start = counter.getAndIncrement();
+
+        if (strategy == LoadBalancingStrategy.WEIGHTED_ROUND_ROBIN) {
+            for (int i = 0; i < schedule.length; i++) {
+                int index = schedule[(int) ((start + i) % schedule.length)];
+                Relay relay = relays.get(index);
+
+                if (!tried[index] && relay.tryAcquire(now)) {
+                    tried[index] = true;
+                    return relay;
+                }
+            }
+        } else {
+            while (true) {
+                int selected = -1;
+                double selectedLoad = 0;
+
+                for (int i = 0; i < relays.size(); i++) {
+                    int index = (int) ((start + i) % relays.size());
+                    Relay relay = relays.get(index);
+
+                    if (tried[index] || !relay.isAvailable(now))
+                        continue;
+
+                    double load = (double) relay.outstanding.get() / relay.weight;
+
+                    if (selected == -1 || load < selectedLoad) {
+                        selected = index;
+                        selectedLoad = load;
+                    }
+                }
+
+                if (selected == -1)
+                    break;
+
+                tried[selected] = true;
+                Relay relay = relays.get(selected);
+
+                if (relay.tryAcquire(now))
+                    return relay;
+            }
+        }
+
+        // Every relay in the schedule was tried or is ejected...
+        for (int i = 0; i < relays.size(); i++) {
+            if (!tried[i] && relays.get(i).tryAcquire(now)) {
+                tried[i] = true;
+                return relays.get(i);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Defines the recorder which receives metrics about deliveries made
+     * through all relays.
+     */
+    @Override
+    public void setMetricsRecorder(MetricsRecorder metrics) {
+        super.setMetricsRecorder(metrics);
+
+        for (Relay relay : relays)
+            relay.sender.setMetricsRecorder(metrics);
+    }
+
+    /**
+     * Relay groups have no settings of their own: each relay has its own
+     * settings.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    @Override
+    public SmtpSettingsSnapshot getSettings() {
+        throw new UnsupportedOperationException("Relay group has no settings of its own");
+    }
+
+    /**
+     * Returns the number of relays in this group.
+     *
+     * @return number of relays.
+     */
+    public int getRelayCount() {
+        return relays.size();
+    }
+
+    /**
+     * Returns the number of relays which are not ejected.
+     *
+     * @return number of available relays.
+     */
+    public int getAvailableRelayCount() {
+        int count = 0;
+
+        for (Relay relay : relays) {
+            if (relay.state.get() == STATE_CLOSED)
+                count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Sends a message through one of the relays, failing over to the other
+     * ones when a relay fails.
+     *
+     * @throws MessagingException if the message could not be sent. If all relays are ejected, a transient error is thrown.
+     */
+    @Override
+    public void sendMessage(Message message, Collection<InternetAddress> recipients) throws MessagingException {
+        if (recipients == null || recipients.isEmpty())
+            throw new IllegalArgumentException("Null/Empty recipients");
+
+        if (closed)
+            throw new IllegalStateException("Sender is closed");
+
+        message = message.forDelivery(); // <-- every relay writes the same Message-ID
+        boolean[] tried = new boolean[relays.size()];
+        MessagingException lastError = null;
+        Relay relay;
+
+        while ((relay = select(tried)) != null) {
+            relay.outstanding.incrementAndGet();
+
+            try {
+                relay.sender.sendMessage(message, recipients);
+                relay.onSuccess();
+                return;
+            } catch (MessagingException ex) {
+                if (!isRelayFailure(ex)) {
+                    relay.onSuccess();
+                    throw ex;
+                }
+
+                relay.onFailure(failureThreshold, probationTime);
+                lastError = ex;
+            } catch (RuntimeException ex) {
+                relay.onFailure(failureThreshold, probationTime);
+                throw ex;
+            } finally {
+                relay.outstanding.decrementAndGet();
+            }
+        }
+
+        if (lastError != null)
+            throw lastError;
+
+        throw new MessagingException("No relay available");
+    }
+
+    /**
+     * Sends several messages. Each message is distributed (and failed over)
+     * individually.
+     *
+     * @param messages messages to be sent.
+     * @return delivery results (in the same order as given messages).
+     */
+    @Override
+    public List<SendResult> sendMessages(Collection<Message> messages) {
+        if (messages == null)
+            throw new IllegalArgumentException("Null messages");
+
+        List<SendResult> results = new ArrayList<>(messages.size());
+
+        for (Message message : messages) {
+            if (message == null)
+                throw new IllegalArgumentException("Null message");
+
+            MessagingException error = null;
+
+            try {
+                sendMessage(message);
+            } catch (MessagingException ex) {
+                error = ex;
+            }
+
+            results.add(new SendResult(message, error));
+        }
+
+        return results;
+    }
+
+    /**
+     * Closes the senders of all relays.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        super.close();
+
+        for (Relay relay : relays)
+            relay.sender.close();
+    }
+    // =========================================================================
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Properties;
+
+/**
+ * Load balancing and failover settings used by a {@linkplain RelayGroup}.
+ *
+ * A relay is ejected from the group after a number of consecutive failures
+ * (connection errors, authentication errors and 421 replies). After the
+ * probation time, a single message is sent through the relay as a health
+ * check: if it succeeds the relay is re-admitted, otherwise it is ejected
+ * again.
+ */
+public class RelayGroupSettings {
+    //  CLASS SCOPE ============================================================
+    public static final String KEY_STRATEGY          = "agapsys.mail.relay.strategy";
+    public static final String KEY_FAILURE_THRESHOLD = "agapsys.mail.relay.failureThreshold";
+    public static final String KEY_PROBATION_TIME    = "agapsys.mail.relay.probationTime";
+
+    public static final LoadBalancingStrategy DEFAULT_STRATEGY          = LoadBalancingStrategy.WEIGHTED_ROUND_ROBIN;
+    public static final int                   DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long                  DEFAULT_PROBATION_TIME    = 30000;
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private LoadBalancingStrategy strategy         = DEFAULT_STRATEGY;
+    private int                   failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long                  probationTime    = DEFAULT_PROBATION_TIME;
+
+    public RelayGroupSettings() {}
+
+    public RelayGroupSettings(Properties properties) {
+        if (properties == null)
+            throw new IllegalArgumentException("Null properties");
+
+        String propVal = PropertyParser.getString(properties, KEY_STRATEGY);
+        if (propVal != null) {
+            try {
+                strategy = LoadBalancingStrategy.valueOf(propVal);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(String.format("Invalid value for %s: %s", KEY_STRATEGY, propVal));
+            }
+        }
+
+        failureThreshold = PropertyParser.getInt(properties, KEY_FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD, 1);
+        probationTime    = PropertyParser.getLong(properties, KEY_PROBATION_TIME, DEFAULT_PROBATION_TIME, 0);
+    }
+
+    public synchronized LoadBalancingStrategy getStrategy() {
+        return strategy;
+    }
+    public synchronized void setStrategy(LoadBalancingStrategy strategy) {
+        if (strategy == null)
+            throw new IllegalArgumentException("Null strategy");
+
+        this.strategy = strategy;
+    }
+
+    /**
+     * Returns the number of consecutive failures after which a relay is ejected.
+     *
+     * @return failure threshold.
+     */
+    public synchronized int getFailureThreshold() {
+        return failureThreshold;
+    }
+    public synchronized void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1)
+            throw new IllegalArgumentException("Invalid failure threshold: " + failureThreshold);
+
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Returns the time (in milliseconds) an ejected relay waits before being
+     * checked again.
+     *
+     * @return probation time in milliseconds.
+     */
+    public synchronized long getProbationTime() {
+        return probationTime;
+    }
+    public synchronized void setProbationTime(long probationTime) {
+        if (probationTime < 0)
+            throw new IllegalArgumentException("Invalid probation time: " + probationTime);
+
+        this.probationTime = probationTime;
+    }
+    // =========================================================================
+}
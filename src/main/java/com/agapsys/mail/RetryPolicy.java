@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry settings used by a {@linkplain RetryingSmtpSender}.
+ *
+ * Delay before attempt n+1 is initialDelay * multiplier^(n-1), capped by max
+ * delay and randomly reduced by up to jitter * delay, so retries of messages
+ * which failed together are spread over time.
+ */
+public class RetryPolicy {
+    //  CLASS SCOPE ============================================================
+    public static final String KEY_MAX_ATTEMPTS  = "agapsys.mail.retry.maxAttempts";
+    public static final String KEY_INITIAL_DELAY = "agapsys.mail.retry.initialDelay";
+    public static final String KEY_MAX_DELAY     = "agapsys.mail.retry.maxDelay";
+    public static final String KEY_MULTIPLIER    = "agapsys.mail.retry.multiplier";
+    public static final String KEY_JITTER        = "agapsys.mail.retry.jitter";
+    public static final String KEY_MAX_AGE       = "agapsys.mail.retry.maxAge";
+
+    public static final int    DEFAULT_MAX_ATTEMPTS  = 5;
+    public static final long   DEFAULT_INITIAL_DELAY = 1000;
+    public static final long   DEFAULT_MAX_DELAY     = 5 * 60 * 1000;
+    public static final double DEFAULT_MULTIPLIER    = 2.0;
+    public static final double DEFAULT_JITTER        = 0.2;
+    public static final long   DEFAULT_MAX_AGE       = 60 * 60 * 1000;
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private int    maxAttempts  = DEFAULT_MAX_ATTEMPTS;
+    private long   initialDelay = DEFAULT_INITIAL_DELAY;
+    private long   maxDelay     = DEFAULT_MAX_DELAY;
+    private double multiplier   = DEFAULT_MULTIPLIER;
+    private double jitter       = DEFAULT_JITTER;
+    private long   maxAge       = DEFAULT_MAX_AGE;
+
+    public RetryPolicy() {}
+
+    public RetryPolicy(Properties properties) {
+        if (properties == null)
+            throw new IllegalArgumentException("Null properties");
+
+        maxAttempts  = PropertyParser.getInt(properties, KEY_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS, 1);
+        initialDelay = PropertyParser.getLong(properties, KEY_INITIAL_DELAY, DEFAULT_INITIAL_DELAY, 0);
+        maxDelay     = PropertyParser.getLong(properties, KEY_MAX_DELAY, DEFAULT_MAX_DELAY, 0);
+        multiplier   = PropertyParser.getDouble(properties, KEY_MULTIPLIER, DEFAULT_MULTIPLIER, 1, Double.MAX_VALUE);
+        jitter       = PropertyParser.getDouble(properties, KEY_JITTER, DEFAULT_JITTER, 0, 1);
+        maxAge       = PropertyParser.getLong(properties, KEY_MAX_AGE, DEFAULT_MAX_AGE, 0);
+    }
+
+    /**
+     * Returns the maximum number of delivery attempts (including the first one).
+     *
+     * @return maximum number of delivery attempts.
+     */
+    public synchronized int getMaxAttempts() {
+        return maxAttempts;
+    }
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Invalid max attempts: " + maxAttempts);
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    public synchronized long getInitialDelay() {
+        return initialDelay;
+    }
+    public synchronized void setInitialDelay(long initialDelay) {
+        if (initialDelay < 0)
+            throw new IllegalArgumentException("Invalid initial delay: " + initialDelay);
+
+        this.initialDelay = initialDelay;
+    }
+
+    public synchronized long getMaxDelay() {
+        return maxDelay;
+    }
+    public synchronized void setMaxDelay(long maxDelay) {
+        if (maxDelay < 0)
+            throw new IllegalArgumentException("Invalid max delay: " + maxDelay);
+
+        this.maxDelay = maxDelay;
+    }
+
+    public synchronized double getMultiplier() {
+        return multiplier;
+    }
+    public synchronized void setMultiplier(double multiplier) {
+        if (Double.isNaN(multiplier) || multiplier < 1)
+            throw new IllegalArgumentException("Invalid multiplier: " + multiplier);
+
+        this.multiplier = multiplier;
+    }
+
+    public synchronized double getJitter() {
+        return jitter;
+    }
+    public synchronized void setJitter(double jitter) {
+        if (Double.isNaN(jitter) || jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("Invalid jitter: " + jitter);
+
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns the time (in milliseconds, counted from the first attempt) after
+     * which a message is no longer retried.
+     *
+     * @return maximum message age in milliseconds.
+     */
+    public synchronized long getMaxAge() {
+        return maxAge;
+    }
+    public synchronized void setMaxAge(long maxAge) {
+        if (maxAge < 0)
+            throw new IllegalArgumentException("Invalid max age: " + maxAge);
+
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns the delay before the next attempt.
+     *
+     * @param attempts number of attempts already made.
+     * @return delay in milliseconds.
+     */
+    synchronized long getDelay(int attempts) {
+        double delay = initialDelay * Math.pow(multiplier, Math.max(0, attempts - 1));
+        delay = Math.min(delay, maxDelay);
+
+        if (jitter > 0)
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+
+        return (long) delay;
+    }
+    // =========================================================================
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Asynchronous mail sender which retries transient failures.
+ *
+ * Each attempt sends the message only to the recipients which were not
+ * processed yet. Recipients failing transiently (SMTP 4xx replies, connection
+ * failures) are retried with exponential backoff (see {@linkplain RetryPolicy}),
+ * while recipients failing permanently (SMTP 5xx replies) are not. Retries are
+ * scheduled on a timer instead of holding a sleeping thread.
+ */
+public class RetryingSmtpSender implements Closeable {
+    // CLASS SCOPE =============================================================
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger(0);
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE    = 2;
+
+    private static class ResultFuture extends FutureTask<SendResult> {
+        private static final Runnable NO_OP = new Runnable() {
+            @Override
+            public void run() {}
+        };
+
+        public ResultFuture() {
+            super(NO_OP, null);
+        }
+
+        private void complete(SendResult result) {
+            set(result);
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private class Delivery implements Runnable {
+        private final Message      message;
+        private final Message      wireMessage; // <-- attempts write the same Message-ID
+        private final SendCallback callback;
+        private final ResultFuture future = new ResultFuture();
+        private final long         startTime = System.currentTimeMillis();
+        private final AtomicInteger state = new AtomicInteger(STATE_WAITING);
+
+        private final Set<InternetAddress> delivered = new LinkedHashSet<>();
+        private final Set<InternetAddress> failed    = new LinkedHashSet<>();
+        private Set<InternetAddress>       remaining;
+        private MessagingException         lastError = null;
+        private int                        attempts  = 0;
+
+        private Delivery(Message message, SendCallback callback) {
+            this.message = message;
+            this.wireMessage = message.forDelivery();
+            this.callback = callback;
+            this.remaining = new LinkedHashSet<>(message.getAllRecipients());
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(STATE_WAITING, STATE_RUNNING))
+                return;
+
+            if (future.isCancelled()) {
+                state.set(STATE_DONE);
+                pending.remove(this);
+                return;
+            }
+
+            attempts++;
+            MessagingException error = null;
+
+            try {
+                sender.sendMessage(wireMessage, remaining);
+            } catch (MessagingException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                error = new MessagingException("Unexpected error", ex);
+            }
+
+            Set<InternetAddress> deferred = new LinkedHashSet<>();
+            DeliveryFailures.classify(remaining, error, delivered, deferred, failed);
+            remaining = deferred;
+
+            if (error != null)
+                lastError = error;
+
+            if (remaining.isEmpty() || attempts >= policy.getMaxAttempts()) {
+                finish();
+                return;
+            }
+
+            long delay = policy.getDelay(attempts);
+
+            if (System.currentTimeMillis() + delay - startTime > policy.getMaxAge()) {
+                finish();
+                return;
+            }
+
+            state.set(STATE_WAITING);
+
+            MetricsRecorder metrics = sender.getMetricsRecorder();
+            if (metrics != MetricsRecorder.NOOP)
+                metrics.recordGauge(MetricsRecorder.Gauge.RETRY_PENDING, pending.size());
+
+            try {
+                scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                if (state.compareAndSet(STATE_WAITING, STATE_RUNNING))
+                    finish();
+            }
+        }
+
+        /** Completes the delivery with its current state. */
+        private void finish() {
+            state.set(STATE_DONE);
+            pending.remove(this);
+
+            MessagingException error = (remaining.isEmpty() && failed.isEmpty()) ? null : lastError;
+            SendResult result = new SendResult(message, error, delivered, remaining, failed, attempts);
+            future.complete(result);
+
+            if (callback != null)
+                callback.onComplete(result);
+        }
+    }
+
+    private final SmtpSender                  sender;
+    private final RetryPolicy                 policy;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Set<Delivery>               pending = Collections.newSetFromMap(new ConcurrentHashMap<Delivery, Boolean>());
+
+    public RetryingSmtpSender(SmtpSender sender) {
+        this(sender, new RetryPolicy(), DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Creates a sender.
+     *
+     * @param sender wrapped sender used to deliver messages.
+     * @param policy retry policy.
+     * @param parallelism number of delivery threads.
+     */
+    public RetryingSmtpSender(SmtpSender sender, RetryPolicy policy, int parallelism) {
+        if (sender == null)
+            throw new IllegalArgumentException("Null sender");
+
+        if (policy == null)
+            throw new IllegalArgumentException("Null policy");
+
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+
+        this.sender = sender;
+        this.policy = policy;
+
+        final String threadPrefix = String.format("smtp-retry-%d-", INSTANCE_COUNTER.incrementAndGet());
+        this.scheduler = new ScheduledThreadPoolExecutor(parallelism, new ThreadFactory() {
+            private final AtomicInteger threadCounter = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadPrefix + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public SmtpSender getSender() {
+        return sender;
+    }
+
+    public RetryPolicy getPolicy() {
+        return policy;
+    }
+
+    public Future<SendResult> sendMessage(Message message) {
+        return sendMessage(message, null);
+    }
+
+    /**
+     * Queues a message for delivery.
+     *
+     * The returned future completes when the message was delivered to every
+     * recipient, when all remaining recipients failed permanently or when the
+     * retry policy gives up.
+     *
+     * @param message message to be sent.
+     * @param callback optional callback notified when delivery completes.
+     * @return a future holding the delivery result.
+     * @throws RejectedExecutionException if sender is shut down.
+     */
+    public Future<SendResult> sendMessage(Message message, SendCallback callback) throws RejectedExecutionException {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        Delivery delivery = new Delivery(message, callback);
+        pending.add(delivery);
+
+        try {
+            scheduler.execute(delivery);
+        } catch (RejectedExecutionException ex) {
+            pending.remove(delivery);
+            throw ex;
+        }
+
+        return delivery.future;
+    }
+
+    /**
+     * Returns the number of messages which are being delivered or waiting for a retry.
+     *
+     * @return the number of messages which are being delivered or waiting for a retry.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops accepting new messages. Messages waiting for a retry are completed
+     * immediately (with their remaining recipients reported as deferred) and
+     * attempts in progress are allowed to finish.
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+
+        for (Delivery delivery : pending) {
+            if (delivery.state.compareAndSet(STATE_WAITING, STATE_RUNNING))
+                delivery.finish();
+        }
+    }
+
+    public boolean isShutdown() {
+        return scheduler.isShutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return scheduler.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Shuts down this sender, waiting for attempts in progress.
+     *
+     * The wrapped sender is not closed.
+     */
+    @Override
+    public void close() {
+        shutdown();
+
+        try {
+            while (!awaitTermination(1, TimeUnit.MINUTES)) {}
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    // =========================================================================
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Result of a message delivery.
+ *
+ * Recipients are split into the ones the message was delivered to, the ones
+ * which failed transiently (deferred) and the ones which failed permanently.
+ */
+public class SendResult {
+    private final Message message;
+    private final MessagingException error;
+    private final Set<InternetAddress> deliveredRecipients;
+    private final Set<InternetAddress> deferredRecipients;
+    private final Set<InternetAddress> failedRecipients;
+    private final int attempts;
+
+    SendResult(Message message, MessagingException error) {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        Set<InternetAddress> delivered = new LinkedHashSet<>();
+        Set<InternetAddress> deferred = new LinkedHashSet<>();
+        Set<InternetAddress> failed = new LinkedHashSet<>();
+        DeliveryFailures.classify(message.getAllRecipients(), error, delivered, deferred, failed);
+
+        this.message = message;
+        this.error = error;
+        this.deliveredRecipients = Collections.unmodifiableSet(delivered);
+        this.deferredRecipients = Collections.unmodifiableSet(deferred);
+        this.failedRecipients = Collections.unmodifiableSet(failed);
+        this.attempts = 1;
+    }
+
+    SendResult(Message message, MessagingException error, Set<InternetAddress> deliveredRecipients, Set<InternetAddress> deferredRecipients, Set<InternetAddress> failedRecipients, int attempts) {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        this.message = message;
+        this.error = error;
+        this.deliveredRecipients = Collections.unmodifiableSet(deliveredRecipients);
+        this.deferredRecipients = Collections.unmodifiableSet(deferredRecipients);
+        this.failedRecipients = Collections.unmodifiableSet(failedRecipients);
+        this.attempts = attempts;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the (last) error raised while sending the message.
+     *
+     * @return the error raised while sending the message or null if message was successfully sent.
+     */
+    public MessagingException getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Returns the recipients the message was delivered to.
+     *
+     * @return the recipients the message was delivered to.
+     */
+    public Set<InternetAddress> getDeliveredRecipients() {
+        return deliveredRecipients;
+    }
+
+    /**
+     * Returns the recipients which failed transiently (a later attempt may succeed).
+     *
+     * @return the recipients which failed transiently.
+     */
+    public Set<InternetAddress> getDeferredRecipients() {
+        return deferredRecipients;
+    }
+
+    /**
+     * Returns the recipients which failed permanently.
+     *
+     * @return the recipients which failed permanently.
+     */
+    public Set<InternetAddress> getFailedRecipients() {
+        return failedRecipients;
+    }
+
+    /**
+     * Returns the number of delivery attempts.
+     *
+     * @return the number of delivery attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s", isSuccess() ? "SUCCESS" : "FAILURE", error == null ? message.getSubject() : error.getMessage());
+    }
+}
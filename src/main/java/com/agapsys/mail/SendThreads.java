@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates threads used to run blocking SMTP conversations.
+ *
+ * This is the baseline (Java 7) implementation, which uses platform threads.
+ * A multi-release JAR built with JDK 21+ replaces this class with one using
+ * virtual threads (see "src/main/java21").
+ */
+final class SendThreads {
+    // CLASS SCOPE =============================================================
+    /**
+     * Returns a boolean indicating if executors returned by
+     * {@linkplain #newPerTaskExecutor(String)} use virtual threads.
+     *
+     * @return a boolean indicating if virtual threads are used.
+     */
+    static boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * Returns an executor which starts a new (daemon) thread for each task.
+     * Idle platform threads are reused for 60 seconds.
+     *
+     * @param threadPrefix prefix used to name created threads.
+     * @return unbounded executor.
+     */
+    static ExecutorService newPerTaskExecutor(final String threadPrefix) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadPrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private SendThreads() {}
+    // =========================================================================
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.MessagingException;
+
+/**
+ * Rate and concurrency limits applied to the connections and transactions
+ * opened against an SMTP server.
+ *
+ * The message rate is enforced through a token bucket kept as a single
+ * atomic "theoretical arrival time" (GCRA): each caller reserves its slot
+ * with a CAS and then sleeps until the slot is due, so callers queue instead
+ * of failing and no lock is held while waiting.
+ */
+class SendThrottle {
+    // CLASS SCOPE =============================================================
+    /** Throttle which does not impose any limit. */
+    static final SendThrottle UNLIMITED = new SendThrottle(0, 1, 0, 0);
+
+    static SendThrottle getInstance(SmtpSettingsSnapshot settings) {
+        double rateLimit = settings.getRateLimit();
+        int maxSessions = settings.getMaxSessions();
+        int maxRecipients = settings.getMaxRecipients();
+
+        if (rateLimit == 0 && maxSessions == 0 && maxRecipients == 0)
+            return UNLIMITED;
+
+        return new SendThrottle(rateLimit, settings.getRateBurst(), maxSessions, maxRecipients);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final long      interval;      // <-- nanoseconds between messages (zero means no rate limit)
+    private final long      burstInterval; // <-- time span covered by a full bucket
+    private final int       maxSessions;
+    private final int       maxRecipients;
+    private final Semaphore sessions;
+
+    private final AtomicLong nextSlot;
+
+    SendThrottle(double rateLimit, int rateBurst, int maxSessions, int maxRecipients) {
+        if (Double.isNaN(rateLimit) || rateLimit < 0)
+            throw new IllegalArgumentException("Invalid rate limit: " + rateLimit);
+
+        if (rateBurst < 1)
+            throw new IllegalArgumentException("Invalid rate burst: " + rateBurst);
+
+        if (maxSessions < 0)
+            throw new IllegalArgumentException("Invalid max sessions: " + maxSessions);
+
+        if (maxRecipients < 0)
+            throw new IllegalArgumentException("Invalid max recipients: " + maxRecipients);
+
+        this.interval = rateLimit > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rateLimit)) : 0;
+        this.burstInterval = interval * rateBurst;
+        this.maxSessions = maxSessions;
+        this.maxRecipients = maxRecipients;
+        this.sessions = maxSessions > 0 ? new Semaphore(maxSessions) : null;
+
+        // Bucket starts full...
+        this.nextSlot = new AtomicLong(System.nanoTime() - burstInterval + interval);
+    }
+
+    /**
+     * Returns the maximum number of simultaneous sessions.
+     *
+     * @return maximum number of sessions (zero means no limit).
+     */
+    int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Returns the maximum number of recipients per transaction.
+     *
+     * @return maximum number of recipients (zero means no limit).
+     */
+    int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) a caller must wait before starting a
+     * new transaction, reserving the corresponding slot.
+     */
+    long reserve() {
+        if (interval == 0)
+            return 0;
+
+        while (true) {
+            long now = System.nanoTime();
+            long current = nextSlot.get();
+            long next = Math.max(current, now - burstInterval + interval) + interval;
+
+            if (nextSlot.compareAndSet(current, next))
+                return Math.max(0, next - interval - now);
+        }
+    }
+
+    /**
+     * Waits until a new transaction can be started according to the rate limit.
+     *
+     * @throws MessagingException if the thread is interrupted while waiting.
+     */
+    void acquireTransaction() throws MessagingException {
+        long wait = reserve();
+
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for rate limit", ex);
+            }
+        }
+    }
+
+    /**
+     * Waits until a new session (connection) can be opened. Each acquired
+     * session must be released through {@linkplain #releaseSession()}.
+     *
+     * @throws MessagingException if the thread is interrupted while waiting.
+     */
+    void acquireSession() throws MessagingException {
+        if (sessions == null)
+            return;
+
+        try {
+            sessions.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an available session", ex);
+        }
+    }
+
+    void releaseSession() {
+        if (sessions != null)
+            sessions.release();
+    }
+    // =========================================================================
+}
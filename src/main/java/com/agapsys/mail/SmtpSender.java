@@ -16,39 +16,160 @@
 
 package com.agapsys.mail;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import javax.mail.Address;
 import javax.mail.Authenticator;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
-import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 /**
- * Mail sender
+ * Mail sender.
+ *
+ * The sender builds a single mail session from given settings and reuses it
+ * for every message. By default, changes made to the settings after sender
+ * creation are ignored; senders created with settings tracking enabled
+ * rebuild their session when settings change. Senders created with a
+ * {@linkplain SmtpSettingsHolder} switch to the settings set in the holder
+ * on the next send, without locking while settings are unchanged. In both
+ * cases, pooled connections opened with previous settings are closed once
+ * released.
+ *
+ * When created with {@linkplain PoolSettings}, the sender keeps a pool of
+ * connected transports which are reused across sends. Pooled senders must be
+ * closed when no longer needed.
+ *
+ * Rate and concurrency limits defined in {@linkplain SmtpSettings} are
+ * shared by all threads using the sender: when a limit is reached, sending
+ * threads wait instead of failing.
  */
-public class SmtpSender {
-    private final Properties props;
-    private final Authenticator authenticator;
+public class SmtpSender implements Closeable {
+    // CLASS SCOPE =============================================================
+    private static class SessionState {
+        private final SmtpSettingsSnapshot settings;
+        private final Session       session;
+        private final SendThrottle  throttle;
+        private final DkimSigner    signer;
+        private final TransportPool pool;
+
+        private SessionState(SmtpSettingsSnapshot settings, Session session, SendThrottle throttle, DkimSigner signer, TransportPool pool) {
+            this.settings = settings;
+            this.session = session;
+            this.throttle = throttle;
+            this.signer = signer;
+            this.pool = pool;
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final SmtpSettings       smtpSettings;   // <-- null when settings are given through a holder
+    private final SmtpSettingsHolder settingsHolder; // <-- null when settings are given directly
+    private final PoolSettings       poolSettings;
+    private final boolean            trackSettings;
+
+    private volatile SessionState state;
+    private volatile boolean      closed = false;
+
+    private volatile MetricsRecorder metrics = MetricsRecorder.NOOP;
 
     public SmtpSender() {
         this(new SmtpSettings());
     }
 
     public SmtpSender(SmtpSettings smtpSettings) {
+        this(smtpSettings, null);
+    }
+
+    /**
+     * Creates a sender.
+     *
+     * @param smtpSettings SMTP settings.
+     * @param poolSettings connection pool settings. Passing null disables pooling (every message is sent through a new connection).
+     */
+    public SmtpSender(SmtpSettings smtpSettings, PoolSettings poolSettings) {
+        this(smtpSettings, poolSettings, false);
+    }
+
+    /**
+     * Creates a sender.
+     *
+     * @param smtpSettings SMTP settings.
+     * @param poolSettings connection pool settings. Passing null disables pooling (every message is sent through a new connection).
+     * @param trackSettings defines if the sender rebuilds its session (and pool) when given SMTP settings change.
+     */
+    public SmtpSender(SmtpSettings smtpSettings, PoolSettings poolSettings, boolean trackSettings) {
         if (smtpSettings == null)
             throw new IllegalArgumentException("Null smtpSettings");
 
-        this.props = new Properties();
-        props.put("mail.smtp.host", smtpSettings.getServer());
-        props.put("mail.smtp.port", String.format("%d", smtpSettings.getPort()));
-        props.put("mail.smtp.auth", smtpSettings.isAuthenticationEnabled() ? "true" : "false");
-        smtpSettings.getSecurityType()._updateProperties(smtpSettings, props);
+        this.smtpSettings = smtpSettings;
+        this.settingsHolder = null;
+        this.poolSettings = poolSettings;
+        this.trackSettings = trackSettings;
+        this.state = createState(new SmtpSettingsSnapshot(smtpSettings));
+    }
+
+    /**
+     * Creates a sender whose settings are read from a holder. Settings set in
+     * the holder are used from the next send on.
+     *
+     * @param settingsHolder holder of SMTP settings.
+     * @param poolSettings connection pool settings. Passing null disables pooling (every message is sent through a new connection).
+     */
+    public SmtpSender(SmtpSettingsHolder settingsHolder, PoolSettings poolSettings) {
+        if (settingsHolder == null)
+            throw new IllegalArgumentException("Null settingsHolder");
+
+        this.smtpSettings = null;
+        this.settingsHolder = settingsHolder;
+        this.poolSettings = poolSettings;
+        this.trackSettings = true;
+        this.state = createState(settingsHolder.get());
+    }
+
+    /**
+     * Creates a sender which delivers messages through other senders (e.g.
+     * {@linkplain RelayGroup}). Such sender has no session nor settings of
+     * its own: subclasses must override every method which sends messages.
+     *
+     * @param poolSettings connection pool settings used by delegate senders (null when pooling is disabled).
+     */
+    SmtpSender(PoolSettings poolSettings) {
+        this.smtpSettings = null;
+        this.settingsHolder = null;
+        this.poolSettings = poolSettings;
+        this.trackSettings = false;
+        this.state = null; // <-- see getState()
+    }
+
+    private SessionState createState(SmtpSettingsSnapshot settings) {
+        MetricsRecorder currentMetrics = metrics;
+        long start = currentMetrics != MetricsRecorder.NOOP ? System.nanoTime() : 0;
 
-        final String username = smtpSettings.getUsername();
-        final char[] password = smtpSettings.getPassword();
+        final Properties props = new Properties();
+        final Authenticator authenticator;
+
+        props.put("mail.smtp.host", settings.getServer());
+        props.put("mail.smtp.port", String.format("%d", settings.getPort()));
+        props.put("mail.smtp.auth", settings.isAuthenticationEnabled() ? "true" : "false");
+        props.put("mail.smtp.sendpartial", settings.isSendPartialEnabled() ? "true" : "false");
+        settings.getSecurityType()._updateProperties(settings, props);
+
+        final SendThrottle throttle = SendThrottle.getInstance(settings);
+        final DkimSigner signer = DkimSigner.getInstance(settings);
+
+        if (settings.isAuthenticationEnabled()) {
+            final String username = settings.getUsername();
+            final char[] password = settings.getPassword();
 
-        if (smtpSettings.isAuthenticationEnabled()) {
             authenticator = new Authenticator() {
                 @Override
                 protected PasswordAuthentication getPasswordAuthentication() {
@@ -58,18 +179,314 @@ public class SmtpSender {
         } else {
             authenticator = null;
         }
+
+        Session session = newSession(props, authenticator);
+        TransportPool pool = poolSettings != null ? new TransportPool(session, poolSettings, throttle) : null;
+
+        if (pool != null)
+            pool.setMetricsRecorder(currentMetrics);
+
+        if (currentMetrics != MetricsRecorder.NOOP)
+            currentMetrics.recordLatency(MetricsRecorder.Stage.SESSION, System.nanoTime() - start);
+
+        return new SessionState(settings, session, throttle, signer, pool);
     }
 
-    public void sendMessage(Message message) throws MessagingException {
-        Session session;
+    Session newSession(Properties props, Authenticator authenticator) {
         if (authenticator != null) {
-            session = Session.getInstance(props, authenticator);
+            return Session.getInstance(props, authenticator);
+        } else {
+            return Session.getInstance(props);
+        }
+    }
+
+    /** Returns a boolean indicating if given state was built from outdated settings. */
+    private boolean isOutdated(SessionState current) {
+        if (settingsHolder != null)
+            return settingsHolder.get() != current.settings;
+
+        return trackSettings && current.settings.getVersion() != smtpSettings.getVersion();
+    }
+
+    private SessionState getState() {
+        if (closed)
+            throw new IllegalStateException("Sender is closed");
+
+        SessionState current = state;
+
+        if (current == null)
+            throw new UnsupportedOperationException("Sender has no session of its own (messages are sent through other senders)");
+
+        if (isOutdated(current)) {
+            synchronized (this) {
+                current = state;
+
+                if (!closed && isOutdated(current)) {
+                    SessionState oldState = current;
+                    current = createState(settingsHolder != null ? settingsHolder.get() : new SmtpSettingsSnapshot(smtpSettings));
+                    state = current;
+
+                    // Connections in use are closed when released...
+                    if (oldState.pool != null)
+                        oldState.pool.retire();
+                }
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Returns the mail session used by this sender.
+     *
+     * @return the mail session used by this sender.
+     */
+    Session getSession() {
+        return getState().session;
+    }
+
+    /**
+     * Returns the settings currently used by this sender.
+     *
+     * @return current settings.
+     * @throws UnsupportedOperationException if this sender sends messages through other senders (e.g. {@linkplain RelayGroup}).
+     */
+    public SmtpSettingsSnapshot getSettings() {
+        return getState().settings;
+    }
+
+    /**
+     * Returns a boolean indicating if this sender reuses pooled connections.
+     *
+     * @return a boolean indicating if this sender reuses pooled connections.
+     */
+    public boolean isPooled() {
+        return poolSettings != null;
+    }
+
+    /**
+     * Returns a boolean indicating if this sender tracks changes in its SMTP settings.
+     *
+     * @return a boolean indicating if this sender tracks changes in its SMTP settings.
+     */
+    public boolean isTrackingSettings() {
+        return trackSettings;
+    }
+
+    /**
+     * Defines the recorder which receives metrics about deliveries made by
+     * this sender. By default, metrics are not recorded.
+     *
+     * @param metrics metrics recorder. Use {@linkplain MetricsRecorder#NOOP} to disable metrics.
+     */
+    public void setMetricsRecorder(MetricsRecorder metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("Null metrics recorder");
+
+        this.metrics = metrics;
+
+        SessionState current = state;
+        if (current != null && current.pool != null)
+            current.pool.setMetricsRecorder(metrics);
+    }
+
+    /**
+     * Returns the recorder which receives metrics about deliveries made by this sender.
+     *
+     * @return metrics recorder.
+     */
+    public MetricsRecorder getMetricsRecorder() {
+        return metrics;
+    }
+
+    /**
+     * Builds the MIME message (with updated headers) to be sent, DKIM-signed
+     * when signing is enabled in SMTP settings.
+     *
+     * @param message message to be sent.
+     * @return MIME message.
+     * @throws MessagingException if there is an error building the message.
+     */
+    MimeMessage getMimeMessage(Message message) throws MessagingException {
+        return getMimeMessage(message, getState());
+    }
+
+    private static MimeMessage getMimeMessage(Message message, SessionState current) throws MessagingException {
+        if (current.signer != null)
+            return message.getMimeMessage(current.session, current.signer);
+
+        MimeMessage mimeMessage = message.getMimeMessage(current.session);
+        mimeMessage.saveChanges();
+        return mimeMessage;
+    }
+
+    /** Builds the MIME message (with updated headers) to be sent. */
+    private MimeMessage getMimeMessage(Message message, SessionState current, MetricsRecorder currentMetrics) throws MessagingException {
+        long start = currentMetrics != MetricsRecorder.NOOP ? System.nanoTime() : 0;
+
+        MimeMessage mimeMessage = getMimeMessage(message, current);
+
+        if (currentMetrics != MetricsRecorder.NOOP)
+            currentMetrics.recordLatency(MetricsRecorder.Stage.BUILD, System.nanoTime() - start);
+
+        return mimeMessage;
+    }
+
+    /**
+     * Creates a pool holding a single connection, used by senders without
+     * pooling for the duration of a send.
+     */
+    private TransportPool newSingleConnectionPool(SessionState current) {
+        PoolSettings singleSettings = new PoolSettings();
+        singleSettings.setMaxConnections(1);
+        singleSettings.setMaxMessagesPerConnection(Integer.MAX_VALUE);
+        singleSettings.setIdleTimeout(Long.MAX_VALUE);
+        singleSettings.setValidationInterval(Long.MAX_VALUE);
+        singleSettings.setMaxWait(Long.MAX_VALUE);
+        TransportPool pool = new TransportPool(current.session, singleSettings, current.throttle);
+        pool.setMetricsRecorder(metrics);
+        return pool;
+    }
+
+    public void sendMessage(Message message) throws MessagingException {
+        sendMessage(message, message.getAllRecipients());
+    }
+
+    /**
+     * Sends a message to a subset of its recipients.
+     *
+     * Message headers are not changed: given recipients are used only in the
+     * SMTP envelope. This is used to retry a delivery for the recipients which
+     * failed in a previous attempt.
+     *
+     * Each call writes a new Message-ID and Date, unless given message is a
+     * delivery copy made by a sender retrying it (see {@linkplain Message}).
+     *
+     * @param message message to be sent.
+     * @param recipients envelope recipients.
+     * @throws MessagingException if there is an error sending the message.
+     */
+    public void sendMessage(Message message, Collection<InternetAddress> recipients) throws MessagingException {
+        if (recipients == null || recipients.isEmpty())
+            throw new IllegalArgumentException("Null/Empty recipients");
+
+        MetricsRecorder currentMetrics = metrics;
+        long start = currentMetrics != MetricsRecorder.NOOP ? System.nanoTime() : 0;
+
+        try {
+            SessionState current = getState();
+
+            MimeMessage mimeMessage = getMimeMessage(message, current, currentMetrics);
+            Address[] addresses = recipients.toArray(new Address[recipients.size()]);
+
+            if (current.pool != null) {
+                current.pool.sendSaved(mimeMessage, addresses);
+            } else {
+                TransportPool singlePool = newSingleConnectionPool(current);
+
+                try {
+                    singlePool.sendSaved(mimeMessage, addresses);
+                } finally {
+                    singlePool.close();
+                }
+            }
+        } finally {
+            if (currentMetrics != MetricsRecorder.NOOP)
+                currentMetrics.recordLatency(MetricsRecorder.Stage.TOTAL, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sends several messages reusing the same connection.
+     *
+     * Failures do not abort the batch: each message has its own result.
+     * A broken connection is reopened and the batch continues. Pooled senders
+     * use pooled connections; other senders open a single connection which is
+     * closed at the end of the batch.
+     *
+     * @param messages messages to be sent.
+     * @return delivery results (in the same order as given messages).
+     */
+    public List<SendResult> sendMessages(Collection<Message> messages) {
+        if (messages == null)
+            throw new IllegalArgumentException("Null messages");
+
+        SessionState current = getState();
+        TransportPool batchPool;
+
+        if (current.pool != null) {
+            batchPool = current.pool;
         } else {
-            session = Session.getInstance(props);
+            batchPool = newSingleConnectionPool(current);
+        }
+
+        List<SendResult> results = new ArrayList<>(messages.size());
+
+        try {
+            for (Message message : messages) {
+                if (message == null)
+                    throw new IllegalArgumentException("Null message");
+
+                MetricsRecorder currentMetrics = metrics;
+                long start = currentMetrics != MetricsRecorder.NOOP ? System.nanoTime() : 0;
+                MessagingException error = null;
+
+                try {
+                    Set<InternetAddress> recipients = message.getAllRecipients();
+                    batchPool.sendSaved(getMimeMessage(message, current, currentMetrics), recipients.toArray(new Address[recipients.size()]));
+                } catch (MessagingException ex) {
+                    error = ex;
+                }
+
+                if (currentMetrics != MetricsRecorder.NOOP)
+                    currentMetrics.recordLatency(MetricsRecorder.Stage.TOTAL, System.nanoTime() - start);
+
+                results.add(new SendResult(message, error));
+            }
+        } finally {
+            if (batchPool != current.pool)
+                batchPool.close();
+        }
+
+        return results;
+    }
+
+    /**
+     * Sends a separate copy of a message to each of its recipients (including
+     * BCC ones).
+     *
+     * Each copy is addressed only to its own recipient. Message body is
+     * encoded once and shared by all copies, so each copy costs only its
+     * headers. Copies are sent as a batch (see {@linkplain SmtpSender#sendMessages(Collection)}).
+     *
+     * @param message message to be sent.
+     * @return delivery results (one per recipient, in recipient order).
+     */
+    public List<SendResult> sendIndividually(Message message) {
+        if (message == null)
+            throw new IllegalArgumentException("Null message");
+
+        List<Message> copies = new ArrayList<>(message.getAllRecipients().size());
+
+        for (InternetAddress recipient : message.getAllRecipients())
+            copies.add(message.withRecipients(Collections.singleton(recipient)));
+
+        return sendMessages(copies);
+    }
+
+    /**
+     * Closes pooled connections (if any).
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
         }
 
-        MimeMessage mimeMessage = message.getMimeMessage(session);
-        Transport.send(mimeMessage);
+        SessionState current = state;
+        if (current != null && current.pool != null)
+            current.pool.close();
     }
+    // =========================================================================
 }
 
@@ -29,6 +29,14 @@ public class SmtpSettings  {
     public static final String KEY_PASSWORD = "agapsys.mail.password";
     public static final String KEY_SECURITY = "agapsys.mail.security";
     public static final String KEY_PORT     = "agapsys.mail.port";
+    public static final String KEY_SEND_PARTIAL = "agapsys.mail.sendPartial";
+    public static final String KEY_RATE_LIMIT     = "agapsys.mail.rateLimit";
+    public static final String KEY_RATE_BURST     = "agapsys.mail.rateBurst";
+    public static final String KEY_MAX_SESSIONS   = "agapsys.mail.maxSessions";
+    public static final String KEY_MAX_RECIPIENTS = "agapsys.mail.maxRecipients";
+    public static final String KEY_DKIM_DOMAIN    = "agapsys.mail.dkim.domain";
+    public static final String KEY_DKIM_SELECTOR  = "agapsys.mail.dkim.selector";
+    public static final String KEY_DKIM_KEY_FILE  = "agapsys.mail.dkim.keyFile";
 
     public static final String       DEFAULT_SERVER   = "localhost";
     public static final boolean      DEFAULT_AUTH     = false;
@@ -36,6 +44,14 @@ public class SmtpSettings  {
     public static final String       DEFAULT_PASSWORD = "";
     public static final SecurityType DEFAULT_SECURITY = SecurityType.NONE;
     public static final int          DEFAULT_PORT     = 25;
+    public static final boolean      DEFAULT_SEND_PARTIAL = true;
+    public static final double       DEFAULT_RATE_LIMIT     = 0;
+    public static final int          DEFAULT_RATE_BURST     = 1;
+    public static final int          DEFAULT_MAX_SESSIONS   = 0;
+    public static final int          DEFAULT_MAX_RECIPIENTS = 0;
+    public static final String       DEFAULT_DKIM_DOMAIN    = "";
+    public static final String       DEFAULT_DKIM_SELECTOR  = "";
+    public static final String       DEFAULT_DKIM_KEY_FILE  = "";
     // =========================================================================
 
     // INSTANCE SCOPE ==========================================================
@@ -45,6 +61,16 @@ public class SmtpSettings  {
     private char[]       password     = DEFAULT_PASSWORD.toCharArray();
     private SecurityType securityType = DEFAULT_SECURITY;
     private int          port         = DEFAULT_PORT;
+    private boolean      sendPartial  = DEFAULT_SEND_PARTIAL;
+    private double       rateLimit     = DEFAULT_RATE_LIMIT;
+    private int          rateBurst     = DEFAULT_RATE_BURST;
+    private int          maxSessions   = DEFAULT_MAX_SESSIONS;
+    private int          maxRecipients = DEFAULT_MAX_RECIPIENTS;
+    private String       dkimDomain    = DEFAULT_DKIM_DOMAIN;
+    private String       dkimSelector  = DEFAULT_DKIM_SELECTOR;
+    private String       dkimKeyFile   = DEFAULT_DKIM_KEY_FILE;
+
+    private volatile long version = 0; // <-- read without locking on every send
 
     public SmtpSettings() {}
 
@@ -134,6 +160,45 @@ public class SmtpSettings  {
                 }
             }
         }
+
+        // Partial delivery...
+        propVal = properties.getProperty(KEY_SEND_PARTIAL);
+        if (propVal == null) {
+            sendPartial = DEFAULT_SEND_PARTIAL;
+        } else {
+            propVal = propVal.trim();
+
+            if (propVal.isEmpty()) {
+                throw new IllegalArgumentException("Empty value for " + KEY_SEND_PARTIAL);
+            } else {
+                sendPartial = Boolean.parseBoolean(propVal);
+            }
+        }
+
+        // Throttling...
+        rateLimit     = PropertyParser.getDouble(properties, KEY_RATE_LIMIT, DEFAULT_RATE_LIMIT, 0, Double.MAX_VALUE);
+        rateBurst     = PropertyParser.getInt(properties, KEY_RATE_BURST, DEFAULT_RATE_BURST, 1);
+        maxSessions   = PropertyParser.getInt(properties, KEY_MAX_SESSIONS, DEFAULT_MAX_SESSIONS, 0);
+        maxRecipients = PropertyParser.getInt(properties, KEY_MAX_RECIPIENTS, DEFAULT_MAX_RECIPIENTS, 0);
+
+        // DKIM...
+        propVal = PropertyParser.getString(properties, KEY_DKIM_DOMAIN);
+        dkimDomain = propVal == null ? DEFAULT_DKIM_DOMAIN : propVal;
+
+        propVal = PropertyParser.getString(properties, KEY_DKIM_SELECTOR);
+        dkimSelector = propVal == null ? DEFAULT_DKIM_SELECTOR : propVal;
+
+        propVal = PropertyParser.getString(properties, KEY_DKIM_KEY_FILE);
+        dkimKeyFile = propVal == null ? DEFAULT_DKIM_KEY_FILE : propVal;
+    }
+
+    /**
+     * Returns a number which changes whenever a setting is changed.
+     *
+     * @return settings version.
+     */
+    long getVersion() {
+        return version;
     }
 
     public synchronized String getServer() {
@@ -144,6 +209,7 @@ public class SmtpSettings  {
             throw new IllegalArgumentException("Null/empty mail server");
 
         this.server = server.trim();
+        version++;
     }
 
     public synchronized int getPort() {
@@ -154,6 +220,7 @@ public class SmtpSettings  {
             throw new IllegalArgumentException(String.format("Invalid port: %d", port));
 
         this.port = port;
+        version++;
     }
 
     public synchronized String getUsername() {
@@ -164,6 +231,7 @@ public class SmtpSettings  {
             throw new IllegalArgumentException("Null username");
 
         this.username = username;
+        version++;
     }
 
     public synchronized char[] getPassword() {
@@ -174,6 +242,7 @@ public class SmtpSettings  {
             throw new IllegalArgumentException("Null password");
 
         this.password = password.toCharArray();
+        version++;
     }
 
     public synchronized SecurityType getSecurityType() {
@@ -184,6 +253,7 @@ public class SmtpSettings  {
             throw new IllegalArgumentException("Null security type");
 
         this.securityType = secutiryType;
+        version++;
     }
 
     public synchronized boolean isAuthenticationEnabled() {
@@ -191,6 +261,144 @@ public class SmtpSettings  {
     }
     public synchronized void setAuthenticationEnabled(boolean enabled) {
         this.authenticate = enabled;
+        version++;
+    }
+
+    /**
+     * Returns a boolean indicating if messages are delivered to valid
+     * recipients even when some recipients are rejected by the server.
+     *
+     * When enabled, a rejected recipient does not prevent delivery to the
+     * other ones: the raised {@linkplain javax.mail.SendFailedException}
+     * reports which recipients received the message (see {@linkplain SendResult}).
+     *
+     * @return a boolean indicating if partial delivery is enabled.
+     */
+    public synchronized boolean isSendPartialEnabled() {
+        return sendPartial;
+    }
+    public synchronized void setSendPartialEnabled(boolean enabled) {
+        this.sendPartial = enabled;
+        version++;
+    }
+
+    /**
+     * Returns the maximum number of SMTP transactions (messages) started per
+     * second. Senders wait (instead of failing) when the limit is reached.
+     *
+     * @return rate limit in messages per second (zero means no limit).
+     */
+    public synchronized double getRateLimit() {
+        return rateLimit;
+    }
+    public synchronized void setRateLimit(double rateLimit) {
+        if (Double.isNaN(rateLimit) || rateLimit < 0)
+            throw new IllegalArgumentException("Invalid rate limit: " + rateLimit);
+
+        this.rateLimit = rateLimit;
+        version++;
+    }
+
+    /**
+     * Returns the number of messages which can be sent in a burst (without
+     * waiting) after the sender was idle.
+     *
+     * @return rate burst.
+     */
+    public synchronized int getRateBurst() {
+        return rateBurst;
+    }
+    public synchronized void setRateBurst(int rateBurst) {
+        if (rateBurst < 1)
+            throw new IllegalArgumentException("Invalid rate burst: " + rateBurst);
+
+        this.rateBurst = rateBurst;
+        version++;
+    }
+
+    /**
+     * Returns the maximum number of simultaneous connections to the server.
+     * Senders wait for a connection to be closed when the limit is reached.
+     *
+     * @return maximum number of sessions (zero means no limit).
+     */
+    public synchronized int getMaxSessions() {
+        return maxSessions;
+    }
+    public synchronized void setMaxSessions(int maxSessions) {
+        if (maxSessions < 0)
+            throw new IllegalArgumentException("Invalid max sessions: " + maxSessions);
+
+        this.maxSessions = maxSessions;
+        version++;
+    }
+
+    /**
+     * Returns the maximum number of recipients per SMTP transaction. Messages
+     * with more recipients are sent through several transactions.
+     *
+     * @return maximum number of recipients per message (zero means no limit).
+     */
+    public synchronized int getMaxRecipients() {
+        return maxRecipients;
+    }
+    public synchronized void setMaxRecipients(int maxRecipients) {
+        if (maxRecipients < 0)
+            throw new IllegalArgumentException("Invalid max recipients: " + maxRecipients);
+
+        this.maxRecipients = maxRecipients;
+        version++;
+    }
+
+    /**
+     * Returns the signing domain (DKIM "d=" tag). Messages are DKIM-signed
+     * when a domain is set.
+     *
+     * @return DKIM domain (an empty string means signing is disabled).
+     */
+    public synchronized String getDkimDomain() {
+        return dkimDomain;
+    }
+    public synchronized void setDkimDomain(String dkimDomain) {
+        if (dkimDomain == null)
+            throw new IllegalArgumentException("Null DKIM domain");
+
+        this.dkimDomain = dkimDomain.trim();
+        version++;
+    }
+
+    /**
+     * Returns the DKIM selector ("s=" tag) used to locate the public key
+     * published under the signing domain.
+     *
+     * @return DKIM selector.
+     */
+    public synchronized String getDkimSelector() {
+        return dkimSelector;
+    }
+    public synchronized void setDkimSelector(String dkimSelector) {
+        if (dkimSelector == null)
+            throw new IllegalArgumentException("Null DKIM selector");
+
+        this.dkimSelector = dkimSelector.trim();
+        version++;
+    }
+
+    /**
+     * Returns the path of the RSA private key used for DKIM signing. The
+     * file holds a PKCS#8 key, either PEM ("BEGIN PRIVATE KEY") or DER encoded.
+     *
+     * @return path of the DKIM private key file.
+     */
+    public synchronized String getDkimKeyFile() {
+        return dkimKeyFile;
+    }
+    public synchronized void setDkimKeyFile(String dkimKeyFile) {
+        if (dkimKeyFile == null)
+            throw new IllegalArgumentException("Null DKIM key file");
+
+        this.dkimKeyFile = dkimKeyFile.trim();
+        version++;
     }
     // =========================================================================
 }
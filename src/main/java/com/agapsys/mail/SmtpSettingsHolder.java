@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@linkplain SmtpSettingsSnapshot} used by senders.
+ *
+ * Settings are replaced atomically: senders created with a holder read the
+ * current snapshot (without locking) on each send and switch to a new
+ * snapshot on the next send after it is set. Connections opened with the
+ * previous settings are closed once they are released.
+ *
+ * Only {@linkplain SmtpSender#SmtpSender(SmtpSettingsHolder, PoolSettings)}
+ * supports holders. {@linkplain NioSmtpSender}, {@linkplain RelayGroup} and
+ * {@linkplain DirectSmtpSender} take a snapshot of their settings when
+ * created and must be replaced to apply new settings.
+ */
+public class SmtpSettingsHolder {
+    private final AtomicReference<SmtpSettingsSnapshot> settings;
+
+    public SmtpSettingsHolder(SmtpSettingsSnapshot settings) {
+        if (settings == null)
+            throw new IllegalArgumentException("Null settings");
+
+        this.settings = new AtomicReference<>(settings);
+    }
+
+    public SmtpSettingsHolder(SmtpSettings settings) {
+        this(new SmtpSettingsSnapshot(settings));
+    }
+
+    /**
+     * Returns current settings.
+     *
+     * @return current settings.
+     */
+    public SmtpSettingsSnapshot get() {
+        return settings.get();
+    }
+
+    /**
+     * Replaces current settings, unless they are equal to given ones (senders
+     * keep their connections when the same settings are set again).
+     *
+     * @param settings new settings.
+     * @return a boolean indicating if settings were replaced.
+     */
+    public boolean set(SmtpSettingsSnapshot settings) {
+        if (settings == null)
+            throw new IllegalArgumentException("Null settings");
+
+        while (true) {
+            SmtpSettingsSnapshot current = this.settings.get();
+
+            if (current.equals(settings))
+                return false;
+
+            if (this.settings.compareAndSet(current, settings))
+                return true;
+        }
+    }
+
+    /**
+     * Replaces current settings if they were not replaced by someone else.
+     *
+     * @param expected settings expected to be current.
+     * @param settings new settings.
+     * @return a boolean indicating if settings were replaced.
+     */
+    public boolean compareAndSet(SmtpSettingsSnapshot expected, SmtpSettingsSnapshot settings) {
+        if (settings == null)
+            throw new IllegalArgumentException("Null settings");
+
+        return this.settings.compareAndSet(expected, settings);
+    }
+}
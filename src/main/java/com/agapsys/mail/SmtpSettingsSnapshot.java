@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Immutable copy of {@linkplain SmtpSettings}.
+ *
+ * Unlike {@linkplain SmtpSettings}, whose accessors are synchronized, a
+ * snapshot can be read by any number of threads without locking. Snapshots
+ * are swapped atomically through a {@linkplain SmtpSettingsHolder}.
+ *
+ * Two snapshots are equal when all their settings are equal.
+ */
+public final class SmtpSettingsSnapshot {
+    private final String       server;
+    private final boolean      authenticate;
+    private final String       username;
+    private final char[]       password;
+    private final SecurityType securityType;
+    private final int          port;
+    private final boolean      sendPartial;
+    private final double       rateLimit;
+    private final int          rateBurst;
+    private final int          maxSessions;
+    private final int          maxRecipients;
+    private final String       dkimDomain;
+    private final String       dkimSelector;
+    private final String       dkimKeyFile;
+
+    private final long version; // <-- version of the source settings
+
+    /**
+     * Creates a snapshot of given settings.
+     *
+     * @param settings SMTP settings.
+     */
+    public SmtpSettingsSnapshot(SmtpSettings settings) {
+        if (settings == null)
+            throw new IllegalArgumentException("Null settings");
+
+        synchronized (settings) {
+            this.server        = settings.getServer();
+            this.authenticate  = settings.isAuthenticationEnabled();
+            this.username      = settings.getUsername();
+            this.password      = settings.getPassword().clone();
+            this.securityType  = settings.getSecurityType();
+            this.port          = settings.getPort();
+            this.sendPartial   = settings.isSendPartialEnabled();
+            this.rateLimit     = settings.getRateLimit();
+            this.rateBurst     = settings.getRateBurst();
+            this.maxSessions   = settings.getMaxSessions();
+            this.maxRecipients = settings.getMaxRecipients();
+            this.dkimDomain    = settings.getDkimDomain();
+            this.dkimSelector  = settings.getDkimSelector();
+            this.dkimKeyFile   = settings.getDkimKeyFile();
+            this.version       = settings.getVersion();
+        }
+    }
+
+    /**
+     * Creates a snapshot from properties (see {@linkplain SmtpSettings#SmtpSettings(Properties)}).
+     *
+     * @param properties settings properties.
+     * @throws IllegalArgumentException if a property has an invalid value.
+     */
+    public SmtpSettingsSnapshot(Properties properties) throws IllegalArgumentException {
+        this(new SmtpSettings(properties));
+    }
+
+    /** Returns the version of the settings this snapshot was taken from. */
+    long getVersion() {
+        return version;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public boolean isAuthenticationEnabled() {
+        return authenticate;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the password.
+     *
+     * @return a copy of the password.
+     */
+    public char[] getPassword() {
+        return password.clone();
+    }
+
+    public SecurityType getSecurityType() {
+        return securityType;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** See {@linkplain SmtpSettings#isSendPartialEnabled()}. */
+    public boolean isSendPartialEnabled() {
+        return sendPartial;
+    }
+
+    /** See {@linkplain SmtpSettings#getRateLimit()}. */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    /** See {@linkplain SmtpSettings#getRateBurst()}. */
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /** See {@linkplain SmtpSettings#getMaxSessions()}. */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /** See {@linkplain SmtpSettings#getMaxRecipients()}. */
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /** See {@linkplain SmtpSettings#getDkimDomain()}. */
+    public String getDkimDomain() {
+        return dkimDomain;
+    }
+
+    /** See {@linkplain SmtpSettings#getDkimSelector()}. */
+    public String getDkimSelector() {
+        return dkimSelector;
+    }
+
+    /** See {@linkplain SmtpSettings#getDkimKeyFile()}. */
+    public String getDkimKeyFile() {
+        return dkimKeyFile;
+    }
+
+    /**
+     * Returns mutable settings with the values of this snapshot.
+     *
+     * @return SMTP settings.
+     */
+    public SmtpSettings toSettings() {
+        SmtpSettings settings = new SmtpSettings();
+        settings.setServer(server);
+        settings.setAuthenticationEnabled(authenticate);
+        settings.setUsername(username);
+        settings.setPassword(new String(password));
+        settings.setSecurityType(securityType);
+        settings.setPort(port);
+        settings.setSendPartialEnabled(sendPartial);
+        settings.setRateLimit(rateLimit);
+        settings.setRateBurst(rateBurst);
+        settings.setMaxSessions(maxSessions);
+        settings.setMaxRecipients(maxRecipients);
+        settings.setDkimDomain(dkimDomain);
+        settings.setDkimSelector(dkimSelector);
+        settings.setDkimKeyFile(dkimKeyFile);
+        return settings;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+
+        if (!(obj instanceof SmtpSettingsSnapshot))
+            return false;
+
+        SmtpSettingsSnapshot other = (SmtpSettingsSnapshot) obj;
+
+        return server.equals(other.server)
+            && authenticate == other.authenticate
+            && username.equals(other.username)
+            && Arrays.equals(password, other.password)
+            && securityType == other.securityType
+            && port == other.port
+            && sendPartial == other.sendPartial
+            && Double.compare(rateLimit, other.rateLimit) == 0
+            && rateBurst == other.rateBurst
+            && maxSessions == other.maxSessions
+            && maxRecipients == other.maxRecipients
+            && dkimDomain.equals(other.dkimDomain)
+            && dkimSelector.equals(other.dkimSelector)
+            && dkimKeyFile.equals(other.dkimKeyFile);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = server.hashCode();
+        hash = 31 * hash + port;
+        hash = 31 * hash + username.hashCode();
+        hash = 31 * hash + securityType.hashCode();
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d (%s)", server, port, securityType);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reloads SMTP settings from a properties file whenever the file changes.
+ *
+ * Reloaded settings are set in a {@linkplain SmtpSettingsHolder}, so senders
+ * created with the holder use them from their next send on. A file with
+ * invalid settings is ignored (current settings are kept) and the error is
+ * available through {@linkplain #getLastError()}. Settings are replaced only
+ * when they actually change.
+ *
+ * The file is watched through a {@linkplain WatchService} registered on its
+ * directory, which also detects files replaced by a rename.
+ */
+public class SmtpSettingsWatcher implements Closeable {
+    // CLASS SCOPE =============================================================
+    /** Time to wait for further changes before reloading (editors may write a file in several steps). */
+    private static final long SETTLE_TIME = 100;
+
+    private static SmtpSettingsSnapshot load(Path file) throws IOException {
+        Properties properties = new Properties();
+
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        }
+
+        return new SmtpSettingsSnapshot(properties);
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final Path               file;
+    private final SmtpSettingsHolder holder;
+    private final WatchService       watchService;
+    private final Thread             thread;
+    private final AtomicLong         reloadCount = new AtomicLong(0);
+
+    private volatile Exception lastError = null;
+    private volatile boolean   closed    = false;
+
+    /**
+     * Loads settings from given file and starts watching it.
+     *
+     * @param file properties file (see {@linkplain SmtpSettings#SmtpSettings(java.util.Properties)}).
+     * @throws IOException if the file cannot be read or watched.
+     * @throws IllegalArgumentException if the file contains invalid settings.
+     */
+    public SmtpSettingsWatcher(Path file) throws IOException, IllegalArgumentException {
+        this(file, null);
+    }
+
+    /**
+     * Watches a file, setting reloaded settings in given holder.
+     *
+     * @param file properties file (see {@linkplain SmtpSettings#SmtpSettings(java.util.Properties)}).
+     * @param holder holder which receives reloaded settings. Passing null creates a holder with the settings currently in the file.
+     * @throws IOException if the file cannot be read or watched.
+     * @throws IllegalArgumentException if the file contains invalid settings.
+     */
+    public SmtpSettingsWatcher(Path file, SmtpSettingsHolder holder) throws IOException, IllegalArgumentException {
+        if (file == null)
+            throw new IllegalArgumentException("Null file");
+
+        this.file = file.toAbsolutePath();
+
+        if (holder == null) {
+            holder = new SmtpSettingsHolder(load(this.file));
+        }
+
+        this.holder = holder;
+        this.watchService = this.file.getFileSystem().newWatchService();
+
+        try {
+            this.file.getParent().register(
+                watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY
+            );
+        } catch (IOException | RuntimeException ex) {
+            watchService.close();
+            throw ex;
+        }
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "smtp-settings-watcher");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the holder which receives reloaded settings.
+     *
+     * @return settings holder.
+     */
+    public SmtpSettingsHolder getHolder() {
+        return holder;
+    }
+
+    /**
+     * Returns the number of times settings were replaced by this watcher.
+     *
+     * @return number of reloads.
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * Returns the error raised by the last reload.
+     *
+     * @return error raised by the last reload or null if it succeeded.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Reloads settings from the file.
+     *
+     * @return a boolean indicating if settings changed.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if the file contains invalid settings.
+     */
+    public boolean reload() throws IOException, IllegalArgumentException {
+        if (!holder.set(load(file)))
+            return false;
+
+        reloadCount.incrementAndGet();
+        return true;
+    }
+
+    private void watch() {
+        Path fileName = file.getFileName();
+
+        try {
+            while (!closed) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+
+                // Changes arriving within the settle time are handled by a single reload...
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context()))
+                            changed = true;
+                    }
+
+                    key.reset();
+                    key = changed ? watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS) : null;
+                }
+
+                if (changed) {
+                    try {
+                        reload();
+                        lastError = null;
+                    } catch (IOException | RuntimeException ex) {
+                        lastError = ex; // <-- current settings are kept
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Watcher is closed...
+        }
+    }
+
+    /**
+     * Stops watching the file. Settings already set in the holder are kept.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            // Ignored: nothing else can be done
+        }
+
+        thread.interrupt();
+    }
+    // =========================================================================
+}
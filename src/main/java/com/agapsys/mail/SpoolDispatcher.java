@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Delivers messages stored in a {@linkplain MessageSpool} through a
+ * {@linkplain SmtpSender}.
+ *
+ * Messages are acknowledged (removed from the spool) once delivered, after a
+ * permanent failure or after the maximum number of attempts. Recipients which
+ * failed transiently are retried after a delay (recipients which already
+ * received the message are not included in retries).
+ * Closing the dispatcher keeps undelivered messages in the spool.
+ */
+public class SpoolDispatcher implements Closeable {
+    // CLASS SCOPE =============================================================
+    public static final int  DEFAULT_THREADS      = 2;
+    public static final int  DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_RETRY_DELAY  = 60000;
+
+    private static final long POLL_INTERVAL = 100;
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final MessageSpool spool;
+    private final SmtpSender   sender;
+    private final int          maxAttempts;
+    private final long         retryDelay;
+    private final SendCallback callback;
+
+    private final List<Thread>             workers = new ArrayList<>();
+    private final ScheduledExecutorService retryScheduler;
+
+    private volatile boolean running = true;
+
+    public SpoolDispatcher(MessageSpool spool, SmtpSender sender) {
+        this(spool, sender, DEFAULT_THREADS, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY, null);
+    }
+
+    /**
+     * Creates and starts a dispatcher.
+     *
+     * @param spool spool holding messages to be delivered.
+     * @param sender sender used to deliver messages.
+     * @param threads number of delivery threads.
+     * @param maxAttempts maximum number of delivery attempts per message.
+     * @param retryDelay delay (in milliseconds) before a failed message is sent again.
+     * @param callback optional callback notified when a message is delivered or discarded.
+     */
+    public SpoolDispatcher(MessageSpool spool, SmtpSender sender, int threads, int maxAttempts, long retryDelay, SendCallback callback) {
+        if (spool == null)
+            throw new IllegalArgumentException("Null spool");
+
+        if (sender == null)
+            throw new IllegalArgumentException("Null sender");
+
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid threads: " + threads);
+
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Invalid max attempts: " + maxAttempts);
+
+        if (retryDelay < 0)
+            throw new IllegalArgumentException("Invalid retry delay: " + retryDelay);
+
+        this.spool = spool;
+        this.sender = sender;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.callback = callback;
+
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smtp-spool-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchLoop();
+                }
+            }, "smtp-spool-dispatcher-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            MessageSpool.SpooledMessage spooledMessage;
+
+            try {
+                spooledMessage = spool.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+
+            if (spooledMessage != null)
+                dispatch(spooledMessage);
+        }
+    }
+
+    private void dispatch(final MessageSpool.SpooledMessage spooledMessage) {
+        Set<InternetAddress> recipients = spooledMessage.getRemainingRecipients();
+        MessagingException error = null;
+
+        spooledMessage.incrementAttempts();
+
+        try {
+            sender.sendMessage(spooledMessage.getMessage(), recipients);
+        } catch (MessagingException ex) {
+            error = ex;
+        } catch (RuntimeException ex) {
+            error = new MessagingException("Unexpected error", ex);
+        }
+
+        Set<InternetAddress> delivered = new LinkedHashSet<>();
+        Set<InternetAddress> deferred = new LinkedHashSet<>();
+        Set<InternetAddress> failed = new LinkedHashSet<>();
+        DeliveryFailures.classify(recipients, error, delivered, deferred, failed);
+        boolean changed = spooledMessage.update(error, delivered, deferred, failed);
+
+        if (!deferred.isEmpty()) {
+            // Avoids sending the message again to recipients which already received it...
+            if (changed) {
+                try {
+                    spool.updateRecipients(spooledMessage.getId(), deferred);
+                } catch (IOException | IllegalStateException ex) {
+                    // Message will be sent again to all of its recipients when the spool is recovered
+                }
+            }
+
+            // Message is kept in the spool and delivered when it is recovered...
+            if (!running)
+                return;
+
+            if (spooledMessage.getAttempts() < maxAttempts) {
+                retryScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        spool.requeue(spooledMessage);
+                    }
+                }, retryDelay, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+
+        try {
+            spool.acknowledge(spooledMessage.getId());
+        } catch (IOException | IllegalStateException ex) {
+            // Message will be delivered again when the spool is recovered
+        }
+
+        if (callback != null)
+            callback.onComplete(spooledMessage.getResult());
+    }
+
+    /**
+     * Stops the dispatcher. Messages being delivered are completed and
+     * pending retries are kept in the spool.
+     *
+     * The spool and the sender are not closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        retryScheduler.shutdownNow();
+
+        boolean interrupted = false;
+
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    // =========================================================================
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of compiled templates, keyed by template id.
+ *
+ * When the cache is full, the least recently used template is evicted.
+ * Templates are loaded outside the cache lock, so a slow loader does not
+ * block threads rendering cached templates.
+ */
+public class TemplateCache {
+    // CLASS SCOPE =============================================================
+    public static final int DEFAULT_MAX_SIZE = 256;
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final TemplateLoader loader;
+    private final int            maxSize;
+    private final LinkedHashMap<String, MessageTemplate> templates;
+
+    public TemplateCache(TemplateLoader loader) {
+        this(loader, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param loader loader used when a template is not cached.
+     * @param maxSize maximum number of cached templates.
+     */
+    public TemplateCache(TemplateLoader loader, int maxSize) {
+        if (loader == null)
+            throw new IllegalArgumentException("Null loader");
+
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Invalid max size: " + maxSize);
+
+        this.loader = loader;
+        this.maxSize = maxSize;
+        this.templates = new LinkedHashMap<String, MessageTemplate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MessageTemplate> eldest) {
+                return size() > TemplateCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns a compiled template, loading it if it is not cached.
+     *
+     * @param id template id.
+     * @return compiled template.
+     * @throws IllegalArgumentException if there is no template with given id.
+     * @throws IOException if there is an error loading the template.
+     */
+    public MessageTemplate getTemplate(String id) throws IllegalArgumentException, IOException {
+        if (id == null)
+            throw new IllegalArgumentException("Null id");
+
+        synchronized (templates) {
+            MessageTemplate template = templates.get(id);
+            if (template != null)
+                return template;
+        }
+
+        MessageTemplate template = loader.load(id);
+        if (template == null)
+            throw new IllegalArgumentException("Unknown template: " + id);
+
+        synchronized (templates) {
+            MessageTemplate cached = templates.get(id);
+
+            // Another thread loaded the same template...
+            if (cached != null)
+                return cached;
+
+            templates.put(id, template);
+            return template;
+        }
+    }
+
+    /**
+     * Removes a template from the cache, so it is loaded again when requested.
+     *
+     * @param id template id.
+     */
+    public void invalidate(String id) {
+        synchronized (templates) {
+            templates.remove(id);
+        }
+    }
+
+    public void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    public int getSize() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+    // =========================================================================
+}
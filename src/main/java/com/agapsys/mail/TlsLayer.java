@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS layer of a non-blocking connection (see {@linkplain NioSmtpSession}).
+ *
+ * Application data is wrapped into an outbound network buffer and inbound
+ * network data is unwrapped into a caller-provided buffer. All methods are
+ * called by the event loop owning the connection.
+ */
+final class TlsLayer {
+    // CLASS SCOPE =============================================================
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final SSLEngine engine;
+
+    private ByteBuffer netIn;  // <-- write mode
+    private ByteBuffer netOut; // <-- write mode
+
+    private boolean handshaking = true;
+
+    TlsLayer(SSLEngine engine) throws SSLException {
+        this.engine = engine;
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+
+        engine.setUseClientMode(true);
+        engine.beginHandshake();
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    /** Wraps given application data (all of it) into the outbound network buffer. */
+    void wrap(ByteBuffer src) throws SSLException {
+        do {
+            SSLEngineResult result = engine.wrap(src, netOut);
+
+            switch (result.getStatus()) {
+                case OK:
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    netOut = enlarge(netOut, netOut.position() + engine.getSession().getPacketBufferSize());
+                    break;
+
+                case CLOSED:
+                    if (result.bytesProduced() > 0)
+                        break; // <-- close_notify was produced
+
+                    throw new SSLException("TLS session is closed");
+
+                default:
+                    throw new SSLException("Unexpected wrap status: " + result.getStatus());
+            }
+
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                runDelegatedTasks();
+        } while (src.hasRemaining());
+    }
+
+    /**
+     * Unwraps buffered network data into given buffer.
+     *
+     * @return false if given buffer is full and more data is pending.
+     */
+    boolean unwrap(ByteBuffer dst) throws SSLException {
+        netIn.flip();
+
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+
+                switch (result.getStatus()) {
+                    case OK:
+                        break;
+
+                    case BUFFER_UNDERFLOW:
+                        return true; // <-- incomplete record
+
+                    case BUFFER_OVERFLOW:
+                        return false;
+
+                    case CLOSED:
+                        throw new SSLException("TLS session closed by server");
+
+                    default:
+                        throw new SSLException("Unexpected unwrap status: " + result.getStatus());
+                }
+
+                SSLEngineResult.HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+
+                if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    handshakeStatus = engine.getHandshakeStatus();
+                }
+
+                if (handshaking && handshakeStatus != SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+                    return true; // <-- handshake must go on before unwrapping more records
+            }
+
+            return true;
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Reads available network data. Data is made available to the
+     * application through {@linkplain #unwrap(ByteBuffer)}.
+     *
+     * @return number of bytes read from the channel or -1 on end of stream.
+     */
+    int read(SocketChannel channel) throws IOException {
+        if (!netIn.hasRemaining())
+            netIn = enlarge(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+
+        return channel.read(netIn);
+    }
+
+    /** Returns a boolean indicating if there is pending outbound network data. */
+    boolean hasPendingOutput() {
+        return netOut.position() > 0;
+    }
+
+    /**
+     * Writes pending outbound network data.
+     *
+     * @return true if all data was written.
+     */
+    boolean flush(SocketChannel channel) throws IOException {
+        netOut.flip();
+
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    boolean isHandshaking() {
+        return handshaking;
+    }
+
+    /**
+     * Advances the handshake as far as possible without blocking.
+     *
+     * @param dst buffer receiving application data which may follow the handshake.
+     * @return true if the handshake is complete.
+     */
+    boolean handshake(SocketChannel channel, ByteBuffer dst) throws IOException {
+        while (handshaking) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+
+                case NEED_WRAP:
+                    wrap(EMPTY);
+
+                    if (!flush(channel))
+                        return false; // <-- wait until channel is writable
+
+                    break;
+
+                case NEED_UNWRAP: {
+                    int before = netIn.position();
+                    unwrap(dst);
+
+                    if (netIn.position() != before)
+                        break; // <-- progress was made
+
+                    // No complete record: read more data...
+                    if (!netIn.hasRemaining())
+                        netIn = enlarge(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+
+                    int read = channel.read(netIn);
+
+                    if (read < 0)
+                        throw new EOFException("Connection closed during TLS handshake");
+
+                    if (read == 0)
+                        return false; // <-- wait until channel is readable
+
+                    break;
+                }
+
+                default: // NOT_HANDSHAKING
+                    handshaking = false;
+            }
+        }
+
+        return !hasPendingOutput() || flush(channel);
+    }
+
+    /**
+     * Starts closing the TLS session (the close_notify alert is written on
+     * next flush). No application data can be wrapped afterwards.
+     */
+    void close() {
+        engine.closeOutbound();
+
+        try {
+            wrap(EMPTY);
+        } catch (SSLException ex) {
+            // Connection is being closed anyway
+        }
+    }
+    // =========================================================================
+}
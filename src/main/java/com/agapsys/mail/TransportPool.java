@@ -0,0 +1,657 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import com.sun.mail.smtp.SMTPTransport;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Bounded pool of connected (and authenticated) SMTP transports.
+ *
+ * Idle connections are reused in LIFO order, so a small set of connections
+ * stays hot while the surplus expires after the idle timeout.
+ *
+ * Connections and transactions are subject to the limits of an optional
+ * {@linkplain SendThrottle}: the pool never holds more connections than the
+ * session limit and messages with too many recipients are sent through
+ * several transactions.
+ */
+class TransportPool implements Closeable {
+    // CLASS SCOPE =============================================================
+    static class PooledTransport {
+        private final Transport transport;
+        private int  messageCount = 0;
+        private long lastUsed;
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        Transport getTransport() {
+            return transport;
+        }
+
+        /**
+         * Sends given message.
+         *
+         * @return the reply code of the end of data (250 when the transport is not an SMTP one).
+         */
+        int sendMessage(MimeMessage mimeMessage, Address[] recipients, MetricsRecorder metrics) throws MessagingException {
+            messageCount++;
+
+            if (metrics == MetricsRecorder.NOOP) {
+                transport.sendMessage(mimeMessage, recipients);
+            } else {
+                long start = System.nanoTime();
+
+                try {
+                    transport.sendMessage(mimeMessage, recipients);
+                } finally {
+                    metrics.recordLatency(MetricsRecorder.Stage.TRANSACTION, System.nanoTime() - start);
+                }
+            }
+
+            return transport instanceof SMTPTransport ? ((SMTPTransport) transport).getLastReturnCode() : 250;
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private final Session session;
+    private final int     maxMessagesPerConnection;
+    private final long    idleTimeout;
+    private final long    validationInterval;
+    private final long    maxWait;
+    private final SendThrottle throttle;
+    private final int     maxConnections;
+    private final int     parallelTransactions;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+
+    private volatile boolean closed  = false;
+    private volatile boolean retired = false;
+
+    private volatile MetricsRecorder metrics = MetricsRecorder.NOOP;
+
+    private volatile ThreadPoolExecutor helperExecutor = null; // <-- created on first parallel send
+
+    TransportPool(Session session, PoolSettings settings) {
+        this(session, settings, SendThrottle.UNLIMITED);
+    }
+
+    TransportPool(Session session, PoolSettings settings, SendThrottle throttle) {
+        if (session == null)
+            throw new IllegalArgumentException("Null session");
+
+        if (settings == null)
+            throw new IllegalArgumentException("Null settings");
+
+        if (throttle == null)
+            throw new IllegalArgumentException("Null throttle");
+
+        int maxConnections = settings.getMaxConnections();
+        if (throttle.getMaxSessions() > 0)
+            maxConnections = Math.min(maxConnections, throttle.getMaxSessions());
+
+        this.session = session;
+        this.maxMessagesPerConnection = settings.getMaxMessagesPerConnection();
+        this.idleTimeout = settings.getIdleTimeout();
+        this.validationInterval = settings.getValidationInterval();
+        this.maxWait = settings.getMaxWait();
+        this.throttle = throttle;
+        this.maxConnections = maxConnections;
+        this.parallelTransactions = Math.min(settings.getParallelTransactions(), maxConnections);
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /** Defines the recorder which receives metrics about connections and transactions. */
+    void setMetricsRecorder(MetricsRecorder metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("Null metrics recorder");
+
+        this.metrics = metrics;
+    }
+
+    private PooledTransport connect() throws MessagingException {
+        MetricsRecorder currentMetrics = metrics;
+        boolean measure = currentMetrics != MetricsRecorder.NOOP;
+        long start = measure ? System.nanoTime() : 0;
+
+        throttle.acquireSession();
+
+        try {
+            if (measure) {
+                long now = System.nanoTime();
+                currentMetrics.recordLatency(MetricsRecorder.Stage.THROTTLE, now - start);
+                start = now;
+            }
+
+            Transport transport = session.getTransport("smtp");
+            transport.connect();
+
+            if (measure)
+                currentMetrics.recordLatency(MetricsRecorder.Stage.CONNECT, System.nanoTime() - start);
+
+            return new PooledTransport(transport);
+        } catch (MessagingException | RuntimeException ex) {
+            throttle.releaseSession();
+            throw ex;
+        }
+    }
+
+    private void destroy(PooledTransport pooledTransport) {
+        try {
+            pooledTransport.transport.close();
+        } catch (MessagingException ex) {
+            // Connection is discarded anyway
+        } finally {
+            throttle.releaseSession();
+        }
+    }
+
+    /**
+     * Resets the SMTP transaction after a failure.
+     *
+     * @return a boolean indicating if the connection is still usable.
+     */
+    private boolean reset(PooledTransport pooledTransport) {
+        Transport transport = pooledTransport.transport;
+
+        try {
+            if (transport instanceof SMTPTransport) {
+                return ((SMTPTransport) transport).simpleCommand("RSET") == 250;
+            } else {
+                return transport.isConnected();
+            }
+        } catch (MessagingException | IllegalStateException ex) {
+            return false;
+        }
+    }
+
+    private void evictExpired(long now) {
+        PooledTransport pooledTransport;
+
+        while ((pooledTransport = idle.pollLast()) != null) {
+            if (now - pooledTransport.lastUsed > idleTimeout) {
+                destroy(pooledTransport);
+            } else {
+                idle.offerLast(pooledTransport);
+                break;
+            }
+        }
+    }
+
+    private void drainIdle() {
+        PooledTransport pooledTransport;
+
+        while ((pooledTransport = idle.pollFirst()) != null)
+            destroy(pooledTransport);
+    }
+
+    /**
+     * Borrows a connected transport from the pool, opening a new connection if
+     * there is no usable idle one.
+     *
+     * Callers must return the transport through {@linkplain #release(PooledTransport, boolean)}.
+     */
+    PooledTransport borrow() throws MessagingException {
+        if (closed)
+            throw new IllegalStateException("Pool is closed");
+
+        MetricsRecorder currentMetrics = metrics;
+        boolean measure = currentMetrics != MetricsRecorder.NOOP;
+        long start = measure ? System.nanoTime() : 0;
+
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+                throw new MessagingException("Timeout waiting for an available connection");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an available connection", ex);
+        }
+
+        if (measure) {
+            currentMetrics.recordLatency(MetricsRecorder.Stage.POOL_WAIT, System.nanoTime() - start);
+            currentMetrics.recordGauge(MetricsRecorder.Gauge.POOL_ACTIVE, maxConnections - permits.availablePermits());
+            currentMetrics.recordGauge(MetricsRecorder.Gauge.POOL_IDLE, idle.size());
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+            PooledTransport pooledTransport;
+
+            while ((pooledTransport = idle.pollFirst()) != null) {
+                long idleTime = now - pooledTransport.lastUsed;
+
+                if (idleTime > idleTimeout) {
+                    destroy(pooledTransport);
+                    continue;
+                }
+
+                // SMTPTransport.isConnected() issues a NOOP to the server...
+                if (idleTime > validationInterval && !pooledTransport.transport.isConnected()) {
+                    destroy(pooledTransport);
+                    continue;
+                }
+
+                return pooledTransport;
+            }
+
+            return connect();
+        } catch (MessagingException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a borrowed transport to the pool.
+     *
+     * @param pooledTransport borrowed transport (may be null if the borrowed connection was already discarded).
+     * @param reusable defines if the connection can be reused by further sends.
+     */
+    void release(PooledTransport pooledTransport, boolean reusable) {
+        try {
+            if (pooledTransport == null)
+                return;
+
+            if (closed || retired || !reusable || pooledTransport.messageCount >= maxMessagesPerConnection) {
+                destroy(pooledTransport);
+            } else {
+                long now = System.currentTimeMillis();
+                pooledTransport.lastUsed = now;
+                idle.offerFirst(pooledTransport);
+                evictExpired(now);
+
+                if (closed || retired)
+                    drainIdle();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sends given message through a pooled connection.
+     *
+     * If a reused connection turns out to be broken, a new connection is
+     * opened and the message is sent again. After any other failure the SMTP
+     * transaction is reset (RSET) so the connection can be reused.
+     */
+    void send(MimeMessage mimeMessage) throws MessagingException {
+        send(mimeMessage, null);
+    }
+
+    /**
+     * Sends given message to given (envelope) recipients.
+     *
+     * When there are more recipients than allowed per transaction, the
+     * message is sent through several transactions, using up to
+     * {@linkplain PoolSettings#getParallelTransactions()} connections at the
+     * same time. If some of them fail, a
+     * {@linkplain SendFailedException} reports the recipients of all
+     * transactions.
+     *
+     * @param recipients envelope recipients. Passing null sends the message to all recipients in its headers.
+     */
+    void send(MimeMessage mimeMessage, Address[] recipients) throws MessagingException {
+        mimeMessage.saveChanges();
+        sendSaved(mimeMessage, recipients);
+    }
+
+    /**
+     * Sends a message whose headers were already updated (see
+     * {@linkplain MimeMessage#saveChanges()}).
+     *
+     * @param recipients envelope recipients. Passing null sends the message to all recipients in its headers.
+     */
+    void sendSaved(MimeMessage mimeMessage, Address[] recipients) throws MessagingException {
+        if (recipients == null)
+            recipients = mimeMessage.getAllRecipients();
+
+        int maxRecipients = throttle.getMaxRecipients();
+
+        if (maxRecipients == 0 || recipients.length <= maxRecipients) {
+            sendTransaction(mimeMessage, recipients);
+            return;
+        }
+
+        ChunkedSend chunkedSend = new ChunkedSend(mimeMessage, recipients, maxRecipients);
+        int helpers = Math.min(parallelTransactions, chunkedSend.chunkCount) - 1;
+
+        for (int i = 0; i < helpers; i++) {
+            try {
+                getHelperExecutor().execute(chunkedSend);
+            } catch (RejectedExecutionException ex) {
+                break; // <-- all helpers are busy: remaining chunks are sent by current thread
+            }
+        }
+
+        chunkedSend.run();
+        chunkedSend.awaitCompletion();
+        chunkedSend.throwError();
+    }
+
+    /**
+     * Sends a message to a list of recipients split into several transactions
+     * (chunks). Chunks are claimed by any number of threads running this task
+     * and results are aggregated as they complete.
+     */
+    private class ChunkedSend implements Runnable {
+        private final MimeMessage   mimeMessage;
+        private final Address[]     recipients;
+        private final int           chunkSize;
+        private final int           chunkCount;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+
+        private final List<Address> validSent   = new ArrayList<>();
+        private final List<Address> validUnsent = new ArrayList<>();
+        private final List<Address> invalid     = new ArrayList<>();
+        private MessagingException  error       = null;
+        private MessagingException  fatalError  = null;
+        private int                 running     = 0;
+
+        // Explicit lock (instead of a monitor) so that waiting does not pin a virtual thread's carrier...
+        private final ReentrantLock lock      = new ReentrantLock();
+        private final Condition     completed = lock.newCondition();
+
+        private volatile boolean aborted = false;
+
+        private ChunkedSend(MimeMessage mimeMessage, Address[] recipients, int chunkSize) {
+            this.mimeMessage = mimeMessage;
+            this.recipients = recipients;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (recipients.length + chunkSize - 1) / chunkSize;
+        }
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                running++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                int chunkIndex;
+
+                while ((chunkIndex = nextChunk.getAndIncrement()) < chunkCount) {
+                    int offset = chunkIndex * chunkSize;
+                    Address[] chunk = Arrays.copyOfRange(recipients, offset, Math.min(offset + chunkSize, recipients.length));
+
+                    if (aborted) {
+                        // Connection failed: remaining transactions are not tried...
+                        lock.lock();
+                        try {
+                            Collections.addAll(validUnsent, chunk);
+                        } finally {
+                            lock.unlock();
+                        }
+                        continue;
+                    }
+
+                    try {
+                        sendTransaction(mimeMessage, chunk);
+
+                        lock.lock();
+                        try {
+                            Collections.addAll(validSent, chunk);
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (SendFailedException ex) {
+                        lock.lock();
+                        try {
+                            addAll(validSent, ex.getValidSentAddresses());
+                            addAll(validUnsent, ex.getValidUnsentAddresses());
+                            addAll(invalid, ex.getInvalidAddresses());
+                            error = chain(error, ex);
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (MessagingException | RuntimeException ex) {
+                        MessagingException messagingException = ex instanceof MessagingException ? (MessagingException) ex : new MessagingException("Error sending message", ex);
+                        aborted = true;
+
+                        lock.lock();
+                        try {
+                            Collections.addAll(validUnsent, chunk);
+
+                            if (fatalError == null) {
+                                fatalError = messagingException;
+                            } else {
+                                error = chain(error, messagingException);
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            } finally {
+                lock.lock();
+                try {
+                    running--;
+                    completed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /** Waits for helper threads still sending their chunks. */
+        private void awaitCompletion() {
+            boolean interrupted = false;
+
+            lock.lock();
+            try {
+                while (running > 0) {
+                    try {
+                        completed.await();
+                    } catch (InterruptedException ex) {
+                        interrupted = true; // <-- helpers finish their current transaction anyway
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /** Must be called after {@linkplain #awaitCompletion()}, once results no longer change. */
+        private void throwError() throws MessagingException {
+            // Nothing was sent: failure is reported as is (e.g. connection failure)...
+            if (fatalError != null && validSent.isEmpty() && invalid.isEmpty() && error == null)
+                throw fatalError;
+
+            MessagingException chained = fatalError != null ? chain(fatalError, error) : error;
+
+            if (chained != null) {
+                throw new SendFailedException(
+                    "Message was not delivered to all recipients",
+                    chained,
+                    validSent.toArray(new Address[validSent.size()]),
+                    validUnsent.toArray(new Address[validUnsent.size()]),
+                    invalid.toArray(new Address[invalid.size()])
+                );
+            }
+        }
+    }
+
+    private ThreadPoolExecutor getHelperExecutor() {
+        ThreadPoolExecutor executor = helperExecutor;
+
+        if (executor == null) {
+            synchronized (this) {
+                if (helperExecutor == null) {
+                    helperExecutor = new ThreadPoolExecutor(0, parallelTransactions - 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "smtp-transaction-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+
+                executor = helperExecutor;
+            }
+        }
+
+        return executor;
+    }
+
+    private static void addAll(List<Address> list, Address[] addresses) {
+        if (addresses != null)
+            Collections.addAll(list, addresses);
+    }
+
+    private static MessagingException chain(MessagingException first, MessagingException next) {
+        if (first == null)
+            return next;
+
+        first.setNextException(next);
+        return first;
+    }
+
+    /** Sends given message through a single SMTP transaction. */
+    private void sendTransaction(MimeMessage mimeMessage, Address[] recipients) throws MessagingException {
+        MetricsRecorder currentMetrics = metrics;
+
+        if (currentMetrics == MetricsRecorder.NOOP) {
+            throttle.acquireTransaction();
+            doSendTransaction(mimeMessage, recipients);
+            return;
+        }
+
+        long start = System.nanoTime();
+        throttle.acquireTransaction();
+
+        currentMetrics.recordLatency(MetricsRecorder.Stage.THROTTLE, System.nanoTime() - start);
+
+        try {
+            int replyCode = doSendTransaction(mimeMessage, recipients);
+            currentMetrics.recordResult(replyCode);
+
+            long size = Message.getWrittenSize(mimeMessage);
+            if (size >= 0)
+                currentMetrics.recordBytes(size); // <-- unknown sizes are not recorded
+        } catch (MessagingException ex) {
+            currentMetrics.recordResult(DeliveryFailures.getFirstReplyCode(ex));
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends given message through a pooled connection.
+     *
+     * @return the reply code of the end of data.
+     */
+    private int doSendTransaction(MimeMessage mimeMessage, Address[] recipients) throws MessagingException {
+        PooledTransport pooledTransport = borrow();
+        boolean reusable = false;
+
+        try {
+            boolean reused = pooledTransport.messageCount > 0;
+            int replyCode;
+
+            try {
+                replyCode = pooledTransport.sendMessage(mimeMessage, recipients, metrics);
+            } catch (MessagingException ex) {
+                boolean alive = reset(pooledTransport);
+
+                if (alive || !reused || ex instanceof SendFailedException) {
+                    reusable = alive;
+                    throw ex;
+                }
+
+                // Stale connection: reconnect and try again...
+                destroy(pooledTransport);
+                pooledTransport = null;
+                pooledTransport = connect();
+                replyCode = pooledTransport.sendMessage(mimeMessage, recipients, metrics);
+            }
+
+            reusable = true;
+            return replyCode;
+        } finally {
+            release(pooledTransport, reusable);
+        }
+    }
+
+    /** Returns the number of idle connections currently held by the pool. */
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Retires the pool. Idle connections are closed immediately. Connections
+     * in use are closed when released, and further borrowing is still allowed
+     * (for callers already holding a reference to this pool) but every
+     * connection is closed after use.
+     */
+    void retire() {
+        retired = true;
+        drainIdle();
+    }
+
+    /**
+     * Closes the pool. Idle connections are closed immediately and borrowed
+     * ones are closed when released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drainIdle();
+
+        synchronized (this) {
+            if (helperExecutor != null)
+                helperExecutor.shutdown();
+        }
+    }
+    // =========================================================================
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates threads used to run blocking SMTP conversations.
+ *
+ * Java 21 implementation (multi-release JAR): each task runs on its own
+ * virtual thread, so a task waiting for a pooled connection does not hold a
+ * platform thread.
+ *
+ * SMTP conversations themselves run inside JavaMail's synchronized
+ * SMTPTransport methods, which pin the virtual thread to its carrier (up to
+ * Java 23) while blocked on the socket.
+ */
+final class SendThreads {
+    // CLASS SCOPE =============================================================
+    static boolean isVirtual() {
+        return true;
+    }
+
+    static ExecutorService newPerTaskExecutor(String threadPrefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(threadPrefix, 1).factory());
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    private SendThreads() {}
+    // =========================================================================
+}
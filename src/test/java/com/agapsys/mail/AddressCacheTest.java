@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AddressCacheTest {
+    @Test
+    public void plainAddresses() throws AddressException {
+        String[] plain = { "user@host.com", "first.last@sub.host.com", "a+tag@h", "x_y-z!#$%&'*/=?^`{|}~@a-b.c1" };
+
+        for (String address : plain) {
+            assertTrue(address, AddressCache.isPlainAddress(address));
+
+            InternetAddress expected = new InternetAddress(address);
+            InternetAddress actual = AddressCache.parseAddress(address);
+            assertEquals(expected, actual);
+            assertEquals(expected.getAddress(), actual.getAddress());
+            assertEquals(expected.getPersonal(), actual.getPersonal());
+            assertEquals(expected.toString(), actual.toString());
+        }
+
+        String[] notPlain = { "Name <user@host.com>", "user", "@host.com", "user@", ".user@host.com", "us..er@host.com", "user.@host.com", "user@.host.com", "user@host..com", "user@-host.com", "user@host-.com", "\"quoted\"@host.com", "us er@host.com", "usér@host.com", "user@host.com (comment)" };
+
+        for (String address : notPlain)
+            assertFalse(address, AddressCache.isPlainAddress(address));
+    }
+
+    @Test
+    public void fullParser() throws AddressException {
+        InternetAddress address = AddressCache.parseAddress("Name <user@host.com>");
+        assertEquals("Name", address.getPersonal());
+        assertEquals("user@host.com", address.getAddress());
+        assertTrue(address instanceof ReadOnlyInternetAddress);
+    }
+
+    @Test(expected = AddressException.class)
+    public void invalidAddress() throws AddressException {
+        new AddressCache().getAddress("Name <user@host.com");
+    }
+
+    @Test(expected = AddressException.class)
+    public void emptyAddress() throws AddressException {
+        new AddressCache().getAddress("  ");
+    }
+
+    @Test
+    public void sharedInstances() throws AddressException {
+        AddressCache cache = new AddressCache(100);
+
+        InternetAddress address = cache.getAddress("user@host.com");
+        assertSame(address, cache.getAddress(" user@host.com "));
+        assertTrue(address instanceof ReadOnlyInternetAddress);
+        assertEquals(1, cache.getSize());
+
+        Message message1 = new MessageBuilder(cache, "sender@host.com", "user@host.com").build();
+        Message message2 = new MessageBuilder(cache, "sender@host.com", "user@host.com").build();
+        assertSame(address, message1.getRecipients().iterator().next());
+        assertSame(message1.getSenderAddress(), message2.getSenderAddress());
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertNotSame(address, cache.getAddress("user@host.com"));
+    }
+
+    @Test
+    public void bounded() throws AddressException {
+        AddressCache cache = new AddressCache(64);
+
+        for (int i = 0; i < 1000; i++)
+            cache.getAddress("user" + i + "@host.com");
+
+        assertTrue(cache.getSize() <= 64);
+        assertTrue(cache.getSize() > 0);
+
+        cache = new AddressCache(1);
+        cache.getAddress("a@host.com");
+        cache.getAddress("b@host.com");
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMaxSize() {
+        new AddressCache(0);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AddressSetTest {
+    private static List<InternetAddress> addresses(int count) {
+        List<InternetAddress> list = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++)
+            list.add(new ReadOnlyInternetAddress("user" + i + "@host.com"));
+
+        return list;
+    }
+
+    @Test
+    public void setSemantics() throws AddressException {
+        List<InternetAddress> list = addresses(10);
+        list.add(new InternetAddress("USER3@host.com")); // <-- duplicate (addresses are case-insensitive)
+
+        AddressSet set = AddressSet.of(list);
+        assertEquals(10, set.size());
+        assertEquals(new LinkedHashSet<>(list), set);
+        assertEquals(set, new LinkedHashSet<>(list));
+        assertEquals(new LinkedHashSet<>(list).hashCode(), set.hashCode());
+        assertTrue(set.contains(new InternetAddress("user9@HOST.com")));
+        assertFalse(set.contains(new InternetAddress("user10@host.com")));
+        assertFalse(set.contains("user1@host.com"));
+        assertArrayEquals(list.subList(0, 10).toArray(), set.toArray(new InternetAddress[0]));
+
+        Iterator<InternetAddress> iterator = set.iterator();
+        for (int i = 0; i < 10; i++)
+            assertSame(list.get(i), iterator.next());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void immutable() {
+        Iterator<InternetAddress> iterator = AddressSet.of(addresses(2)).iterator();
+        iterator.next();
+        iterator.remove();
+    }
+
+    @Test
+    public void union() {
+        List<InternetAddress> list = addresses(6);
+        AddressSet first = AddressSet.of(list.subList(0, 4));
+        AddressSet second = AddressSet.of(list.subList(2, 6));
+
+        Set<InternetAddress> union = AddressSet.union(first, second);
+        assertEquals(new ArrayList<>(list), new ArrayList<>(union));
+        assertSame(first, AddressSet.union(first, AddressSet.EMPTY));
+        assertSame(second, AddressSet.union(AddressSet.EMPTY, second));
+    }
+
+    @Test
+    public void large() {
+        List<InternetAddress> list = addresses(100000);
+        AddressSet set = AddressSet.of(list);
+
+        assertEquals(100000, set.size());
+        for (InternetAddress address : list)
+            assertTrue(set.contains(address));
+
+        assertTrue(Arrays.asList(set.toArray()).equals(list));
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncSmtpSenderTest {
+    private MockSmtpSender mockSender;
+
+    @Before
+    public void before() {
+        mockSender = new MockSmtpSender();
+    }
+
+    private Message getMessage(String subject) throws AddressException {
+        return new MessageBuilder("sender@host.com", "recipient@host.com").setSubject(subject).build();
+    }
+
+    @Test
+    public void sendMessage() throws AddressException, InterruptedException, ExecutionException {
+        try (AsyncSmtpSender sender = new AsyncSmtpSender(mockSender)) {
+            Future<SendResult> future = sender.sendMessage(getMessage("ok"));
+            SendResult result = future.get();
+
+            assertTrue(result.isSuccess());
+            assertNull(result.getError());
+            assertEquals("ok", result.getMessage().getSubject());
+        }
+
+        assertEquals(1, mockSender.sentMessages.size());
+    }
+
+    @Test
+    public void failedMessage() throws AddressException, InterruptedException, ExecutionException {
+        mockSender.failingSubject = "fail";
+        final AtomicReference<SendResult> callbackResult = new AtomicReference<>();
+
+        try (AsyncSmtpSender sender = new AsyncSmtpSender(mockSender)) {
+            SendResult result = sender.sendMessage(getMessage("fail"), new SendCallback() {
+                @Override
+                public void onComplete(SendResult result) {
+                    callbackResult.set(result);
+                }
+            }).get();
+
+            assertFalse(result.isSuccess());
+            assertTrue(result.getError() instanceof MessagingException);
+            assertSame(result, callbackResult.get());
+        }
+    }
+
+    @Test
+    public void wrappedSenderClosed() throws Exception {
+        mockSender.latch = new CountDownLatch(1);
+        final AtomicInteger callbacks = new AtomicInteger();
+
+        AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 1, 10, RejectionPolicy.REJECT);
+        List<Future<SendResult>> futures = new LinkedList<>();
+
+        for (int i = 0; i < 3; i++) {
+            futures.add(sender.sendMessage(getMessage("" + i), new SendCallback() {
+                @Override
+                public void onComplete(SendResult result) {
+                    callbacks.incrementAndGet();
+                }
+            }));
+        }
+
+        mockSender.close(); // <-- with messages still queued
+        mockSender.latch.countDown();
+        sender.close();
+
+        for (Future<SendResult> future : futures) {
+            SendResult result = future.get(); // <-- does not complete exceptionally
+            assertFalse(result.isSuccess());
+            assertTrue(result.getError().getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(3, callbacks.get());
+    }
+
+    @Test
+    public void rejectWhenFull() throws AddressException {
+        mockSender.latch = new CountDownLatch(1);
+
+        AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 1, 1, RejectionPolicy.REJECT);
+        sender.sendMessage(getMessage("1")); // <-- running
+        sender.sendMessage(getMessage("2")); // <-- queued
+
+        RejectedExecutionException error = null;
+        try {
+            sender.sendMessage(getMessage("3"));
+        } catch (RejectedExecutionException ex) {
+            error = ex;
+        }
+
+        assertNotNull(error);
+        mockSender.latch.countDown();
+        sender.close();
+        assertEquals(2, mockSender.sentMessages.size());
+    }
+
+    @Test
+    public void callerRunsWhenFull() throws AddressException {
+        mockSender.latch = new CountDownLatch(1);
+
+        AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 1, 1, RejectionPolicy.CALLER_RUNS);
+        sender.sendMessage(getMessage("1"));
+        sender.sendMessage(getMessage("2"));
+
+        // Worker stays blocked (queue stays full) while the caller sends...
+        CountDownLatch workerLatch = mockSender.latch;
+        mockSender.latch = null;
+
+        Message message = getMessage("3");
+        sender.sendMessage(message); // <-- runs in this thread
+        assertTrue(mockSender.sentMessages.contains(message));
+
+        workerLatch.countDown();
+        sender.close();
+        assertEquals(3, mockSender.sentMessages.size());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void callerRunsAfterShutdown() throws AddressException {
+        AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 1, 1, RejectionPolicy.CALLER_RUNS);
+        sender.shutdown();
+        sender.sendMessage(getMessage("late")); // <-- must not be silently discarded
+    }
+
+    @Test
+    public void perMessageSender() throws AddressException, InterruptedException, ExecutionException {
+        mockSender.latch = new CountDownLatch(1);
+
+        AsyncSmtpSender sender = AsyncSmtpSender.newPerMessageSender(mockSender);
+        Future<SendResult> future = null;
+
+        for (int i = 0; i < 50; i++)
+            future = sender.sendMessage(getMessage(Integer.toString(i))); // <-- each message gets its own thread
+
+        assertEquals(0, sender.getQueueSize());
+        assertFalse(future.isDone());
+
+        mockSender.latch.countDown();
+        assertTrue(future.get().isSuccess());
+        sender.close();
+        assertTrue(sender.isTerminated());
+        assertEquals(50, mockSender.sentMessages.size());
+    }
+
+    @Test
+    public void blockWhenFull() throws Exception {
+        mockSender.latch = new CountDownLatch(1);
+
+        final AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 1, 1, RejectionPolicy.BLOCK);
+        sender.sendMessage(getMessage("1"));
+        sender.sendMessage(getMessage("2"));
+
+        final Message message = getMessage("3");
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                sender.sendMessage(message);
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive()); // <-- blocked
+
+        mockSender.latch.countDown();
+        producer.join();
+        sender.close();
+        assertEquals(3, mockSender.sentMessages.size());
+    }
+
+    @Test
+    public void blockedDuringShutdown() throws Exception {
+        mockSender.latch = new CountDownLatch(1);
+
+        final AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 1, 1, RejectionPolicy.BLOCK);
+        sender.sendMessage(getMessage("1"));
+        sender.sendMessage(getMessage("2"));
+
+        final Message message = getMessage("3");
+        final AtomicReference<RejectedExecutionException> error = new AtomicReference<>();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sender.sendMessage(message);
+                } catch (RejectedExecutionException ex) {
+                    error.set(ex);
+                }
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive()); // <-- blocked
+
+        List<Message> pending = sender.shutdownNow(); // <-- frees queue space
+        producer.join();
+
+        assertEquals(1, pending.size());
+        assertNotNull(error.get()); // <-- instead of a queued task which would never run
+        assertTrue(sender.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, sender.getQueueSize());
+    }
+
+    @Test
+    public void gracefulShutdown() throws AddressException, InterruptedException {
+        mockSender.latch = new CountDownLatch(1);
+
+        AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 2, 100, RejectionPolicy.REJECT);
+        for (int i = 0; i < 10; i++)
+            sender.sendMessage(getMessage("" + i));
+
+        sender.shutdown();
+        assertFalse(sender.awaitTermination(10, TimeUnit.MILLISECONDS));
+
+        mockSender.latch.countDown();
+        assertTrue(sender.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(10, mockSender.sentMessages.size());
+    }
+
+    @Test
+    public void shutdownNow() throws AddressException {
+        mockSender.latch = new CountDownLatch(1);
+
+        AsyncSmtpSender sender = new AsyncSmtpSender(mockSender, 1, 100, RejectionPolicy.REJECT);
+        for (int i = 0; i < 5; i++)
+            sender.sendMessage(getMessage("" + i));
+
+        List<Message> pending = sender.shutdownNow();
+        assertEquals(4, pending.size());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void sendAfterShutdown() throws AddressException {
+        AsyncSmtpSender sender = new AsyncSmtpSender(mockSender);
+        sender.shutdown();
+        sender.sendMessage(getMessage("late"));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.activation.DataSource;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AttachmentTest {
+    /** In-memory data source counting how many times its data is requested. */
+    private static class CountingDataSource implements DataSource {
+        private final byte[] data;
+        private final String name;
+        private final AtomicInteger reads = new AtomicInteger();
+
+        private CountingDataSource(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            reads.incrementAndGet();
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Read-only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) > 0)
+            bos.write(buffer, 0, read);
+
+        return bos.toByteArray();
+    }
+
+    private MimeMessage roundTrip(Message message) throws IOException, MessagingException {
+        MimeMessage mimeMessage = message.getMimeMessage(session);
+        mimeMessage.saveChanges();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        mimeMessage.writeTo(bos);
+        return new MimeMessage(session, new ByteArrayInputStream(bos.toByteArray()));
+    }
+
+    private Path newFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, data);
+        return file;
+    }
+
+    @Test
+    public void fileAttachment() throws Exception {
+        Path file = newFile("report.pdf", 300 * 1024);
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com").setText("See attached").addAttachment(file).build();
+
+        Attachment attachment = message.getAttachments().get(0);
+        assertEquals("report.pdf", attachment.getName());
+        assertFalse(attachment.isInline());
+
+        MimeMessage parsed = roundTrip(message);
+        assertTrue(parsed.getContentType().startsWith("multipart/mixed"));
+
+        MimeMultipart multipart = (MimeMultipart) parsed.getContent();
+        assertEquals(2, multipart.getCount());
+        assertEquals("See attached", multipart.getBodyPart(0).getContent());
+
+        BodyPart part = multipart.getBodyPart(1);
+        assertEquals(Part.ATTACHMENT, part.getDisposition());
+        assertEquals("report.pdf", part.getFileName());
+        assertTrue(Arrays.equals(Files.readAllBytes(file), readAll(part.getInputStream())));
+    }
+
+    @Test
+    public void inlineAttachments() throws Exception {
+        CountingDataSource logo = new CountingDataSource("logo.png", new byte[] { 1, 2, 3 });
+        Path file = newFile("data.bin", 10);
+
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com")
+            .setText("<img src=\"cid:logo\">")
+            .setMimeSubtype("html")
+            .addInlineAttachment(logo, "logo")
+            .addAttachment(file)
+            .build();
+
+        MimeMultipart mixed = (MimeMultipart) roundTrip(message).getContent();
+        assertEquals(2, mixed.getCount());
+
+        MimeMultipart related = (MimeMultipart) mixed.getBodyPart(0).getContent();
+        assertTrue(related.getContentType().startsWith("multipart/related"));
+        assertEquals(2, related.getCount());
+        assertEquals("<img src=\"cid:logo\">", related.getBodyPart(0).getContent());
+        assertEquals("<logo>", ((javax.mail.internet.MimeBodyPart) related.getBodyPart(1)).getContentID());
+        assertEquals(Part.INLINE, related.getBodyPart(1).getDisposition());
+        assertEquals("data.bin", mixed.getBodyPart(1).getFileName());
+
+        // Only inline attachments: no "multipart/mixed" wrapper...
+        message = new MessageBuilder("sender@host.com", "recipient@host.com").addInlineAttachment(logo, "logo").build();
+        assertTrue(roundTrip(message).getContentType().startsWith("multipart/related"));
+    }
+
+    @Test
+    public void dataIsReadOnEachWrite() throws Exception {
+        CountingDataSource source = new CountingDataSource("data.bin", new byte[1024]);
+        Message message = new MessageBuilder("sender@host.com", "a@host.com", "b@host.com").addAttachment(source).build();
+
+        roundTrip(message);
+        roundTrip(message);
+
+        // Data is not retained by the message: it is requested again for every copy.
+        assertEquals(2, source.reads.get());
+    }
+
+    @Test
+    public void sendToSink() throws Exception {
+        Path file = newFile("large.bin", 2 * 1024 * 1024);
+
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.setStoringMessages(true);
+
+            try (SmtpSender smtpSender = new SmtpSender(server.getSmtpSettings())) {
+                Message message = new MessageBuilder("sender@host.com", "a@host.com", "b@host.com").addAttachment(file).build();
+                assertEquals(2, smtpSender.sendIndividually(message).size());
+            }
+
+            assertEquals(2, server.getMessageCount());
+            String data = server.getReceivedMessages().get(1).getData();
+            MimeMessage received = new MimeMessage(session, new ByteArrayInputStream(data.getBytes("ISO-8859-1")));
+            BodyPart part = ((MimeMultipart) received.getContent()).getBodyPart(1);
+            assertTrue(Arrays.equals(Files.readAllBytes(file), readAll(part.getInputStream())));
+        }
+    }
+
+    @Test
+    public void spooled() throws Exception {
+        Path file = newFile("doc.txt", 100);
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com").addInlineAttachment(file, "doc").build();
+
+        Message decoded = MessageCodec.decode(MessageCodec.encode(message));
+        Attachment attachment = decoded.getAttachments().get(0);
+        assertEquals("doc.txt", attachment.getName());
+        assertEquals("doc", attachment.getContentId());
+        assertEquals(message.getAttachments().get(0).getContentType(), attachment.getContentType());
+        assertEquals(file.toAbsolutePath(), attachment.getPath());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void spooledDataSource() throws Exception {
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com").addAttachment(new CountingDataSource("a", new byte[0])).build();
+        MessageCodec.encode(message);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingFile() throws Exception {
+        new MessageBuilder("sender@host.com", "recipient@host.com").addAttachment(folder.getRoot().toPath().resolve("missing"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateContentId() throws Exception {
+        new MessageBuilder("sender@host.com", "recipient@host.com")
+            .addInlineAttachment(new CountingDataSource("a", new byte[0]), "cid")
+            .addInlineAttachment(new CountingDataSource("b", new byte[0]), "cid");
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class DirectSmtpSenderTest {
+    // CLASS SCOPE =============================================================
+    /** Resolver backed by a fixed table. */
+    private static class StubResolver implements MxResolver {
+        private final Map<String, List<MxRecord>> records = new HashMap<>();
+
+        private StubResolver add(String domain, MxRecord... domainRecords) {
+            records.put(domain, Arrays.asList(domainRecords));
+            return this;
+        }
+
+        @Override
+        public List<MxRecord> resolve(String domain) throws MessagingException {
+            List<MxRecord> domainRecords = records.get(domain);
+            return domainRecords != null ? domainRecords : Collections.<MxRecord>emptyList();
+        }
+    }
+
+    /** Sender which maps mail exchanger hosts to local ports. */
+    private static class LocalSender extends DirectSmtpSender {
+        private final Map<String, Integer> ports;
+
+        private LocalSender(SmtpSettings smtpSettings, MxResolver resolver, Map<String, Integer> ports) {
+            this(smtpSettings, new DirectDeliverySettings(), resolver, ports);
+        }
+
+        private LocalSender(SmtpSettings smtpSettings, DirectDeliverySettings settings, MxResolver resolver, Map<String, Integer> ports) {
+            super(smtpSettings, new PoolSettings(), settings, resolver);
+            this.ports = ports;
+        }
+
+        @Override
+        SmtpSender newSender(SmtpSettings smtpSettings, PoolSettings poolSettings) {
+            Integer port = ports.get(smtpSettings.getServer());
+            smtpSettings.setServer("127.0.0.1");
+            smtpSettings.setPort(port);
+            return super.newSender(smtpSettings, poolSettings);
+        }
+    }
+
+    private static int getClosedPort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Set<String> getRecipients(SmtpSinkServer server) {
+        Set<String> recipients = new HashSet<>();
+
+        for (SmtpSinkServer.ReceivedMessage message : server.getReceivedMessages())
+            recipients.addAll(message.getRecipients());
+
+        return recipients;
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    @Test
+    public void getDomain() throws Exception {
+        assertEquals("host.com", DirectSmtpSender.getDomain(new InternetAddress("user@Host.COM")));
+        assertNull(DirectSmtpSender.getDomain(new InternetAddress("user", false)));
+
+        InternetAddress address = new InternetAddress();
+        address.setAddress("user@ação.com");
+        assertEquals("xn--ao-siap.com", DirectSmtpSender.getDomain(address));
+    }
+
+    @Test
+    public void settings() {
+        Properties props = new Properties();
+        props.setProperty(DirectDeliverySettings.KEY_PARALLEL_DOMAINS, "4");
+        props.setProperty(DirectDeliverySettings.KEY_DNS_SERVERS, "10.0.0.1, 10.0.0.2:5353");
+        props.setProperty(DirectDeliverySettings.KEY_DEFAULT_TTL, "1000");
+        props.setProperty(DirectDeliverySettings.KEY_MAX_EXCHANGERS, "10");
+
+        DirectDeliverySettings settings = new DirectDeliverySettings(props);
+        assertEquals(4, settings.getParallelDomains());
+        assertEquals(Arrays.asList("10.0.0.1", "10.0.0.2:5353"), settings.getDnsServers());
+        assertEquals(1000, settings.getDefaultTtl());
+        assertEquals(DirectDeliverySettings.DEFAULT_NEGATIVE_TTL, settings.getNegativeTtl());
+        assertEquals(DirectDeliverySettings.DEFAULT_DNS_TIMEOUT, settings.getDnsTimeout());
+        assertEquals(10, settings.getMaxExchangers());
+    }
+
+    @Test
+    public void deliverToDomains() throws Exception {
+        try (SmtpSinkServer serverA = new SmtpSinkServer(); SmtpSinkServer serverB = new SmtpSinkServer()) {
+            serverA.setStoringMessages(true);
+            serverB.setStoringMessages(true);
+
+            StubResolver resolver = new StubResolver()
+                .add("a.test", new MxRecord("mx.a.test", 10))
+                .add("b.test", new MxRecord("mx.b.test", 10));
+
+            Map<String, Integer> ports = new HashMap<>();
+            ports.put("mx.a.test", serverA.getPort());
+            ports.put("mx.b.test", serverB.getPort());
+
+            Message message = new MessageBuilder("sender@host.com", "one@a.test", "two@a.test", "three@b.test").setText("Hello").build();
+
+            try (LocalSender sender = new LocalSender(new SmtpSettings(), resolver, ports)) {
+                sender.sendMessage(message);
+                sender.sendMessage(message);
+                assertEquals(2, sender.getExchangerCount());
+            }
+
+            // One transaction per domain...
+            assertEquals(2, serverA.getMessageCount());
+            assertEquals(2, serverB.getMessageCount());
+            assertEquals(new HashSet<>(Arrays.asList("one@a.test", "two@a.test")), getRecipients(serverA));
+            assertEquals(Collections.singleton("three@b.test"), getRecipients(serverB));
+
+            // Pooled connections are reused...
+            assertEquals(1, serverA.getConnectionCount());
+            assertEquals(1, serverB.getConnectionCount());
+            assertEquals(Collections.emptyList(), serverA.getErrors());
+            assertEquals(Collections.emptyList(), serverB.getErrors());
+        }
+    }
+
+    @Test
+    public void evictExchangers() throws Exception {
+        try (SmtpSinkServer serverA = new SmtpSinkServer(); SmtpSinkServer serverB = new SmtpSinkServer()) {
+            StubResolver resolver = new StubResolver()
+                .add("a.test", new MxRecord("mx.a.test", 10))
+                .add("b.test", new MxRecord("mx.b.test", 10));
+
+            Map<String, Integer> ports = new HashMap<>();
+            ports.put("mx.a.test", serverA.getPort());
+            ports.put("mx.b.test", serverB.getPort());
+
+            DirectDeliverySettings settings = new DirectDeliverySettings();
+            settings.setMaxExchangers(1);
+
+            try (LocalSender sender = new LocalSender(new SmtpSettings(), settings, resolver, ports)) {
+                sender.sendMessage(new MessageBuilder("sender@host.com", "one@a.test").setText("Hello").build());
+                sender.sendMessage(new MessageBuilder("sender@host.com", "two@b.test").setText("Hello").build());
+                assertEquals(1, sender.getExchangerCount());
+                assertEquals(1, serverA.getQuitCount()); // <-- evicted sender was closed
+
+                sender.sendMessage(new MessageBuilder("sender@host.com", "three@a.test").setText("Hello").build());
+                assertEquals(1, sender.getExchangerCount());
+                assertEquals(1, serverB.getQuitCount());
+            }
+
+            assertEquals(2, serverA.getMessageCount());
+            assertEquals(2, serverA.getConnectionCount()); // <-- reconnected after eviction
+            assertEquals(1, serverB.getMessageCount());
+        }
+    }
+
+    @Test
+    public void failover() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer()) {
+            StubResolver resolver = new StubResolver()
+                .add("host.test", new MxRecord("backup.host.test", 20), new MxRecord("primary.host.test", 10));
+
+            Map<String, Integer> ports = new HashMap<>();
+            ports.put("primary.host.test", getClosedPort());
+            ports.put("backup.host.test", server.getPort());
+
+            try (LocalSender sender = new LocalSender(new SmtpSettings(), resolver, ports)) {
+                sender.sendMessage(new MessageBuilder("sender@host.com", "user@host.test").setText("Hello").build());
+            }
+
+            assertEquals(1, server.getMessageCount());
+        }
+    }
+
+    @Test
+    public void partialFailure() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer()) {
+            StubResolver resolver = new StubResolver()
+                .add("a.test", new MxRecord("mx.a.test", 10))
+                .add("down.test", new MxRecord("mx.down.test", 10));
+
+            Map<String, Integer> ports = new HashMap<>();
+            ports.put("mx.a.test", server.getPort());
+            ports.put("mx.down.test", getClosedPort());
+
+            Message message = new MessageBuilder("sender@host.com", "one@a.test", "two@down.test", "three@nomx.test").setText("Hello").build();
+
+            try (LocalSender sender = new LocalSender(new SmtpSettings(), resolver, ports)) {
+                SendResult result = sender.sendMessages(Collections.singletonList(message)).get(0);
+
+                assertTrue(result.getError() instanceof SendFailedException);
+                assertEquals(Collections.singleton(new InternetAddress("one@a.test")), result.getDeliveredRecipients());
+                assertEquals(Collections.singleton(new InternetAddress("two@down.test")), result.getDeferredRecipients());
+                assertEquals(Collections.singleton(new InternetAddress("three@nomx.test")), result.getFailedRecipients());
+
+                // Single domain which does not accept mail...
+                result = sender.sendMessages(Collections.singletonList(new MessageBuilder("sender@host.com", "user@nomx.test").setText("Hello").build())).get(0);
+                assertEquals(Collections.singleton(new InternetAddress("user@nomx.test")), result.getFailedRecipients());
+            }
+
+            assertEquals(1, server.getMessageCount());
+        }
+    }
+
+    @Test
+    public void rejectedDomains() throws Exception {
+        try (SmtpSinkServer serverA = new SmtpSinkServer(); SmtpSinkServer serverB = new SmtpSinkServer()) {
+            serverA.rejectRecipients("full", 552);
+            serverB.injectFailure("DATA", 554, 1);
+
+            StubResolver resolver = new StubResolver()
+                .add("a.test", new MxRecord("mx.a.test", 10))
+                .add("b.test", new MxRecord("mx.b.test", 10));
+
+            Map<String, Integer> ports = new HashMap<>();
+            ports.put("mx.a.test", serverA.getPort());
+            ports.put("mx.b.test", serverB.getPort());
+
+            Message message = new MessageBuilder("sender@host.com", "one@a.test", "full@a.test", "two@b.test").setText("Hello").build();
+
+            try (LocalSender sender = new LocalSender(new SmtpSettings(), resolver, ports)) {
+                SendResult result = sender.sendMessages(Collections.singletonList(message)).get(0);
+
+                // 552 on RCPT is transient; rejected DATA (which reports no addresses) is permanent...
+                assertEquals(Collections.singleton(new InternetAddress("one@a.test")), result.getDeliveredRecipients());
+                assertEquals(Collections.singleton(new InternetAddress("full@a.test")), result.getDeferredRecipients());
+                assertEquals(Collections.singleton(new InternetAddress("two@b.test")), result.getFailedRecipients());
+            }
+        }
+    }
+
+    @Test
+    public void noSettingsOfItsOwn() {
+        try (LocalSender sender = new LocalSender(new SmtpSettings(), new StubResolver(), Collections.<String, Integer>emptyMap())) {
+            assertTrue(sender.isPooled());
+
+            UnsupportedOperationException error = null;
+            try {
+                sender.getSettings();
+            } catch (UnsupportedOperationException ex) {
+                error = ex;
+            }
+
+            assertNotNull(error);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sendAfterClose() throws Exception {
+        LocalSender sender = new LocalSender(new SmtpSettings(), new StubResolver(), Collections.<String, Integer>emptyMap());
+        sender.close();
+        sender.sendMessage(new MessageBuilder("sender@host.com", "user@host.test").setText("Hello").build());
+    }
+    // =========================================================================
+}
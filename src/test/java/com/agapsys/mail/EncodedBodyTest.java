@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import org.junit.Assert;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class EncodedBodyTest {
+    private final Session session = Session.getInstance(new Properties());
+
+    private static String[] split(MimeMessage mimeMessage) throws IOException, MessagingException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        mimeMessage.writeTo(bos);
+        String data = bos.toString("US-ASCII");
+        int index = data.indexOf("\r\n\r\n");
+        return new String[] { data.substring(0, index + 2), data.substring(index + 4) };
+    }
+
+    private void assertSameEncoding(String text, String charset, String subtype) throws Exception {
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com").setText(text).setCharset(charset).setMimeSubtype(subtype).build();
+
+        MimeMessage expected = new MimeMessage(session);
+        expected.setText(text, charset, subtype);
+        expected.saveChanges();
+
+        MimeMessage actual = message.getMimeMessage(session);
+        actual.saveChanges();
+
+        Assert.assertEquals(expected.getContentType(), actual.getContentType());
+        Assert.assertEquals(expected.getEncoding(), actual.getEncoding());
+        Assert.assertEquals(split(expected)[1], split(actual)[1]);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        expected.writeTo(bos);
+        Object expectedContent = new MimeMessage(session, new ByteArrayInputStream(bos.toByteArray())).getContent();
+        Assert.assertEquals(expectedContent, actual.getContent());
+    }
+
+    @Test
+    public void sameEncodingAsMimeMessage() throws Exception {
+        assertSameEncoding("Hello world", "US-ASCII", "plain");
+        assertSameEncoding("Olá, ação!\nSegunda linha  \n", "UTF-8", "plain");
+        assertSameEncoding("<p>日本語のテキスト</p>", "UTF-8", "html");
+        assertSameEncoding(new String(new char[2000]).replace('\0', 'x'), "ISO-8859-1", "plain");
+    }
+
+    @Test
+    public void headers() throws Exception {
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Subject").setText("Text").build();
+        MimeMessage mimeMessage = message.getMimeMessage(session);
+        mimeMessage.saveChanges();
+
+        String headers = split(mimeMessage)[0];
+        Assert.assertTrue(headers.contains("From: sender@host.com\r\n"));
+        Assert.assertTrue(headers.contains("To: recipient@host.com\r\n"));
+        Assert.assertTrue(headers.contains("Subject: Subject\r\n"));
+        Assert.assertTrue(headers.contains("MIME-Version: 1.0\r\n"));
+        Assert.assertNotNull(mimeMessage.getMessageID());
+        Assert.assertNotNull(mimeMessage.getSentDate());
+    }
+
+    @Test
+    public void sharedByCopies() throws Exception {
+        Message message = new MessageBuilder("sender@host.com", "a@host.com", "b@host.com").setText("Text").build();
+        Message copy = message.withRecipients(Collections.singleton(new InternetAddress("a@host.com")));
+        Message copyOfCopy = copy.withRecipients(Collections.singleton(new InternetAddress("b@host.com")));
+
+        Assert.assertSame(message.getEncodedBody(), message.getEncodedBody());
+        Assert.assertSame(message.getEncodedBody(), copy.getEncodedBody());
+        Assert.assertSame(message.getEncodedBody(), copyOfCopy.getEncodedBody());
+        Assert.assertEquals(Collections.singleton(new InternetAddress("b@host.com")), copyOfCopy.getRecipients());
+        Assert.assertEquals("Text", copyOfCopy.getText());
+
+        MimeMessage mime1 = copy.getMimeMessage(session);
+        MimeMessage mime2 = copyOfCopy.getMimeMessage(session);
+        mime1.saveChanges();
+        mime2.saveChanges();
+        Assert.assertEquals(split(mime1)[1], split(mime2)[1]);
+        Assert.assertNotEquals(mime1.getMessageID(), mime2.getMessageID());
+    }
+
+    @Test
+    public void alternative() throws Exception {
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com").setHtml("<p>Ol\u00e1 <b>mundo</b></p>").setCharset("UTF-8").build();
+        assertEquals("Ol\u00e1 mundo", message.getText());
+        assertEquals("plain", message.getMimeSubtype());
+
+        MimeMessage mimeMessage = message.getMimeMessage(session);
+        mimeMessage.saveChanges();
+        assertTrue(mimeMessage.getContentType().startsWith("multipart/alternative"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        mimeMessage.writeTo(bos);
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(bos.toByteArray()));
+
+        MimeMultipart multipart = (MimeMultipart) parsed.getContent();
+        assertEquals(2, multipart.getCount());
+        assertTrue(multipart.getBodyPart(0).isMimeType("text/plain"));
+        assertEquals("Ol\u00e1 mundo", multipart.getBodyPart(0).getContent());
+        assertTrue(multipart.getBodyPart(1).isMimeType("text/html"));
+        assertEquals("<p>Ol\u00e1 <b>mundo</b></p>", multipart.getBodyPart(1).getContent());
+
+        // Structure is encoded once: copies write the same bytes...
+        Message copy = message.withRecipients(Collections.singleton(new InternetAddress("other@host.com")));
+        assertSame(message.getEncodedBody(), copy.getEncodedBody());
+        MimeMessage copyMime = copy.getMimeMessage(session);
+        copyMime.saveChanges();
+        assertEquals(split(mimeMessage)[1], split(copyMime)[1]);
+    }
+
+    @Test
+    public void alternativeWithInlineAttachment() throws Exception {
+        ByteArrayDataSource logo = new ByteArrayDataSource(new byte[] { 1, 2, 3 }, "image/png");
+        logo.setName("logo.png");
+
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com")
+            .setPlainText("Logo")
+            .setHtml("<img src=\"cid:logo\">")
+            .addInlineAttachment(logo, "logo")
+            .build();
+
+        MimeMessage mimeMessage = message.getMimeMessage(session);
+        mimeMessage.saveChanges();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        mimeMessage.writeTo(bos);
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(bos.toByteArray()));
+
+        MimeMultipart related = (MimeMultipart) parsed.getContent();
+        assertTrue(related.getContentType().startsWith("multipart/related"));
+
+        MimeMultipart alternative = (MimeMultipart) related.getBodyPart(0).getContent();
+        assertEquals("Logo", alternative.getBodyPart(0).getContent());
+        assertEquals("<img src=\"cid:logo\">", alternative.getBodyPart(1).getContent());
+    }
+
+    @Test
+    public void wireFormIsReused() throws Exception {
+        Message message = new MessageBuilder("Sender <sender@host.com>", "recipient@host.com").setSubject("Subject").setText("Text").build().forDelivery();
+
+        MimeMessage first = message.getMimeMessage(session);
+        MimeMessage second = message.getMimeMessage(session);
+        second.saveChanges();
+
+        ByteArrayOutputStream firstBytes = new ByteArrayOutputStream();
+        first.writeTo(firstBytes);
+        ByteArrayOutputStream secondBytes = new ByteArrayOutputStream();
+        second.writeTo(secondBytes, new String[] { "Bcc" });
+
+        assertArrayEquals(firstBytes.toByteArray(), secondBytes.toByteArray());
+        assertEquals(first.getMessageID(), second.getMessageID());
+        assertEquals("Sender <sender@host.com>", second.getFrom()[0].toString());
+        assertEquals("recipient@host.com", second.getRecipients(javax.mail.Message.RecipientType.TO)[0].toString());
+        assertEquals("Subject", second.getSubject());
+        assertEquals("Text", second.getContent());
+
+        // Parsed bytes are the same message...
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(firstBytes.toByteArray()));
+        assertEquals(first.getMessageID(), parsed.getMessageID());
+        assertEquals("Text", parsed.getContent());
+    }
+
+    @Test
+    public void eachSendGetsNewMessageId() throws Exception {
+        Message message = new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Report").setText("Text").build();
+
+        MimeMessage first = message.getMimeMessage(session);
+        MimeMessage second = message.getMimeMessage(session);
+        assertNotEquals(first.getMessageID(), second.getMessageID()); // <-- otherwise receivers would discard re-sent messages as duplicates
+
+        // Delivery copies share the encoded body...
+        Message delivery = message.forDelivery();
+        assertSame(delivery, delivery.forDelivery());
+        assertSame(message.getEncodedBody(), delivery.getEncodedBody());
+        assertNotEquals(delivery.getMimeMessage(session).getMessageID(), message.forDelivery().getMimeMessage(session).getMessageID());
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class HtmlTextTest {
+    @Test
+    public void text() {
+        assertEquals("Hello world", HtmlText.toPlainText("  Hello   \n world  "));
+        assertEquals("Hello world", HtmlText.toPlainText("<b>Hello</b> <i>world</i>"));
+        assertEquals("a < b & c", HtmlText.toPlainText("a &lt; b &amp; c"));
+        assertEquals("çã \"x\" 'y'", HtmlText.toPlainText("&#231;&#xE3; &quot;x&quot; &apos;y&apos;"));
+        assertEquals("a &unknown; b", HtmlText.toPlainText("a &unknown; b"));
+        assertEquals("1 < 2 > 0", HtmlText.toPlainText("1 < 2 > 0"));
+    }
+
+    @Test
+    public void blocks() {
+        assertEquals("Title\n\nFirst\n\nSecond\nline", HtmlText.toPlainText("<h1>Title</h1><p>First</p>\n<p>Second<br/>line</p>"));
+        assertEquals("Items:\n\n- one\n- two", HtmlText.toPlainText("Items:<ul><li>one</li><li>two</li></ul>"));
+        assertEquals("a b\nc d", HtmlText.toPlainText("<table><tr><td>a</td><td>b</td></tr><tr><td>c</td><td>d</td></tr></table>"));
+    }
+
+    @Test
+    public void ignoredContent() {
+        assertEquals("Visible", HtmlText.toPlainText("<!DOCTYPE html><html><head><style>p { color: red; }</style><script>if (a < b) x();</script></head><body><!-- <p>hidden</p> -->Visible</body></html>"));
+        assertEquals("", HtmlText.toPlainText("<SCRIPT>never closed"));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import javax.mail.MessagingException;
+import javax.mail.util.ByteArrayDataSource;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryMetricsRecorderTest {
+    private InMemoryMetricsRecorder metrics;
+
+    @Before
+    public void before() {
+        MockTransport.reset();
+        metrics = new InMemoryMetricsRecorder();
+    }
+
+    @After
+    public void after() {
+        MockTransport.reset();
+    }
+
+    @Test
+    public void recordStages() throws MessagingException {
+        try (SmtpSender sender = MockTransport.getSender(new PoolSettings())) {
+            sender.setMetricsRecorder(metrics);
+
+            for (int i = 0; i < 5; i++)
+                sender.sendMessage(new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Subject").setText("Text").build());
+
+            try {
+                sender.sendMessage(new MessageBuilder("sender@host.com", "invalid@host.com").build());
+                fail();
+            } catch (MessagingException ex) {
+                // Expected
+            }
+        }
+
+        assertEquals(6, metrics.getLatency(MetricsRecorder.Stage.TOTAL).getCount());
+        assertEquals(6, metrics.getLatency(MetricsRecorder.Stage.BUILD).getCount());
+        assertEquals(6, metrics.getLatency(MetricsRecorder.Stage.TRANSACTION).getCount());
+        assertEquals(6, metrics.getLatency(MetricsRecorder.Stage.POOL_WAIT).getCount());
+        assertEquals(1, metrics.getLatency(MetricsRecorder.Stage.CONNECT).getCount());
+
+        assertEquals(5, metrics.getSuccessCount());
+        assertEquals(1, metrics.getFailureCount());
+        assertEquals(1, metrics.getResultCount(550));
+        assertTrue(metrics.getBytes() > 0);
+        assertEquals(1, metrics.getGauge(MetricsRecorder.Gauge.POOL_ACTIVE));
+    }
+
+    @Test
+    public void recordWrittenBytes() throws IOException, MessagingException {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            ByteArrayDataSource attachment = new ByteArrayDataSource(new byte[4096], "application/octet-stream");
+            attachment.setName("data.bin");
+
+            try (SmtpSender sender = new SmtpSender(server.getSmtpSettings(), new PoolSettings())) {
+                sender.setMetricsRecorder(metrics);
+                sender.sendMessage(new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Subject").setText("Text\r\n").build()); // <-- server would count a missing final CRLF
+                sender.sendMessage(new MessageBuilder("sender@host.com", "recipient@host.com").setText("Text").addAttachment(attachment).build());
+
+                server.injectFailure("DATA", 554, 1);
+                try {
+                    sender.sendMessage(new MessageBuilder("sender@host.com", "recipient@host.com").setText("Rejected").build());
+                    fail();
+                } catch (MessagingException ex) {
+                    // Expected
+                }
+            }
+
+            assertEquals(2, metrics.getResultCount(250)); // <-- reply codes come from the transport
+            assertEquals(1, metrics.getResultCount(554));
+            assertEquals(server.getByteCount(), metrics.getBytes()); // <-- rejected message is not counted
+        }
+    }
+
+    @Test
+    public void disabledByDefault() throws MessagingException {
+        try (SmtpSender sender = MockTransport.getSender(null)) {
+            assertSame(MetricsRecorder.NOOP, sender.getMetricsRecorder());
+            sender.sendMessage(new MessageBuilder("sender@host.com", "recipient@host.com").build());
+        }
+
+        assertEquals(0, metrics.getLatency(MetricsRecorder.Stage.TOTAL).getCount());
+    }
+
+    @Test
+    public void resultCounts() {
+        metrics.recordResult(250);
+        metrics.recordResult(250);
+        metrics.recordResult(421);
+        metrics.recordResult(-1);
+
+        assertEquals(2, metrics.getSuccessCount());
+        assertEquals(2, metrics.getFailureCount());
+        assertEquals(3, metrics.getResultCounts().size());
+        assertEquals(Long.valueOf(2), metrics.getResultCounts().get(250));
+    }
+}
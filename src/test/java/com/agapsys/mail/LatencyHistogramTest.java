@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE};
+
+        for (long value : values) {
+            int index = LatencyHistogram.getIndex(value);
+            assertTrue(LatencyHistogram.getLowestValue(index) <= value);
+            assertTrue(LatencyHistogram.getHighestValue(index) >= value);
+        }
+
+        // Buckets are contiguous...
+        for (int i = 1; i < LatencyHistogram.getIndex(Long.MAX_VALUE); i++)
+            assertEquals(LatencyHistogram.getHighestValue(i - 1) + 1, LatencyHistogram.getLowestValue(i));
+    }
+
+    @Test
+    public void precision() {
+        for (long value = 1; value < Long.MAX_VALUE / 3; value *= 3) {
+            int index = LatencyHistogram.getIndex(value);
+            long width = LatencyHistogram.getHighestValue(index) - LatencyHistogram.getLowestValue(index);
+            assertTrue(width <= value / 31);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean(), 0.001);
+
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 500000 && median <= 500000 * 1.04);
+
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        new LatencyHistogram().getValueAtPercentile(101);
+    }
+}
@@ -17,6 +17,7 @@
 package com.agapsys.mail;
 
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -227,4 +228,64 @@ public class MessageBuilderTest {
         Assert.assertEquals("Text", message.getText());
         Assert.assertEquals("utf-8", message.getCharset());
     }
+
+    @Test
+    public void html() {
+        Message message = testBuilder.setPlainText("Text").setHtml("<p>Html</p>").build();
+        Assert.assertEquals("Text", message.getText());
+        Assert.assertEquals("<p>Html</p>", message.getHtml());
+        Assert.assertEquals("plain", message.getMimeSubtype());
+    }
+
+    @Test
+    public void htmlOnly() {
+        Message message = testBuilder.setHtml("<p>Html &amp; text</p>").build();
+        Assert.assertEquals("Html & text", message.getText());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void htmlWithNonPlainText() {
+        testBuilder.setMimeSubtype("html").setHtml("<p>Html</p>").build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setHtmlTwice() {
+        testBuilder.setHtml("a").setHtml("b");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void plainTextAfterSubtype() {
+        testBuilder.setMimeSubtype("html").setPlainText("a");
+    }
+
+    @Test
+    public void bcc() throws AddressException {
+        Message message = testBuilder.addBcc("bcc1@host.com", "bcc2@host.com").build();
+        Assert.assertEquals(2, message.getRecipients().size());
+        Assert.assertEquals(2, message.getBccRecipients().size());
+        Assert.assertEquals(4, message.getAllRecipients().size());
+        Assert.assertTrue(message.getAllRecipients().contains(new InternetAddress("BCC1@host.com")));
+
+        Iterator<InternetAddress> iterator = message.getAllRecipients().iterator();
+        Assert.assertEquals(recipient1, iterator.next());
+        Assert.assertEquals(recipient2, iterator.next());
+        Assert.assertEquals("bcc1@host.com", iterator.next().getAddress());
+    }
+
+    @Test
+    public void bccOnly() throws AddressException {
+        Message message = new MessageBuilder(sender).addBcc(recipient1).build();
+        Assert.assertTrue(message.getRecipients().isEmpty());
+        Assert.assertEquals(Collections.singleton(recipient1), message.getAllRecipients());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateBcc() throws AddressException {
+        testBuilder.addBcc(recipient1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noRecipients() {
+        new MessageBuilder(sender).build();
+    }
 }
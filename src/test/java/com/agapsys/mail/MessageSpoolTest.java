@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageSpoolTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Message getMessage(String subject) throws AddressException {
+        return new MessageBuilder("Sender <sender@host.com>", "recipient1@host.com", "Recipient 2 <recipient2@host.com>")
+            .setSubject(subject)
+            .setText("Text: " + subject)
+            .setCharset("utf-8")
+            .setMimeSubtype("html")
+            .build();
+    }
+
+    private List<MessageSpool.SpooledMessage> pollAll(MessageSpool spool) throws InterruptedException {
+        List<MessageSpool.SpooledMessage> list = new ArrayList<>();
+        MessageSpool.SpooledMessage spooledMessage;
+
+        while ((spooledMessage = spool.poll(0, TimeUnit.MILLISECONDS)) != null)
+            list.add(spooledMessage);
+
+        return list;
+    }
+
+    @Test
+    public void codec() throws AddressException, IOException {
+        Message message = getMessage("Ação");
+        Message decoded = MessageCodec.decode(MessageCodec.encode(message));
+
+        assertEquals(message.getSenderAddress(), decoded.getSenderAddress());
+        assertEquals("Sender", decoded.getSenderAddress().getPersonal());
+        assertEquals(new ArrayList<>(message.getRecipients()), new ArrayList<>(decoded.getRecipients()));
+        assertEquals(message.getSubject(), decoded.getSubject());
+        assertEquals(message.getText(), decoded.getText());
+        assertEquals(message.getCharset(), decoded.getCharset());
+        assertEquals(message.getMimeSubtype(), decoded.getMimeSubtype());
+        assertTrue(decoded.getSenderAddress() instanceof ReadOnlyInternetAddress);
+
+        for (InternetAddress recipient : decoded.getRecipients())
+            assertTrue(recipient instanceof ReadOnlyInternetAddress);
+
+        assertNull(decoded.getHtml());
+
+        message = new MessageBuilder("sender@host.com", "recipient@host.com").setHtml("<p>Ação</p>").build();
+        decoded = MessageCodec.decode(MessageCodec.encode(message));
+        assertEquals("<p>Ação</p>", decoded.getHtml());
+        assertEquals("Ação", decoded.getText());
+    }
+
+    @Test
+    public void enqueueAndRecover() throws IOException, InterruptedException, AddressException {
+        File dir = folder.newFolder();
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            for (int i = 0; i < 5; i++)
+                spool.enqueue(getMessage("" + i));
+
+            List<MessageSpool.SpooledMessage> polled = pollAll(spool);
+            assertEquals(5, polled.size());
+
+            spool.acknowledge(polled.get(0).getId());
+            spool.acknowledge(polled.get(3).getId());
+        }
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            List<MessageSpool.SpooledMessage> recovered = pollAll(spool);
+            assertEquals(3, recovered.size());
+            assertEquals("1", recovered.get(0).getMessage().getSubject());
+            assertEquals("2", recovered.get(1).getMessage().getSubject());
+            assertEquals("4", recovered.get(2).getMessage().getSubject());
+
+            long id = spool.enqueue(getMessage("5"));
+            assertTrue(id > recovered.get(2).getId());
+        }
+    }
+
+    @Test
+    public void recipientProgress() throws IOException, InterruptedException, AddressException {
+        File dir = folder.newFolder();
+        InternetAddress remaining = new InternetAddress("remaining@host.com");
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            spool.enqueue(new MessageBuilder("sender@host.com", "delivered@host.com", "remaining@host.com").setSubject("progress").build());
+
+            List<MessageSpool.SpooledMessage> polled = pollAll(spool);
+            assertEquals(2, polled.get(0).getRemainingRecipients().size());
+
+            spool.updateRecipients(polled.get(0).getId(), Collections.singleton(remaining));
+        }
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            List<MessageSpool.SpooledMessage> recovered = pollAll(spool);
+            assertEquals(1, recovered.size());
+            assertEquals(Collections.singleton(remaining), recovered.get(0).getRemainingRecipients());
+            assertEquals(2, recovered.get(0).getMessage().getRecipients().size());
+        }
+    }
+
+    @Test
+    public void compaction() throws IOException, InterruptedException, AddressException {
+        File dir = folder.newFolder();
+
+        try (MessageSpool spool = new MessageSpool(dir, 128)) {
+            for (int i = 0; i < 10; i++)
+                spool.enqueue(getMessage("" + i));
+
+            assertTrue(spool.getSegmentCount() > 5);
+
+            for (MessageSpool.SpooledMessage spooledMessage : pollAll(spool))
+                spool.acknowledge(spooledMessage.getId());
+
+            spool.enqueue(getMessage("last")); // <-- forces acknowledgements to be processed
+            assertEquals(1, spool.getSegmentCount());
+        }
+
+        try (MessageSpool spool = new MessageSpool(dir, 128)) {
+            List<MessageSpool.SpooledMessage> recovered = pollAll(spool);
+            assertEquals(1, recovered.size());
+            assertEquals("last", recovered.get(0).getMessage().getSubject());
+        }
+    }
+
+    @Test
+    public void tornWrite() throws IOException, InterruptedException, AddressException {
+        File dir = folder.newFolder();
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            spool.enqueue(getMessage("1"));
+            spool.enqueue(getMessage("2"));
+        }
+
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            List<MessageSpool.SpooledMessage> recovered = pollAll(spool);
+            assertEquals(1, recovered.size());
+            assertEquals("1", recovered.get(0).getMessage().getSubject());
+        }
+    }
+
+    @Test
+    public void concurrentEnqueue() throws Exception {
+        final File dir = folder.newFolder();
+        final MessageSpool spool = new MessageSpool(dir);
+        final List<Long> ids = Collections.synchronizedList(new ArrayList<Long>());
+        final Message message = getMessage("concurrent");
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++)
+                            ids.add(spool.enqueue(message));
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(800, ids.size());
+        assertEquals(800, spool.getReadyCount());
+        spool.close();
+
+        try (MessageSpool recovered = new MessageSpool(dir)) {
+            assertEquals(800, recovered.getReadyCount());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void enqueueAfterClose() throws IOException, AddressException {
+        MessageSpool spool = new MessageSpool(folder.newFolder());
+        spool.close();
+        spool.enqueue(getMessage("late"));
+    }
+}
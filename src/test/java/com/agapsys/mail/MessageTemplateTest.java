@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageTemplateTest {
+    private final InternetAddress sender;
+    private final InternetAddress recipient1;
+    private final InternetAddress recipient2;
+
+    public MessageTemplateTest() throws AddressException {
+        this.sender = new InternetAddress("Sender <sender@host.com>");
+        this.recipient1 = new InternetAddress("Recipient1 <recipient1@host.com>");
+        this.recipient2 = new InternetAddress("Recipient2 <recipient2@host.com>");
+    }
+
+    private static Map<String, Object> vars(Object... keyValues) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2)
+            map.put((String) keyValues[i], keyValues[i + 1]);
+
+        return map;
+    }
+
+    @Test
+    public void render() {
+        MessageTemplate template = MessageTemplate.compile("  Hello ${name}  ", "Dear ${name}, you owe ${ amount }.", "UTF-8", null);
+        Assert.assertEquals(Arrays.asList("name", "amount"), Arrays.asList(template.getVariables().toArray()));
+
+        Message message = template.render(sender, recipient1, vars("name", "John", "amount", 10));
+        Assert.assertEquals("Hello John", message.getSubject());
+        Assert.assertEquals("Dear John, you owe 10.", message.getText());
+        Assert.assertEquals("UTF-8", message.getCharset());
+        Assert.assertEquals("plain", message.getMimeSubtype());
+        Assert.assertEquals(sender, message.getSenderAddress());
+        Assert.assertTrue(message.getSenderAddress() instanceof ReadOnlyInternetAddress);
+        Assert.assertEquals(Collections.singleton(recipient1), message.getRecipients());
+    }
+
+    @Test
+    public void renderIsReusable() {
+        MessageTemplate template = MessageTemplate.compile("Hi", "${a}${b}");
+        Assert.assertEquals("12", template.renderText(vars("a", 1, "b", 2)));
+        Assert.assertEquals("3", template.renderText(vars("a", 3, "b", "")));
+        Assert.assertEquals("Hi", template.renderSubject(vars()));
+    }
+
+    @Test
+    public void escape() {
+        MessageTemplate template = MessageTemplate.compile("", "$${name} is ${name} $ {x} $");
+        Assert.assertEquals("${name} is v $ {x} $", template.renderText(vars("name", "v")));
+    }
+
+    @Test
+    public void htmlEscape() {
+        MessageTemplate template = MessageTemplate.compile("${v}", "<p>${v}</p>", null, "html");
+        Message message = template.render(sender, recipient1, vars("v", "<a & 'b'>"));
+        Assert.assertEquals("<a & 'b'>", message.getSubject());
+        Assert.assertEquals("<p>&lt;a &amp; &#39;b&#39;&gt;</p>", message.getText());
+    }
+
+    @Test
+    public void htmlAlternative() throws Exception {
+        MessageTemplate template = MessageTemplate.compileAlternative("Hi ${name}", "Hello ${name}", "<p>Hello <b>${name}</b></p>", "UTF-8");
+        Assert.assertTrue(template.hasHtml());
+        Assert.assertEquals(Collections.singletonList("name"), Arrays.asList(template.getVariables().toArray()));
+
+        Message message = template.render(sender, recipient1, vars("name", "<Bob>"));
+        Assert.assertEquals("Hi <Bob>", message.getSubject());
+        Assert.assertEquals("Hello <Bob>", message.getText());
+        Assert.assertEquals("<p>Hello <b>&lt;Bob&gt;</b></p>", message.getHtml());
+        Assert.assertTrue(message.getMimeMessage(Session.getInstance(new Properties())).getContentType().startsWith("multipart/alternative"));
+
+        Assert.assertFalse(MessageTemplate.compile("s", "t").hasHtml());
+        Assert.assertNull(MessageTemplate.compile("s", "t").renderHtml(vars()));
+    }
+
+    @Test
+    public void htmlAlternativeWithGeneratedText() {
+        MessageTemplate template = MessageTemplate.compileAlternative("Hi", null, "<p>Hello ${name}</p>", null);
+        Message message = template.render(sender, recipient1, vars("name", "Bob & co"));
+
+        Assert.assertEquals("<p>Hello Bob &amp; co</p>", message.getHtml());
+        Assert.assertEquals(HtmlText.toPlainText(message.getHtml()), message.getText());
+        Assert.assertEquals(message.getText(), template.renderText(vars("name", "Bob & co")));
+    }
+
+    @Test
+    public void multipleRecipients() {
+        MessageTemplate template = MessageTemplate.compile("s", "t");
+        Message message = template.render(sender, Arrays.asList(recipient1, recipient2), vars());
+
+        Iterator<InternetAddress> it = message.getRecipients().iterator();
+        Assert.assertEquals(recipient1, it.next());
+        Assert.assertEquals(recipient2, it.next());
+        Assert.assertFalse(it.hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateRecipients() {
+        MessageTemplate.compile("s", "t").render(sender, Arrays.asList(recipient1, recipient1), vars());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingVariable() {
+        MessageTemplate.compile("s", "${a}").renderText(vars("b", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unclosedVariable() {
+        MessageTemplate.compile("s", "${a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyVariable() {
+        MessageTemplate.compile("${}", "t");
+    }
+}
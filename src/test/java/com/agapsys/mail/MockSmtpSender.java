@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Sender which records messages instead of delivering them.
+ */
+public class MockSmtpSender extends SmtpSender {
+    final List<Message> sentMessages = new CopyOnWriteArrayList<>();
+
+    volatile CountDownLatch latch = null;
+    volatile String failingSubject = null;
+    volatile boolean closed = false;
+
+    @Override
+    public void sendMessage(Message message, Collection<InternetAddress> recipients) throws MessagingException {
+        CountDownLatch currentLatch = latch;
+
+        if (currentLatch != null) {
+            try {
+                currentLatch.await();
+            } catch (InterruptedException ex) {
+                throw new MessagingException("Interrupted", ex);
+            }
+        }
+
+        if (closed)
+            throw new IllegalStateException("Sender is closed"); // <-- as thrown by SmtpSender
+
+        if (message.getSubject().equals(failingSubject))
+            throw new MessagingException("Failed: " + failingSubject);
+
+        sentMessages.add(message);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        super.close();
+    }
+}
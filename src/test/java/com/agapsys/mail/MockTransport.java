@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Address;
+import javax.mail.Authenticator;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * In-memory transport used to test connection handling without a server.
+ */
+public class MockTransport extends Transport {
+    // CLASS SCOPE =============================================================
+    /** Addresses starting with this prefix are rejected by the transport. */
+    static final String INVALID_PREFIX = "invalid";
+
+    /** Addresses starting with this prefix are temporarily rejected while {@linkplain #DEFERRALS} is positive. */
+    static final String DEFERRED_PREFIX = "deferred";
+
+    static final List<MockTransport> INSTANCES = new CopyOnWriteArrayList<>();
+
+    /** Number of attempts in which "deferred" addresses will be rejected. */
+    static final AtomicInteger DEFERRALS = new AtomicInteger(0);
+
+    /** Hosts whose connections are refused. */
+    static final Set<String> DOWN_HOSTS = new CopyOnWriteArraySet<>();
+
+    static void reset() {
+        INSTANCES.clear();
+        DEFERRALS.set(0);
+        DOWN_HOSTS.clear();
+    }
+
+    /** Returns a sender whose connections are {@linkplain MockTransport} instances. */
+    static SmtpSender getSender(SmtpSettings smtpSettings, PoolSettings poolSettings, boolean trackSettings) {
+        return new SmtpSender(smtpSettings, poolSettings, trackSettings) {
+            @Override
+            Session newSession(Properties props, Authenticator authenticator) {
+                Session session = MockTransport.getSession();
+                session.getProperties().putAll(props);
+                return session;
+            }
+        };
+    }
+
+    static SmtpSender getSender(PoolSettings poolSettings) {
+        return getSender(new SmtpSettings(), poolSettings, false);
+    }
+
+    /** Returns a session whose "smtp" transport is a {@linkplain MockTransport}. */
+    static Session getSession() {
+        Session session = Session.getInstance(new Properties());
+        try {
+            session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", MockTransport.class.getName(), "Agapsys", "1.0"));
+        } catch (MessagingException ex) {
+            throw new RuntimeException(ex);
+        }
+        return session;
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    final List<javax.mail.Message> sentMessages  = new CopyOnWriteArrayList<>();
+    final List<Address[]>          sentEnvelopes = new CopyOnWriteArrayList<>();
+
+    volatile boolean broken = false;
+    volatile int     noopCount = 0;
+    volatile String  host = null;
+
+    public MockTransport(Session session, URLName urlname) {
+        super(session, urlname);
+        INSTANCES.add(this);
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        if (host != null && DOWN_HOSTS.contains(host))
+            throw new MessagingException("Connection refused: " + host);
+
+        this.host = host;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        if (!super.isConnected())
+            return false;
+
+        noopCount++;
+        return !broken;
+    }
+
+    @Override
+    public void sendMessage(javax.mail.Message msg, Address[] addresses) throws MessagingException {
+        if (broken)
+            throw new MessagingException("Connection reset");
+
+        // Mimics SMTPTransport.rcptTo()...
+        List<Address> valid = new LinkedList<>();
+        List<Address> validUnsent = new LinkedList<>();
+        List<Address> invalid = new LinkedList<>();
+        MessagingException chain = null;
+        boolean defer = DEFERRALS.getAndDecrement() > 0;
+
+        for (Address address : addresses) {
+            InternetAddress internetAddress = (InternetAddress) address;
+            String str = internetAddress.getAddress();
+            int replyCode = 250;
+
+            if (str.startsWith(INVALID_PREFIX)) {
+                replyCode = 550;
+                invalid.add(address);
+            } else if (str.startsWith(DEFERRED_PREFIX) && defer) {
+                replyCode = 450;
+                validUnsent.add(address);
+            } else {
+                valid.add(address);
+            }
+
+            if (replyCode != 250) {
+                SMTPAddressFailedException addressError = new SMTPAddressFailedException(internetAddress, "RCPT TO:<" + str + ">", replyCode, replyCode + " Rejected");
+
+                if (chain == null) {
+                    chain = addressError;
+                } else {
+                    chain.setNextException(addressError);
+                }
+            }
+        }
+
+        boolean sendPartial = Boolean.parseBoolean(session.getProperty("mail.smtp.sendpartial"));
+
+        if (chain != null && !(sendPartial && !valid.isEmpty())) {
+            validUnsent.addAll(0, valid);
+            throw new SendFailedException("Invalid Addresses", chain, new Address[0], validUnsent.toArray(new Address[0]), invalid.toArray(new Address[0]));
+        }
+
+        sentMessages.add(msg);
+        sentEnvelopes.add(valid.toArray(new Address[0]));
+
+        if (chain != null)
+            throw new SendFailedException("Invalid Addresses", chain, valid.toArray(new Address[0]), validUnsent.toArray(new Address[0]), invalid.toArray(new Address[0]));
+    }
+    // =========================================================================
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.MessagingException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class MxCacheTest {
+    // CLASS SCOPE =============================================================
+    /** Resolver returning fixed records and counting lookups. */
+    private static class StubResolver implements MxResolver {
+        private final AtomicInteger lookups = new AtomicInteger();
+        private volatile List<MxRecord> records = Collections.emptyList();
+        private volatile MessagingException error = null;
+
+        @Override
+        public List<MxRecord> resolve(String domain) throws MessagingException {
+            lookups.incrementAndGet();
+
+            if (error != null)
+                throw error;
+
+            return records;
+        }
+    }
+
+    /** Cache with a manual clock. */
+    private static class ManualClockCache extends MxCache {
+        private volatile long now = 0;
+
+        private ManualClockCache(MxResolver resolver, long defaultTtl, long negativeTtl) {
+            super(resolver, defaultTtl, negativeTtl);
+        }
+
+        @Override
+        long currentTime() {
+            return now;
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    @Test
+    public void recordsAreSortedByPreference() throws Exception {
+        StubResolver resolver = new StubResolver();
+        resolver.records = Arrays.asList(new MxRecord("mx2.host.com", 20), new MxRecord("mx1.host.com", 10), new MxRecord("mx3.host.com", 30));
+
+        List<MxRecord> records = new MxCache(resolver, 1000, 1000).getRecords("host.com");
+        assertEquals("mx1.host.com", records.get(0).getHost());
+        assertEquals("mx2.host.com", records.get(1).getHost());
+        assertEquals("mx3.host.com", records.get(2).getHost());
+    }
+
+    @Test
+    public void recordTtl() throws Exception {
+        StubResolver resolver = new StubResolver();
+        resolver.records = Arrays.asList(new MxRecord("mx1.host.com", 10, 60), new MxRecord("mx2.host.com", 20, 30));
+        ManualClockCache cache = new ManualClockCache(resolver, 1000, 1000);
+
+        cache.getRecords("host.com");
+        cache.now = 29999;
+        cache.getRecords("host.com");
+        assertEquals(1, resolver.lookups.get());
+
+        // Smallest TTL (30 seconds) expired...
+        cache.now = 30000;
+        cache.getRecords("host.com");
+        assertEquals(2, resolver.lookups.get());
+    }
+
+    @Test
+    public void defaultAndNegativeTtl() throws Exception {
+        StubResolver resolver = new StubResolver();
+        resolver.records = Collections.singletonList(new MxRecord("mx.host.com", 10));
+        ManualClockCache cache = new ManualClockCache(resolver, 1000, 100);
+
+        cache.getRecords("host.com");
+        cache.now = 999;
+        cache.getRecords("host.com");
+        assertEquals(1, resolver.lookups.get());
+
+        cache.now = 1000;
+        cache.getRecords("host.com");
+        assertEquals(2, resolver.lookups.get());
+
+        // Domain not accepting mail...
+        resolver.records = Collections.emptyList();
+        assertTrue(cache.getRecords("none.com").isEmpty());
+        cache.now = 1099;
+        assertTrue(cache.getRecords("none.com").isEmpty());
+        assertEquals(3, resolver.lookups.get());
+
+        cache.now = 1100;
+        cache.getRecords("none.com");
+        assertEquals(4, resolver.lookups.get());
+    }
+
+    @Test
+    public void errorsAreNotCached() throws Exception {
+        StubResolver resolver = new StubResolver();
+        resolver.error = new MessagingException("DNS timeout");
+        MxCache cache = new MxCache(resolver, 1000, 1000);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getRecords("host.com");
+                fail();
+            } catch (MessagingException ex) {
+                assertSame(resolver.error, ex);
+            }
+        }
+
+        assertEquals(2, resolver.lookups.get());
+        assertEquals(0, cache.size());
+
+        resolver.error = null;
+        resolver.records = Collections.singletonList(new MxRecord("mx.host.com", 10));
+        assertEquals(1, cache.getRecords("host.com").size());
+    }
+
+    @Test
+    public void concurrentLookupsShareQuery() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger lookups = new AtomicInteger();
+
+        final MxCache cache = new MxCache(new MxResolver() {
+            @Override
+            public List<MxRecord> resolve(String domain) throws MessagingException {
+                lookups.incrementAndGet();
+
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new MessagingException("Interrupted", ex);
+                }
+
+                return Collections.singletonList(new MxRecord("mx." + domain, 10));
+            }
+        }, 1000, 1000);
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        assertEquals("mx.host.com", cache.getRecords("host.com").get(0).getHost());
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread.sleep(100);
+        release.countDown();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void parseJndiRecord() {
+        MxRecord record = JndiMxResolver.parse("10 MX1.Host.com.");
+        assertEquals("mx1.host.com", record.getHost());
+        assertEquals(10, record.getPreference());
+        assertEquals(MxRecord.UNKNOWN_TTL, record.getTtl());
+
+        assertNull(JndiMxResolver.parse("0 .")); // <-- null MX
+        assertNull(JndiMxResolver.parse("invalid"));
+        assertNull(JndiMxResolver.parse("x mx.host.com."));
+    }
+    // =========================================================================
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class NioSmtpSenderTest {
+    // CLASS SCOPE =============================================================
+    /** Returns a context which trusts the certificate of {@linkplain SmtpSinkServer}. */
+    private static SSLContext getSinkSslContext() throws GeneralSecurityException {
+        try (InputStream in = NioSmtpSenderTest.class.getResourceAsStream("/smtp-sink.jks")) {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(in, "changeit".toCharArray());
+
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(keyStore);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, tmf.getTrustManagers(), null);
+            return sslContext;
+        } catch (IOException ex) {
+            throw new GeneralSecurityException(ex);
+        }
+    }
+
+    private static NioSmtpSender getSender(SmtpSettings smtpSettings, PoolSettings poolSettings) throws IOException {
+        return getSender(smtpSettings, poolSettings, NioSmtpSender.DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    private static NioSmtpSender getSender(SmtpSettings smtpSettings, PoolSettings poolSettings, long maxQueuedBytes) throws IOException {
+        return new NioSmtpSender(smtpSettings, poolSettings, 2, 5000, maxQueuedBytes) {
+            @Override
+            SSLContext newSslContext() throws GeneralSecurityException {
+                return getSinkSslContext();
+            }
+        };
+    }
+
+    private static Message getMessage(String... recipients) throws MessagingException {
+        return new MessageBuilder("sender@host.com", recipients).setSubject("Test subject").setText("Test message\r\n.leading dot").build();
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    @Test
+    public void sendToSink() throws IOException, MessagingException {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.setStoringMessages(true);
+
+            try (SmtpSender smtpSender = getSender(server.getSmtpSettings(), new PoolSettings())) {
+                assertTrue(smtpSender.isPooled());
+
+                for (int i = 0; i < 3; i++)
+                    smtpSender.sendMessage(getMessage("a@host.com", "b@host.com"));
+            }
+
+            assertEquals(3, server.getMessageCount());
+            assertEquals(6, server.getRecipientCount());
+            assertEquals(1, server.getConnectionCount());
+
+            SmtpSinkServer.ReceivedMessage received = server.getReceivedMessages().get(0);
+            assertEquals("sender@host.com", received.getSender());
+            assertEquals(2, received.getRecipients().size());
+            assertTrue(received.getData().contains("Subject: Test subject"));
+            assertTrue(received.getData().contains("\r\n.leading dot")); // <-- dot-stuffing removed by server
+            assertEquals(Collections.emptyList(), server.getErrors());
+        }
+    }
+
+    @Test
+    public void sendWithTlsAndAuth() throws IOException, MessagingException {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.setCredentials("user", "secret");
+
+            SmtpSettings smtpSettings = server.getSmtpSettings();
+            smtpSettings.setSecurityType(SecurityType.TLS);
+            smtpSettings.setAuthenticationEnabled(true);
+            smtpSettings.setUsername("user");
+            smtpSettings.setPassword("secret");
+
+            InMemoryMetricsRecorder metrics = new InMemoryMetricsRecorder();
+
+            try (SmtpSender smtpSender = getSender(smtpSettings, new PoolSettings())) {
+                smtpSender.setMetricsRecorder(metrics);
+
+                for (int i = 0; i < 3; i++)
+                    smtpSender.sendMessage(getMessage("a@host.com"));
+            }
+
+            assertEquals(3, server.getMessageCount());
+            assertEquals(1, server.getConnectionCount());
+
+            // TLS and AUTH are timed separately (and within CONNECT)...
+            assertEquals(1, metrics.getLatency(MetricsRecorder.Stage.CONNECT).getCount());
+            assertEquals(1, metrics.getLatency(MetricsRecorder.Stage.TLS).getCount());
+            assertEquals(1, metrics.getLatency(MetricsRecorder.Stage.AUTH).getCount());
+            assertEquals(Collections.emptyList(), server.getErrors());
+
+            smtpSettings.setPassword("wrong");
+
+            try (SmtpSender smtpSender = getSender(smtpSettings, new PoolSettings())) {
+                smtpSender.sendMessage(getMessage("a@host.com"));
+                fail();
+            } catch (AuthenticationFailedException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void quitWithTls() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            SmtpSettings smtpSettings = server.getSmtpSettings();
+            smtpSettings.setSecurityType(SecurityType.TLS);
+
+            try (SmtpSender smtpSender = getSender(smtpSettings, new PoolSettings())) {
+                smtpSender.sendMessage(getMessage("a@host.com"));
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getQuitCount() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+
+            assertEquals(1, server.getQuitCount()); // <-- QUIT was not lost when closing the TLS session
+        }
+    }
+
+    @Test
+    public void concurrentSends() throws Exception {
+        final int messages = 2000;
+        final int connections = 20;
+
+        try (SmtpSinkServer server = new SmtpSinkServer(2)) {
+            server.setLatency(1);
+
+            PoolSettings poolSettings = new PoolSettings();
+            poolSettings.setMaxConnections(connections);
+            poolSettings.setMaxMessagesPerConnection(Integer.MAX_VALUE);
+
+            final AtomicInteger failures = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(messages);
+
+            try (NioSmtpSender smtpSender = getSender(server.getSmtpSettings(), poolSettings)) {
+                Message message = getMessage("a@host.com");
+
+                for (int i = 0; i < messages; i++) {
+                    smtpSender.sendAsync(message, new SendCallback() {
+                        @Override
+                        public void onComplete(SendResult result) {
+                            if (!result.isSuccess())
+                                failures.incrementAndGet();
+
+                            latch.countDown();
+                        }
+                    });
+                }
+
+                assertTrue(latch.await(60, TimeUnit.SECONDS));
+            }
+
+            assertEquals(0, failures.get());
+            assertEquals(messages, server.getMessageCount());
+            assertTrue(server.getConnectionCount() <= connections);
+            assertEquals(Collections.emptyList(), server.getErrors());
+        }
+    }
+
+    @Test
+    public void replaceExhaustedSessions() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.setLatency(20);
+
+            PoolSettings poolSettings = new PoolSettings();
+            poolSettings.setMaxConnections(1);
+            poolSettings.setMaxMessagesPerConnection(1);
+
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                messages.add(getMessage("a@host.com"));
+
+            try (NioSmtpSender smtpSender = getSender(server.getSmtpSettings(), poolSettings)) {
+                for (SendResult result : smtpSender.sendMessages(messages))
+                    assertNull(result.getError());
+            }
+
+            assertEquals(5, server.getConnectionCount());
+            assertEquals(1, server.getMaxOpenConnections()); // <-- a replacement is opened once the exhausted session is closed
+            assertEquals(Collections.emptyList(), server.getErrors());
+        }
+    }
+
+    @Test
+    public void rejectedRecipients() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.rejectRecipients("invalid", 550);
+
+            try (NioSmtpSender smtpSender = getSender(server.getSmtpSettings(), new PoolSettings())) {
+                SendResult result = smtpSender.sendAsync(getMessage("a@host.com", "invalid@host.com", "b@host.com")).get();
+
+                assertTrue(result.getError() instanceof SendFailedException);
+                assertEquals(2, result.getDeliveredRecipients().size());
+                assertEquals(1, result.getFailedRecipients().size());
+                assertEquals("invalid@host.com", result.getFailedRecipients().iterator().next().getAddress());
+
+                // No valid recipients...
+                result = smtpSender.sendAsync(getMessage("invalid@host.com")).get();
+                assertEquals(1, result.getFailedRecipients().size());
+
+                // Connection is still usable after RSET...
+                smtpSender.sendMessage(getMessage("c@host.com"));
+            }
+
+            assertEquals(2, server.getMessageCount());
+            assertEquals(3, server.getRecipientCount());
+            assertEquals(1, server.getConnectionCount());
+        }
+    }
+
+    @Test
+    public void transientFailure() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.injectFailure("MAIL", 451, 1);
+
+            try (NioSmtpSender smtpSender = getSender(server.getSmtpSettings(), new PoolSettings())) {
+                SendResult result = smtpSender.sendAsync(getMessage("a@host.com")).get();
+
+                assertTrue(result.getError() instanceof SMTPSendFailedException);
+                assertEquals(451, ((SMTPSendFailedException) result.getError()).getReturnCode());
+                assertEquals(1, result.getDeferredRecipients().size());
+
+                smtpSender.sendMessage(getMessage("a@host.com"));
+            }
+
+            assertEquals(1, server.getMessageCount());
+        }
+    }
+
+    @Test
+    public void splitRecipients() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            SmtpSettings smtpSettings = server.getSmtpSettings();
+            smtpSettings.setMaxRecipients(10);
+
+            List<String> recipients = new ArrayList<>();
+            for (int i = 0; i < 35; i++)
+                recipients.add("user" + i + "@host.com");
+
+            try (NioSmtpSender smtpSender = getSender(smtpSettings, new PoolSettings())) {
+                smtpSender.sendMessage(getMessage(recipients.toArray(new String[recipients.size()])));
+            }
+
+            assertEquals(4, server.getMessageCount());
+            assertEquals(35, server.getRecipientCount());
+        }
+    }
+
+    @Test
+    public void queuedDataLimit() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            try (NioSmtpSender smtpSender = getSender(server.getSmtpSettings(), new PoolSettings(), 2048)) {
+                char[] text = new char[4096];
+                Arrays.fill(text, 'a');
+
+                // Larger than the limit...
+                Message large = new MessageBuilder("sender@host.com", "a@host.com").setText(new String(text)).build();
+                SendResult result = smtpSender.sendAsync(large).get(10, TimeUnit.SECONDS);
+                assertNotNull(result.getError());
+                assertEquals(0, smtpSender.getQueuedBytes());
+
+                // Blocking sends wait for queued messages to be delivered...
+                List<Message> messages = new ArrayList<>();
+                for (int i = 0; i < 20; i++)
+                    messages.add(getMessage("a@host.com"));
+
+                for (SendResult sendResult : smtpSender.sendMessages(messages))
+                    assertNull(sendResult.getError());
+
+                assertEquals(0, smtpSender.getQueuedBytes());
+            }
+
+            assertEquals(20, server.getMessageCount());
+        }
+    }
+
+    @Test
+    public void connectionRefused() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        SmtpSettings smtpSettings = new SmtpSettings();
+        smtpSettings.setServer("127.0.0.1");
+        smtpSettings.setPort(port);
+
+        try (NioSmtpSender smtpSender = getSender(smtpSettings, new PoolSettings())) {
+            Future<SendResult> future = smtpSender.sendAsync(getMessage("a@host.com"));
+            SendResult result = future.get(10, TimeUnit.SECONDS);
+
+            assertNotNull(result.getError());
+            assertTrue(DeliveryFailures.isTransient(result.getError()));
+            assertEquals(1, result.getDeferredRecipients().size());
+        }
+    }
+
+    @Test
+    public void sendAfterClose() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            NioSmtpSender smtpSender = getSender(server.getSmtpSettings(), new PoolSettings());
+            smtpSender.close();
+
+            try {
+                smtpSender.sendMessage(getMessage("a@host.com"));
+                fail();
+            } catch (IllegalStateException ex) {
+                // Expected
+            }
+        }
+    }
+    // =========================================================================
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Properties;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PoolSettingsTest {
+
+    @Test
+    public void testDefaultValues() {
+        PoolSettings settings = new PoolSettings();
+        assertEquals(PoolSettings.DEFAULT_MAX_CONNECTIONS, settings.getMaxConnections());
+        assertEquals(PoolSettings.DEFAULT_MAX_MESSAGES_PER_CONNECTION, settings.getMaxMessagesPerConnection());
+        assertEquals(PoolSettings.DEFAULT_IDLE_TIMEOUT, settings.getIdleTimeout());
+        assertEquals(PoolSettings.DEFAULT_VALIDATION_INTERVAL, settings.getValidationInterval());
+        assertEquals(PoolSettings.DEFAULT_MAX_WAIT, settings.getMaxWait());
+        assertEquals(PoolSettings.DEFAULT_PARALLEL_TRANSACTIONS, settings.getParallelTransactions());
+    }
+
+    @Test
+    public void testPropertyConstructor() {
+        Properties props = new Properties();
+        props.setProperty(PoolSettings.KEY_MAX_CONNECTIONS, "8");
+        props.setProperty(PoolSettings.KEY_MAX_MESSAGES_PER_CONNECTION, "50");
+        props.setProperty(PoolSettings.KEY_IDLE_TIMEOUT, "1000");
+        props.setProperty(PoolSettings.KEY_VALIDATION_INTERVAL, "200");
+        props.setProperty(PoolSettings.KEY_MAX_WAIT, "300");
+        props.setProperty(PoolSettings.KEY_PARALLEL_TRANSACTIONS, "4");
+
+        PoolSettings settings = new PoolSettings(props);
+        assertEquals(8, settings.getMaxConnections());
+        assertEquals(50, settings.getMaxMessagesPerConnection());
+        assertEquals(1000, settings.getIdleTimeout());
+        assertEquals(200, settings.getValidationInterval());
+        assertEquals(300, settings.getMaxWait());
+        assertEquals(4, settings.getParallelTransactions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyMaxConnections() {
+        Properties props = new Properties();
+        props.setProperty(PoolSettings.KEY_MAX_CONNECTIONS, "");
+        new PoolSettings(props);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxConnections() {
+        Properties props = new Properties();
+        props.setProperty(PoolSettings.KEY_MAX_CONNECTIONS, "0");
+        new PoolSettings(props);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidIdleTimeout() {
+        Properties props = new Properties();
+        props.setProperty(PoolSettings.KEY_IDLE_TIMEOUT, "abc");
+        new PoolSettings(props);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setInvalidMaxMessagesPerConnection() {
+        new PoolSettings().setMaxMessagesPerConnection(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setInvalidParallelTransactions() {
+        new PoolSettings().setParallelTransactions(0);
+    }
+}
@@ -19,6 +19,7 @@ package com.agapsys.mail;
 import java.io.UnsupportedEncodingException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class ReadOnlyInternetAddressTest {
@@ -42,4 +43,38 @@ public class ReadOnlyInternetAddressTest {
     public void setAddress() {
         address.setAddress("test@host.com");
     }
+    
+    @Test
+    public void values() throws AddressException, UnsupportedEncodingException {
+        InternetAddress source = new InternetAddress("user@host.com", "Usuário", "UTF-8");
+        InternetAddress copy = new ReadOnlyInternetAddress(source);
+        
+        Assert.assertEquals(source.getAddress(), copy.getAddress());
+        Assert.assertEquals("Usuário", copy.getPersonal());
+        Assert.assertEquals(source.toString(), copy.toString());
+        Assert.assertEquals(source.toUnicodeString(), copy.toUnicodeString());
+        Assert.assertEquals(source.hashCode(), copy.hashCode());
+        
+        source.setPersonal("Changed");
+        Assert.assertEquals("Usuário", copy.getPersonal());
+    }
+    
+    @Test
+    public void equality() throws AddressException {
+        InternetAddress plain = new InternetAddress("USER@host.com");
+        InternetAddress readOnly = new ReadOnlyInternetAddress("user@host.com");
+        
+        Assert.assertTrue(plain.equals(readOnly));
+        Assert.assertTrue(readOnly.equals(plain));
+        Assert.assertEquals(plain.hashCode(), readOnly.hashCode());
+        Assert.assertTrue(readOnly.equals(address));
+        Assert.assertEquals("user@host.com", readOnly.toString());
+        Assert.assertNull(readOnly.getPersonal());
+    }
+    
+    @Test
+    public void cloneIsSameInstance() {
+        Assert.assertSame(address, address.clone());
+        Assert.assertSame(address, ReadOnlyInternetAddress.getInstance(address));
+    }
 }
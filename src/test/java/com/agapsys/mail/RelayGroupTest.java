@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RelayGroupTest {
+    private RelayGroupSettings settings;
+
+    @Before
+    public void before() {
+        MockTransport.reset();
+        settings = new RelayGroupSettings();
+    }
+
+    @After
+    public void after() {
+        MockTransport.reset();
+    }
+
+    private static SmtpSettings getRelay(String host) {
+        SmtpSettings smtpSettings = new SmtpSettings();
+        smtpSettings.setServer(host);
+        return smtpSettings;
+    }
+
+    private RelayGroup getGroup(int[] weights, String...hosts) {
+        SmtpSettings[] relays = new SmtpSettings[hosts.length];
+        for (int i = 0; i < hosts.length; i++)
+            relays[i] = getRelay(hosts[i]);
+
+        return new RelayGroup(Arrays.asList(relays), weights, new PoolSettings(), settings) {
+            @Override
+            SmtpSender newSender(SmtpSettings smtpSettings, PoolSettings poolSettings) {
+                return MockTransport.getSender(smtpSettings, poolSettings, false);
+            }
+        };
+    }
+
+    private Message getMessage() throws AddressException {
+        return new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Subject").build();
+    }
+
+    /** Returns the number of messages sent through each host. */
+    private Map<String, Integer> getCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+
+        for (MockTransport transport : MockTransport.INSTANCES) {
+            if (transport.host == null)
+                continue;
+
+            Integer count = counts.get(transport.host);
+            counts.put(transport.host, (count == null ? 0 : count) + transport.sentMessages.size());
+        }
+
+        return counts;
+    }
+
+    @Test
+    public void weightedRoundRobin() throws MessagingException {
+        try (RelayGroup group = getGroup(new int[] {3, 1}, "relay1", "relay2")) {
+            for (int i = 0; i < 40; i++)
+                group.sendMessage(getMessage());
+        }
+
+        Map<String, Integer> counts = getCounts();
+        assertEquals(30, (int) counts.get("relay1"));
+        assertEquals(10, (int) counts.get("relay2"));
+    }
+
+    @Test
+    public void leastOutstanding() throws MessagingException {
+        settings.setStrategy(LoadBalancingStrategy.LEAST_OUTSTANDING);
+
+        try (RelayGroup group = getGroup(null, "relay1", "relay2")) {
+            for (int i = 0; i < 10; i++)
+                group.sendMessage(getMessage());
+        }
+
+        // Without concurrent sends, load is the same on both relays...
+        Map<String, Integer> counts = getCounts();
+        assertEquals(10, counts.get("relay1") + counts.get("relay2"));
+        assertTrue(counts.get("relay1") > 0);
+        assertTrue(counts.get("relay2") > 0);
+    }
+
+    @Test
+    public void failover() throws MessagingException {
+        MockTransport.DOWN_HOSTS.add("relay1");
+        settings.setFailureThreshold(2);
+
+        try (RelayGroup group = getGroup(null, "relay1", "relay2")) {
+            for (int i = 0; i < 10; i++)
+                group.sendMessage(getMessage());
+
+            assertEquals(1, group.getAvailableRelayCount());
+        }
+
+        assertEquals(10, (int) getCounts().get("relay2"));
+        assertNull(getCounts().get("relay1"));
+    }
+
+    @Test
+    public void probation() throws MessagingException, InterruptedException {
+        MockTransport.DOWN_HOSTS.add("relay1");
+        settings.setFailureThreshold(1);
+        settings.setProbationTime(50);
+
+        try (RelayGroup group = getGroup(null, "relay1", "relay2")) {
+            group.sendMessage(getMessage());
+            group.sendMessage(getMessage());
+            assertEquals(1, group.getAvailableRelayCount());
+
+            // Relay is back, but it is re-admitted only after probation...
+            MockTransport.DOWN_HOSTS.clear();
+            group.sendMessage(getMessage());
+            assertEquals(1, group.getAvailableRelayCount());
+
+            Thread.sleep(100);
+
+            for (int i = 0; i < 2; i++)
+                group.sendMessage(getMessage());
+
+            assertEquals(2, group.getAvailableRelayCount());
+        }
+
+        assertTrue(getCounts().get("relay1") > 0);
+    }
+
+    @Test
+    public void allRelaysDown() throws AddressException {
+        MockTransport.DOWN_HOSTS.add("relay1");
+        MockTransport.DOWN_HOSTS.add("relay2");
+
+        try (RelayGroup group = getGroup(null, "relay1", "relay2")) {
+            try {
+                group.sendMessage(getMessage());
+                fail();
+            } catch (MessagingException ex) {
+                assertTrue(DeliveryFailures.isTransient(ex));
+            }
+        }
+    }
+
+    @Test
+    public void recipientFailureIsNotRelayFailure() throws AddressException {
+        settings.setFailureThreshold(1);
+
+        try (RelayGroup group = getGroup(null, "relay1", "relay2")) {
+            try {
+                group.sendMessage(new MessageBuilder("sender@host.com", "invalid@host.com").build());
+                fail();
+            } catch (MessagingException ex) {
+                // Expected
+            }
+
+            assertEquals(2, group.getAvailableRelayCount());
+        }
+    }
+
+    @Test
+    public void settingsProperties() {
+        Properties props = new Properties();
+        props.setProperty(RelayGroupSettings.KEY_STRATEGY, "LEAST_OUTSTANDING");
+        props.setProperty(RelayGroupSettings.KEY_FAILURE_THRESHOLD, "5");
+        props.setProperty(RelayGroupSettings.KEY_PROBATION_TIME, "1000");
+
+        RelayGroupSettings relaySettings = new RelayGroupSettings(props);
+        assertEquals(LoadBalancingStrategy.LEAST_OUTSTANDING, relaySettings.getStrategy());
+        assertEquals(5, relaySettings.getFailureThreshold());
+        assertEquals(1000, relaySettings.getProbationTime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidWeights() {
+        List<SmtpSettings> relays = Arrays.asList(getRelay("relay1"), getRelay("relay2"));
+        new RelayGroup(relays, new int[] {1}, null, settings).close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullRelay() {
+        new RelayGroup(Arrays.asList(getRelay("relay1"), null), null, null, settings).close();
+    }
+
+    @Test
+    public void noSettingsOfItsOwn() {
+        try (RelayGroup group = getGroup(null, "relay1", "relay2")) {
+            assertTrue(group.isPooled());
+
+            UnsupportedOperationException error = null;
+            try {
+                group.getSettings();
+            } catch (UnsupportedOperationException ex) {
+                error = ex;
+            }
+
+            assertNotNull(error);
+        }
+    }
+}
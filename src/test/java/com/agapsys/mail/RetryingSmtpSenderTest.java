@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetryingSmtpSenderTest {
+    private SmtpSender smtpSender;
+    private RetryPolicy policy;
+
+    @Before
+    public void before() {
+        MockTransport.reset();
+        smtpSender = MockTransport.getSender(null);
+        policy = new RetryPolicy();
+        policy.setInitialDelay(10);
+        policy.setMaxAttempts(3);
+    }
+
+    @After
+    public void after() {
+        smtpSender.close();
+    }
+
+    private Message getMessage(String...recipients) throws AddressException {
+        return new MessageBuilder("sender@host.com", recipients).setSubject("Subject").build();
+    }
+
+    @Test
+    public void noRetryOnSuccess() throws Exception {
+        try (RetryingSmtpSender sender = new RetryingSmtpSender(smtpSender, policy, 1)) {
+            SendResult result = sender.sendMessage(getMessage("a@host.com", "b@host.com")).get();
+
+            assertTrue(result.isSuccess());
+            assertEquals(1, result.getAttempts());
+            assertEquals(2, result.getDeliveredRecipients().size());
+        }
+    }
+
+    @Test
+    public void retryDeferredRecipients() throws Exception {
+        MockTransport.DEFERRALS.set(1);
+
+        try (RetryingSmtpSender sender = new RetryingSmtpSender(smtpSender, policy, 1)) {
+            SendResult result = sender.sendMessage(getMessage("a@host.com", "deferred@host.com", "invalid@host.com")).get();
+
+            assertFalse(result.isSuccess());
+            assertEquals(2, result.getAttempts());
+            assertEquals(2, result.getDeliveredRecipients().size());
+            assertTrue(result.getDeliveredRecipients().contains(new InternetAddress("deferred@host.com")));
+            assertEquals(1, result.getFailedRecipients().size());
+            assertTrue(result.getFailedRecipients().contains(new InternetAddress("invalid@host.com")));
+            assertTrue(result.getDeferredRecipients().isEmpty());
+        }
+
+        // First attempt is delivered to the valid recipient (partial delivery)...
+        MockTransport first = MockTransport.INSTANCES.get(0);
+        assertEquals(1, first.sentEnvelopes.size());
+        assertEquals(1, first.sentEnvelopes.get(0).length);
+        assertEquals("a@host.com", first.sentEnvelopes.get(0)[0].toString());
+
+        // Second attempt includes only the deferred recipient...
+        MockTransport last = MockTransport.INSTANCES.get(MockTransport.INSTANCES.size() - 1);
+        assertEquals(1, last.sentEnvelopes.size());
+        assertEquals(1, last.sentEnvelopes.get(0).length);
+        assertEquals("deferred@host.com", last.sentEnvelopes.get(0)[0].toString());
+
+        // Attempts of a delivery write the same Message-ID...
+        assertEquals(((MimeMessage) first.sentMessages.get(0)).getMessageID(), ((MimeMessage) last.sentMessages.get(0)).getMessageID());
+    }
+
+    @Test
+    public void messageTooLarge() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.injectFailure("DATA", 552, 100);
+            server.rejectRecipients("full", 552);
+
+            try (SmtpSender sinkSender = new SmtpSender(server.getSmtpSettings(), null); RetryingSmtpSender sender = new RetryingSmtpSender(sinkSender, policy, 1)) {
+                // 552 in reply to the end of data (message too large) is permanent...
+                SendResult result = sender.sendMessage(getMessage("a@host.com")).get();
+                assertEquals(1, result.getAttempts());
+                assertTrue(result.getFailedRecipients().contains(new InternetAddress("a@host.com")));
+                assertTrue(result.getDeferredRecipients().isEmpty());
+
+                // ... while 552 in reply to RCPT is handled as 452 (mailbox full)
+                result = sender.sendMessage(getMessage("full@host.com")).get();
+                assertEquals(3, result.getAttempts());
+                assertTrue(result.getDeferredRecipients().contains(new InternetAddress("full@host.com")));
+            }
+        }
+    }
+
+    @Test
+    public void maxAttempts() throws Exception {
+        MockTransport.DEFERRALS.set(100);
+
+        try (RetryingSmtpSender sender = new RetryingSmtpSender(smtpSender, policy, 1)) {
+            SendResult result = sender.sendMessage(getMessage("deferred@host.com")).get();
+
+            assertFalse(result.isSuccess());
+            assertEquals(3, result.getAttempts());
+            assertEquals(1, result.getDeferredRecipients().size());
+        }
+    }
+
+    @Test
+    public void maxAge() throws Exception {
+        MockTransport.DEFERRALS.set(100);
+        policy.setInitialDelay(1000);
+        policy.setMaxAge(500);
+
+        try (RetryingSmtpSender sender = new RetryingSmtpSender(smtpSender, policy, 1)) {
+            SendResult result = sender.sendMessage(getMessage("deferred@host.com")).get(1, TimeUnit.SECONDS);
+            assertEquals(1, result.getAttempts());
+            assertEquals(1, result.getDeferredRecipients().size());
+        }
+    }
+
+    @Test
+    public void shutdownCompletesPendingRetries() throws AddressException, InterruptedException, ExecutionException {
+        MockTransport.DEFERRALS.set(100);
+        policy.setInitialDelay(60000);
+        policy.setJitter(0);
+
+        RetryingSmtpSender sender = new RetryingSmtpSender(smtpSender, policy, 1);
+        Future<SendResult> future = sender.sendMessage(getMessage("deferred@host.com"));
+
+        while (MockTransport.DEFERRALS.get() == 100)
+            Thread.sleep(5);
+
+        sender.close();
+        assertTrue(future.isDone());
+        assertEquals(1, future.get().getDeferredRecipients().size());
+        assertEquals(0, sender.getPendingCount());
+    }
+
+    @Test
+    public void backoff() {
+        RetryPolicy backoffPolicy = new RetryPolicy();
+        backoffPolicy.setInitialDelay(100);
+        backoffPolicy.setMultiplier(2);
+        backoffPolicy.setMaxDelay(1000);
+        backoffPolicy.setJitter(0);
+
+        assertEquals(100, backoffPolicy.getDelay(1));
+        assertEquals(200, backoffPolicy.getDelay(2));
+        assertEquals(400, backoffPolicy.getDelay(3));
+        assertEquals(1000, backoffPolicy.getDelay(10));
+
+        backoffPolicy.setJitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = backoffPolicy.getDelay(2);
+            assertTrue(delay >= 100 && delay <= 200);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.net.SocketException;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SendResultTest {
+    private final InternetAddress ok;
+    private final InternetAddress busy;
+    private final InternetAddress unknown;
+    private final Message message;
+
+    public SendResultTest() throws AddressException {
+        ok = new InternetAddress("ok@host.com");
+        busy = new InternetAddress("busy@host.com");
+        unknown = new InternetAddress("unknown@host.com");
+        message = new MessageBuilder(new InternetAddress("sender@host.com"), ok, busy, unknown).build();
+    }
+
+    @Test
+    public void success() {
+        SendResult result = new SendResult(message, null);
+        assertTrue(result.isSuccess());
+        assertEquals(message.getRecipients(), result.getDeliveredRecipients());
+        assertTrue(result.getDeferredRecipients().isEmpty());
+        assertTrue(result.getFailedRecipients().isEmpty());
+    }
+
+    @Test
+    public void connectionFailure() {
+        SendResult result = new SendResult(message, new MessagingException("Connection reset", new SocketException()));
+        assertFalse(result.isSuccess());
+        assertEquals(message.getRecipients(), result.getDeferredRecipients());
+    }
+
+    @Test
+    public void authenticationFailure() {
+        SendResult result = new SendResult(message, new AuthenticationFailedException("535 Authentication failed"));
+        assertEquals(message.getRecipients(), result.getFailedRecipients());
+    }
+
+    @Test
+    public void transactionReplyCodes() {
+        SendResult result = new SendResult(message, new SMTPSendFailedException("DATA", 451, "451 Try again", null, null, message.getRecipients().toArray(new Address[0]), null));
+        assertEquals(message.getRecipients(), result.getDeferredRecipients());
+
+        result = new SendResult(message, new SMTPSendFailedException("DATA", 554, "554 Rejected", null, null, message.getRecipients().toArray(new Address[0]), null));
+        assertEquals(message.getRecipients(), result.getFailedRecipients());
+    }
+
+    @Test
+    public void recipientReplyCodes() {
+        MessagingException chain = new SMTPAddressFailedException(busy, "RCPT", 452, "452 Too many recipients");
+        chain.setNextException(new SMTPAddressFailedException(unknown, "RCPT", 550, "550 Unknown user"));
+
+        SendFailedException error = new SendFailedException("Invalid Addresses", chain, new Address[0], new Address[] {ok, busy}, new Address[] {unknown});
+        SendResult result = new SendResult(message, error);
+
+        assertTrue(result.getDeliveredRecipients().isEmpty());
+        assertEquals(2, result.getDeferredRecipients().size());
+        assertTrue(result.getDeferredRecipients().contains(ok));
+        assertTrue(result.getDeferredRecipients().contains(busy));
+        assertEquals(1, result.getFailedRecipients().size());
+        assertTrue(result.getFailedRecipients().contains(unknown));
+    }
+
+    @Test
+    public void partialDelivery() {
+        SendFailedException error = new SendFailedException("Invalid Addresses", null, new Address[] {ok}, new Address[] {busy}, new Address[] {unknown});
+        SendResult result = new SendResult(message, error);
+
+        assertEquals(1, result.getDeliveredRecipients().size());
+        assertTrue(result.getDeliveredRecipients().contains(ok));
+        assertTrue(result.getDeferredRecipients().contains(busy));
+        assertTrue(result.getFailedRecipients().contains(unknown));
+    }
+}
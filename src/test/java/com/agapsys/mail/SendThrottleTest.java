@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.mail.MessagingException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SendThrottleTest {
+
+    @Test
+    public void unlimited() {
+        for (int i = 0; i < 1000; i++)
+            assertEquals(0, SendThrottle.UNLIMITED.reserve());
+
+        assertSame(SendThrottle.UNLIMITED, SendThrottle.getInstance(new SmtpSettingsSnapshot(new SmtpSettings())));
+    }
+
+    @Test
+    public void burst() {
+        SendThrottle throttle = new SendThrottle(10, 3, 0, 0);
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, throttle.reserve());
+
+        long wait = throttle.reserve();
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(100));
+
+        // Slots are reserved: next caller waits one more interval...
+        assertTrue(throttle.reserve() > TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    @Test
+    public void rate() throws MessagingException {
+        SendThrottle throttle = new SendThrottle(100, 1, 0, 0);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 11; i++)
+            throttle.acquireTransaction();
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    @Test
+    public void sessions() throws Exception {
+        final SendThrottle throttle = new SendThrottle(0, 1, 1, 0);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicBoolean waiting = new AtomicBoolean(true);
+
+        throttle.acquireSession();
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    throttle.acquireSession();
+                    waiting.set(false);
+                    acquired.countDown();
+                } catch (MessagingException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        thread.start();
+
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        assertTrue(waiting.get());
+
+        throttle.releaseSession();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        thread.join();
+    }
+}
@@ -20,9 +20,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.Authenticator;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
 import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import static org.junit.Assert.*;
 import org.junit.Test;
 
 public class SmtpSenderTest {
@@ -125,6 +135,338 @@ public class SmtpSenderTest {
         }
     }
     
+    private List<Message> getMessages(String...recipients) throws AddressException {
+        List<Message> messages = new LinkedList<>();
+
+        for (String recipient : recipients)
+            messages.add(new MessageBuilder("sender@host.com", recipient).setSubject(recipient).build());
+
+        return messages;
+    }
+
+    @Test
+    public void sendMessages() throws AddressException {
+        MockTransport.reset();
+
+        try (SmtpSender smtpSender = MockTransport.getSender(null)) {
+            List<SendResult> results = smtpSender.sendMessages(getMessages("a@host.com", "invalid@host.com", "b@host.com"));
+
+            assertEquals(3, results.size());
+            assertTrue(results.get(0).isSuccess());
+            assertTrue(results.get(1).getError() instanceof SendFailedException);
+            assertTrue(results.get(2).isSuccess());
+            assertEquals("b@host.com", results.get(2).getMessage().getSubject());
+        }
+
+        assertEquals(1, MockTransport.INSTANCES.size());
+        assertEquals(2, MockTransport.INSTANCES.get(0).sentMessages.size());
+        assertFalse(MockTransport.INSTANCES.get(0).isConnected());
+    }
+
+    @Test
+    public void sendMessagesPooled() throws AddressException {
+        MockTransport.reset();
+
+        try (SmtpSender smtpSender = MockTransport.getSender(new PoolSettings())) {
+            assertTrue(smtpSender.isPooled());
+            smtpSender.sendMessages(getMessages("a@host.com", "b@host.com"));
+            smtpSender.sendMessages(getMessages("c@host.com", "d@host.com"));
+
+            assertEquals(1, MockTransport.INSTANCES.size());
+            assertEquals(4, MockTransport.INSTANCES.get(0).sentMessages.size());
+            assertTrue(MockTransport.INSTANCES.get(0).isConnected());
+        }
+    }
+
+    @Test
+    public void sendIndividually() throws AddressException, MessagingException {
+        MockTransport.reset();
+
+        Message message = new MessageBuilder("sender@host.com", "a@host.com", "invalid@host.com", "b@host.com").setSubject("Subject").setText("Text").build();
+
+        try (SmtpSender smtpSender = MockTransport.getSender(null)) {
+            List<SendResult> results = smtpSender.sendIndividually(message);
+
+            assertEquals(3, results.size());
+            assertTrue(results.get(0).isSuccess());
+            assertFalse(results.get(1).isSuccess());
+            assertEquals(Collections.singleton(new InternetAddress("invalid@host.com")), results.get(1).getFailedRecipients());
+            assertTrue(results.get(2).isSuccess());
+        }
+
+        List<javax.mail.Message> sent = MockTransport.INSTANCES.get(0).sentMessages;
+        assertEquals(2, sent.size());
+        assertEquals("a@host.com", sent.get(0).getRecipients(javax.mail.Message.RecipientType.TO)[0].toString());
+        assertEquals("b@host.com", sent.get(1).getRecipients(javax.mail.Message.RecipientType.TO)[0].toString());
+        assertEquals(1, sent.get(1).getRecipients(javax.mail.Message.RecipientType.TO).length);
+    }
+
+    @Test
+    public void sendWithBcc() throws AddressException, MessagingException {
+        MockTransport.reset();
+
+        try (SmtpSender smtpSender = MockTransport.getSender(null)) {
+            smtpSender.sendMessage(new MessageBuilder("sender@host.com", "a@host.com").addBcc("b@host.com", "c@host.com").build());
+            smtpSender.sendMessages(Collections.singletonList(new MessageBuilder(new InternetAddress("sender@host.com")).addBcc("d@host.com").build()));
+        }
+
+        MockTransport transport = MockTransport.INSTANCES.get(0);
+        assertEquals(3, transport.sentEnvelopes.get(0).length);
+        assertEquals("c@host.com", transport.sentEnvelopes.get(0)[2].toString());
+        assertEquals(1, transport.sentMessages.get(0).getRecipients(javax.mail.Message.RecipientType.TO).length);
+        assertNull(transport.sentMessages.get(0).getHeader("Bcc"));
+
+        MockTransport second = MockTransport.INSTANCES.get(1);
+        assertEquals("d@host.com", second.sentEnvelopes.get(0)[0].toString());
+        assertEquals("undisclosed-recipients:;", second.sentMessages.get(0).getHeader("To")[0]);
+    }
+
+    @Test
+    public void sendToSinkInParallelTransactions() throws IOException, MessagingException {
+        try (SmtpSinkServer server = new SmtpSinkServer(2)) {
+            server.rejectRecipients("rejected", 550);
+
+            SmtpSettings smtpSettings = server.getSmtpSettings();
+            smtpSettings.setMaxRecipients(100);
+
+            PoolSettings poolSettings = new PoolSettings();
+            poolSettings.setParallelTransactions(4);
+
+            MessageBuilder builder = new MessageBuilder("sender@host.com", "to@host.com");
+            for (int i = 0; i < 1000; i++)
+                builder.addBcc((i == 500 ? "rejected" : "user") + i + "@host.com");
+
+            Message message = builder.build();
+
+            try (SmtpSender smtpSender = getSinkSender(smtpSettings, poolSettings)) {
+                smtpSender.sendMessage(message);
+                fail("Rejected recipient was accepted");
+            } catch (SendFailedException ex) {
+                assertEquals(1, ex.getInvalidAddresses().length);
+                assertEquals("rejected500@host.com", ex.getInvalidAddresses()[0].toString());
+                assertEquals(1000, ex.getValidSentAddresses().length);
+            }
+
+            assertEquals(11, server.getMessageCount());
+            assertEquals(1000, server.getRecipientCount());
+            assertTrue(server.getConnectionCount() <= 4);
+            assertEquals(Collections.emptyList(), server.getErrors());
+        }
+    }
+
+    @Test
+    public void sessionReuse() throws AddressException, MessagingException {
+        SmtpSettings smtpSettings = new SmtpSettings();
+
+        try (SmtpSender smtpSender = MockTransport.getSender(smtpSettings, null, false)) {
+            Session session = smtpSender.getSession();
+            smtpSender.sendMessage(getMessages("a@host.com").get(0));
+            assertSame(session, smtpSender.getSession());
+
+            smtpSettings.setServer("other.host.com");
+            assertSame(session, smtpSender.getSession());
+        }
+    }
+
+    @Test
+    public void settingsTracking() throws AddressException, MessagingException {
+        MockTransport.reset();
+        SmtpSettings smtpSettings = new SmtpSettings();
+
+        try (SmtpSender smtpSender = MockTransport.getSender(smtpSettings, new PoolSettings(), true)) {
+            Session session = smtpSender.getSession();
+            smtpSender.sendMessage(getMessages("a@host.com").get(0));
+            assertSame(session, smtpSender.getSession());
+
+            smtpSettings.setServer("other.host.com");
+            Session newSession = smtpSender.getSession();
+            assertNotSame(session, newSession);
+            assertEquals("other.host.com", newSession.getProperty("mail.smtp.host"));
+            assertFalse(MockTransport.INSTANCES.get(0).isConnected()); // <-- old pool was retired
+
+            smtpSender.sendMessage(getMessages("b@host.com").get(0));
+            assertEquals(2, MockTransport.INSTANCES.size());
+        }
+    }
+
+    @Test
+    public void settingsHolder() throws IOException, MessagingException {
+        try (SmtpSinkServer serverA = new SmtpSinkServer(1); SmtpSinkServer serverB = new SmtpSinkServer(1)) {
+            SmtpSettingsHolder holder = new SmtpSettingsHolder(serverA.getSmtpSettings());
+
+            try (SmtpSender smtpSender = new SmtpSender(holder, new PoolSettings())) {
+                assertTrue(smtpSender.isTrackingSettings());
+
+                smtpSender.sendMessage(getMessages("a@host.com").get(0));
+                SmtpSettingsSnapshot settings = smtpSender.getSettings();
+                smtpSender.sendMessage(getMessages("b@host.com").get(0));
+                assertSame(settings, smtpSender.getSettings());
+
+                // Setting equal settings keeps current connections...
+                assertFalse(holder.set(new SmtpSettingsSnapshot(serverA.getSmtpSettings())));
+                assertSame(settings, holder.get());
+
+                // New settings are used on next send...
+                assertTrue(holder.set(new SmtpSettingsSnapshot(serverB.getSmtpSettings())));
+                smtpSender.sendMessage(getMessages("c@host.com").get(0));
+                assertSame(holder.get(), smtpSender.getSettings());
+            }
+
+            assertEquals(2, serverA.getMessageCount());
+            assertEquals(1, serverA.getConnectionCount());
+            assertEquals(1, serverB.getMessageCount());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sendAfterClose() throws AddressException, MessagingException {
+        SmtpSender smtpSender = MockTransport.getSender(null);
+        smtpSender.close();
+        smtpSender.sendMessage(getMessages("a@host.com").get(0));
+    }
+
+    /** Returns a sender which trusts the certificate of {@linkplain SmtpSinkServer}. */
+    private SmtpSender getSinkSender(SmtpSettings smtpSettings, PoolSettings poolSettings) {
+        return new SmtpSender(smtpSettings, poolSettings) {
+            @Override
+            Session newSession(Properties props, Authenticator authenticator) {
+                props.put("mail.smtp.ssl.trust", SmtpSinkServer.getSslTrust());
+                return super.newSession(props, authenticator);
+            }
+        };
+    }
+
+    @Test
+    public void sendToSink() throws IOException, MessagingException {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.setStoringMessages(true);
+
+            try (SmtpSender smtpSender = getSinkSender(server.getSmtpSettings(), null)) {
+                smtpSender.sendMessage(new MessageBuilder("sender@host.com", "a@host.com", "b@host.com").setSubject("Subject").setText("Line 1\n.Line 2").build());
+            }
+
+            assertEquals(1, server.getMessageCount());
+            SmtpSinkServer.ReceivedMessage received = server.getReceivedMessages().get(0);
+            assertEquals("sender@host.com", received.getSender());
+            assertEquals(2, received.getRecipients().size());
+            assertTrue(received.getData().contains("Subject: Subject"));
+            assertTrue(received.getData().contains("\r\n.Line 2\r\n"));
+        }
+    }
+
+    @Test
+    public void sendToSinkWithTlsAndAuth() throws IOException, MessagingException {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.setCredentials("user", "secret");
+
+            SmtpSettings smtpSettings = server.getSmtpSettings();
+            smtpSettings.setSecurityType(SecurityType.TLS);
+            smtpSettings.setAuthenticationEnabled(true);
+            smtpSettings.setUsername("user");
+            smtpSettings.setPassword("secret");
+
+            try (SmtpSender smtpSender = getSinkSender(smtpSettings, new PoolSettings())) {
+                for (int i = 0; i < 3; i++)
+                    smtpSender.sendMessage(getMessages("a@host.com").get(0));
+            }
+
+            assertEquals(3, server.getMessageCount());
+            assertEquals(1, server.getConnectionCount());
+
+            smtpSettings.setPassword("wrong");
+
+            try (SmtpSender smtpSender = getSinkSender(smtpSettings, null)) {
+                smtpSender.sendMessage(getMessages("a@host.com").get(0));
+                fail();
+            } catch (AuthenticationFailedException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void sendToSinkConcurrently() throws Exception {
+        final int threads = 8;
+        final int messagesPerThread = 250;
+
+        try (SmtpSinkServer server = new SmtpSinkServer(2)) {
+            PoolSettings poolSettings = new PoolSettings();
+            poolSettings.setMaxConnections(threads);
+            poolSettings.setMaxMessagesPerConnection(Integer.MAX_VALUE);
+
+            try (final SmtpSender smtpSender = getSinkSender(server.getSmtpSettings(), poolSettings)) {
+                final Message message = getMessages("a@host.com").get(0);
+                final List<Throwable> errors = new CopyOnWriteArrayList<>();
+                List<Thread> threadList = new LinkedList<>();
+
+                for (int i = 0; i < threads; i++) {
+                    Thread thread = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int j = 0; j < messagesPerThread; j++)
+                                    smtpSender.sendMessage(message);
+                            } catch (Throwable ex) {
+                                errors.add(ex);
+                            }
+                        }
+                    };
+                    thread.start();
+                    threadList.add(thread);
+                }
+
+                for (Thread thread : threadList)
+                    thread.join();
+
+                assertTrue(errors.toString(), errors.isEmpty());
+            }
+
+            assertEquals(threads * messagesPerThread, server.getMessageCount());
+            assertTrue(server.getConnectionCount() <= threads);
+        }
+    }
+
+    @Test
+    public void sinkFailureInjection() throws Exception {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.rejectRecipients("invalid", 550);
+            server.injectFailure("RCPT", 451, 1);
+
+            RetryPolicy policy = new RetryPolicy();
+            policy.setInitialDelay(10);
+
+            try (SmtpSender smtpSender = getSinkSender(server.getSmtpSettings(), new PoolSettings())) {
+                try (RetryingSmtpSender retryingSender = new RetryingSmtpSender(smtpSender, policy, 1)) {
+                    Message message = new MessageBuilder("sender@host.com", "deferred@host.com", "a@host.com", "invalid@host.com").build();
+                    SendResult result = retryingSender.sendMessage(message).get();
+
+                    assertEquals(2, result.getAttempts());
+                    assertEquals(2, result.getDeliveredRecipients().size());
+                    assertEquals(1, result.getFailedRecipients().size());
+                }
+            }
+
+            assertEquals(2, server.getMessageCount());
+            assertEquals(2, server.getRecipientCount());
+        }
+    }
+
+    @Test
+    public void sinkLatency() throws IOException, MessagingException {
+        try (SmtpSinkServer server = new SmtpSinkServer(1)) {
+            server.setLatency(20);
+
+            long start = System.currentTimeMillis();
+            try (SmtpSender smtpSender = getSinkSender(server.getSmtpSettings(), null)) {
+                smtpSender.sendMessage(getMessages("a@host.com").get(0));
+            }
+
+            // Greeting, EHLO, MAIL, RCPT, DATA, end of data and QUIT...
+            assertTrue(System.currentTimeMillis() - start >= 6 * 20);
+            assertEquals(1, server.getMessageCount());
+        }
+    }
+
     @Test
     public void sendMessage() throws AddressException, MessagingException {
         if (!ignoreTest) {
@@ -90,6 +90,105 @@ public class SmtpSettingsTest {
         SmtpSettings smtpSettings = new SmtpSettings(props);
     }
 
+    @Test
+    public void testSendPartial() {
+        assertTrue(new SmtpSettings().isSendPartialEnabled());
+
+        Properties props = new Properties();
+        props.setProperty(SmtpSettings.KEY_SEND_PARTIAL, "false");
+        assertFalse(new SmtpSettings(props).isSendPartialEnabled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptySendPartial() {
+        createInstanceWithEmptyPropertyValue(SmtpSettings.KEY_SEND_PARTIAL);
+    }
+
+    @Test
+    public void testThrottling() {
+        Properties props = new Properties();
+        props.setProperty(SmtpSettings.KEY_RATE_LIMIT, "2.5");
+        props.setProperty(SmtpSettings.KEY_RATE_BURST, "10");
+        props.setProperty(SmtpSettings.KEY_MAX_SESSIONS, "3");
+        props.setProperty(SmtpSettings.KEY_MAX_RECIPIENTS, "100");
+
+        SmtpSettings settings = new SmtpSettings(props);
+        assertEquals(2.5, settings.getRateLimit(), 0);
+        assertEquals(10, settings.getRateBurst());
+        assertEquals(3, settings.getMaxSessions());
+        assertEquals(100, settings.getMaxRecipients());
+
+        settings = new SmtpSettings();
+        assertEquals(SmtpSettings.DEFAULT_RATE_LIMIT, settings.getRateLimit(), 0);
+        assertEquals(SmtpSettings.DEFAULT_RATE_BURST, settings.getRateBurst());
+        assertEquals(SmtpSettings.DEFAULT_MAX_SESSIONS, settings.getMaxSessions());
+        assertEquals(SmtpSettings.DEFAULT_MAX_RECIPIENTS, settings.getMaxRecipients());
+    }
+
+    @Test
+    public void testDkim() {
+        Properties props = new Properties();
+        props.setProperty(SmtpSettings.KEY_DKIM_DOMAIN, " host.com ");
+        props.setProperty(SmtpSettings.KEY_DKIM_SELECTOR, "mail");
+        props.setProperty(SmtpSettings.KEY_DKIM_KEY_FILE, "/etc/dkim/mail.pem");
+
+        SmtpSettings settings = new SmtpSettings(props);
+        assertEquals("host.com", settings.getDkimDomain());
+        assertEquals("mail", settings.getDkimSelector());
+        assertEquals("/etc/dkim/mail.pem", settings.getDkimKeyFile());
+
+        settings = new SmtpSettings();
+        assertEquals(SmtpSettings.DEFAULT_DKIM_DOMAIN, settings.getDkimDomain());
+        assertEquals(SmtpSettings.DEFAULT_DKIM_SELECTOR, settings.getDkimSelector());
+        assertEquals(SmtpSettings.DEFAULT_DKIM_KEY_FILE, settings.getDkimKeyFile());
+    }
+
+    @Test
+    public void testSnapshot() {
+        SmtpSettings settings = new SmtpSettings();
+        settings.setServer("smtp.host.com");
+        settings.setPort(587);
+        settings.setAuthenticationEnabled(true);
+        settings.setUsername("user");
+        settings.setPassword("secret");
+        settings.setSecurityType(SecurityType.TLS);
+        settings.setMaxRecipients(100);
+        settings.setDkimDomain("host.com");
+
+        SmtpSettingsSnapshot snapshot = new SmtpSettingsSnapshot(settings);
+        assertEquals("smtp.host.com", snapshot.getServer());
+        assertEquals(587, snapshot.getPort());
+        assertTrue(snapshot.isAuthenticationEnabled());
+        assertEquals("user", snapshot.getUsername());
+        assertArrayEquals("secret".toCharArray(), snapshot.getPassword());
+        assertEquals(SecurityType.TLS, snapshot.getSecurityType());
+        assertEquals(100, snapshot.getMaxRecipients());
+        assertEquals("host.com", snapshot.getDkimDomain());
+
+        // Snapshot is not affected by later changes...
+        snapshot.getPassword()[0] = 'x';
+        settings.setServer("other.host.com");
+        assertEquals("smtp.host.com", snapshot.getServer());
+        assertArrayEquals("secret".toCharArray(), snapshot.getPassword());
+
+        SmtpSettingsSnapshot copy = new SmtpSettingsSnapshot(snapshot.toSettings());
+        assertEquals(snapshot, copy);
+        assertEquals(snapshot.hashCode(), copy.hashCode());
+        assertNotEquals(snapshot, new SmtpSettingsSnapshot(settings));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyDkimDomain() {
+        createInstanceWithEmptyPropertyValue(SmtpSettings.KEY_DKIM_DOMAIN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRateLimit() {
+        Properties props = new Properties();
+        props.setProperty(SmtpSettings.KEY_RATE_LIMIT, "-1");
+        new SmtpSettings(props);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testEmptyServer() {
         createInstanceWithEmptyPropertyValue(SmtpSettings.KEY_SERVER);
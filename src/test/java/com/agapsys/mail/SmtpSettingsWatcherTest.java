@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmtpSettingsWatcherTest {
+    // CLASS SCOPE =============================================================
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final long TIMEOUT = 15000;
+
+    /** Waits until settings held by given watcher point to given server. */
+    private static void awaitServer(SmtpSettingsWatcher watcher, String server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (!watcher.getHolder().get().getServer().equals(server)) {
+            assertTrue("Settings were not reloaded", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(ISO_8859_1));
+    }
+
+    @Test
+    public void reloadOnChange() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("smtp.properties");
+        write(file, SmtpSettings.KEY_SERVER + "=a.host.com\n");
+
+        try (SmtpSettingsWatcher watcher = new SmtpSettingsWatcher(file)) {
+            assertEquals("a.host.com", watcher.getHolder().get().getServer());
+
+            write(file, SmtpSettings.KEY_SERVER + "=b.host.com\n" + SmtpSettings.KEY_PORT + "=587\n");
+            awaitServer(watcher, "b.host.com");
+            assertEquals(587, watcher.getHolder().get().getPort());
+            assertNull(watcher.getLastError());
+
+            // File replaced through a rename...
+            Path tmp = folder.getRoot().toPath().resolve("smtp.properties.tmp");
+            write(tmp, SmtpSettings.KEY_SERVER + "=c.host.com\n");
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            awaitServer(watcher, "c.host.com");
+
+            // Unchanged settings are not replaced...
+            SmtpSettingsSnapshot current = watcher.getHolder().get();
+            assertFalse(watcher.reload());
+            assertSame(current, watcher.getHolder().get());
+        }
+    }
+
+    @Test
+    public void invalidSettingsAreIgnored() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("smtp.properties");
+        write(file, SmtpSettings.KEY_SERVER + "=a.host.com\n");
+
+        try (SmtpSettingsWatcher watcher = new SmtpSettingsWatcher(file)) {
+            write(file, SmtpSettings.KEY_PORT + "=invalid\n");
+
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+
+            while (watcher.getLastError() == null) {
+                assertTrue("Invalid settings were not detected", System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+
+            assertTrue(watcher.getLastError() instanceof IllegalArgumentException);
+            assertEquals("a.host.com", watcher.getHolder().get().getServer());
+            assertEquals(0, watcher.getReloadCount());
+
+            write(file, SmtpSettings.KEY_SERVER + "=b.host.com\n");
+            awaitServer(watcher, "b.host.com");
+            assertEquals(1, watcher.getReloadCount());
+        }
+    }
+
+    @Test
+    public void sharedHolder() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("smtp.properties");
+        write(file, SmtpSettings.KEY_SERVER + "=b.host.com\n");
+
+        SmtpSettings settings = new SmtpSettings();
+        settings.setServer("a.host.com");
+        SmtpSettingsHolder holder = new SmtpSettingsHolder(settings);
+
+        try (SmtpSettingsWatcher watcher = new SmtpSettingsWatcher(file, holder)) {
+            assertSame(holder, watcher.getHolder());
+            assertEquals("a.host.com", holder.get().getServer()); // <-- file is loaded only when it changes
+
+            assertTrue(watcher.reload());
+            assertEquals("b.host.com", holder.get().getServer());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidInitialSettings() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("smtp.properties");
+        write(file, SmtpSettings.KEY_PORT + "=invalid\n");
+        new SmtpSettingsWatcher(file);
+    }
+    // =========================================================================
+}
@@ -0,0 +1,980 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import com.sun.mail.util.BASE64DecoderStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * In-process SMTP server which accepts (and counts) every message.
+ *
+ * Connections are served by a set of NIO reactor threads. The server
+ * supports EHLO, PIPELINING, AUTH PLAIN/LOGIN and STARTTLS (with the
+ * self-signed certificate in "smtp-sink.jks"; see {@linkplain #getSslTrust()}).
+ * After STARTTLS a connection is moved to a dedicated thread using a
+ * blocking SSL socket.
+ *
+ * Artificial latency and failures (4xx/5xx replies) can be injected to test
+ * pooling, batching and retries.
+ */
+public class SmtpSinkServer implements Closeable {
+    // CLASS SCOPE =============================================================
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String KEYSTORE_RESOURCE = "/smtp-sink.jks";
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    /** Message received by the server. */
+    public static class ReceivedMessage {
+        private final String       sender;
+        private final List<String> recipients;
+        private final byte[]       data;
+
+        private ReceivedMessage(String sender, List<String> recipients, byte[] data) {
+            this.sender = sender;
+            this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+            this.data = data;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public List<String> getRecipients() {
+            return recipients;
+        }
+
+        /** Returns message content (headers and body, with dot-stuffing removed). */
+        public String getData() {
+            return new String(data, ASCII);
+        }
+    }
+
+    private static class Failure {
+        private final int replyCode;
+        private final AtomicInteger remaining;
+
+        private Failure(int replyCode, int count) {
+            this.replyCode = replyCode;
+            this.remaining = new AtomicInteger(count);
+        }
+    }
+
+    private static SSLContext loadSslContext() {
+        try (InputStream in = SmtpSinkServer.class.getResourceAsStream(KEYSTORE_RESOURCE)) {
+            if (in == null)
+                return null;
+
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(in, KEYSTORE_PASSWORD);
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, KEYSTORE_PASSWORD);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static ThreadFactory getThreadFactory(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger(0);
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns the value of "mail.smtp.ssl.trust" property which makes a
+     * client trust this server.
+     */
+    public static String getSslTrust() {
+        return "127.0.0.1 localhost";
+    }
+    // =========================================================================
+
+    // INSTANCE SCOPE ==========================================================
+    /** Destination of the replies produced by a protocol handler. */
+    private interface Output {
+        /** Sends a reply (which may contain several lines separated by CRLF). */
+        void reply(String reply);
+
+        /** Switches the connection to TLS after the pending reply is sent. */
+        void startTls();
+
+        /** Closes the connection after the pending reply is sent. */
+        void close();
+    }
+
+    /** SMTP protocol state of a connection. */
+    private class Protocol {
+        private static final int STATE_COMMAND    = 0;
+        private static final int STATE_DATA       = 1;
+        private static final int STATE_AUTH_PLAIN = 2;
+        private static final int STATE_AUTH_USER  = 3;
+        private static final int STATE_AUTH_PASS  = 4;
+
+        private final Output output;
+        private final boolean tls;
+
+        private int state = STATE_COMMAND;
+        private boolean authenticated = false;
+        private String authUser = null;
+        private String sender = null;
+        private final List<String> recipients = new LinkedList<>();
+        private ByteArrayOutputStream data = null;
+        private long dataSize = 0;
+
+        private Protocol(Output output, boolean tls) {
+            this.output = output;
+            this.tls = tls;
+        }
+
+        private void greet() {
+            connectionCount.incrementAndGet();
+            Integer failure = getFailure("CONNECT");
+
+            if (failure != null) {
+                output.reply(failure + " Service not available");
+                output.close();
+            } else {
+                output.reply("220 localhost SMTP sink ready");
+            }
+        }
+
+        private void reset() {
+            sender = null;
+            recipients.clear();
+            data = null;
+            dataSize = 0;
+        }
+
+        /** Handles an input line (without its CRLF terminator). */
+        private void onLine(byte[] buf, int off, int len) {
+            switch (state) {
+                case STATE_DATA:
+                    onDataLine(buf, off, len);
+                    return;
+
+                case STATE_AUTH_PLAIN:
+                    state = STATE_COMMAND;
+                    onAuthPlain(new String(buf, off, len, ASCII));
+                    return;
+
+                case STATE_AUTH_USER:
+                    authUser = decode(new String(buf, off, len, ASCII));
+                    state = STATE_AUTH_PASS;
+                    output.reply("334 UGFzc3dvcmQ6");
+                    return;
+
+                case STATE_AUTH_PASS:
+                    state = STATE_COMMAND;
+                    onCredentials(authUser, decode(new String(buf, off, len, ASCII)));
+                    return;
+
+                default:
+                    onCommand(new String(buf, off, len, ASCII));
+            }
+        }
+
+        private void onDataLine(byte[] buf, int off, int len) {
+            if (len == 1 && buf[off] == '.') {
+                state = STATE_COMMAND;
+                Integer failure = getFailure("DATA");
+
+                if (failure != null) {
+                    output.reply(failure + " Message rejected");
+                } else {
+                    messageCount.incrementAndGet();
+                    byteCount.addAndGet(dataSize);
+
+                    if (data != null)
+                        receivedMessages.add(new ReceivedMessage(sender, recipients, data.toByteArray()));
+
+                    output.reply("250 OK");
+                }
+
+                reset();
+                return;
+            }
+
+            // Dot-stuffing...
+            if (len > 0 && buf[off] == '.') {
+                off++;
+                len--;
+            }
+
+            dataSize += len + 2;
+
+            if (data != null) {
+                data.write(buf, off, len);
+                data.write('\r');
+                data.write('\n');
+            }
+        }
+
+        private String decode(String base64) {
+            return new String(BASE64DecoderStream.decode(base64.trim().getBytes(ASCII)), Charset.forName("UTF-8"));
+        }
+
+        private void onAuthPlain(String response) {
+            // authzid \0 authcid \0 password
+            String[] tokens = decode(response).split("\u0000", -1);
+
+            if (tokens.length != 3) {
+                output.reply("501 Invalid AUTH PLAIN response");
+            } else {
+                onCredentials(tokens[1], tokens[2]);
+            }
+        }
+
+        private void onCredentials(String user, String password) {
+            Integer failure = getFailure("AUTH");
+
+            if (failure != null) {
+                output.reply(failure + " Authentication failed");
+            } else if (username != null && (!username.equals(user) || !SmtpSinkServer.this.password.equals(password))) {
+                output.reply("535 Authentication credentials invalid");
+            } else {
+                authenticated = true;
+                output.reply("235 Authentication successful");
+            }
+        }
+
+        private void onCommand(String line) {
+            String verb = (line.length() < 4 ? line : line.substring(0, 4)).toUpperCase(Locale.ENGLISH);
+            String argument = line.length() > 5 ? line.substring(5).trim() : "";
+
+            switch (verb) {
+                case "EHLO": {
+                    reset();
+                    StringBuilder sb = new StringBuilder("250-localhost\r\n250-PIPELINING\r\n250-8BITMIME\r\n250-AUTH PLAIN LOGIN\r\n");
+
+                    if (!tls && sslContext != null)
+                        sb.append("250-STARTTLS\r\n");
+
+                    sb.append("250 SIZE 0");
+                    output.reply(sb.toString());
+                    break;
+                }
+
+                case "HELO":
+                    reset();
+                    output.reply("250 localhost");
+                    break;
+
+                case "STAR":
+                    if (tls || sslContext == null) {
+                        output.reply("502 Command not implemented");
+                    } else {
+                        output.reply("220 Ready to start TLS");
+                        output.startTls();
+                    }
+                    break;
+
+                case "AUTH": {
+                    String[] tokens = argument.split(" ");
+                    String mechanism = tokens[0].toUpperCase(Locale.ENGLISH);
+
+                    if (authenticated) {
+                        output.reply("503 Already authenticated");
+                    } else if (mechanism.equals("PLAIN")) {
+                        if (tokens.length > 1) {
+                            onAuthPlain(tokens[1]);
+                        } else {
+                            state = STATE_AUTH_PLAIN;
+                            output.reply("334 ");
+                        }
+                    } else if (mechanism.equals("LOGIN")) {
+                        if (tokens.length > 1) {
+                            authUser = decode(tokens[1]);
+                            state = STATE_AUTH_PASS;
+                            output.reply("334 UGFzc3dvcmQ6");
+                        } else {
+                            state = STATE_AUTH_USER;
+                            output.reply("334 VXNlcm5hbWU6");
+                        }
+                    } else {
+                        output.reply("504 Unrecognized authentication type");
+                    }
+                    break;
+                }
+
+                case "MAIL": {
+                    Integer failure = getFailure("MAIL");
+
+                    if (username != null && !authenticated) {
+                        output.reply("530 Authentication required");
+                    } else if (failure != null) {
+                        output.reply(failure + " Sender rejected");
+                    } else {
+                        reset();
+                        sender = getPath(argument);
+                        output.reply("250 OK");
+                    }
+                    break;
+                }
+
+                case "RCPT": {
+                    String recipient = getPath(argument);
+                    Integer failure = getRecipientFailure(recipient);
+
+                    if (sender == null) {
+                        output.reply("503 Bad sequence of commands");
+                    } else if (failure != null) {
+                        output.reply(failure + " Recipient rejected");
+                    } else {
+                        recipients.add(recipient);
+                        recipientCount.incrementAndGet();
+                        output.reply("250 OK");
+                    }
+                    break;
+                }
+
+                case "DATA":
+                    if (recipients.isEmpty()) {
+                        output.reply("503 No valid recipients");
+                    } else {
+                        state = STATE_DATA;
+                        data = storingMessages ? new ByteArrayOutputStream() : null;
+                        output.reply("354 End data with <CR><LF>.<CR><LF>");
+                    }
+                    break;
+
+                case "RSET":
+                    reset();
+                    output.reply("250 OK");
+                    break;
+
+                case "NOOP":
+                    output.reply("250 OK");
+                    break;
+
+                case "QUIT":
+                    quitCount.incrementAndGet();
+                    output.reply("221 Bye");
+                    output.close();
+                    break;
+
+                default:
+                    output.reply("500 Command not recognized");
+            }
+        }
+
+        /** Extracts the address from "FROM:<address> ..." and "TO:<address> ..." arguments. */
+        private String getPath(String argument) {
+            int start = argument.indexOf('<');
+            int end = argument.indexOf('>', start + 1);
+
+            if (start < 0 || end < 0)
+                return argument.substring(argument.indexOf(':') + 1).trim();
+
+            return argument.substring(start + 1, end);
+        }
+    }
+
+    /** Non-blocking connection served by a reactor. */
+    private class Connection implements Output {
+        private final Reactor       reactor;
+        private final SocketChannel channel;
+        private final Protocol      protocol;
+        private SelectionKey        key;
+
+        private byte[] in = new byte[8192];
+        private int    inStart = 0;
+        private int    inEnd = 0;
+
+        private final Queue<ByteBuffer> out = new LinkedList<>();
+
+        private boolean paused  = false; // <-- waiting for a delayed reply
+        private boolean closing = false;
+        private boolean closed  = false;
+        private boolean tlsRequested = false;
+
+        private Connection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.protocol = new Protocol(this, false);
+        }
+
+        @Override
+        public void reply(String reply) {
+            final ByteBuffer buffer = ByteBuffer.wrap((reply + "\r\n").getBytes(ASCII));
+
+            if (latency <= 0) {
+                out.add(buffer);
+                return;
+            }
+
+            paused = true;
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reactor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            out.add(buffer);
+                            paused = false;
+                            process();
+                        }
+                    });
+                }
+            }, latency, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void startTls() {
+            tlsRequested = true;
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+        }
+
+        private void register() throws IOException {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(reactor.selector, SelectionKey.OP_READ, this);
+            onOpened();
+            protocol.greet();
+            process();
+        }
+
+        private void destroy() {
+            if (key != null)
+                key.cancel();
+
+            if (!closed) {
+                closed = true;
+                openConnections.decrementAndGet();
+            }
+
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Connection is discarded anyway
+            }
+        }
+
+        private void onReadable() {
+            try {
+                if (inEnd == in.length) {
+                    if (inStart > 0) {
+                        System.arraycopy(in, inStart, in, 0, inEnd - inStart);
+                        inEnd -= inStart;
+                        inStart = 0;
+                    } else if (in.length < MAX_LINE_LENGTH) {
+                        byte[] newIn = new byte[in.length * 2];
+                        System.arraycopy(in, 0, newIn, 0, inEnd);
+                        in = newIn;
+                    } else {
+                        destroy(); // <-- line too long
+                        return;
+                    }
+                }
+
+                int read = channel.read(ByteBuffer.wrap(in, inEnd, in.length - inEnd));
+
+                if (read < 0) {
+                    destroy();
+                    return;
+                }
+
+                inEnd += read;
+                process();
+            } catch (IOException ex) {
+                destroy();
+            }
+        }
+
+        /** Processes buffered input and flushes pending replies. */
+        private void process() {
+            if (!channel.isOpen())
+                return;
+
+            while (!paused && !closing && !tlsRequested) {
+                int lineEnd = -1;
+
+                for (int i = inStart; i < inEnd; i++) {
+                    if (in[i] == '\n') {
+                        lineEnd = i;
+                        break;
+                    }
+                }
+
+                if (lineEnd < 0)
+                    break;
+
+                int len = lineEnd - inStart;
+                if (len > 0 && in[lineEnd - 1] == '\r')
+                    len--;
+
+                int start = inStart;
+                inStart = lineEnd + 1;
+                protocol.onLine(in, start, len);
+            }
+
+            if (inStart == inEnd)
+                inStart = inEnd = 0;
+
+            flush();
+        }
+
+        private void flush() {
+            try {
+                while (!out.isEmpty()) {
+                    ByteBuffer buffer = out.peek();
+                    channel.write(buffer);
+
+                    if (buffer.hasRemaining())
+                        break;
+
+                    out.poll();
+                }
+
+                if (!out.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                if (paused) {
+                    key.interestOps(0);
+                    return;
+                }
+
+                if (closing) {
+                    destroy();
+                } else if (tlsRequested) {
+                    handOffToTls();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException ex) {
+                destroy();
+            }
+        }
+
+        private void handOffToTls() throws IOException {
+            key.cancel();
+            reactor.selector.selectNow(); // <-- deregisters the channel
+            channel.configureBlocking(true);
+            closed = true; // <-- connection is counted as open until TLS serving ends
+
+            tlsExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serveTls(channel.socket());
+                }
+            });
+        }
+    }
+
+    /** Connection switched to TLS, served by a dedicated thread. */
+    private void serveTls(Socket plainSocket) {
+        try (SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(plainSocket, "localhost", plainSocket.getPort(), true)) {
+            socket.setUseClientMode(false);
+            socket.startHandshake();
+
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            final boolean[] closing = {false};
+
+            Protocol protocol = new Protocol(new Output() {
+                @Override
+                public void reply(String reply) {
+                    try {
+                        if (latency > 0)
+                            Thread.sleep(latency);
+
+                        out.write((reply + "\r\n").getBytes(ASCII));
+                        out.flush();
+                    } catch (IOException | InterruptedException ex) {
+                        closing[0] = true;
+                    }
+                }
+
+                @Override
+                public void startTls() {}
+
+                @Override
+                public void close() {
+                    closing[0] = true;
+                }
+            }, true);
+
+            byte[] line = new byte[8192];
+            int len = 0;
+            int b;
+
+            while (!closing[0] && (b = in.read()) >= 0) {
+                if (b == '\n') {
+                    protocol.onLine(line, 0, len > 0 && line[len - 1] == '\r' ? len - 1 : len);
+                    len = 0;
+                } else {
+                    if (len == line.length) {
+                        if (line.length >= MAX_LINE_LENGTH)
+                            return;
+
+                        byte[] newLine = new byte[line.length * 2];
+                        System.arraycopy(line, 0, newLine, 0, len);
+                        line = newLine;
+                    }
+
+                    line[len++] = (byte) b;
+                }
+            }
+        } catch (IOException ex) {
+            // Connection closed
+        } catch (RuntimeException ex) {
+            errors.add(ex);
+        } finally {
+            openConnections.decrementAndGet();
+        }
+    }
+
+    /** Selector thread serving a set of connections. */
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                    while (iterator.hasNext()) {
+                        SelectionKey selectedKey = iterator.next();
+                        iterator.remove();
+
+                        if (!selectedKey.isValid())
+                            continue;
+
+                        Connection connection = (Connection) selectedKey.attachment();
+
+                        if (selectedKey.isReadable()) {
+                            connection.onReadable();
+                        } else if (selectedKey.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    if (!closed)
+                        errors.add(ex);
+                }
+            }
+
+            for (SelectionKey selectedKey : selector.keys())
+                ((Connection) selectedKey.attachment()).destroy();
+
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Server is closing anyway
+            }
+        }
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final List<Reactor>       reactors = new ArrayList<>();
+    private final SSLContext          sslContext;
+
+    private final ScheduledExecutorService timer       = Executors.newSingleThreadScheduledExecutor(getThreadFactory("smtp-sink-timer-"));
+    private final ExecutorService          tlsExecutor = Executors.newCachedThreadPool(getThreadFactory("smtp-sink-tls-"));
+
+    private final AtomicLong connectionCount = new AtomicLong(0);
+    private final AtomicInteger openConnections    = new AtomicInteger(0);
+    private final AtomicInteger maxOpenConnections = new AtomicInteger(0);
+    private final AtomicLong quitCount       = new AtomicLong(0);
+    private final AtomicLong messageCount    = new AtomicLong(0);
+    private final AtomicLong recipientCount  = new AtomicLong(0);
+    private final AtomicLong byteCount       = new AtomicLong(0);
+    private final List<ReceivedMessage> receivedMessages = new CopyOnWriteArrayList<>();
+    private final List<Throwable>       errors           = new CopyOnWriteArrayList<>();
+
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+    private final Map<String, Integer> rejectedPrefixes = new ConcurrentHashMap<>();
+
+    private volatile long    latency = 0;
+    private volatile boolean storingMessages = false;
+    private volatile String  username = null;
+    private volatile String  password = null;
+    private volatile boolean closed = false;
+
+    public SmtpSinkServer() throws IOException {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates and starts a server listening on an ephemeral port of the loopback interface.
+     *
+     * @param reactorThreads number of threads serving connections.
+     */
+    public SmtpSinkServer(int reactorThreads) throws IOException {
+        if (reactorThreads < 1)
+            throw new IllegalArgumentException("Invalid reactor threads: " + reactorThreads);
+
+        sslContext = loadSslContext();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1024);
+
+        ThreadFactory reactorFactory = getThreadFactory("smtp-sink-reactor-");
+        for (int i = 0; i < reactorThreads; i++) {
+            Reactor reactor = new Reactor();
+            reactors.add(reactor);
+            reactorFactory.newThread(reactor).start();
+        }
+
+        getThreadFactory("smtp-sink-acceptor-").newThread(new Runnable() {
+            @Override
+            public void run() {
+                int next = 0;
+
+                while (!closed) {
+                    try {
+                        final SocketChannel channel = serverChannel.accept();
+                        final Reactor reactor = reactors.get(next++ % reactors.size());
+
+                        reactor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    new Connection(reactor, channel).register();
+                                } catch (IOException ex) {
+                                    try {
+                                        channel.close();
+                                    } catch (IOException ex2) {
+                                        // Connection is discarded anyway
+                                    }
+                                }
+                            }
+                        });
+                    } catch (ClosedChannelException ex) {
+                        return;
+                    } catch (IOException ex) {
+                        if (!closed)
+                            errors.add(ex);
+                    }
+                }
+            }
+        }).start();
+    }
+
+    private Integer getFailure(String verb) {
+        Failure failure = failures.get(verb);
+
+        if (failure != null && failure.remaining.getAndDecrement() > 0)
+            return failure.replyCode;
+
+        return null;
+    }
+
+    private Integer getRecipientFailure(String recipient) {
+        Integer failure = getFailure("RCPT");
+        if (failure != null)
+            return failure;
+
+        for (Map.Entry<String, Integer> entry : rejectedPrefixes.entrySet()) {
+            if (recipient.startsWith(entry.getKey()))
+                return entry.getValue();
+        }
+
+        return null;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** Returns settings which point to this server (without security and authentication). */
+    public SmtpSettings getSmtpSettings() {
+        SmtpSettings smtpSettings = new SmtpSettings();
+        smtpSettings.setServer("127.0.0.1");
+        smtpSettings.setPort(getPort());
+        return smtpSettings;
+    }
+
+    /** Defines a delay (in milliseconds) applied before each reply. */
+    public void setLatency(long latency) {
+        if (latency < 0)
+            throw new IllegalArgumentException("Invalid latency: " + latency);
+
+        this.latency = latency;
+    }
+
+    /** Defines if received messages are kept (see {@linkplain #getReceivedMessages()}). */
+    public void setStoringMessages(boolean storingMessages) {
+        this.storingMessages = storingMessages;
+    }
+
+    /**
+     * Requires authentication with given credentials. By default, any
+     * credentials are accepted and authentication is optional.
+     */
+    public void setCredentials(String username, String password) {
+        if (username == null || password == null)
+            throw new IllegalArgumentException("Null credentials");
+
+        this.password = password;
+        this.username = username;
+    }
+
+    /**
+     * Fails the next commands with given verb.
+     *
+     * @param verb "CONNECT" (greeting), "AUTH", "MAIL", "RCPT" or "DATA" (end of data).
+     * @param replyCode reply code (e.g. 421, 451, 550).
+     * @param count number of commands which will fail.
+     */
+    public void injectFailure(String verb, int replyCode, int count) {
+        failures.put(verb.toUpperCase(Locale.ENGLISH), new Failure(replyCode, count));
+    }
+
+    /** Rejects recipients whose addresses start with given prefix. */
+    public void rejectRecipients(String prefix, int replyCode) {
+        rejectedPrefixes.put(prefix, replyCode);
+    }
+
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Returns the maximum number of connections which were open at the same
+     * time. A connection is closed by the server right after its reply to
+     * QUIT, before the client receives it.
+     */
+    public int getMaxOpenConnections() {
+        return maxOpenConnections.get();
+    }
+
+    private void onOpened() {
+        int open = openConnections.incrementAndGet();
+        int max;
+
+        while (open > (max = maxOpenConnections.get()) && !maxOpenConnections.compareAndSet(max, open)) {
+            // Retries until max is updated or another thread sets a higher one
+        }
+    }
+
+    /** Returns the number of QUIT commands received. */
+    public long getQuitCount() {
+        return quitCount.get();
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getRecipientCount() {
+        return recipientCount.get();
+    }
+
+    /** Returns the number of bytes of accepted messages. */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    public List<ReceivedMessage> getReceivedMessages() {
+        return receivedMessages;
+    }
+
+    /**
+     * Returns unexpected errors raised while serving connections (errors of
+     * individual connections, such as resets, are not included).
+     */
+    public List<Throwable> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+
+        for (Reactor reactor : reactors)
+            reactor.selector.wakeup();
+
+        timer.shutdownNow();
+        tlsExecutor.shutdownNow();
+    }
+    // =========================================================================
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.mail.internet.AddressException;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolDispatcherTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SendResult> results = new CopyOnWriteArrayList<>();
+
+    private final SendCallback callback = new SendCallback() {
+        @Override
+        public void onComplete(SendResult result) {
+            results.add(result);
+        }
+    };
+
+    private Message getMessage(String subject) throws AddressException {
+        return new MessageBuilder("sender@host.com", "recipient@host.com").setSubject(subject).build();
+    }
+
+    private void waitForResults(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (results.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+
+    @Test
+    public void dispatch() throws IOException, InterruptedException, AddressException {
+        File dir = folder.newFolder();
+        MockSmtpSender sender = new MockSmtpSender();
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            try (SpoolDispatcher dispatcher = new SpoolDispatcher(spool, sender, 2, 3, 0, callback)) {
+                for (int i = 0; i < 10; i++)
+                    spool.enqueue(getMessage("" + i));
+
+                waitForResults(10);
+            }
+        }
+
+        assertEquals(10, sender.sentMessages.size());
+        assertEquals(10, results.size());
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            assertEquals(0, spool.getReadyCount());
+        }
+    }
+
+    @Test
+    public void retryAndDiscard() throws IOException, InterruptedException, AddressException {
+        File dir = folder.newFolder();
+        MockSmtpSender sender = new MockSmtpSender();
+        sender.failingSubject = "fail";
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            try (SpoolDispatcher dispatcher = new SpoolDispatcher(spool, sender, 1, 3, 10, callback)) {
+                spool.enqueue(getMessage("fail"));
+                waitForResults(1);
+            }
+        }
+
+        assertEquals(1, results.size());
+        assertFalse(results.get(0).isSuccess());
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            assertEquals(0, spool.getReadyCount());
+        }
+    }
+
+    @Test
+    public void keepUndeliveredOnClose() throws IOException, InterruptedException, AddressException {
+        File dir = folder.newFolder();
+        MockSmtpSender sender = new MockSmtpSender();
+        sender.failingSubject = "fail";
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            try (SpoolDispatcher dispatcher = new SpoolDispatcher(spool, sender, 1, 3, 60000, callback)) {
+                spool.enqueue(getMessage("fail"));
+                Thread.sleep(100);
+            }
+        }
+
+        assertEquals(0, results.size());
+
+        try (MessageSpool spool = new MessageSpool(dir)) {
+            assertEquals(1, spool.getReadyCount());
+        }
+    }
+
+    @Test
+    public void retryDeferredRecipients() throws Exception {
+        File dir = folder.newFolder();
+        MockTransport.reset();
+        MockTransport.DEFERRALS.set(1);
+
+        try (SmtpSender sender = MockTransport.getSender(null)) {
+            try (MessageSpool spool = new MessageSpool(dir)) {
+                try (SpoolDispatcher dispatcher = new SpoolDispatcher(spool, sender, 1, 3, 10, callback)) {
+                    spool.enqueue(new MessageBuilder("sender@host.com", "a@host.com", "deferred@host.com").setSubject("partial").build());
+                    waitForResults(1);
+                }
+            }
+
+            SendResult result = results.get(0);
+            assertTrue(result.isSuccess());
+            assertEquals(2, result.getAttempts());
+            assertEquals(2, result.getDeliveredRecipients().size());
+
+            // Second attempt includes only the deferred recipient...
+            MockTransport last = MockTransport.INSTANCES.get(MockTransport.INSTANCES.size() - 1);
+            assertEquals(1, last.sentEnvelopes.get(last.sentEnvelopes.size() - 1).length);
+            assertEquals("deferred@host.com", last.sentEnvelopes.get(last.sentEnvelopes.size() - 1)[0].toString());
+        } finally {
+            MockTransport.reset();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TemplateCacheTest {
+    private static class CountingLoader implements TemplateLoader {
+        private final List<String> loaded = new ArrayList<>();
+
+        @Override
+        public synchronized MessageTemplate load(String id) throws IOException {
+            if (id.equals("missing"))
+                return null;
+
+            if (id.equals("broken"))
+                throw new IOException("broken");
+
+            loaded.add(id);
+            return MessageTemplate.compile(id, "text of " + id);
+        }
+    }
+
+    @Test
+    public void cachesTemplates() throws IOException {
+        CountingLoader loader = new CountingLoader();
+        TemplateCache cache = new TemplateCache(loader, 4);
+
+        MessageTemplate template = cache.getTemplate("a");
+        Assert.assertSame(template, cache.getTemplate("a"));
+        Assert.assertEquals(1, loader.loaded.size());
+        Assert.assertEquals(1, cache.getSize());
+
+        cache.invalidate("a");
+        Assert.assertNotSame(template, cache.getTemplate("a"));
+        Assert.assertEquals(2, loader.loaded.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        CountingLoader loader = new CountingLoader();
+        TemplateCache cache = new TemplateCache(loader, 2);
+
+        cache.getTemplate("a");
+        cache.getTemplate("b");
+        cache.getTemplate("a"); // <-- "b" is now the eldest
+        cache.getTemplate("c");
+        Assert.assertEquals(2, cache.getSize());
+
+        cache.getTemplate("a");
+        Assert.assertEquals(3, loader.loaded.size());
+
+        cache.getTemplate("b");
+        Assert.assertEquals(4, loader.loaded.size());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTemplate() throws IOException {
+        new TemplateCache(new CountingLoader()).getTemplate("missing");
+    }
+
+    @Test(expected = IOException.class)
+    public void loaderError() throws IOException {
+        new TemplateCache(new CountingLoader()).getTemplate("broken");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMaxSize() {
+        new TemplateCache(new CountingLoader(), 0);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.agapsys.mail;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransportPoolTest {
+    private Session session;
+    private Message message;
+
+    @Before
+    public void before() throws MessagingException {
+        MockTransport.reset();
+        session = MockTransport.getSession();
+        message = new MessageBuilder("sender@host.com", "recipient@host.com").setSubject("Subject").setText("Text").build();
+    }
+
+    private MimeMessage getMimeMessage() throws MessagingException {
+        return message.getMimeMessage(session);
+    }
+
+    @Test
+    public void reuseConnection() throws MessagingException {
+        try (TransportPool pool = new TransportPool(session, new PoolSettings())) {
+            for (int i = 0; i < 10; i++)
+                pool.send(getMimeMessage());
+
+            assertEquals(1, MockTransport.INSTANCES.size());
+            assertEquals(10, MockTransport.INSTANCES.get(0).sentMessages.size());
+            assertEquals(1, pool.getIdleCount());
+        }
+
+        assertFalse(MockTransport.INSTANCES.get(0).isConnected());
+    }
+
+    @Test
+    public void maxMessagesPerConnection() throws MessagingException {
+        PoolSettings settings = new PoolSettings();
+        settings.setMaxMessagesPerConnection(3);
+
+        try (TransportPool pool = new TransportPool(session, settings)) {
+            for (int i = 0; i < 7; i++)
+                pool.send(getMimeMessage());
+
+            assertEquals(3, MockTransport.INSTANCES.size());
+            assertEquals(3, MockTransport.INSTANCES.get(0).sentMessages.size());
+            assertEquals(3, MockTransport.INSTANCES.get(1).sentMessages.size());
+            assertEquals(1, MockTransport.INSTANCES.get(2).sentMessages.size());
+        }
+    }
+
+    @Test
+    public void idleTimeout() throws MessagingException, InterruptedException {
+        PoolSettings settings = new PoolSettings();
+        settings.setIdleTimeout(10);
+
+        try (TransportPool pool = new TransportPool(session, settings)) {
+            pool.send(getMimeMessage());
+            Thread.sleep(50);
+            pool.send(getMimeMessage());
+
+            assertEquals(2, MockTransport.INSTANCES.size());
+        }
+    }
+
+    @Test
+    public void healthCheck() throws MessagingException {
+        PoolSettings settings = new PoolSettings();
+        settings.setValidationInterval(0);
+
+        try (TransportPool pool = new TransportPool(session, settings)) {
+            pool.send(getMimeMessage());
+            MockTransport.INSTANCES.get(0).broken = true;
+
+            pool.send(getMimeMessage());
+            assertEquals(2, MockTransport.INSTANCES.size());
+            assertEquals(1, MockTransport.INSTANCES.get(1).sentMessages.size());
+        }
+    }
+
+    @Test
+    public void reconnectOnBrokenConnection() throws MessagingException {
+        try (TransportPool pool = new TransportPool(session, new PoolSettings())) {
+            pool.send(getMimeMessage());
+            MockTransport.INSTANCES.get(0).broken = true; // <-- not detected by health check (validation interval)
+
+            pool.send(getMimeMessage());
+            assertEquals(2, MockTransport.INSTANCES.size());
+            assertEquals(1, MockTransport.INSTANCES.get(1).sentMessages.size());
+            assertEquals(1, pool.getIdleCount());
+        }
+    }
+
+    @Test
+    public void boundedPool() throws MessagingException {
+        PoolSettings settings = new PoolSettings();
+        settings.setMaxConnections(1);
+        settings.setMaxWait(10);
+
+        try (TransportPool pool = new TransportPool(session, settings)) {
+            TransportPool.PooledTransport borrowed = pool.borrow();
+
+            MessagingException error = null;
+            try {
+                pool.borrow();
+            } catch (MessagingException ex) {
+                error = ex;
+            }
+            assertNotNull(error);
+
+            pool.release(borrowed, true);
+            pool.release(pool.borrow(), true);
+            assertEquals(1, MockTransport.INSTANCES.size());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedPool() throws MessagingException {
+        TransportPool pool = new TransportPool(session, new PoolSettings());
+        pool.close();
+        pool.send(getMimeMessage());
+    }
+
+    @Test
+    public void maxRecipients() throws MessagingException {
+        Message message = new MessageBuilder("sender@host.com", "a@host.com", "b@host.com", "c@host.com", "d@host.com", "e@host.com").build();
+
+        try (TransportPool pool = new TransportPool(session, new PoolSettings(), new SendThrottle(0, 1, 0, 2))) {
+            pool.send(message.getMimeMessage(session));
+        }
+
+        assertEquals(1, MockTransport.INSTANCES.size());
+        MockTransport transport = MockTransport.INSTANCES.get(0);
+        assertEquals(3, transport.sentEnvelopes.size());
+        assertEquals(2, transport.sentEnvelopes.get(0).length);
+        assertEquals(2, transport.sentEnvelopes.get(1).length);
+        assertEquals(1, transport.sentEnvelopes.get(2).length);
+    }
+
+    @Test
+    public void maxRecipientsPartialFailure() throws MessagingException {
+        Message message = new MessageBuilder("sender@host.com", "a@host.com", "b@host.com", "invalid@host.com", "c@host.com", "d@host.com").build();
+
+        try (TransportPool pool = new TransportPool(session, new PoolSettings(), new SendThrottle(0, 1, 0, 2))) {
+            pool.send(message.getMimeMessage(session));
+            fail();
+        } catch (SendFailedException ex) {
+            assertEquals(3, ex.getValidSentAddresses().length);
+            assertEquals(1, ex.getValidUnsentAddresses().length);
+            assertEquals("c@host.com", ex.getValidUnsentAddresses()[0].toString());
+            assertEquals(1, ex.getInvalidAddresses().length);
+
+            SendResult result = new SendResult(message, ex);
+            assertEquals(3, result.getDeliveredRecipients().size());
+            assertEquals(1, result.getDeferredRecipients().size());
+            assertEquals(1, result.getFailedRecipients().size());
+        }
+    }
+
+    @Test
+    public void maxSessions() throws MessagingException {
+        PoolSettings settings = new PoolSettings();
+        settings.setMaxWait(50);
+
+        try (TransportPool pool = new TransportPool(session, settings, new SendThrottle(0, 1, 1, 0))) {
+            TransportPool.PooledTransport borrowed = pool.borrow();
+
+            try {
+                pool.borrow();
+                fail();
+            } catch (MessagingException ex) {
+                // Expected: session limit is below the pool size
+            }
+
+            pool.release(borrowed, true);
+            pool.release(pool.borrow(), true);
+        }
+    }
+}